@@ -28,6 +28,9 @@ import java.io.IOException;
 import java.io.PrintStream;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 /**
  * The JavaBuilder main called by bazel.
@@ -49,17 +52,50 @@ public abstract class BazelJavaBuilder {
   }
 
   private static int runPersistentWorker() {
-    PrintStream originalStdOut = System.out;
+    final PrintStream originalStdOut = System.out;
     PrintStream originalStdErr = System.err;
+    ExecutorService multiplexExecutor = null;
 
     while (true) {
       try {
-        WorkRequest request = WorkRequest.parseDelimitedFrom(System.in);
+        final WorkRequest request = WorkRequest.parseDelimitedFrom(System.in);
 
         if (request == null) {
           break;
         }
 
+        if (request.getRequestId() != 0) {
+          // Requests with an id are multiplexed: each one is compiled on its own thread and
+          // answered as soon as it is done, in any order.
+          if (multiplexExecutor == null) {
+            // Output that concurrent compilations write to System.out cannot be attributed to one
+            // of them, so it is kept off the protocol stream.
+            System.setOut(originalStdErr);
+            multiplexExecutor = Executors.newCachedThreadPool();
+          }
+          multiplexExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+              ByteArrayOutputStream baos = new ByteArrayOutputStream();
+              PrintStream err = new PrintStream(baos, true);
+              // Blaze waits for a response to every request, so one is sent even if the
+              // compilation fails with an Error, like an OutOfMemoryError or StackOverflowError.
+              int exitCode = 1;
+              try {
+                exitCode = processRequest(request.getArgumentsList(), err);
+              } catch (Throwable t) {
+                t.printStackTrace(err);
+              }
+              try {
+                writeResponse(request.getRequestId(), exitCode, baos, originalStdOut);
+              } catch (IOException e) {
+                e.printStackTrace();
+              }
+            }
+          });
+          continue;
+        }
+
         ByteArrayOutputStream baos = new ByteArrayOutputStream();
         PrintStream ps = new PrintStream(baos, true);
         // Make sure that we exit nonzero in case an exception occurs during processRequest.
@@ -69,44 +105,68 @@ public abstract class BazelJavaBuilder {
         System.setOut(ps);
         System.setErr(ps);
         try {
-          exitCode = processRequest(request.getArgumentsList());
+          exitCode = processRequest(request.getArgumentsList(), System.err);
         } finally {
           System.setOut(originalStdOut);
           System.setErr(originalStdErr);
         }
 
-        WorkResponse.newBuilder()
-            .setOutput(baos.toString())
-            .setExitCode(exitCode)
-            .build()
-            .writeDelimitedTo(System.out);
-        System.out.flush();
-      } catch (IOException e) {
-        e.printStackTrace();
-        return 1;
-      } finally {
+        writeResponse(0, exitCode, baos, originalStdOut);
         // JavaBuilder doesn't close certain file handles. We have to migrate to using the real
         // Jsr199 API instead of just calling the Main method of Javac in order to fix this, for
         // now let's just invoke GC.
         System.gc();
+      } catch (IOException e) {
+        e.printStackTrace();
+        return 1;
       }
     }
 
+    if (multiplexExecutor != null) {
+      // Answer the requests that are still being compiled before exiting.
+      multiplexExecutor.shutdown();
+      try {
+        multiplexExecutor.awaitTermination(Long.MAX_VALUE, TimeUnit.SECONDS);
+      } catch (InterruptedException e) {
+        return 1;
+      }
+    }
     return 0;
   }
 
+  /**
+   * Writes the response to a request to the protocol stream. Multiplexed requests are answered
+   * from several threads, so responses are written one at a time.
+   */
+  private static void writeResponse(int requestId, int exitCode, ByteArrayOutputStream output,
+      PrintStream protocolStream) throws IOException {
+    synchronized (protocolStream) {
+      WorkResponse.newBuilder()
+          .setOutput(output.toString())
+          .setExitCode(exitCode)
+          .setRequestId(requestId)
+          .build()
+          .writeDelimitedTo(protocolStream);
+      protocolStream.flush();
+    }
+  }
+
   private static int processRequest(List<String> args) {
+    return processRequest(args, System.err);
+  }
+
+  private static int processRequest(List<String> args, PrintStream err) {
     try {
       JavaLibraryBuildRequest build = parse(args);
       AbstractJavaBuilder builder = build.getDependencyModule().reduceClasspath()
           ? new ReducedClasspathJavaLibraryBuilder()
           : new SimpleJavaLibraryBuilder();
-      builder.run(build, System.err);
+      builder.run(build, err);
     } catch (JavacException | InvalidCommandLineException e) {
-      System.err.println(CMDNAME + " threw exception: " + e.getMessage());
+      err.println(CMDNAME + " threw exception: " + e.getMessage());
       return 1;
     } catch (Exception e) {
-      e.printStackTrace();
+      e.printStackTrace(err);
       return 1;
     }
     return 0;
@@ -335,6 +335,27 @@ static vector<string> GetArgumentArray() {
   if (globals->options.watchfs) {
     result.push_back("--watchfs");
   }
+  if (globals->options.experimental_mmap_action_cache) {
+    result.push_back("--experimental_mmap_action_cache");
+  }
+  if (!globals->options.digest_function.empty()) {
+    result.push_back("--digest_function=" + globals->options.digest_function);
+  }
+  if (globals->options.experimental_intern_nested_sets) {
+    result.push_back("--experimental_intern_nested_sets");
+  }
+  int expansion_cache_size =
+      globals->options.experimental_nested_set_expansion_cache_size;
+  if (expansion_cache_size != 0) {
+    result.push_back("--experimental_nested_set_expansion_cache_size=" +
+                     ToString(expansion_cache_size));
+  }
+  if (globals->options.experimental_compact_skyframe_graph) {
+    result.push_back("--experimental_compact_skyframe_graph");
+  }
+  if (globals->options.experimental_persistent_skyframe_graph) {
+    result.push_back("--experimental_persistent_skyframe_graph");
+  }
   if (globals->options.fatal_event_bus_exceptions) {
     result.push_back("--fatal_event_bus_exceptions");
   } else {
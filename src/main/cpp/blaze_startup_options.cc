@@ -52,6 +52,15 @@ BlazeStartupOptions::BlazeStartupOptions(const BlazeStartupOptions &rhs)
       skyframe(rhs.skyframe),
       blaze_cpu(rhs.blaze_cpu),
       watchfs(rhs.watchfs),
+      experimental_mmap_action_cache(rhs.experimental_mmap_action_cache),
+      digest_function(rhs.digest_function),
+      experimental_intern_nested_sets(rhs.experimental_intern_nested_sets),
+      experimental_nested_set_expansion_cache_size(
+          rhs.experimental_nested_set_expansion_cache_size),
+      experimental_compact_skyframe_graph(
+          rhs.experimental_compact_skyframe_graph),
+      experimental_persistent_skyframe_graph(
+          rhs.experimental_persistent_skyframe_graph),
       allow_configurable_attributes(rhs.allow_configurable_attributes),
       option_sources(rhs.option_sources),
       webstatus_port(rhs.webstatus_port),
@@ -149,6 +149,27 @@ class BlazeStartupOptions {
   // If true, Blaze will listen to OS-level file change notifications.
   bool watchfs;
 
+  // If true, the action cache is kept in memory-mapped files instead of being
+  // loaded into the heap at startup.
+  bool experimental_mmap_action_cache;
+
+  // The function used to digest file contents. Empty means the server default.
+  string digest_function;
+
+  // If true, nested sets built during analysis are interned by content.
+  bool experimental_intern_nested_sets;
+
+  // The maximum total number of elements in cached nested set expansions. 0
+  // disables the cache.
+  int experimental_nested_set_expansion_cache_size;
+
+  // If true, Skyframe stores the edges of its graph as encoded ids.
+  bool experimental_compact_skyframe_graph;
+
+  // If true, the Skyframe graph is saved to the output base at shutdown and
+  // restored by the next server.
+  bool experimental_persistent_skyframe_graph;
+
   // Temporary experimental flag that permits configurable attribute syntax
   // in BUILD files. This will be removed when configurable attributes is
   // a more stable feature.
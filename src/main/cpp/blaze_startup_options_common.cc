@@ -51,6 +51,11 @@ void BlazeStartupOptions::Init() {
   max_idle_secs = testing ? 5 : (3 * 3600);
   webstatus_port = 0;
   watchfs = false;
+  experimental_mmap_action_cache = false;
+  experimental_intern_nested_sets = false;
+  experimental_nested_set_expansion_cache_size = 0;
+  experimental_compact_skyframe_graph = false;
+  experimental_persistent_skyframe_graph = false;
 }
 
 string BlazeStartupOptions::GetHostJavabase() {
@@ -81,6 +86,15 @@ void BlazeStartupOptions::Copy(
   lhs->blaze_cpu = rhs.blaze_cpu;
   lhs->webstatus_port = rhs.webstatus_port;
   lhs->watchfs = rhs.watchfs;
+  lhs->experimental_mmap_action_cache = rhs.experimental_mmap_action_cache;
+  lhs->digest_function = rhs.digest_function;
+  lhs->experimental_intern_nested_sets = rhs.experimental_intern_nested_sets;
+  lhs->experimental_nested_set_expansion_cache_size =
+      rhs.experimental_nested_set_expansion_cache_size;
+  lhs->experimental_compact_skyframe_graph =
+      rhs.experimental_compact_skyframe_graph;
+  lhs->experimental_persistent_skyframe_graph =
+      rhs.experimental_persistent_skyframe_graph;
   lhs->allow_configurable_attributes = rhs.allow_configurable_attributes;
   lhs->fatal_event_bus_exceptions = rhs.fatal_event_bus_exceptions;
   lhs->option_sources = rhs.option_sources;
@@ -217,6 +231,49 @@ blaze_exit_code::ExitCode BlazeStartupOptions::ProcessArg(
   } else if (GetNullaryOption(arg, "--nowatchfs")) {
     watchfs = false;
     option_sources["watchfs"] = rcfile;
+  } else if (GetNullaryOption(arg, "--experimental_mmap_action_cache")) {
+    experimental_mmap_action_cache = true;
+    option_sources["experimental_mmap_action_cache"] = rcfile;
+  } else if (GetNullaryOption(arg, "--noexperimental_mmap_action_cache")) {
+    experimental_mmap_action_cache = false;
+    option_sources["experimental_mmap_action_cache"] = rcfile;
+  } else if ((value = GetUnaryOption(
+      arg, next_arg, "--digest_function")) != NULL) {
+    digest_function = value;
+    option_sources["digest_function"] = rcfile;
+  } else if (GetNullaryOption(arg, "--experimental_intern_nested_sets")) {
+    experimental_intern_nested_sets = true;
+    option_sources["experimental_intern_nested_sets"] = rcfile;
+  } else if (GetNullaryOption(arg, "--noexperimental_intern_nested_sets")) {
+    experimental_intern_nested_sets = false;
+    option_sources["experimental_intern_nested_sets"] = rcfile;
+  } else if (GetNullaryOption(arg, "--experimental_compact_skyframe_graph")) {
+    experimental_compact_skyframe_graph = true;
+    option_sources["experimental_compact_skyframe_graph"] = rcfile;
+  } else if (GetNullaryOption(arg,
+                              "--noexperimental_compact_skyframe_graph")) {
+    experimental_compact_skyframe_graph = false;
+    option_sources["experimental_compact_skyframe_graph"] = rcfile;
+  } else if (GetNullaryOption(arg,
+                              "--experimental_persistent_skyframe_graph")) {
+    experimental_persistent_skyframe_graph = true;
+    option_sources["experimental_persistent_skyframe_graph"] = rcfile;
+  } else if (GetNullaryOption(arg,
+                              "--noexperimental_persistent_skyframe_graph")) {
+    experimental_persistent_skyframe_graph = false;
+    option_sources["experimental_persistent_skyframe_graph"] = rcfile;
+  } else if ((value = GetUnaryOption(
+                 arg, next_arg,
+                 "--experimental_nested_set_expansion_cache_size")) != NULL) {
+    if (!blaze_util::safe_strto32(
+            value, &experimental_nested_set_expansion_cache_size) ||
+        experimental_nested_set_expansion_cache_size < 0) {
+      blaze_util::StringPrintf(error,
+          "Invalid argument to --experimental_nested_set_expansion_cache_size: "
+          "'%s'.", value);
+      return blaze_exit_code::BAD_ARGV;
+    }
+    option_sources["experimental_nested_set_expansion_cache_size"] = rcfile;
   } else if ((value = GetUnaryOption(
       arg, next_arg, "--use_webstatusserver")) != NULL) {
     if (!blaze_util::safe_strto32(value, &webstatus_port) ||
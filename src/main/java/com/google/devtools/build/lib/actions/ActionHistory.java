@@ -0,0 +1,270 @@
+// Copyright 2015 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.actions;
+
+import com.google.common.collect.ImmutableList;
+import com.google.devtools.build.lib.concurrent.ThreadSafety.Immutable;
+import com.google.devtools.build.lib.concurrent.ThreadSafety.ThreadSafe;
+import com.google.devtools.build.lib.util.PersistentMap;
+import com.google.devtools.build.lib.vfs.Path;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nullable;
+
+/**
+ * A persistent record of the resources that actions used when they last executed, keyed by the
+ * mnemonic and the primary output of the action.
+ *
+ * <p>The {@link ResourceManager} uses the measurements in place of the static {@link ResourceSet}
+ * estimates of actions, and the build summary reports actions that became much slower than in
+ * previous builds.
+ */
+@ThreadSafe
+public final class ActionHistory {
+
+  private static final int VERSION = 0x01;
+
+  /** An execution is a regression if it takes at least this many times longer than before... */
+  private static final double REGRESSION_RATIO = 2.0;
+  /** ...and at least this much longer. */
+  private static final long MIN_REGRESSION_MILLIS = 1000;
+
+  /** Lower bound of a measured CPU estimate, so that idle actions still count against the CPU. */
+  private static final double MIN_MEASURED_CPU = 0.1;
+
+  /** The resources used by a single execution of an action. */
+  @Immutable
+  public static final class Measurement {
+    private final long wallMillis;
+    private final long cpuMillis;
+    private final long memoryMb;
+
+    public Measurement(long wallMillis, long cpuMillis, long memoryMb) {
+      this.wallMillis = wallMillis;
+      this.cpuMillis = cpuMillis;
+      this.memoryMb = memoryMb;
+    }
+
+    /** Returns the wall time of the execution. */
+    public long getWallMillis() {
+      return wallMillis;
+    }
+
+    /** Returns the CPU time of the spawned processes, or -1 if it was not measured. */
+    public long getCpuMillis() {
+      return cpuMillis;
+    }
+
+    /**
+     * Returns the peak resident memory of the largest spawned process, or -1 if it was not
+     * measured.
+     */
+    public long getMemoryMb() {
+      return memoryMb;
+    }
+
+    @Override
+    public String toString() {
+      return String.format("%d ms wall, %d ms CPU, %d MB", wallMillis, cpuMillis, memoryMb);
+    }
+  }
+
+  /** An action that took much longer than in its previous execution. */
+  @Immutable
+  public static final class Regression {
+    private final String key;
+    private final long previousMillis;
+    private final long currentMillis;
+
+    private Regression(String key, long previousMillis, long currentMillis) {
+      this.key = key;
+      this.previousMillis = previousMillis;
+      this.currentMillis = currentMillis;
+    }
+
+    /** Returns the mnemonic and the primary output of the action. */
+    public String getKey() {
+      return key;
+    }
+
+    public long getPreviousMillis() {
+      return previousMillis;
+    }
+
+    public long getCurrentMillis() {
+      return currentMillis;
+    }
+
+    @Override
+    public String toString() {
+      return String.format("%s: %.2f s -> %.2f s", key, previousMillis / 1000.0,
+          currentMillis / 1000.0);
+    }
+  }
+
+  private static final Comparator<Regression> LARGEST_REGRESSION_FIRST =
+      new Comparator<Regression>() {
+        @Override
+        public int compare(Regression a, Regression b) {
+          return Long.compare(b.currentMillis - b.previousMillis,
+              a.currentMillis - a.previousMillis);
+        }
+      };
+
+  private final PersistentMap<String, Measurement> measurements;
+  // The CPU time and peak memory of the processes spawned by running actions, by action key.
+  private final Map<String, long[]> spawnUsage = new HashMap<>();
+  private final List<Regression> regressions = new ArrayList<>();
+
+  /**
+   * Opens the history stored in {@code directory}. A history that cannot be read is discarded.
+   */
+  public ActionHistory(Path directory) throws IOException {
+    directory.createDirectory();
+    measurements = new PersistentMap<String, Measurement>(VERSION,
+        new HashMap<String, Measurement>(), directory.getChild("measurements"),
+        directory.getChild("measurements_journal")) {
+      @Override
+      protected boolean updateJournal() {
+        return false;
+      }
+
+      @Override
+      protected String readKey(DataInputStream in) throws IOException {
+        return in.readUTF();
+      }
+
+      @Override
+      protected void writeKey(String key, DataOutputStream out) throws IOException {
+        out.writeUTF(key);
+      }
+
+      @Override
+      protected Measurement readValue(DataInputStream in) throws IOException {
+        return new Measurement(in.readLong(), in.readLong(), in.readLong());
+      }
+
+      @Override
+      protected void writeValue(Measurement value, DataOutputStream out) throws IOException {
+        out.writeLong(value.wallMillis);
+        out.writeLong(value.cpuMillis);
+        out.writeLong(value.memoryMb);
+      }
+    };
+    measurements.load();
+  }
+
+  private static String key(ActionMetadata action) {
+    return action.getMnemonic() + " " + action.getPrimaryOutput().getExecPathString();
+  }
+
+  /** Returns the measurement of the previous execution of the action, or null if there is none. */
+  @Nullable
+  public synchronized Measurement get(ActionMetadata action) {
+    return measurements.get(key(action));
+  }
+
+  /**
+   * Returns {@code estimate} with its CPU and memory replaced by the measurements of the previous
+   * execution of the action, where there are any. Actions that acquire their own resources, i.e.
+   * have a null estimate, and actions that need no resources are left alone.
+   */
+  @Nullable
+  public ResourceSet correctEstimate(ActionMetadata action, @Nullable ResourceSet estimate) {
+    if (estimate == null || estimate == ResourceSet.ZERO) {
+      return estimate;
+    }
+    Measurement measurement = get(action);
+    if (measurement == null) {
+      return estimate;
+    }
+    double cpu = estimate.getCpuUsage();
+    if (measurement.cpuMillis >= 0 && measurement.wallMillis > 0) {
+      cpu = Math.max(MIN_MEASURED_CPU, (double) measurement.cpuMillis / measurement.wallMillis);
+    }
+    double memory = measurement.memoryMb >= 0 ? measurement.memoryMb : estimate.getMemoryMb();
+    return ResourceSet.create(memory, cpu, estimate.getIoUsage(),
+        estimate.getLocalTestCount());
+  }
+
+  /**
+   * Adds the CPU time and the peak resident memory of a process spawned by {@code owner} to the
+   * measurement of its current execution.
+   */
+  public synchronized void addSpawnUsage(ActionMetadata owner, long cpuMillis, long memoryKb) {
+    String key = key(owner);
+    long[] usage = spawnUsage.get(key);
+    if (usage == null) {
+      spawnUsage.put(key, new long[] {cpuMillis, memoryKb});
+    } else {
+      usage[0] += cpuMillis;
+      usage[1] = Math.max(usage[1], memoryKb);
+    }
+  }
+
+  /**
+   * Records a successful execution of the action that took {@code wallNanos}, together with the
+   * usage of the processes it spawned.
+   */
+  public synchronized void recordExecution(ActionMetadata action, long wallNanos) {
+    String key = key(action);
+    long wallMillis = TimeUnit.NANOSECONDS.toMillis(wallNanos);
+    long[] usage = spawnUsage.remove(key);
+    Measurement measurement = usage == null
+        ? new Measurement(wallMillis, -1, -1)
+        : new Measurement(wallMillis, usage[0], usage[1] / 1024);
+    Measurement previous = measurements.put(key, measurement);
+    if (previous != null && wallMillis >= previous.wallMillis * REGRESSION_RATIO
+        && wallMillis - previous.wallMillis >= MIN_REGRESSION_MILLIS) {
+      regressions.add(new Regression(key, previous.wallMillis, wallMillis));
+    }
+  }
+
+  /**
+   * Forgets the regressions and the spawn usage of the previous build. Called before each build.
+   */
+  public synchronized void startBuild() {
+    spawnUsage.clear();
+    regressions.clear();
+  }
+
+  /** Returns the regressions of the current build, the largest first. */
+  public synchronized List<Regression> getRegressions() {
+    List<Regression> result = new ArrayList<>(regressions);
+    Collections.sort(result, LARGEST_REGRESSION_FIRST);
+    return ImmutableList.copyOf(result);
+  }
+
+  /** Writes the history to disk and returns its size in bytes. */
+  public synchronized long save() throws IOException {
+    return measurements.save();
+  }
+
+  /** Discards the whole history, in memory and on disk. */
+  public synchronized void clear() {
+    measurements.clear();
+    spawnUsage.clear();
+    regressions.clear();
+  }
+}
@@ -23,6 +23,8 @@ import com.google.common.base.Predicate;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Iterables;
 import com.google.devtools.build.lib.actions.Action.MiddlemanType;
+import com.google.devtools.build.lib.collect.nestedset.NestedSet;
+import com.google.devtools.build.lib.collect.nestedset.NestedSetVisitor;
 import com.google.devtools.build.lib.concurrent.ThreadSafety.Immutable;
 import com.google.devtools.build.lib.shell.ShellUtils;
 import com.google.devtools.build.lib.syntax.Label;
@@ -537,8 +539,37 @@ public class Artifact implements FileType.HasFilename, ActionInput {
    * Renders a collection of artifacts as execution-time paths and joins
    * them into a single string. Middleman artifacts are ignored by this method.
    */
+  @SuppressWarnings("unchecked")  // A NestedSet that is an Iterable<Artifact> has Artifacts.
   public static String joinExecPaths(String delimiter, Iterable<Artifact> artifacts) {
-    return Joiner.on(delimiter).join(toExecPaths(artifacts));
+    if (!(artifacts instanceof NestedSet)) {
+      return Joiner.on(delimiter).join(toExecPaths(artifacts));
+    }
+    // Classpaths are large nested sets; walk them without building a list of exec paths.
+    ExecPathJoiner joiner = new ExecPathJoiner(delimiter);
+    ((NestedSet<Artifact>) artifacts).forEachElement(joiner);
+    return joiner.result.toString();
+  }
+
+  private static final class ExecPathJoiner implements NestedSetVisitor.Receiver<Artifact> {
+    private final String delimiter;
+    private final StringBuilder result = new StringBuilder();
+    private boolean first = true;
+
+    ExecPathJoiner(String delimiter) {
+      this.delimiter = delimiter;
+    }
+
+    @Override
+    public void accept(Artifact artifact) {
+      if (!MIDDLEMAN_FILTER.apply(artifact)) {
+        return;
+      }
+      if (!first) {
+        result.append(delimiter);
+      }
+      first = false;
+      result.append(artifact.getExecPathString());
+    }
   }
 
   /**
@@ -0,0 +1,165 @@
+// Copyright 2015 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.actions;
+
+import com.google.common.base.CharMatcher;
+import com.google.common.base.Splitter;
+import com.google.common.io.Files;
+import com.google.devtools.build.lib.concurrent.ThreadSafety.Immutable;
+import com.google.devtools.build.lib.concurrent.ThreadSafety.ThreadSafe;
+import com.google.devtools.build.lib.util.ProcMeminfoParser;
+import com.google.devtools.build.lib.util.ResourceUsage;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The measured load of the local host, which the {@link ResourceManager} uses to correct the
+ * static {@link ResourceSet} estimates of actions.
+ *
+ * <p>Measurements cover the whole host, including processes that are not spawned by Blaze.
+ */
+@ThreadSafe
+public abstract class LocalHostLoad {
+
+  /** A measurement of the load. */
+  @Immutable
+  public static final class Sample {
+    private final double busyCpus;
+    private final double freeMemoryMb;
+
+    public Sample(double busyCpus, double freeMemoryMb) {
+      this.busyCpus = busyCpus;
+      this.freeMemoryMb = freeMemoryMb;
+    }
+
+    /**
+     * Returns the number of CPU cores that were busy, on average, since the previous sample, or
+     * NaN if that is not known.
+     */
+    public double getBusyCpus() {
+      return busyCpus;
+    }
+
+    /** Returns the memory available to new processes in MB, or NaN if that is not known. */
+    public double getFreeMemoryMb() {
+      return freeMemoryMb;
+    }
+  }
+
+  /**
+   * Returns the latest sample, measuring the load again first if it is due, which may block on
+   * I/O. Consecutive calls return the same instance until the load is measured again.
+   */
+  public abstract Sample sample();
+
+  /**
+   * Returns the latest sample without measuring the load. Callers that must not block, such as
+   * those holding a lock, use this and call {@link #sample} elsewhere. By default, the same as
+   * {@link #sample}.
+   */
+  public Sample latestSample() {
+    return sample();
+  }
+
+  /**
+   * Returns a load that is read from /proc/stat and /proc/meminfo, at most once per
+   * {@code interval}.
+   */
+  public static LocalHostLoad fromProc(long interval, TimeUnit unit) {
+    return new ProcLocalHostLoad(unit.toNanos(interval));
+  }
+
+  private static final class ProcLocalHostLoad extends LocalHostLoad {
+    private static final Splitter WHITESPACE_SPLITTER =
+        Splitter.on(CharMatcher.WHITESPACE).omitEmptyStrings();
+
+    private final long intervalNanos;
+    private long sampleTimeNanos;
+    private long[] cpuJiffies;
+    private volatile Sample sample;
+
+    ProcLocalHostLoad(long intervalNanos) {
+      this.intervalNanos = intervalNanos;
+      this.sampleTimeNanos = System.nanoTime();
+      this.cpuJiffies = readCpuJiffies();
+      this.sample = new Sample(Double.NaN, readFreeMemoryMb());
+    }
+
+    @Override
+    public synchronized Sample sample() {
+      long now = System.nanoTime();
+      if (now - sampleTimeNanos < intervalNanos) {
+        return sample;
+      }
+      long[] newCpuJiffies = readCpuJiffies();
+      double busyCpus = Double.NaN;
+      if (cpuJiffies != null && newCpuJiffies != null && newCpuJiffies[1] > cpuJiffies[1]) {
+        busyCpus = ResourceUsage.getAvailableProcessors()
+            * (double) (newCpuJiffies[0] - cpuJiffies[0]) / (newCpuJiffies[1] - cpuJiffies[1]);
+      }
+      sampleTimeNanos = now;
+      cpuJiffies = newCpuJiffies;
+      sample = new Sample(busyCpus, readFreeMemoryMb());
+      return sample;
+    }
+
+    @Override
+    public Sample latestSample() {
+      return sample;
+    }
+
+    /**
+     * Returns the busy and total jiffies of all CPUs since boot, or null if /proc/stat cannot be
+     * read. Idle and I/O wait time count as not busy.
+     */
+    private static long[] readCpuJiffies() {
+      try {
+        String firstLine = Files.readFirstLine(new File("/proc/stat"), StandardCharsets.US_ASCII);
+        if (firstLine == null) {
+          return null;
+        }
+        Iterator<String> fields = WHITESPACE_SPLITTER.split(firstLine).iterator();
+        if (!fields.hasNext() || !fields.next().equals("cpu")) {
+          return null;
+        }
+        long busy = 0;
+        long total = 0;
+        // Guest time is already included in user time, so only the first eight fields count.
+        for (int i = 0; i < 8 && fields.hasNext(); i++) {
+          long value = Long.parseLong(fields.next());
+          total += value;
+          // The fourth and fifth fields are the idle and I/O wait time.
+          if (i != 3 && i != 4) {
+            busy += value;
+          }
+        }
+        return new long[] {busy, total};
+      } catch (IOException | NumberFormatException e) {
+        return null;
+      }
+    }
+
+    private static double readFreeMemoryMb() {
+      try {
+        return ProcMeminfoParser.kbToMb(new ProcMeminfoParser().getFreeRamKb());
+      } catch (IOException | IllegalArgumentException e) {
+        return Double.NaN;
+      }
+    }
+  }
+}
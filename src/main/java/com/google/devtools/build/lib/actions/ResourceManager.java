@@ -20,13 +20,14 @@ import com.google.common.eventbus.EventBus;
 import com.google.devtools.build.lib.concurrent.ThreadSafety.ThreadSafe;
 import com.google.devtools.build.lib.profiler.Profiler;
 import com.google.devtools.build.lib.profiler.ProfilerTask;
-import com.google.devtools.build.lib.util.Pair;
 
+import java.util.Comparator;
 import java.util.Iterator;
-import java.util.LinkedList;
-import java.util.List;
+import java.util.TreeSet;
 import java.util.concurrent.CountDownLatch;
 
+import javax.annotation.Nullable;
+
 /**
  * Used to keep track of resources consumed by the Blaze action execution threads and throttle them
  * when necessary.
@@ -54,6 +55,15 @@ import java.util.concurrent.CountDownLatch;
  * guarantees that at least one thread will always be able to acquire any amount of requested
  * resources (even if it is greater than amount of available resources). Therefore, assuming that
  * threads correctly release acquired resources, Blaze will never be fully blocked.
+ *
+ * <p>Blocked threads are served in the order of the priorities of their actions, as given by the
+ * {@link Prioritizer}, and in request order among equal priorities. A blocked thread may be
+ * overtaken by threads whose requests fit into the remaining resources.
+ *
+ * <p>If a {@link LocalHostLoad} is set, the measured load of the host corrects the estimates: CPU
+ * may be allocated beyond the available amount, up to {@link #MAX_MEASURED_CPU_RATIO} times of it,
+ * as long as the measured CPU usage leaves room for the request, and RAM is only allocated if the
+ * host has that much memory free.
  */
 @ThreadSafe
 public class ResourceManager {
@@ -92,9 +102,60 @@ public class ResourceManager {
   private static final double MIN_NECESSARY_RAM_RATIO = 1.0;
   private static final double MIN_NECESSARY_IO_RATIO = 1.0;
 
-  // List of blocked threads. Associated CountDownLatch object will always
-  // be initialized to 1 during creation in the acquire() method.
-  private final List<Pair<ResourceSet, CountDownLatch>> requestList;
+  /**
+   * With a measured host load, CPU may be allocated up to this many times the available CPU, if
+   * the measured usage shows that the allocated CPU is not actually used.
+   */
+  @VisibleForTesting static final double MAX_MEASURED_CPU_RATIO = 2.0;
+
+  /**
+   * Orders the threads that are blocked on resources.
+   */
+  public interface Prioritizer {
+    /**
+     * Returns the priority of the resource request of an action. Requests with higher priorities
+     * are served first. Only called for requests that cannot be served immediately.
+     */
+    long getPriority(ActionMetadata owner);
+  }
+
+  /** A request of a blocked thread. */
+  private static final class Request {
+    private final ResourceSet resources;
+    private final long priority;
+    private final long sequenceNumber;
+    // Counted down once the resources are allocated to the request.
+    private final CountDownLatch latch = new CountDownLatch(1);
+
+    Request(ResourceSet resources, long priority, long sequenceNumber) {
+      this.resources = resources;
+      this.priority = priority;
+      this.sequenceNumber = sequenceNumber;
+    }
+  }
+
+  private static final Comparator<Request> REQUEST_ORDER = new Comparator<Request>() {
+    @Override
+    public int compare(Request r1, Request r2) {
+      int byPriority = Long.compare(r2.priority, r1.priority);
+      return byPriority != 0 ? byPriority : Long.compare(r1.sequenceNumber, r2.sequenceNumber);
+    }
+  };
+
+  // Blocked threads, in the order in which they are served.
+  private final TreeSet<Request> requests = new TreeSet<>(REQUEST_ORDER);
+  private long requestCount;
+
+  @Nullable private volatile Prioritizer prioritizer = null;
+
+  @Nullable private volatile LocalHostLoad hostLoad = null;
+  // The sample of the host load on which the last allocation was based, and the CPU and RAM
+  // allocated since it was measured, which the sample does not show yet.
+  private LocalHostLoad.Sample lastSample = null;
+  private double cpuAllocatedSinceSample;
+  private double ramAllocatedSinceSample;
+
+  @Nullable private volatile ActionHistory actionHistory = null;
 
   // The total amount of resources on the local host. Must be set by
   // an explicit call to setAvailableResources(), often using
@@ -124,7 +185,6 @@ public class ResourceManager {
   private int ramUtilizationPercentage = DEFAULT_RAM_UTILIZATION_PERCENTAGE;
 
   private ResourceManager() {
-    requestList = new LinkedList<>();
   }
 
   @VisibleForTesting public static ResourceManager instanceForTestingOnly() {
@@ -141,11 +201,10 @@ public class ResourceManager {
     usedRam = 0;
     usedIo = 0;
     usedLocalTestCount = 0;
-    for (Pair<ResourceSet, CountDownLatch> request : requestList) {
-      // CountDownLatch can be set only to 0 or 1.
-      request.second.countDown();
+    for (Request request : requests) {
+      request.latch.countDown();
     }
-    requestList.clear();
+    requests.clear();
   }
 
   /**
@@ -171,6 +230,60 @@ public class ResourceManager {
     ramUtilizationPercentage = percentage;
   }
 
+  /**
+   * Sets the prioritizer that orders blocked threads, or null to serve them in request order.
+   */
+  public void setPrioritizer(@Nullable Prioritizer prioritizer) {
+    this.prioritizer = prioritizer;
+  }
+
+  /**
+   * Sets the measured load of the host that corrects the resource estimates, or null to rely on
+   * the estimates alone.
+   */
+  public synchronized void setLocalHostLoad(@Nullable LocalHostLoad hostLoad) {
+    this.hostLoad = hostLoad;
+    lastSample = hostLoad == null ? null : hostLoad.latestSample();
+    cpuAllocatedSinceSample = 0;
+    ramAllocatedSinceSample = 0;
+  }
+
+  /**
+   * Measures the host load if a new sample is due. Must be called without holding the lock, since
+   * measuring may read from /proc; the allocation decisions only look at the latest sample.
+   */
+  private void measureHostLoad() {
+    LocalHostLoad currentHostLoad = hostLoad;
+    if (currentHostLoad != null) {
+      currentHostLoad.sample();
+    }
+  }
+
+  /**
+   * Sets the history whose measurements replace the resource estimates of actions, or null to
+   * rely on the estimates alone.
+   */
+  public void setActionHistory(@Nullable ActionHistory actionHistory) {
+    this.actionHistory = actionHistory;
+  }
+
+  /** Returns the history of action executions, or null if there is none. */
+  @Nullable
+  public ActionHistory getActionHistory() {
+    return actionHistory;
+  }
+
+  /**
+   * Returns the resources that the action is expected to use: {@code estimate}, corrected by the
+   * measurements of previous executions of the action if there is a history. The same resources
+   * must be passed to {@link #acquireResources} and {@link #releaseResources}.
+   */
+  @Nullable
+  public ResourceSet correctEstimate(ActionMetadata owner, @Nullable ResourceSet estimate) {
+    ActionHistory history = actionHistory;
+    return history == null ? estimate : history.correctEstimate(owner, estimate);
+  }
+
   /**
    * Acquires requested resource set. Will block if resource is not available.
    * NB! This method must be thread-safe!
@@ -182,7 +295,7 @@ public class ResourceManager {
     CountDownLatch latch = null;
     try {
       waiting(owner);
-      latch = acquire(resources);
+      latch = acquire(owner, resources);
       if (latch != null) {
         latch.await();
       }
@@ -204,6 +317,7 @@ public class ResourceManager {
    */
   public boolean tryAcquire(ActionMetadata owner, ResourceSet resources) {
     boolean acquired = false;
+    measureHostLoad();
     synchronized (this) {
       if (areResourcesAvailable(resources)) {
         incrementResources(resources);
@@ -221,6 +335,8 @@ public class ResourceManager {
   }
 
   private void incrementResources(ResourceSet resources) {
+    cpuAllocatedSinceSample += resources.getCpuUsage();
+    ramAllocatedSinceSample += resources.getMemoryMb();
     usedCpu += resources.getCpuUsage();
     usedRam += resources.getMemoryMb();
     usedIo += resources.getIoUsage();
@@ -232,7 +348,7 @@ public class ResourceManager {
    */
   public synchronized boolean inUse() {
     return usedCpu != 0.0 || usedRam != 0.0 || usedIo != 0.0 || usedLocalTestCount != 0
-        || !requestList.isEmpty();
+        || !requests.isEmpty();
   }
 
 
@@ -276,6 +392,7 @@ public class ResourceManager {
     boolean isConflict = false;
     long startTime = Profiler.nanoTimeMaybe();
     try {
+      measureHostLoad();
       isConflict = release(resources);
     } finally {
       threadLocked.set(false);
@@ -287,15 +404,27 @@ public class ResourceManager {
     }
   }
 
-  private synchronized CountDownLatch acquire(ResourceSet resources) {
-    if (areResourcesAvailable(resources)) {
-      incrementResources(resources);
-      return null;
+  private CountDownLatch acquire(ActionMetadata owner, ResourceSet resources) {
+    measureHostLoad();
+    synchronized (this) {
+      if (areResourcesAvailable(resources)) {
+        incrementResources(resources);
+        return null;
+      }
+    }
+    // The priority is computed without holding the lock, as a prioritizer may have to look at all
+    // inputs of the action.
+    Prioritizer currentPrioritizer = prioritizer;
+    long priority = currentPrioritizer == null ? 0 : currentPrioritizer.getPriority(owner);
+    synchronized (this) {
+      if (areResourcesAvailable(resources)) {
+        incrementResources(resources);
+        return null;
+      }
+      Request request = new Request(resources, priority, requestCount++);
+      requests.add(request);
+      return request.latch;
     }
-    Pair<ResourceSet, CountDownLatch> request =
-      new Pair<>(resources, new CountDownLatch(1));
-    requestList.add(request);
-    return request.second;
   }
 
   private synchronized boolean release(ResourceSet resources) {
@@ -316,7 +445,7 @@ public class ResourceManager {
     if (usedIo < epsilon) {
       usedIo = 0;
     }
-    if (!requestList.isEmpty()) {
+    if (!requests.isEmpty()) {
       processWaitingThreads();
       return true;
     }
@@ -328,12 +457,12 @@ public class ResourceManager {
    * Tries to unblock one or more waiting threads if there are sufficient resources available.
    */
   private synchronized void processWaitingThreads() {
-    Iterator<Pair<ResourceSet, CountDownLatch>> iterator = requestList.iterator();
+    Iterator<Request> iterator = requests.iterator();
     while (iterator.hasNext()) {
-      Pair<ResourceSet, CountDownLatch> request = iterator.next();
-      if (areResourcesAvailable(request.first)) {
-        incrementResources(request.first);
-        request.second.countDown();
+      Request request = iterator.next();
+      if (areResourcesAvailable(request.resources)) {
+        incrementResources(request.resources);
+        request.latch.countDown();
         iterator.remove();
       }
     }
@@ -374,13 +503,28 @@ public class ResourceManager {
     boolean ioIsAvailable = io == 0.0 || usedIo == 0.0 || usedIo + io <= availableIo;
     boolean localTestCountIsAvailable = localTestCount == 0 || usedLocalTestCount == 0
         || usedLocalTestCount + localTestCount <= availableLocalTestCount;
+    if (hostLoad != null && ioIsAvailable && localTestCountIsAvailable) {
+      LocalHostLoad.Sample sample = hostLoad.latestSample();
+      if (sample != lastSample) {
+        lastSample = sample;
+        cpuAllocatedSinceSample = 0;
+        ramAllocatedSinceSample = 0;
+      }
+      // 4) If the measured usage of the host leaves room for the request, CPU may be overallocated
+      // up to a limit. RAM that the host does not have free is not available, though.
+      double busyCpus = sample.getBusyCpus() + cpuAllocatedSinceSample;
+      cpuIsAvailable |= cpu != 0.0 && usedCpu + cpu <= availableCpu * MAX_MEASURED_CPU_RATIO
+          && busyCpus + cpu <= availableCpu;
+      double freeRam = sample.getFreeMemoryMb() - ramAllocatedSinceSample;
+      ramIsAvailable &= ram == 0.0 || usedRam == 0.0 || !(freeRam < ram);
+    }
     return cpuIsAvailable && ramIsAvailable && ioIsAvailable && localTestCountIsAvailable;
   }
 
 
   @VisibleForTesting
   synchronized int getWaitCount() {
-    return requestList.size();
+    return requests.size();
   }
 
   @VisibleForTesting
@@ -19,6 +19,7 @@ import com.google.devtools.build.lib.profiler.Profiler;
 import com.google.devtools.build.lib.profiler.ProfilerTask;
 import com.google.devtools.build.lib.util.BlazeClock;
 import com.google.devtools.build.lib.util.LoggingUtil;
+import com.google.devtools.build.lib.vfs.DigestHashFunction;
 import com.google.devtools.build.lib.vfs.Path;
 
 import java.io.IOException;
@@ -28,17 +29,18 @@ import java.util.logging.Level;
 import javax.annotation.Nullable;
 
 /**
- * Utility class for getting md5 digests of files.
+ * Utility class for getting digests of files, computed with
+ * {@link DigestHashFunction#getDefault}.
  */
 public class DigestUtils {
   // Object to synchronize on when serializing large file reads.
-  private static final Object MD5_LOCK = new Object();
+  private static final Object DIGEST_LOCK = new Object();
 
   /** Private constructor to prevent instantiation of utility class. */
   private DigestUtils() {}
 
   /**
-   * Returns true iff using MD5 digests is appropriate for an artifact.
+   * Returns true iff using digests is appropriate for an artifact.
    *
    * @param isFile whether or not Artifact is a file versus a directory, isFile() on its stat.
    * @param size size of Artifact on filesystem in bytes, getSize() on its stat.
@@ -49,14 +51,14 @@ public class DigestUtils {
   }
 
   /**
-   * Obtain file's MD5 metadata using synchronized method, ensuring that system
-   * is not overloaded in case when multiple threads are requesting MD5
+   * Obtain file's digest using synchronized method, ensuring that system
+   * is not overloaded in case when multiple threads are requesting digest
    * calculations and underlying file system cannot provide it via extended
    * attribute.
    */
   private static byte[] getDigestInExclusiveMode(Path path) throws IOException {
     long startTime = BlazeClock.nanoTime();
-    synchronized (MD5_LOCK) {
+    synchronized (DIGEST_LOCK) {
       Profiler.instance().logSimpleTask(startTime, ProfilerTask.WAIT, path.getPathString());
       return getDigestInternal(path);
     }
@@ -64,31 +66,33 @@ public class DigestUtils {
 
   private static byte[] getDigestInternal(Path path) throws IOException {
     long startTime = BlazeClock.nanoTime();
-    byte[] md5bin = path.getMD5Digest();
+    byte[] digest = path.getDigest();
 
     long millis = (BlazeClock.nanoTime() - startTime) / 1000000;
     if (millis > 5000L) {
       System.err.println("Slow read: a " + path.getFileSize() + "-byte read from " + path
           + " took " +  millis + "ms.");
     }
-    return md5bin;
+    return digest;
   }
 
   private static boolean binaryDigestWellFormed(byte[] digest) {
     Preconditions.checkNotNull(digest);
-    return digest.length == 16;
+    return digest.length == DigestHashFunction.getDefault().getDigestLength();
   }
 
   /**
-   * Returns the the fast md5 digest of the file, or null if not available.
+   * Returns the fast digest of the file, or null if not available or if it was not computed
+   * with {@link DigestHashFunction#getDefault}.
    */
   @Nullable
   public static byte[] getFastDigest(Path path) throws IOException {
-    return path.getFastDigestFunctionType().equals("MD5") ? path.getFastDigest() : null;
+    return Objects.equals(path.getFastDigestFunctionType(),
+        DigestHashFunction.getDefault().name()) ? path.getFastDigest() : null;
   }
 
   /**
-   * Get the md5 digest of {@code path}, using a constant-time xattr call if the filesystem supports
+   * Get the digest of {@code path}, using a constant-time xattr call if the filesystem supports
    * it, and calculating the digest manually otherwise.
    *
    * @param path Path of the file.
@@ -97,29 +101,26 @@ public class DigestUtils {
    * to avoid excessive disk seeks.
    */
   public static byte[] getDigestOrFail(Path path, long fileSize) throws IOException {
-    // TODO(bazel-team): the action cache currently only works with md5 digests but it ought to
-    // work with any opaque digest.
-    byte[] md5bin = null;
-    if (Objects.equals(path.getFastDigestFunctionType(), "MD5")) {
-      md5bin = getFastDigest(path);
-    }
-    if (md5bin != null && !binaryDigestWellFormed(md5bin)) {
-      // Fail-soft in cases where md5bin is non-null, but not a valid digest.
+    byte[] digest = getFastDigest(path);
+    if (digest != null && !binaryDigestWellFormed(digest)) {
+      // Fail-soft in cases where digest is non-null, but not a valid digest.
       String msg = String.format("Malformed digest '%s' for file %s",
-                                 BaseEncoding.base16().lowerCase().encode(md5bin),
+                                 BaseEncoding.base16().lowerCase().encode(digest),
                                  path);
       LoggingUtil.logToRemote(Level.SEVERE, msg, new IllegalStateException(msg));
-      md5bin = null;
+      digest = null;
     }
-    if (md5bin != null) {
-      return md5bin;
-    } else if (fileSize > 4096) {
+    if (digest != null) {
+      return digest;
+    } else if (fileSize > 4096
+        && DigestHashFunction.getDefault() != DigestHashFunction.MURMUR3_TREE) {
       // We'll have to read file content in order to calculate the digest. In that case
       // it would be beneficial to serialize those calculations since there is a high
-      // probability that MD5 will be requested for multiple output files simultaneously.
+      // probability that digests will be requested for multiple output files simultaneously.
       // Exception is made for small (<=4K) files since they will not likely to introduce
       // significant delays (at worst they will result in two extra disk seeks by
-      // interrupting other reads).
+      // interrupting other reads). Tree digests are not serialized: they hash the chunks of
+      // large files on a bounded pool of threads anyway.
       return getDigestInExclusiveMode(path);
     } else {
       return getDigestInternal(path);
@@ -0,0 +1,485 @@
+// Copyright 2015 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.actions.cache;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Splitter;
+import com.google.common.io.BaseEncoding;
+import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.devtools.build.lib.concurrent.ThreadSafety.ThreadSafe;
+import com.google.devtools.build.lib.util.BlazeClock;
+import com.google.devtools.build.lib.util.Clock;
+import com.google.devtools.build.lib.util.io.FileOutErr;
+import com.google.devtools.build.lib.vfs.FileSystemUtils;
+import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.build.lib.vfs.PathFragment;
+import com.google.devtools.build.lib.vfs.Symlinks;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A content-addressed store of action outputs on the local disk, which can be shared by any number
+ * of workspaces and output bases on the same machine.
+ *
+ * <p>The store has two directories. {@code cas} holds the contents of output files, named by
+ * their digest. {@code ac} holds one entry per action, named by a key that the caller derives
+ * from everything that determines the outputs of the action; each entry lists the exec paths,
+ * digests and executable bits of the outputs, and the digests of what the action printed. A cache
+ * hit copies the output files from {@code cas} into the exec root and replays the printed output.
+ *
+ * <p>Outputs may instead be hard-linked to the files in {@code cas}, which saves the copy but
+ * shares the file with every workspace using the store: anyone who makes such an output writable
+ * and edits it in place changes the stored file. Files in {@code cas} are therefore read-only,
+ * their mode never changes (outputs are always copied into the store, never linked, and an output
+ * whose executable bit differs from the stored file is copied out of it), and their digest is
+ * checked every time they are served; a file that no longer matches its digest is deleted and the
+ * lookup is a miss. Entries are written
+ * atomically by renaming, so concurrent servers never see partial entries. The modification time
+ * of an entry records when it was last used. Once the store grows beyond its size limit, the least
+ * recently used entries are deleted in the background, together with the files that only they
+ * reference.
+ */
+@ThreadSafe
+public final class DiskOutputCache {
+
+  private static final Logger LOG = Logger.getLogger(DiskOutputCache.class.getName());
+
+  // Files younger than this are never deleted by trim(), because another server may be about to
+  // write an entry that refers to them.
+  private static final long MIN_AGE_TO_DELETE_MILLIS = 10 * 60 * 1000L;
+
+  private static final BaseEncoding HEX = BaseEncoding.base16().lowerCase();
+
+  private final Path root;
+  private final Path casDir;
+  private final Path acDir;
+  private final Path tmpDir;
+  private final long maxSizeBytes;
+  private final boolean useHardLinks;
+  private final Clock clock;
+  private final Executor trimExecutor;
+
+  private final AtomicLong bytesAddedSinceTrim = new AtomicLong();
+  private final AtomicBoolean trimScheduled = new AtomicBoolean(false);
+  private final AtomicBoolean trimming = new AtomicBoolean(false);
+
+  public DiskOutputCache(Path root, long maxSizeBytes, boolean useHardLinks) throws IOException {
+    this(root, maxSizeBytes, useHardLinks, BlazeClock.instance(), new Executor() {
+      private final ThreadFactoryBuilder threadFactory = new ThreadFactoryBuilder()
+          .setNameFormat("disk-output-cache-trim-%d")
+          .setDaemon(true);
+
+      @Override
+      public void execute(Runnable command) {
+        // Trimming is rare, so a thread is started for each one rather than kept around.
+        threadFactory.build().newThread(command).start();
+      }
+    });
+  }
+
+  @VisibleForTesting
+  DiskOutputCache(Path root, long maxSizeBytes, boolean useHardLinks, Clock clock,
+      Executor trimExecutor) throws IOException {
+    Preconditions.checkArgument(maxSizeBytes > 0, maxSizeBytes);
+    this.root = root;
+    this.casDir = root.getChild("cas");
+    this.acDir = root.getChild("ac");
+    this.tmpDir = root.getChild("tmp");
+    this.maxSizeBytes = maxSizeBytes;
+    this.useHardLinks = useHardLinks;
+    this.clock = clock;
+    this.trimExecutor = trimExecutor;
+    FileSystemUtils.createDirectoryAndParents(casDir);
+    FileSystemUtils.createDirectoryAndParents(acDir);
+    FileSystemUtils.createDirectoryAndParents(tmpDir);
+  }
+
+  public Path getRoot() {
+    return root;
+  }
+
+  private static Path sharded(Path dir, String name) {
+    return dir.getChild(name.substring(0, 2)).getChild(name);
+  }
+
+  private Path blobPath(byte[] digest) {
+    return sharded(casDir, HEX.encode(digest));
+  }
+
+  private Path entryPath(String key) {
+    return sharded(acDir, key);
+  }
+
+  /**
+   * Materializes the outputs recorded for {@code key} under {@code execRoot} and replays what the
+   * action printed into {@code outErr}. Returns false if there is no complete entry for the key, in
+   * which case no output is left behind and nothing is replayed.
+   */
+  public boolean fetch(String key, Path execRoot, FileOutErr outErr) throws IOException {
+    Path entryPath = entryPath(key);
+    Entry entry;
+    try {
+      entry = readEntry(entryPath);
+    } catch (IOException e) {
+      // Missing or unreadable: treat as a miss.
+      return false;
+    }
+    List<Path> materialized = new ArrayList<>(entry.outputs.size());
+    try {
+      for (OutputRecord record : entry.outputs) {
+        Path output = execRoot.getRelative(record.execPath);
+        output.delete();
+        if (!materialize(blobPath(record.digest), record.digest, output, record.executable)) {
+          deleteAll(materialized);
+          return false;
+        }
+        materialized.add(output);
+      }
+      if ((entry.stdout != null && !blobPath(entry.stdout).exists(Symlinks.NOFOLLOW))
+          || (entry.stderr != null && !blobPath(entry.stderr).exists(Symlinks.NOFOLLOW))) {
+        deleteAll(materialized);
+        return false;
+      }
+      replay(entry.stdout, outErr.getOutputStream());
+      replay(entry.stderr, outErr.getErrorStream());
+    } catch (IOException e) {
+      deleteAll(materialized);
+      throw e;
+    }
+    entryPath.setLastModifiedTime(clock.currentTimeMillis());
+    return true;
+  }
+
+  /**
+   * Stores the files at the given exec paths, and what the action printed into {@code outErr},
+   * under {@code key}. Digests in {@code outputs} may be null, in which case they are computed.
+   * Does nothing unless all outputs are regular files.
+   */
+  public void store(String key, Path execRoot, Map<PathFragment, byte[]> outputs,
+      FileOutErr outErr) throws IOException {
+    List<OutputRecord> records = new ArrayList<>(outputs.size());
+    for (Map.Entry<PathFragment, byte[]> output : outputs.entrySet()) {
+      Path path = execRoot.getRelative(output.getKey());
+      if (!path.isFile(Symlinks.NOFOLLOW)) {
+        return;
+      }
+      byte[] digest = output.getValue() != null ? output.getValue() : path.getDigest();
+      boolean executable = path.isExecutable();
+      storeBlob(path, digest, executable);
+      records.add(new OutputRecord(output.getKey(), digest, executable));
+    }
+    byte[] stdout = null;
+    byte[] stderr = null;
+    if (outErr.hasRecordedStdout()) {
+      outErr.getOutputStream().flush();
+      stdout = outErr.getOutputFile().getDigest();
+      storeBlob(outErr.getOutputFile(), stdout, false);
+    }
+    if (outErr.hasRecordedStderr()) {
+      outErr.getErrorStream().flush();
+      stderr = outErr.getErrorFile().getDigest();
+      storeBlob(outErr.getErrorFile(), stderr, false);
+    }
+    writeEntry(entryPath(key), new Entry(records, stdout, stderr));
+    if (bytesAddedSinceTrim.get() > maxSizeBytes / 10 && trimScheduled.compareAndSet(false, true)) {
+      trimExecutor.execute(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            trim();
+          } finally {
+            trimScheduled.set(false);
+          }
+        }
+      });
+    }
+  }
+
+  /**
+   * Copies {@code path} into the store unless a file with that digest is already there. The file
+   * is copied rather than linked because the action that wrote it, or the user, may change it
+   * later.
+   */
+  private void storeBlob(Path path, byte[] digest, boolean executable) throws IOException {
+    Path blob = blobPath(digest);
+    if (blob.exists(Symlinks.NOFOLLOW)) {
+      return;
+    }
+    FileSystemUtils.createDirectoryAndParents(blob.getParentDirectory());
+    Path tmp = tmpDir.getChild(UUID.randomUUID().toString());
+    try {
+      FileSystemUtils.copyFile(path, tmp);
+      tmp.setWritable(false);
+      tmp.setExecutable(executable);
+      tmp.renameTo(blob);
+    } catch (IOException e) {
+      deleteAll(Collections.singletonList(tmp));
+      throw e;
+    }
+    bytesAddedSinceTrim.addAndGet(blob.getFileSize());
+  }
+
+  /**
+   * Copies {@code blob} to {@code output}, or links it if hard links are enabled and supported and
+   * the blob has the requested executable bit; changing the mode of a link would change the blob
+   * and every other link to it. Returns false if {@code blob} has disappeared or no longer has the
+   * given digest, in which case it is deleted.
+   */
+  private boolean materialize(Path blob, byte[] digest, Path output, boolean executable)
+      throws IOException {
+    try {
+      // A linked output that was edited in place changed the blob too.
+      if (!Arrays.equals(blob.getDigest(), digest)) {
+        LOG.warning("Deleting " + blob + " from the local output cache: its contents changed");
+        blob.delete();
+        return false;
+      }
+      if (useHardLinks && blob.isExecutable() == executable) {
+        try {
+          Files.createLink(output.getPathFile().toPath(), blob.getPathFile().toPath());
+          return true;
+        } catch (IOException | UnsupportedOperationException e) {
+          // Not a local file system, or crossing file systems: fall back to copying.
+        }
+      }
+      FileSystemUtils.copyFile(blob, output);
+    } catch (FileNotFoundException e) {
+      // Deleted by a concurrent trim().
+      return false;
+    }
+    output.setExecutable(executable);
+    return true;
+  }
+
+  private void replay(byte[] digest, OutputStream out) throws IOException {
+    if (digest == null) {
+      return;
+    }
+    try (InputStream in = blobPath(digest).getInputStream()) {
+      ByteStreams.copy(in, out);
+    }
+    out.flush();
+  }
+
+  private static void deleteAll(List<Path> paths) {
+    for (Path path : paths) {
+      try {
+        path.delete();
+      } catch (IOException e) {
+        // Best effort: the caller will execute the action, which recreates its outputs.
+      }
+    }
+  }
+
+  /**
+   * Deletes least recently used entries until the files referenced by the remaining ones fit in
+   * the size limit, then deletes the files no entry refers to. Only one thread trims at a time;
+   * concurrent calls return immediately. {@link #store} calls this in the background once enough
+   * has been added since the last trim.
+   */
+  public void trim() {
+    if (!trimming.compareAndSet(false, true)) {
+      return;
+    }
+    try {
+      bytesAddedSinceTrim.set(0);
+      trimInternal();
+    } catch (IOException e) {
+      LOG.log(Level.WARNING, "Failed to trim local output cache: " + e.getMessage(), e);
+    } finally {
+      trimming.set(false);
+    }
+  }
+
+  private void trimInternal() throws IOException {
+    long now = clock.currentTimeMillis();
+    List<Path> entries = listSharded(acDir);
+    final Map<Path, Long> lastUsed = new HashMap<>();
+    for (Path entry : entries) {
+      lastUsed.put(entry, entry.getLastModifiedTime());
+    }
+    Collections.sort(entries, new Comparator<Path>() {
+      @Override
+      public int compare(Path a, Path b) {
+        return Long.compare(lastUsed.get(b), lastUsed.get(a));
+      }
+    });
+    Map<String, Long> blobSizes = new HashMap<>();
+    for (Path blob : listSharded(casDir)) {
+      blobSizes.put(blob.getBaseName(), blob.getFileSize());
+    }
+
+    // Keep the most recently used entries as long as the files they refer to fit.
+    Set<String> kept = new HashSet<>();
+    long keptSize = 0;
+    for (Path entry : entries) {
+      List<byte[]> digests;
+      try {
+        digests = readEntry(entry).digests();
+      } catch (IOException e) {
+        entry.delete();
+        continue;
+      }
+      long entrySize = 0;
+      List<String> newBlobs = new ArrayList<>();
+      for (byte[] digest : digests) {
+        String name = HEX.encode(digest);
+        if (!kept.contains(name) && blobSizes.containsKey(name)) {
+          newBlobs.add(name);
+          entrySize += blobSizes.get(name);
+        }
+      }
+      boolean young = now - lastUsed.get(entry) < MIN_AGE_TO_DELETE_MILLIS;
+      if (keptSize + entrySize <= maxSizeBytes || young) {
+        kept.addAll(newBlobs);
+        keptSize += entrySize;
+      } else {
+        entry.delete();
+      }
+    }
+    for (Path blob : listSharded(casDir)) {
+      if (!kept.contains(blob.getBaseName())
+          && now - blob.getLastModifiedTime() >= MIN_AGE_TO_DELETE_MILLIS) {
+        blob.delete();
+      }
+    }
+  }
+
+  private static List<Path> listSharded(Path dir) throws IOException {
+    List<Path> result = new ArrayList<>();
+    for (Path shard : dir.getDirectoryEntries()) {
+      if (shard.isDirectory(Symlinks.NOFOLLOW)) {
+        result.addAll(shard.getDirectoryEntries());
+      }
+    }
+    return result;
+  }
+
+  // An entry has one line per output file, "<digest> <x or -> <exec path>", and one line each for
+  // what the action printed, "<digest> 1 stdout" and "<digest> 2 stderr".
+  private void writeEntry(Path entryPath, Entry entry) throws IOException {
+    List<String> lines = new ArrayList<>(entry.outputs.size() + 2);
+    for (OutputRecord record : entry.outputs) {
+      lines.add(HEX.encode(record.digest) + " " + (record.executable ? "x" : "-") + " "
+          + record.execPath.getPathString());
+    }
+    if (entry.stdout != null) {
+      lines.add(HEX.encode(entry.stdout) + " 1 stdout");
+    }
+    if (entry.stderr != null) {
+      lines.add(HEX.encode(entry.stderr) + " 2 stderr");
+    }
+    FileSystemUtils.createDirectoryAndParents(entryPath.getParentDirectory());
+    Path tmp = tmpDir.getChild(UUID.randomUUID().toString());
+    try {
+      FileSystemUtils.writeLinesAs(tmp, UTF_8, lines);
+      tmp.renameTo(entryPath);
+    } catch (IOException e) {
+      deleteAll(Collections.singletonList(tmp));
+      throw e;
+    }
+  }
+
+  private static Entry readEntry(Path entryPath) throws IOException {
+    List<OutputRecord> records = new ArrayList<>();
+    byte[] stdout = null;
+    byte[] stderr = null;
+    String content = new String(FileSystemUtils.readContent(entryPath), UTF_8);
+    for (String line : Splitter.on('\n').omitEmptyStrings().split(content)) {
+      List<String> fields = Splitter.on(' ').limit(3).splitToList(line);
+      if (fields.size() != 3) {
+        throw new IOException("Malformed entry " + entryPath + ": " + line);
+      }
+      try {
+        byte[] digest = HEX.decode(fields.get(0));
+        switch (fields.get(1)) {
+          case "1":
+            stdout = digest;
+            break;
+          case "2":
+            stderr = digest;
+            break;
+          default:
+            records.add(new OutputRecord(new PathFragment(fields.get(2)), digest,
+                fields.get(1).equals("x")));
+        }
+      } catch (IllegalArgumentException e) {
+        throw new IOException("Malformed entry " + entryPath + ": " + line, e);
+      }
+    }
+    return new Entry(records, stdout, stderr);
+  }
+
+  private static final class Entry {
+    private final List<OutputRecord> outputs;
+    private final byte[] stdout;
+    private final byte[] stderr;
+
+    private Entry(List<OutputRecord> outputs, byte[] stdout, byte[] stderr) {
+      this.outputs = outputs;
+      this.stdout = stdout;
+      this.stderr = stderr;
+    }
+
+    /** Returns the digests of all files this entry refers to. */
+    private List<byte[]> digests() {
+      List<byte[]> digests = new ArrayList<>(outputs.size() + 2);
+      for (OutputRecord record : outputs) {
+        digests.add(record.digest);
+      }
+      if (stdout != null) {
+        digests.add(stdout);
+      }
+      if (stderr != null) {
+        digests.add(stderr);
+      }
+      return digests;
+    }
+  }
+
+  private static final class OutputRecord {
+    private final PathFragment execPath;
+    private final byte[] digest;
+    private final boolean executable;
+
+    private OutputRecord(PathFragment execPath, byte[] digest, boolean executable) {
+      this.execPath = execPath;
+      this.digest = digest;
+      this.executable = executable;
+    }
+  }
+}
@@ -0,0 +1,936 @@
+// Copyright 2015 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.actions.cache;
+
+import static java.nio.charset.StandardCharsets.ISO_8859_1;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.devtools.build.lib.concurrent.ThreadSafety.ThreadSafe;
+import com.google.devtools.build.lib.util.VarInt;
+import com.google.devtools.build.lib.vfs.Path;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * An {@link ActionCache} stored in two memory-mapped files: an append-only log of records and an
+ * open-addressed hash index pointing into it.
+ *
+ * <p>Opening the cache only maps the files and reads a fixed-size header, so startup time does
+ * not depend on the number of entries, and entries are only decoded when looked up. Neither the
+ * log nor the index lives on the Java heap.
+ *
+ * <p>The index is split into segments, each guarded by its own read-write lock; a key always maps
+ * to the same segment, so lookups of different keys proceed in parallel and lookups of the same
+ * key only block on a concurrent update of that segment. Appending to the log is lock-free. Only
+ * growing the index takes all segment locks. Compaction, which rewrites the log without the
+ * records that were overwritten or removed, copies one segment at a time while the cache stays in
+ * use, and only takes all segment locks to copy the records changed meanwhile and switch to the
+ * new files. It runs on a background thread when {@link #save} notices that most of the log is
+ * garbage.
+ *
+ * <p>Unlike {@link CompactPersistentActionCache}, file names are stored inline in each record
+ * instead of in a separate string index, so that no table has to be loaded up front.
+ */
+@ThreadSafe
+public class MappedActionCache implements ActionCache {
+
+  private static final Logger LOG = Logger.getLogger(MappedActionCache.class.getName());
+
+  private static final int VERSION = 1;
+  private static final int LOG_MAGIC = 0x61636c67;
+  private static final int INDEX_MAGIC = 0x61636978;
+
+  // Log layout: a header with magic, version and generation, followed by chunks of records.
+  // Records never span two chunks; the rest of a chunk that cannot hold the next record is zero.
+  private static final int LOG_HEADER_SIZE = 16;
+  // Record layout: total length, key hash, key length, key bytes, encoded entry.
+  private static final int RECORD_HEADER_SIZE = 12;
+
+  // Index layout: a header with magic, version, generation, slots per segment, log end and
+  // garbage size, then the number of used slots of each segment, then the slots. Each slot holds
+  // the log offset of a record (or EMPTY or DELETED) and the hash of its key.
+  private static final int SEGMENT_BITS = 6;
+  private static final int SEGMENTS = 1 << SEGMENT_BITS;
+  private static final int INDEX_HEADER_SIZE = 40 + 4 * SEGMENTS;
+  private static final int SLOT_SIZE = 12;
+  private static final int INITIAL_SLOTS_PER_SEGMENT = 256;
+  private static final long EMPTY = 0;
+  private static final long DELETED = -1;
+
+  private static final int DEFAULT_CHUNK_SIZE = 64 << 20;
+  private static final long MIN_GARBAGE_TO_COMPACT = 16 << 20;
+
+  static final ActionCache.Entry CORRUPTED = new ActionCache.Entry(null);
+
+  private final Path cacheRoot;
+  private final int chunkSize;
+  private final long minGarbageToCompact;
+  private final ReentrantReadWriteLock[] locks = new ReentrantReadWriteLock[SEGMENTS];
+  private final AtomicBoolean compactionScheduled = new AtomicBoolean(false);
+  private final ExecutorService compactionExecutor = Executors.newSingleThreadExecutor(
+      new ThreadFactoryBuilder().setNameFormat("action-cache-compaction").setDaemon(true).build());
+
+  // Only replaced while holding all segment write locks.
+  private volatile Store store;
+  // The keys put or removed since the running compaction started, or null if none is running.
+  // Only added to while holding the write lock of the segment of the key.
+  private volatile Set<String> changedDuringCompaction;
+
+  public MappedActionCache(Path cacheRoot) throws IOException {
+    this(cacheRoot, DEFAULT_CHUNK_SIZE, MIN_GARBAGE_TO_COMPACT);
+  }
+
+  @VisibleForTesting
+  MappedActionCache(Path cacheRoot, int chunkSize, long minGarbageToCompact) throws IOException {
+    this.cacheRoot = cacheRoot;
+    this.chunkSize = chunkSize;
+    this.minGarbageToCompact = minGarbageToCompact;
+    for (int i = 0; i < SEGMENTS; i++) {
+      locks[i] = new ReentrantReadWriteLock();
+    }
+    Store existing = null;
+    try {
+      existing = Store.open(logFile(cacheRoot), indexFile(cacheRoot), chunkSize);
+    } catch (IOException e) {
+      LOG.log(Level.WARNING, "Discarding unreadable action cache: " + e.getMessage(), e);
+    }
+    store = existing != null
+        ? existing
+        : Store.create(logFile(cacheRoot), indexFile(cacheRoot), chunkSize,
+            INITIAL_SLOTS_PER_SEGMENT, new Random().nextLong());
+  }
+
+  public static Path logFile(Path cacheRoot) {
+    return cacheRoot.getChild("action_log_v" + VERSION + ".blaze");
+  }
+
+  public static Path indexFile(Path cacheRoot) {
+    return cacheRoot.getChild("action_index_v" + VERSION + ".blaze");
+  }
+
+  private static int hash(byte[] key) {
+    int h = Arrays.hashCode(key);
+    h ^= h >>> 16;
+    h *= 0x85ebca6b;
+    h ^= h >>> 13;
+    return h;
+  }
+
+  private static int segmentOf(int hash) {
+    return hash >>> (32 - SEGMENT_BITS);
+  }
+
+  @Override
+  public ActionCache.Entry createEntry(String key) {
+    return new ActionCache.Entry(key);
+  }
+
+  @Override
+  public ActionCache.Entry get(String key) {
+    byte[] keyBytes = key.getBytes(UTF_8);
+    int hash = hash(keyBytes);
+    int segment = segmentOf(hash);
+    byte[] data;
+    Lock lock = locks[segment].readLock();
+    lock.lock();
+    try {
+      Store current = store;
+      int slot = current.find(segment, hash, keyBytes);
+      if (slot < 0) {
+        return null;
+      }
+      data = current.readValue(current.getSlotOffset(slot));
+    } catch (IOException | BufferUnderflowException | IndexOutOfBoundsException
+        | IllegalArgumentException | NegativeArraySizeException e) {
+      return CORRUPTED;
+    } finally {
+      lock.unlock();
+    }
+    try {
+      return decode(data);
+    } catch (IOException e) {
+      return CORRUPTED;
+    }
+  }
+
+  @Override
+  public void put(String key, ActionCache.Entry entry) {
+    byte[] keyBytes = key.getBytes(UTF_8);
+    byte[] value = encode(entry);
+    int hash = hash(keyBytes);
+    int segment = segmentOf(hash);
+    int recordLength = RECORD_HEADER_SIZE + keyBytes.length + value.length;
+    if (recordLength > chunkSize) {
+      // Too large to be stored. Make sure we do not keep returning a stale entry.
+      remove(key);
+      return;
+    }
+    while (true) {
+      Store current;
+      Lock lock = locks[segment].writeLock();
+      lock.lock();
+      try {
+        current = store;
+        if (current.hasRoomFor(segment)) {
+          long offset = current.append(hash, keyBytes, value);
+          current.putSlot(segment, hash, keyBytes, offset);
+          recordChange(key);
+          return;
+        }
+      } finally {
+        lock.unlock();
+      }
+      rebuildIndex(current);
+    }
+  }
+
+  @Override
+  public void remove(String key) {
+    byte[] keyBytes = key.getBytes(UTF_8);
+    int hash = hash(keyBytes);
+    int segment = segmentOf(hash);
+    Lock lock = locks[segment].writeLock();
+    lock.lock();
+    try {
+      Store current = store;
+      int slot = current.find(segment, hash, keyBytes);
+      if (slot >= 0) {
+        current.deleteSlot(slot);
+      }
+      recordChange(key);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private void recordChange(String key) {
+    Set<String> changed = changedDuringCompaction;
+    if (changed != null) {
+      changed.add(key);
+    }
+  }
+
+  @Override
+  public long save() throws IOException {
+    Store current = store;
+    current.force();
+    long garbage = current.getGarbage();
+    if (garbage >= minGarbageToCompact && garbage * 2 > current.getLogEnd()
+        && compactionScheduled.compareAndSet(false, true)) {
+      compactionExecutor.execute(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            compact();
+          } catch (IOException e) {
+            LOG.log(Level.WARNING, "Action cache compaction failed: " + e.getMessage(), e);
+          } finally {
+            compactionScheduled.set(false);
+          }
+        }
+      });
+    }
+    return current.getLogEnd() + current.getIndexSize();
+  }
+
+  private void lockAll() {
+    for (ReentrantReadWriteLock lock : locks) {
+      lock.writeLock().lock();
+    }
+  }
+
+  private void unlockAll() {
+    for (int i = SEGMENTS - 1; i >= 0; i--) {
+      locks[i].writeLock().unlock();
+    }
+  }
+
+  /**
+   * Rebuilds the index without deleted slots, doubling its size if the live entries alone would
+   * exceed half of it. Does nothing if another thread already replaced {@code expected}.
+   */
+  private void rebuildIndex(Store expected) {
+    lockAll();
+    try {
+      if (store != expected) {
+        return;
+      }
+      store = expected.rebuildIndex();
+    } catch (IOException e) {
+      // We cannot grow the index: start over with an empty cache rather than failing the build.
+      LOG.log(Level.WARNING, "Failed to grow action cache index: " + e.getMessage(), e);
+      resetLocked();
+    } finally {
+      unlockAll();
+    }
+  }
+
+  /**
+   * Rewrites the log with only the live records and rebuilds the index accordingly. The live
+   * records are copied while the cache stays in use; only the records changed meanwhile are
+   * copied while holding all segment locks, just before switching to the new files.
+   */
+  @VisibleForTesting
+  synchronized void compact() throws IOException {
+    Set<String> changed = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    // Every update from now on is either seen by the copy or recorded.
+    changedDuringCompaction = changed;
+    try {
+      Store compacted = store.copyLiveRecords(locks);
+      lockAll();
+      try {
+        Store current = store;
+        for (String key : changed) {
+          compacted = copyChange(key, current, compacted);
+        }
+        store = compacted.install(current);
+      } finally {
+        changedDuringCompaction = null;
+        unlockAll();
+      }
+    } finally {
+      changedDuringCompaction = null;
+    }
+  }
+
+  /** Makes {@code compacted} hold the same record for {@code key} as {@code current}. */
+  private static Store copyChange(String key, Store current, Store compacted) throws IOException {
+    byte[] keyBytes = key.getBytes(UTF_8);
+    int hash = hash(keyBytes);
+    int segment = segmentOf(hash);
+    int slot = current.find(segment, hash, keyBytes);
+    if (slot < 0) {
+      int compactedSlot = compacted.find(segment, hash, keyBytes);
+      if (compactedSlot >= 0) {
+        compacted.deleteSlot(compactedSlot);
+      }
+      return compacted;
+    }
+    byte[] value;
+    try {
+      value = current.readValue(current.getSlotOffset(slot));
+    } catch (IOException e) {
+      // Corrupt records are dropped by compaction.
+      return compacted;
+    }
+    if (!compacted.hasRoomFor(segment)) {
+      compacted = compacted.rebuildIndex();
+    }
+    compacted.putSlot(segment, hash, keyBytes, compacted.append(hash, keyBytes, value));
+    return compacted;
+  }
+
+  private void resetLocked() {
+    try {
+      store = Store.create(logFile(cacheRoot), indexFile(cacheRoot), chunkSize,
+          INITIAL_SLOTS_PER_SEGMENT, new Random().nextLong());
+    } catch (IOException e) {
+      throw new IllegalStateException("Cannot recreate action cache in " + cacheRoot, e);
+    }
+  }
+
+  @Override
+  public String toString() {
+    Store current = store;
+    return "Mapped action cache (" + current.getLiveCount() + " records, "
+        + current.getLogEnd() + " bytes of log, " + current.getGarbage() + " bytes of garbage)";
+  }
+
+  @Override
+  public void dump(PrintStream out) {
+    out.println(this);
+    for (int segment = 0; segment < SEGMENTS; segment++) {
+      Lock lock = locks[segment].readLock();
+      lock.lock();
+      try {
+        Store current = store;
+        for (int slot : current.liveSlots(segment)) {
+          long offset = current.getSlotOffset(slot);
+          try {
+            byte[] value = current.readValue(offset);
+            String content;
+            try {
+              content = decode(value).toString();
+            } catch (IOException e) {
+              content = e + "\n";
+            }
+            out.println(new String(current.readKey(offset), UTF_8) + ":\n" + content
+                + "\n      packed_len = " + value.length + "\n");
+          } catch (IOException e) {
+            out.println(e + "\n");
+          }
+        }
+      } finally {
+        lock.unlock();
+      }
+    }
+  }
+
+  /**
+   * @return action data encoded as a byte[] array.
+   */
+  private static byte[] encode(ActionCache.Entry entry) {
+    Preconditions.checkState(!entry.isCorrupted());
+    try {
+      byte[] actionKeyBytes = entry.getActionKey().getBytes(ISO_8859_1);
+      Collection<String> files = entry.getPaths();
+      ByteArrayOutputStream sink = new ByteArrayOutputStream();
+      VarInt.putVarInt(actionKeyBytes.length, sink);
+      sink.write(actionKeyBytes);
+      entry.getFileDigest().write(sink);
+      VarInt.putVarInt(files.size(), sink);
+      for (String file : files) {
+        byte[] fileBytes = file.getBytes(UTF_8);
+        VarInt.putVarInt(fileBytes.length, sink);
+        sink.write(fileBytes);
+      }
+      return sink.toByteArray();
+    } catch (IOException e) {
+      // This Exception can never be thrown by ByteArrayOutputStream.
+      throw new AssertionError(e);
+    }
+  }
+
+  private static ActionCache.Entry decode(byte[] data) throws IOException {
+    try {
+      ByteBuffer source = ByteBuffer.wrap(data);
+      byte[] actionKeyBytes = new byte[VarInt.getVarInt(source)];
+      source.get(actionKeyBytes);
+      String actionKey = new String(actionKeyBytes, ISO_8859_1);
+      Digest digest = Digest.read(source);
+      int count = VarInt.getVarInt(source);
+      ImmutableList.Builder<String> builder = ImmutableList.builder();
+      for (int i = 0; i < count; i++) {
+        byte[] fileBytes = new byte[VarInt.getVarInt(source)];
+        source.get(fileBytes);
+        builder.add(new String(fileBytes, UTF_8));
+      }
+      if (source.remaining() > 0) {
+        throw new IOException("serialized entry data has not been fully decoded");
+      }
+      return new Entry(actionKey, builder.build(), digest);
+    } catch (BufferUnderflowException | IndexOutOfBoundsException | NegativeArraySizeException e) {
+      throw new IOException("encoded entry data is incomplete", e);
+    }
+  }
+
+  /**
+   * The mapped log and index files. Slots and segment counters are only accessed while holding
+   * the lock of their segment; the log end and garbage counters are atomic.
+   */
+  private static final class Store {
+    private final File logFile;
+    private final File indexFile;
+    private final int chunkSize;
+    private final long generation;
+    private final FileChannel logChannel;
+    private final MappedByteBuffer index;
+    private final int slotsPerSegment;
+    private final AtomicLong logEnd;
+    // The log end last recorded in the index header; never decreases.
+    private final AtomicLong publishedLogEnd;
+    private final AtomicLong garbage;
+    private volatile MappedByteBuffer[] chunks = new MappedByteBuffer[0];
+
+    private Store(File logFile, File indexFile, int chunkSize, long generation,
+        FileChannel logChannel, MappedByteBuffer index, int slotsPerSegment, long logEnd,
+        long garbage) {
+      this.logFile = logFile;
+      this.indexFile = indexFile;
+      this.chunkSize = chunkSize;
+      this.generation = generation;
+      this.logChannel = logChannel;
+      this.index = index;
+      this.slotsPerSegment = slotsPerSegment;
+      this.logEnd = new AtomicLong(logEnd);
+      this.publishedLogEnd = new AtomicLong(logEnd);
+      this.garbage = new AtomicLong(garbage);
+    }
+
+    static Store open(Path logPath, Path indexPath, int chunkSize) throws IOException {
+      File logFile = logPath.getPathFile();
+      File indexFile = indexPath.getPathFile();
+      if (!logFile.exists() || !indexFile.exists()) {
+        return null;
+      }
+      FileChannel indexChannel = new RandomAccessFile(indexFile, "rw").getChannel();
+      MappedByteBuffer index;
+      try {
+        index = indexChannel.map(MapMode.READ_WRITE, 0, indexChannel.size());
+      } finally {
+        indexChannel.close();
+      }
+      if (index.capacity() < INDEX_HEADER_SIZE || index.getInt(0) != INDEX_MAGIC
+          || index.getInt(4) != VERSION) {
+        throw new IOException("Bad action cache index header");
+      }
+      long generation = index.getLong(8);
+      int slotsPerSegment = index.getInt(16);
+      long logEnd = index.getLong(20);
+      long garbage = index.getLong(28);
+      if (Integer.bitCount(slotsPerSegment) != 1
+          || index.capacity() != indexSize(slotsPerSegment)) {
+        throw new IOException("Bad action cache index size");
+      }
+      FileChannel logChannel = new RandomAccessFile(logFile, "rw").getChannel();
+      ByteBuffer header = ByteBuffer.allocate(LOG_HEADER_SIZE);
+      logChannel.read(header, 0);
+      header.flip();
+      if (header.remaining() < LOG_HEADER_SIZE || header.getInt() != LOG_MAGIC
+          || header.getInt() != VERSION || header.getLong() != generation
+          || logEnd < LOG_HEADER_SIZE || logEnd > logChannel.size()) {
+        logChannel.close();
+        throw new IOException("Action cache log does not match its index");
+      }
+      return new Store(logFile, indexFile, chunkSize, generation, logChannel, index,
+          slotsPerSegment, logEnd, garbage);
+    }
+
+    static Store create(Path logPath, Path indexPath, int chunkSize, int slotsPerSegment,
+        long generation) throws IOException {
+      return create(logPath.getPathFile(), indexPath.getPathFile(), chunkSize, slotsPerSegment,
+          generation);
+    }
+
+    private static Store create(File logFile, File indexFile, int chunkSize, int slotsPerSegment,
+        long generation) throws IOException {
+      delete(logFile);
+      delete(indexFile);
+      FileChannel indexChannel = new RandomAccessFile(indexFile, "rw").getChannel();
+      MappedByteBuffer index;
+      try {
+        index = indexChannel.map(MapMode.READ_WRITE, 0, indexSize(slotsPerSegment));
+      } finally {
+        indexChannel.close();
+      }
+      index.putInt(0, INDEX_MAGIC);
+      index.putInt(4, VERSION);
+      index.putLong(8, generation);
+      index.putInt(16, slotsPerSegment);
+      index.putLong(20, LOG_HEADER_SIZE);
+      index.putLong(28, 0);
+      FileChannel logChannel = new RandomAccessFile(logFile, "rw").getChannel();
+      ByteBuffer header = ByteBuffer.allocate(LOG_HEADER_SIZE);
+      header.putInt(LOG_MAGIC).putInt(VERSION).putLong(generation).flip();
+      logChannel.write(header, 0);
+      return new Store(logFile, indexFile, chunkSize, generation, logChannel, index,
+          slotsPerSegment, LOG_HEADER_SIZE, 0);
+    }
+
+    private static void delete(File file) throws IOException {
+      if (!file.delete() && file.exists()) {
+        throw new IOException("Cannot delete " + file);
+      }
+    }
+
+    private static long indexSize(int slotsPerSegment) {
+      return INDEX_HEADER_SIZE + (long) SEGMENTS * slotsPerSegment * SLOT_SIZE;
+    }
+
+    long getLogEnd() {
+      return logEnd.get();
+    }
+
+    long getGarbage() {
+      return garbage.get();
+    }
+
+    long getIndexSize() {
+      return index.capacity();
+    }
+
+    private int getUsed(int segment) {
+      return index.getInt(40 + 4 * segment);
+    }
+
+    private void setUsed(int segment, int used) {
+      index.putInt(40 + 4 * segment, used);
+    }
+
+    int getLiveCount() {
+      int count = 0;
+      for (int segment = 0; segment < SEGMENTS; segment++) {
+        count += liveSlots(segment).length;
+      }
+      return count;
+    }
+
+    /** Returns true if a new key can be added to the segment without exceeding its load factor. */
+    boolean hasRoomFor(int segment) {
+      return getUsed(segment) < slotsPerSegment / 4 * 3;
+    }
+
+    private int slotPosition(int slot) {
+      return INDEX_HEADER_SIZE + slot * SLOT_SIZE;
+    }
+
+    long getSlotOffset(int slot) {
+      return index.getLong(slotPosition(slot));
+    }
+
+    private int getSlotHash(int slot) {
+      return index.getInt(slotPosition(slot) + 8);
+    }
+
+    private void setSlot(int slot, long offset, int hash) {
+      index.putLong(slotPosition(slot), offset);
+      index.putInt(slotPosition(slot) + 8, hash);
+    }
+
+    /** Returns the global number of the slot holding {@code key}, or -1 if there is none. */
+    int find(int segment, int hash, byte[] key) {
+      int base = segment * slotsPerSegment;
+      int mask = slotsPerSegment - 1;
+      for (int i = 0, probe = hash & mask; i < slotsPerSegment; i++, probe = (probe + 1) & mask) {
+        int slot = base + probe;
+        long offset = getSlotOffset(slot);
+        if (offset == EMPTY) {
+          return -1;
+        }
+        if (offset != DELETED && getSlotHash(slot) == hash && keyMatches(offset, hash, key)) {
+          return slot;
+        }
+      }
+      return -1;
+    }
+
+    /** Points the slot for {@code key} at the record at {@code offset}, adding one if needed. */
+    void putSlot(int segment, int hash, byte[] key, long offset) {
+      int existing = find(segment, hash, key);
+      if (existing >= 0) {
+        garbage.addAndGet(recordLength(getSlotOffset(existing)));
+        setSlot(existing, offset, hash);
+        return;
+      }
+      int base = segment * slotsPerSegment;
+      int mask = slotsPerSegment - 1;
+      for (int i = 0, probe = hash & mask; i < slotsPerSegment; i++, probe = (probe + 1) & mask) {
+        int slot = base + probe;
+        long slotOffset = getSlotOffset(slot);
+        if (slotOffset == DELETED) {
+          setSlot(slot, offset, hash);
+          return;
+        }
+        if (slotOffset == EMPTY) {
+          setSlot(slot, offset, hash);
+          setUsed(segment, getUsed(segment) + 1);
+          return;
+        }
+      }
+      throw new IllegalStateException("Action cache index segment is full");
+    }
+
+    void deleteSlot(int slot) {
+      garbage.addAndGet(recordLength(getSlotOffset(slot)));
+      setSlot(slot, DELETED, 0);
+      index.putLong(28, garbage.get());
+    }
+
+    int[] liveSlots(int segment) {
+      int[] result = new int[slotsPerSegment];
+      int count = 0;
+      for (int slot = segment * slotsPerSegment; slot < (segment + 1) * slotsPerSegment; slot++) {
+        long offset = getSlotOffset(slot);
+        if (offset != EMPTY && offset != DELETED) {
+          result[count++] = slot;
+        }
+      }
+      return Arrays.copyOf(result, count);
+    }
+
+    private MappedByteBuffer chunk(int chunkIndex) throws IOException {
+      MappedByteBuffer[] current = chunks;
+      if (chunkIndex < current.length) {
+        return current[chunkIndex];
+      }
+      synchronized (this) {
+        current = chunks;
+        if (chunkIndex >= current.length) {
+          MappedByteBuffer[] newChunks = Arrays.copyOf(current, chunkIndex + 1);
+          for (int i = current.length; i <= chunkIndex; i++) {
+            newChunks[i] = logChannel.map(MapMode.READ_WRITE, (long) i * chunkSize, chunkSize);
+          }
+          chunks = newChunks;
+          current = newChunks;
+        }
+        return current[chunkIndex];
+      }
+    }
+
+    /** Returns a buffer positioned at the given log offset. */
+    private ByteBuffer at(long offset) {
+      try {
+        ByteBuffer buffer = chunk((int) (offset / chunkSize)).duplicate();
+        buffer.position((int) (offset % chunkSize));
+        return buffer;
+      } catch (IOException e) {
+        throw new IllegalStateException("Cannot map action cache log", e);
+      }
+    }
+
+    /**
+     * Reserves space for a record at the end of the log, writes it there and returns its offset.
+     */
+    long append(int hash, byte[] key, byte[] value) {
+      int length = RECORD_HEADER_SIZE + key.length + value.length;
+      long current;
+      long start;
+      long end;
+      do {
+        current = logEnd.get();
+        start = current;
+        long chunkEnd = (start / chunkSize + 1) * chunkSize;
+        if (start + length > chunkEnd) {
+          // Leave the rest of this chunk empty.
+          start = chunkEnd;
+        }
+        end = start + length;
+      } while (!logEnd.compareAndSet(current, end));
+      ByteBuffer buffer = at(start);
+      buffer.putInt(length).putInt(hash).putInt(key.length).put(key).put(value);
+      publishLogEnd(end);
+      return start;
+    }
+
+    /**
+     * Records in the index header that the log extends at least up to {@code end}, so that the
+     * records referenced by slots are never overwritten after a restart, even if {@link #force}
+     * was not called.
+     */
+    private void publishLogEnd(long end) {
+      long published;
+      do {
+        published = publishedLogEnd.get();
+        if (published >= end) {
+          return;
+        }
+      } while (!publishedLogEnd.compareAndSet(published, end));
+      index.putLong(20, end);
+      // A concurrent append may have published a larger end before our write landed; rewrite the
+      // header until it holds the largest published value.
+      long latest;
+      while ((latest = publishedLogEnd.get()) != end) {
+        end = latest;
+        index.putLong(20, end);
+      }
+    }
+
+    private int recordLength(long offset) {
+      try {
+        return RECORD_HEADER_SIZE + readRecord(offset).remaining();
+      } catch (IOException e) {
+        // Only used to count garbage, which a corrupt record is anyway.
+        return 0;
+      }
+    }
+
+    private boolean keyMatches(long offset, int hash, byte[] key) {
+      if (offset < LOG_HEADER_SIZE || offset + RECORD_HEADER_SIZE > logEnd.get()) {
+        return false;
+      }
+      ByteBuffer buffer = at(offset);
+      int length = buffer.getInt();
+      if (buffer.getInt() != hash || buffer.getInt() != key.length
+          || length < RECORD_HEADER_SIZE + key.length || offset + length > logEnd.get()) {
+        return false;
+      }
+      for (byte b : key) {
+        if (buffer.get() != b) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    /**
+     * Returns a buffer holding the key and value of the record at {@code offset}, positioned at
+     * the key. Throws an IOException if the record header does not describe a record within a
+     * chunk of the log.
+     */
+    private ByteBuffer readRecord(long offset) throws IOException {
+      long end = logEnd.get();
+      if (offset < LOG_HEADER_SIZE || offset + RECORD_HEADER_SIZE > end) {
+        throw new IOException("Action cache record offset " + offset + " is out of range");
+      }
+      ByteBuffer buffer = at(offset);
+      int length = buffer.getInt();
+      buffer.getInt();
+      int keyLength = buffer.getInt();
+      if (keyLength < 0 || length < (long) RECORD_HEADER_SIZE + keyLength
+          || offset + length > end || offset % chunkSize + length > chunkSize) {
+        throw new IOException("Corrupt action cache record at offset " + offset);
+      }
+      buffer.limit(buffer.position() + length - RECORD_HEADER_SIZE);
+      return buffer;
+    }
+
+    byte[] readKey(long offset) throws IOException {
+      ByteBuffer buffer = readRecord(offset);
+      byte[] key = new byte[buffer.getInt(buffer.position() - 4)];
+      buffer.get(key);
+      return key;
+    }
+
+    byte[] readValue(long offset) throws IOException {
+      ByteBuffer buffer = readRecord(offset);
+      buffer.position(buffer.position() + buffer.getInt(buffer.position() - 4));
+      byte[] value = new byte[buffer.remaining()];
+      buffer.get(value);
+      return value;
+    }
+
+    void force() {
+      index.putLong(28, garbage.get());
+      index.force();
+      for (MappedByteBuffer chunk : chunks) {
+        chunk.force();
+      }
+    }
+
+    private int newSlotsPerSegment() {
+      int live = 0;
+      for (int segment = 0; segment < SEGMENTS; segment++) {
+        live = Math.max(live, liveSlots(segment).length);
+      }
+      int newSlotsPerSegment = slotsPerSegment;
+      while (live * 2 > newSlotsPerSegment) {
+        newSlotsPerSegment *= 2;
+      }
+      return newSlotsPerSegment;
+    }
+
+    /**
+     * Creates a new store with a fresh index holding the live entries of this one, sharing its
+     * log. Must be called with all segment locks held. This store must not be used afterwards.
+     */
+    Store rebuildIndex() throws IOException {
+      int newSlotsPerSegment = newSlotsPerSegment();
+      File newIndexFile = new File(indexFile.getPath() + ".tmp");
+      delete(newIndexFile);
+      FileChannel indexChannel = new RandomAccessFile(newIndexFile, "rw").getChannel();
+      MappedByteBuffer newIndex;
+      try {
+        newIndex = indexChannel.map(MapMode.READ_WRITE, 0, indexSize(newSlotsPerSegment));
+      } finally {
+        indexChannel.close();
+      }
+      newIndex.put((ByteBuffer) index.duplicate().position(0).limit(40));
+      newIndex.putInt(16, newSlotsPerSegment);
+      Store result = new Store(logFile, newIndexFile, chunkSize, generation, logChannel, newIndex,
+          newSlotsPerSegment, logEnd.get(), garbage.get());
+      result.chunks = chunks;
+      for (int segment = 0; segment < SEGMENTS; segment++) {
+        for (int slot : liveSlots(segment)) {
+          long offset = getSlotOffset(slot);
+          int hash = getSlotHash(slot);
+          byte[] key;
+          try {
+            key = readKey(offset);
+          } catch (IOException e) {
+            continue;
+          }
+          result.putSlot(segment, hash, key, offset);
+        }
+      }
+      return result.install(this);
+    }
+
+    /**
+     * Creates a new store in temporary files, holding copies of the live records of this one.
+     * Each segment is copied while holding its read lock, so that other segments can be updated
+     * meanwhile; updates of a segment after it was copied are not reflected in the copy. Corrupt
+     * records are dropped.
+     */
+    Store copyLiveRecords(ReentrantReadWriteLock[] locks) throws IOException {
+      Store result = create(new File(logFile.getPath() + ".tmp"),
+          new File(indexFile.getPath() + ".tmp"), chunkSize, newSlotsPerSegment(),
+          new Random().nextLong());
+      for (int segment = 0; segment < SEGMENTS; segment++) {
+        Lock lock = locks[segment].readLock();
+        lock.lock();
+        try {
+          for (int slot : liveSlots(segment)) {
+            long offset = getSlotOffset(slot);
+            int hash = getSlotHash(slot);
+            byte[] key;
+            byte[] value;
+            try {
+              key = readKey(offset);
+              value = readValue(offset);
+            } catch (IOException e) {
+              continue;
+            }
+            if (!result.hasRoomFor(segment)) {
+              // The segment grew since the size of the copy was chosen.
+              result = result.rebuildIndex();
+            }
+            result.putSlot(segment, hash, key, result.append(hash, key, value));
+          }
+        } finally {
+          lock.unlock();
+        }
+      }
+      return result;
+    }
+
+    /**
+     * Moves the files of this store over those of {@code replaced}, which must not be used
+     * afterwards, and returns the store for the moved files. Must be called with all segment
+     * locks held unless neither store is visible to other threads.
+     */
+    Store install(Store replaced) throws IOException {
+      force();
+      if (!logFile.equals(replaced.logFile)) {
+        if (!logFile.renameTo(replaced.logFile)) {
+          throw new IOException("Cannot replace " + replaced.logFile);
+        }
+        replaced.logChannel.close();
+      }
+      if (!indexFile.renameTo(replaced.indexFile)) {
+        throw new IOException("Cannot replace " + replaced.indexFile);
+      }
+      Store renamed = new Store(replaced.logFile, replaced.indexFile, chunkSize, generation,
+          logChannel, index, slotsPerSegment, logEnd.get(), garbage.get());
+      renamed.chunks = chunks;
+      return renamed;
+    }
+  }
+}
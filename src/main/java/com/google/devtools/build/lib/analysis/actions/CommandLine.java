@@ -19,6 +19,7 @@ import com.google.common.base.Preconditions;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Iterables;
 import com.google.devtools.build.lib.collect.CollectionUtils;
+import com.google.devtools.build.lib.util.Fingerprint;
 
 /**
  * A representation of a command line to be executed by a SpawnAction.
@@ -29,6 +30,17 @@ public abstract class CommandLine {
    */
   public abstract Iterable<String> arguments();
 
+  /**
+   * Adds the command line to the fingerprint of an action key. Command lines with different
+   * arguments must add different data.
+   *
+   * <p>By default, this method adds all arguments. Command lines over nested sets can add digests
+   * of the structure of the sets instead, which avoids expanding them.
+   */
+  public void addToFingerprint(Fingerprint fingerprint) {
+    fingerprint.addStrings(arguments());
+  }
+
   /**
    * Returns whether the command line represents a shell command with the given shell executable.
    * This is used to give better error messages.
@@ -88,6 +100,12 @@ public abstract class CommandLine {
         return Iterables.concat(executableArgs, commandLine.arguments());
       }
 
+      @Override
+      public void addToFingerprint(Fingerprint fingerprint) {
+        fingerprint.addStrings(executableArgs);
+        commandLine.addToFingerprint(fingerprint);
+      }
+
       @Override
       public boolean isShellCommand() {
         return isShellCommand;
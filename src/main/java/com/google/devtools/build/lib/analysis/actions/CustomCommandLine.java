@@ -14,13 +14,16 @@
 
 package com.google.devtools.build.lib.analysis.actions;
 
+import com.google.common.base.Function;
 import com.google.common.base.Joiner;
 import com.google.common.collect.ImmutableList;
 import com.google.devtools.build.lib.actions.Artifact;
 import com.google.devtools.build.lib.collect.CollectionUtils;
 import com.google.devtools.build.lib.collect.nestedset.NestedSet;
+import com.google.devtools.build.lib.collect.nestedset.NestedSetFingerprintCache;
 import com.google.devtools.build.lib.concurrent.ThreadSafety.Immutable;
 import com.google.devtools.build.lib.syntax.Label;
+import com.google.devtools.build.lib.util.Fingerprint;
 import com.google.devtools.build.lib.vfs.PathFragment;
 
 import java.util.ArrayList;
@@ -28,12 +31,42 @@ import java.util.List;
 
 /**
  * A customizable, serializable class for building memory efficient command lines.
+ *
+ * <p>Nested sets of artifacts are kept as they are and only expanded when the arguments are
+ * requested, typically at execution time. The fingerprint of the command line covers the
+ * structure of such sets rather than their expansion, so computing an action key does not expand
+ * them either.
  */
 @Immutable
 public final class CustomCommandLine extends CommandLine {
 
+  /** Kinds of fragments, which start their contribution to the fingerprint. */
+  private static final int EVALUATED = 0;
+  private static final int JOINED_EXEC_PATHS = 1;
+  private static final int INTERSPERSED_EXEC_PATHS = 2;
+
+  /**
+   * Digests of nested sets of artifacts, which map to the exec paths of the artifacts, except for
+   * middlemen, which do not appear on command lines.
+   */
+  private static final NestedSetFingerprintCache<Artifact> EXEC_PATHS_FINGERPRINTS =
+      new NestedSetFingerprintCache<>(new Function<Artifact, String>() {
+        @Override
+        public String apply(Artifact artifact) {
+          return Artifact.MIDDLEMAN_FILTER.apply(artifact) ? artifact.getExecPathString() : null;
+        }
+      });
+
   private abstract static class ArgvFragment {
     abstract void eval(ImmutableList.Builder<String> builder);
+
+    /** Adds the fragment to the fingerprint. By default, adds the evaluated arguments. */
+    void addToFingerprint(Fingerprint fingerprint) {
+      ImmutableList.Builder<String> builder = ImmutableList.builder();
+      eval(builder);
+      fingerprint.addInt(EVALUATED);
+      fingerprint.addStrings(builder.build());
+    }
   }
 
   // It's better to avoid anonymous classes if we want to serialize command lines
@@ -65,6 +98,18 @@ public final class CustomCommandLine extends CommandLine {
     void eval(ImmutableList.Builder<String> builder) {
       builder.add(Artifact.joinExecPaths(delimiter, artifacts));
     }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    void addToFingerprint(Fingerprint fingerprint) {
+      if (!(artifacts instanceof NestedSet)) {
+        super.addToFingerprint(fingerprint);
+        return;
+      }
+      fingerprint.addInt(JOINED_EXEC_PATHS);
+      fingerprint.addString(delimiter);
+      fingerprint.addBytes(EXEC_PATHS_FINGERPRINTS.fingerprint((NestedSet<Artifact>) artifacts));
+    }
   }
 
   private static final class PathWithTemplateArg extends ArgvFragment {
@@ -145,6 +190,7 @@ public final class CustomCommandLine extends CommandLine {
    */
   private static final class InterspersingArgs extends ArgvFragment {
     private final Iterable<?> sequence;
+    private final boolean execPaths;
     private final String beforeEach;
     private final String formatEach;
 
@@ -152,8 +198,10 @@ public final class CustomCommandLine extends CommandLine {
      * Do not call from outside this class because this does not guarantee that {@code sequence} is
      * immutable.
      */
-    private InterspersingArgs(Iterable<?> sequence, String beforeEach, String formatEach) {
+    private InterspersingArgs(Iterable<?> sequence, boolean execPaths, String beforeEach,
+        String formatEach) {
       this.sequence = sequence;
+      this.execPaths = execPaths;
       this.beforeEach = beforeEach;
       this.formatEach = formatEach;
     }
@@ -161,18 +209,25 @@ public final class CustomCommandLine extends CommandLine {
     static InterspersingArgs fromStrings(
         Iterable<?> sequence, String beforeEach, String formatEach) {
       return new InterspersingArgs(
-          CollectionUtils.makeImmutable(sequence), beforeEach, formatEach);
+          CollectionUtils.makeImmutable(sequence), false, beforeEach, formatEach);
     }
 
+    /**
+     * The artifacts are kept rather than their exec paths, so that nested sets of them can be
+     * fingerprinted by their structure.
+     */
     static InterspersingArgs fromExecPaths(
         Iterable<Artifact> sequence, String beforeEach, String formatEach) {
       return new InterspersingArgs(
-          Artifact.toExecPaths(CollectionUtils.makeImmutable(sequence)), beforeEach, formatEach);
+          CollectionUtils.makeImmutable(sequence), true, beforeEach, formatEach);
     }
 
+    @SuppressWarnings("unchecked")
     @Override
     void eval(ImmutableList.Builder<String> builder) {
-      for (Object item : sequence) {
+      Iterable<?> items =
+          execPaths ? Artifact.toExecPaths((Iterable<Artifact>) sequence) : sequence;
+      for (Object item : items) {
         if (item == null) {
           continue;
         }
@@ -187,6 +242,26 @@ public final class CustomCommandLine extends CommandLine {
         builder.add(arg);
       }
     }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    void addToFingerprint(Fingerprint fingerprint) {
+      if (!execPaths || !(sequence instanceof NestedSet)) {
+        super.addToFingerprint(fingerprint);
+        return;
+      }
+      fingerprint.addInt(INTERSPERSED_EXEC_PATHS);
+      addNullableString(fingerprint, beforeEach);
+      addNullableString(fingerprint, formatEach);
+      fingerprint.addBytes(EXEC_PATHS_FINGERPRINTS.fingerprint((NestedSet<Artifact>) sequence));
+    }
+
+    private static void addNullableString(Fingerprint fingerprint, String string) {
+      fingerprint.addBoolean(string != null);
+      if (string != null) {
+        fingerprint.addString(string);
+      }
+    }
   }
 
   /**
@@ -355,4 +430,12 @@ public final class CustomCommandLine extends CommandLine {
     }
     return builder.build();
   }
+
+  @Override
+  public void addToFingerprint(Fingerprint fingerprint) {
+    fingerprint.addInt(arguments.size());
+    for (ArgvFragment arg : arguments) {
+      arg.addToFingerprint(fingerprint);
+    }
+  }
 }
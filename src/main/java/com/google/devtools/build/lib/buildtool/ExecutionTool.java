@@ -32,6 +32,7 @@ import com.google.devtools.build.lib.actions.ActionContextConsumer;
 import com.google.devtools.build.lib.actions.ActionContextMarker;
 import com.google.devtools.build.lib.actions.ActionContextProvider;
 import com.google.devtools.build.lib.actions.ActionGraph;
+import com.google.devtools.build.lib.actions.ActionHistory;
 import com.google.devtools.build.lib.actions.ActionInputFileCache;
 import com.google.devtools.build.lib.actions.Artifact;
 import com.google.devtools.build.lib.actions.BlazeExecutor;
@@ -42,12 +43,14 @@ import com.google.devtools.build.lib.actions.Executor;
 import com.google.devtools.build.lib.actions.Executor.ActionContext;
 import com.google.devtools.build.lib.actions.ExecutorInitException;
 import com.google.devtools.build.lib.actions.LocalHostCapacity;
+import com.google.devtools.build.lib.actions.LocalHostLoad;
 import com.google.devtools.build.lib.actions.ResourceManager;
 import com.google.devtools.build.lib.actions.ResourceSet;
 import com.google.devtools.build.lib.actions.SimpleActionContextProvider;
 import com.google.devtools.build.lib.actions.SpawnActionContext;
 import com.google.devtools.build.lib.actions.TestExecException;
 import com.google.devtools.build.lib.actions.cache.ActionCache;
+import com.google.devtools.build.lib.actions.cache.DiskOutputCache;
 import com.google.devtools.build.lib.analysis.BuildView;
 import com.google.devtools.build.lib.analysis.BuildView.AnalysisResult;
 import com.google.devtools.build.lib.analysis.ConfiguredTarget;
@@ -174,6 +177,9 @@ public class ExecutionTool {
 
   static final Logger LOG = Logger.getLogger(ExecutionTool.class.getName());
 
+  // How often the load of the local host is measured with --experimental_measure_local_load.
+  private static final long LOCAL_LOAD_SAMPLE_INTERVAL_MS = 500;
+
   private final BlazeRuntime runtime;
   private final BuildRequest request;
   private BlazeExecutor executor;
@@ -785,6 +791,8 @@ public class ExecutionTool {
     // client.
     fileCache = createBuildSingleFileCache(executor.getExecRoot());
     skyframeExecutor.setActionOutputRoot(actionOutputRoot);
+    skyframeExecutor.setOutputCache(
+        createOutputCache(request.getOptions(ExecutionOptions.class)));
     return new SkyframeBuilder(skyframeExecutor,
         new ActionCacheChecker(actionCache, getView().getArtifactFactory(), executionFilter,
             verboseExplanations),
@@ -792,6 +800,32 @@ public class ExecutionTool {
         request.getBuildOptions().progressReportInterval);
   }
 
+  /**
+   * Returns the local output cache requested by --experimental_local_disk_cache, or null if there
+   * is none or it cannot be created. A relative directory is resolved against the workspace.
+   */
+  @Nullable
+  private DiskOutputCache createOutputCache(ExecutionOptions options) {
+    if (options.localDiskCache == null) {
+      return null;
+    }
+    if (options.localDiskCacheMaxSizeMb <= 0) {
+      getReporter().handle(Event.warn(
+          "--experimental_local_disk_cache_max_size_mb must be positive; building without the "
+          + "local disk cache"));
+      return null;
+    }
+    Path root = getWorkspace().getRelative(options.localDiskCache);
+    try {
+      return new DiskOutputCache(root, options.localDiskCacheMaxSizeMb * 1024L * 1024L,
+          options.localDiskCacheHardLinks);
+    } catch (IOException e) {
+      getReporter().handle(Event.warn("Couldn't create local disk cache in " + root + ": "
+          + e.getMessage() + "; building without it"));
+      return null;
+    }
+  }
+
   private void configureResourceManager(BuildRequest request) {
     ResourceManager resourceMgr = ResourceManager.instance();
     ExecutionOptions options = request.getOptions(ExecutionOptions.class);
@@ -811,6 +845,22 @@ public class ExecutionTool {
         request.getExecutionOptions().usingLocalTestJobs()
             ? request.getExecutionOptions().localTestJobs : Integer.MAX_VALUE
     ));
+    resourceMgr.setLocalHostLoad(options.measureLocalLoad
+        ? LocalHostLoad.fromProc(LOCAL_LOAD_SAMPLE_INTERVAL_MS, TimeUnit.MILLISECONDS)
+        : null);
+
+    ActionHistory actionHistory = null;
+    if (options.actionHistory) {
+      try {
+        actionHistory = runtime.getActionHistory();
+        actionHistory.startBuild();
+      } catch (IOException e) {
+        getReporter().handle(
+            Event.warn("Failed to load action history, resources are estimated: "
+                + e.getMessage()));
+      }
+    }
+    resourceMgr.setActionHistory(actionHistory);
   }
 
   /**
@@ -836,6 +886,16 @@ public class ExecutionTool {
                                         ProfilerTask.INFO, "Saving action cache");
     }
 
+    ActionHistory actionHistory = ResourceManager.instance().getActionHistory();
+    if (actionHistory != null) {
+      try {
+        actionHistory.save();
+      } catch (IOException e) {
+        getReporter().handle(
+            Event.error("I/O error while writing action history: " + e.getMessage()));
+      }
+    }
+
     runtime.getEventBus().post(new CachesSavedEvent(
         actionCacheSaveTime, actionCacheSizeInBytes));
   }
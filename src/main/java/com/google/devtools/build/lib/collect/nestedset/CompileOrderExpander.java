@@ -13,7 +13,7 @@
 // limitations under the License.
 package com.google.devtools.build.lib.collect.nestedset;
 
-import com.google.common.collect.ImmutableCollection;
+import com.google.devtools.build.lib.collect.nestedset.NestedSetVisitor.Receiver;
 
 /**
  * A nested set expander that implements left-to-right postordering.
@@ -31,17 +31,17 @@ final class CompileOrderExpander<E> implements NestedSetExpander<E> {
   @SuppressWarnings("unchecked")
   @Override
   public void expandInto(NestedSet<E> set, Uniqueifier uniqueifier,
-      ImmutableCollection.Builder<E> builder) {
+      Receiver<? super E> receiver) {
     for (NestedSet<E> subset : set.transitiveSets()) {
       if (!subset.isEmpty() && uniqueifier.isUnique(subset)) {
-        expandInto(subset, uniqueifier, builder);
+        expandInto(subset, uniqueifier, receiver);
       }
     }
 
     // This switch is here to compress the memo used by the uniqueifier
     for (Object e : set.directMembers()) {
       if (uniqueifier.isUnique(e)) {
-        builder.add((E) e);
+        receiver.accept((E) e);
       }
     }
   }
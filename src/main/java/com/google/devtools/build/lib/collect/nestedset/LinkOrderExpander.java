@@ -13,8 +13,10 @@
 // limitations under the License.
 package com.google.devtools.build.lib.collect.nestedset;
 
-import com.google.common.collect.ImmutableCollection;
-import com.google.common.collect.ImmutableList;
+import com.google.devtools.build.lib.collect.nestedset.NestedSetVisitor.Receiver;
+
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * A nested set expander that implements a variation of left-to-right preordering.
@@ -75,22 +77,23 @@ import com.google.common.collect.ImmutableList;
 final class LinkOrderExpander<E> implements NestedSetExpander<E> {
   @Override
   public void expandInto(NestedSet<E> nestedSet, Uniqueifier uniqueifier,
-      ImmutableCollection.Builder<E> builder) {
-    ImmutableList.Builder<E> result = ImmutableList.builder();
+      Receiver<? super E> receiver) {
+    List<E> result = new ArrayList<>();
     internalEnumerate(nestedSet, uniqueifier, result);
-    builder.addAll(result.build().reverse());
+    for (int i = result.size() - 1; i >= 0; i--) {
+      receiver.accept(result.get(i));
+    }
   }
 
   // We suppress unchecked warning so that we can access the internal raw structure of the
   // NestedSet.
   @SuppressWarnings("unchecked")
-  private void internalEnumerate(NestedSet<E> set, Uniqueifier uniqueifier,
-      ImmutableCollection.Builder<E> builder) {
+  private void internalEnumerate(NestedSet<E> set, Uniqueifier uniqueifier, List<E> result) {
     NestedSet[] transitiveSets = set.transitiveSets();
     for (int i = transitiveSets.length - 1; i >= 0; i--) {
       NestedSet<E> subset = transitiveSets[i];
       if (!subset.isEmpty() && uniqueifier.isUnique(subset)) {
-        internalEnumerate(subset, uniqueifier, builder);
+        internalEnumerate(subset, uniqueifier, result);
       }
     }
 
@@ -98,7 +101,7 @@ final class LinkOrderExpander<E> implements NestedSetExpander<E> {
     for (int i = directMembers.length - 1; i >= 0; i--) {
       Object e = directMembers[i];
       if (uniqueifier.isUnique(e)) {
-        builder.add((E) e);
+        result.add((E) e);
       }
     }
   }
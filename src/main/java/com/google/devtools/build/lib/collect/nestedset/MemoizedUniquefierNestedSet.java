@@ -16,6 +16,7 @@ package com.google.devtools.build.lib.collect.nestedset;
 import com.google.common.collect.ImmutableCollection;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
+import com.google.devtools.build.lib.collect.nestedset.NestedSetVisitor.Receiver;
 
 import java.util.List;
 import java.util.Set;
@@ -26,23 +27,49 @@ import java.util.Set;
  * <p>This class does not keep the memoized object itself so that we can take advantage of the
  * memory field alignment (Memory alignment does not put in the same structure the fields of a
  * class and its extensions).
+ *
+ * <p>Expansions of large sets are also kept in the {@link NestedSetExpansionCache}, if it is
+ * enabled.
  */
 public abstract class MemoizedUniquefierNestedSet<E> extends NestedSet<E> {
 
   @Override
   public List<E> toList() {
+    ImmutableList<E> cached = NestedSetExpansionCache.get(this);
+    if (cached != null) {
+      return cached;
+    }
     ImmutableList.Builder<E> builder = new ImmutableList.Builder<>();
-    memoizedFill(builder);
-    return builder.build();
+    memoizedFill(new BuilderReceiver<>(builder));
+    ImmutableList<E> expansion = builder.build();
+    NestedSetExpansionCache.put(this, expansion);
+    return expansion;
   }
 
   @Override
   public Set<E> toSet() {
+    ImmutableList<E> cached = NestedSetExpansionCache.get(this);
+    if (cached != null) {
+      // The elements of an expansion are unique, so this does not need to look any of them up.
+      return ImmutableSet.copyOf(cached);
+    }
     ImmutableSet.Builder<E> builder = new ImmutableSet.Builder<>();
-    memoizedFill(builder);
+    memoizedFill(new BuilderReceiver<>(builder));
     return builder.build();
   }
 
+  @Override
+  public void forEachElement(Receiver<? super E> receiver) {
+    ImmutableList<E> cached = NestedSetExpansionCache.get(this);
+    if (cached == null) {
+      memoizedFill(receiver);
+      return;
+    }
+    for (int i = 0; i < cached.size(); i++) {
+      receiver.accept(cached.get(i));
+    }
+  }
+
   /**
    * It does not make sense to have a {@code MemoizedUniquefierNestedSet} if it is empty.
    */
@@ -54,21 +81,43 @@ public abstract class MemoizedUniquefierNestedSet<E> extends NestedSet<E> {
   abstract void setMemo(Object object);
 
   /**
-   * Fill a collection builder by using a memoized {@code Uniqueifier} for faster uniqueness check.
+   * Passes the elements to a receiver by using a memoized {@code Uniqueifier} for faster
+   * uniqueness check.
+   *
+   * <p>The receiver is never called while holding the lock of this set. The first expansion
+   * records the memo as it goes and publishes it once it is complete; concurrent first expansions
+   * each record one and the first to finish wins.
    */
-  final void memoizedFill(ImmutableCollection.Builder<E> builder) {
-    Uniqueifier memoed;
+  final void memoizedFill(Receiver<? super E> receiver) {
+    Object memo;
     synchronized (this) {
-      Object memo = getMemo();
-      if (memo == null) {
-        RecordingUniqueifier uniqueifier = new RecordingUniqueifier();
-        getOrder().<E>expander().expandInto(this, uniqueifier, builder);
+      memo = getMemo();
+    }
+    if (memo != null) {
+      getOrder().<E>expander().expandInto(
+          this, RecordingUniqueifier.createReplayUniqueifier(memo), receiver);
+      return;
+    }
+    RecordingUniqueifier uniqueifier = new RecordingUniqueifier();
+    getOrder().<E>expander().expandInto(this, uniqueifier, receiver);
+    synchronized (this) {
+      if (getMemo() == null) {
         setMemo(uniqueifier.getMemo());
-        return;
-      } else {
-        memoed = RecordingUniqueifier.createReplayUniqueifier(memo);
       }
     }
-    getOrder().<E>expander().expandInto(this, memoed, builder);
+  }
+
+  /** Adds the received elements to a collection builder. */
+  private static final class BuilderReceiver<E> implements Receiver<E> {
+    private final ImmutableCollection.Builder<E> builder;
+
+    BuilderReceiver(ImmutableCollection.Builder<E> builder) {
+      this.builder = builder;
+    }
+
+    @Override
+    public void accept(E element) {
+      builder.add(element);
+    }
   }
 }
@@ -13,7 +13,7 @@
 // limitations under the License.
 package com.google.devtools.build.lib.collect.nestedset;
 
-import com.google.common.collect.ImmutableCollection;
+import com.google.devtools.build.lib.collect.nestedset.NestedSetVisitor.Receiver;
 
 /**
  * A nested set expander that implements naive left-to-right preordering.
@@ -37,17 +37,17 @@ final class NaiveLinkOrderExpander<E> implements NestedSetExpander<E> {
   @SuppressWarnings("unchecked")
   @Override
   public void expandInto(NestedSet<E> set, Uniqueifier uniqueifier,
-      ImmutableCollection.Builder<E> builder) {
+      Receiver<? super E> receiver) {
 
     for (Object e : set.directMembers()) {
       if (uniqueifier.isUnique(e)) {
-        builder.add((E) e);
+        receiver.accept((E) e);
       }
     }
 
     for (NestedSet<E> subset : set.transitiveSets()) {
       if (!subset.isEmpty() && uniqueifier.isUnique(subset)) {
-        expandInto(subset, uniqueifier, builder);
+        expandInto(subset, uniqueifier, receiver);
       }
     }
   }
@@ -91,6 +91,20 @@ public abstract class NestedSet<E> implements Iterable<E>, Serializable {
    */
   public abstract Set<E> toSet();
 
+  /**
+   * Passes all unique elements of this set (including subsets) to the receiver, in the order of
+   * {@link #toList}.
+   *
+   * <p>Unlike iterating over {@link #toCollection}, this does not build an intermediate
+   * collection unless the order requires one, which makes it the cheapest way to consume a large
+   * set once, for example to compute a fingerprint or to write a command line.
+   */
+  public void forEachElement(NestedSetVisitor.Receiver<? super E> receiver) {
+    for (E element : toCollection()) {
+      receiver.accept(element);
+    }
+  }
+
   /**
    * Returns true if this set is equal to {@code other} based on the top-level
    * elements and object identity (==) of direct subsets.  As such, this function
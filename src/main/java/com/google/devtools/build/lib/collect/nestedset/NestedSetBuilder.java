@@ -151,45 +151,71 @@ public final class NestedSetBuilder<E> {
         return candidate;
       }
     }
-    int transitiveSize = transitiveSets.size();
-    int directSize = items.size();
+    Object[] directs = items.toArray();
+    NestedSet[] transitives = transitiveSetsCast.toArray(new NestedSet[transitiveSets.size()]);
+    return NestedSetInterner.isEnabled()
+        ? NestedSetInterner.<E>intern(order, directs, transitives)
+        : NestedSetBuilder.<E>create(order, directs, transitives);
+  }
 
-    switch (transitiveSize) {
+  /**
+   * Creates a nested set of the shape matching the number of direct members and transitive sets,
+   * which must not both be zero.
+   */
+  @SuppressWarnings("unchecked")
+  static <E> NestedSet<E> create(Order order, Object[] directs, NestedSet[] transitives) {
+    switch (transitives.length) {
       case 0:
-        switch (directSize) {
+        switch (directs.length) {
           case 0:
             return order.emptySet();
           case 1:
-            return order.factory.oneDirect(getOnlyElement(items));
+            return order.factory.oneDirect((E) directs[0]);
           default:
-            return order.factory.onlyDirects(items.toArray());
+            return order.factory.onlyDirects(directs);
         }
       case 1:
-        switch (directSize) {
+        switch (directs.length) {
           case 0:
-            return order.factory.onlyOneTransitive(getOnlyElement(transitiveSetsCast));
+            return order.factory.onlyOneTransitive((NestedSet<E>) transitives[0]);
           case 1:
-            return order.factory.oneDirectOneTransitive(getOnlyElement(items),
-                getOnlyElement(transitiveSetsCast));
+            return order.factory.oneDirectOneTransitive((E) directs[0],
+                (NestedSet<E>) transitives[0]);
           default:
-            return order.factory.manyDirectsOneTransitive(items.toArray(),
-                getOnlyElement(transitiveSetsCast));
+            return order.factory.manyDirectsOneTransitive(directs, (NestedSet<E>) transitives[0]);
         }
       default:
-        switch (directSize) {
+        switch (directs.length) {
           case 0:
-            return order.factory.onlyManyTransitives(
-                transitiveSetsCast.toArray(new NestedSet[transitiveSize]));
+            return order.factory.onlyManyTransitives(transitives);
           case 1:
-            return order.factory.oneDirectManyTransitive(getOnlyElement(items), transitiveSetsCast
-                .toArray(new NestedSet[transitiveSize]));
+            return order.factory.oneDirectManyTransitive(directs[0], transitives);
           default:
-            return order.factory.manyDirectManyTransitive(items.toArray(),
-                transitiveSetsCast.toArray(new NestedSet[transitiveSize]));
+            return order.factory.manyDirectManyTransitive(directs, transitives);
         }
     }
   }
 
+  /**
+   * Sets whether built nested sets are interned by content, so that equal sets built by different
+   * builders share one instance. This trades a map lookup per {@link #build} for less retained
+   * memory when many equal sets are built. Sets built before the call are not interned
+   * afterwards.
+   */
+  public static void setInterning(boolean enabled) {
+    NestedSetInterner.setEnabled(enabled);
+  }
+
+  /**
+   * Sets the maximum total number of elements in the cached expansions of large nested sets, and
+   * discards the expansions cached so far. Cached expansions are returned by
+   * {@link NestedSet#toList} and walked by {@link NestedSet#forEachElement} without expanding the
+   * set again. A size of 0, the default, disables the cache.
+   */
+  public static void setExpansionCacheSize(long elements) {
+    NestedSetExpansionCache.setMaximumSize(elements);
+  }
+
   /**
    * Creates a nested set from a given list of items.
    *
@@ -13,18 +13,17 @@
 // limitations under the License.
 package com.google.devtools.build.lib.collect.nestedset;
 
-import com.google.common.collect.ImmutableCollection;
+import com.google.devtools.build.lib.collect.nestedset.NestedSetVisitor.Receiver;
 
 /**
- * An expander that converts a nested set into a flattened collection.
+ * An expander that flattens a nested set into a sequence of unique elements.
  *
  * <p>Expanders are initialized statically (there is one for each order), so they should
  * contain no state and all methods must be threadsafe.
  */
 interface NestedSetExpander<E> {
   /**
-   * Flattens the NestedSet into the builder.
+   * Flattens the NestedSet, passing its elements to the receiver in order.
    */
-  void expandInto(NestedSet<E> nestedSet, Uniqueifier uniqueifier,
-      ImmutableCollection.Builder<E> builder);
+  void expandInto(NestedSet<E> nestedSet, Uniqueifier uniqueifier, Receiver<? super E> receiver);
 }
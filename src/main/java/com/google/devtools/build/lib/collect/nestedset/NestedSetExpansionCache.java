@@ -0,0 +1,79 @@
+// Copyright 2015 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.collect.nestedset;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.Weigher;
+import com.google.common.collect.ImmutableList;
+
+import javax.annotation.Nullable;
+
+/**
+ * Caches the expansions of large nested sets, so that sets that are flattened over and over, such
+ * as the classpath or the link inputs of a binary that many actions consume, are expanded once.
+ *
+ * <p>Sets are keyed by identity and held weakly, so a cached expansion never outlives its set.
+ * As each set has a single order, the identity of the set also determines the order of its
+ * expansion. The total number of cached elements is bounded; the least recently used expansions
+ * are evicted first. The cache is off by default; see
+ * {@link NestedSetBuilder#setExpansionCacheSize}.
+ */
+final class NestedSetExpansionCache {
+
+  /**
+   * Expansions with fewer elements than this are not cached, as expanding them again with the
+   * memoized uniqueifier is cheap.
+   */
+  static final int MIN_CACHED_SIZE = 64;
+
+  @Nullable private static volatile Cache<NestedSet<?>, ImmutableList<?>> cache = null;
+
+  private NestedSetExpansionCache() {}
+
+  /**
+   * Sets the maximum total number of elements in cached expansions, and discards the cached
+   * expansions. A size of 0 disables the cache.
+   */
+  static void setMaximumSize(long elements) {
+    cache = elements > 0
+        ? CacheBuilder.newBuilder()
+            .weakKeys()
+            .maximumWeight(elements)
+            .weigher(new Weigher<NestedSet<?>, ImmutableList<?>>() {
+              @Override
+              public int weigh(NestedSet<?> set, ImmutableList<?> expansion) {
+                return expansion.size();
+              }
+            })
+            .<NestedSet<?>, ImmutableList<?>>build()
+        : null;
+  }
+
+  /** Returns the cached expansion of the set, or null if there is none. */
+  @Nullable
+  @SuppressWarnings("unchecked")
+  static <E> ImmutableList<E> get(NestedSet<E> set) {
+    Cache<NestedSet<?>, ImmutableList<?>> current = cache;
+    return current == null ? null : (ImmutableList<E>) current.getIfPresent(set);
+  }
+
+  /** Caches the expansion of the set, if it is large enough to be worth it. */
+  static <E> void put(NestedSet<E> set, ImmutableList<E> expansion) {
+    Cache<NestedSet<?>, ImmutableList<?>> current = cache;
+    if (current != null && expansion.size() >= MIN_CACHED_SIZE) {
+      current.put(set, expansion);
+    }
+  }
+}
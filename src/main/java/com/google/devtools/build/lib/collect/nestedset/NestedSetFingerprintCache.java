@@ -0,0 +1,117 @@
+// Copyright 2015 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.collect.nestedset;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.base.Function;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Computes digests of nested sets from their structure rather than from their expansion, so that
+ * a set that is shared by many consumers, such as the classpath of a large binary, is digested
+ * once and then contributes only its digest to the digests of the sets that contain it.
+ *
+ * <p>The digest of a set covers its order, the strings its direct members map to and the digests
+ * of its transitive sets. As the expansion of a set is determined by those, sets with equal
+ * digests have equal expansions. The converse does not hold: sets with equal expansions but
+ * different structures have different digests. This makes the digests suitable for cache keys,
+ * where a difference only costs a cache miss, but not for comparing sets.
+ *
+ * <p>Digests of sets with transitive sets are memoized, and held as long as their set is
+ * reachable. A cache memoizes digests for a single mapping of elements to strings, so there
+ * should be one instance per mapping. Instances are thread-safe if the mapping is.
+ *
+ * @param <E> the element type of the digested sets
+ */
+public final class NestedSetFingerprintCache<E> {
+
+  private static final byte DIRECT_MEMBER = 0;
+  private static final byte TRANSITIVE_SET = 1;
+
+  private final Function<? super E, String> mapper;
+  private final Cache<NestedSet<?>, byte[]> digests = CacheBuilder.newBuilder()
+      .weakKeys()
+      .<NestedSet<?>, byte[]>build();
+
+  /**
+   * Creates a cache that digests each element as the string {@code mapper} returns for it.
+   * Elements for which the mapper returns null are left out, as if they were not in the set.
+   *
+   * <p>The mapper must return equal strings only for equal elements, as expansion removes
+   * duplicates by equality: otherwise, sets whose expansions differ could have equal digests.
+   */
+  public NestedSetFingerprintCache(Function<? super E, String> mapper) {
+    this.mapper = mapper;
+  }
+
+  /** Returns the digest of the structure of the set. */
+  public byte[] fingerprint(NestedSet<? extends E> set) {
+    if (set.transitiveSets().length == 0) {
+      return computeDigest(set);
+    }
+    byte[] digest = digests.getIfPresent(set);
+    if (digest == null) {
+      // Racing threads compute the same digest, so it does not matter which one is kept.
+      digest = computeDigest(set);
+      digests.put(set, digest);
+    }
+    return digest;
+  }
+
+  @SuppressWarnings("unchecked")
+  private byte[] computeDigest(NestedSet<? extends E> set) {
+    NestedSet<? extends E>[] transitiveSets = set.transitiveSets();
+    // The digests of the transitive sets are computed first, as the message digest is not
+    // reentrant.
+    byte[][] transitiveDigests = new byte[transitiveSets.length][];
+    for (int i = 0; i < transitiveSets.length; i++) {
+      transitiveDigests[i] = fingerprint(transitiveSets[i]);
+    }
+
+    MessageDigest md = newMessageDigest();
+    md.update((byte) set.getOrder().ordinal());
+    for (Object member : set.directMembers()) {
+      String string = mapper.apply((E) member);
+      if (string != null) {
+        byte[] bytes = string.getBytes(UTF_8);
+        md.update(DIRECT_MEMBER);
+        md.update(intToBytes(bytes.length));
+        md.update(bytes);
+      }
+    }
+    for (byte[] transitiveDigest : transitiveDigests) {
+      md.update(TRANSITIVE_SET);
+      md.update(transitiveDigest);
+    }
+    return md.digest();
+  }
+
+  private static byte[] intToBytes(int value) {
+    return new byte[] {
+        (byte) (value >>> 24), (byte) (value >>> 16), (byte) (value >>> 8), (byte) value};
+  }
+
+  private static MessageDigest newMessageDigest() {
+    try {
+      return MessageDigest.getInstance("MD5");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException("MD5 not available", e);
+    }
+  }
+}
@@ -0,0 +1,203 @@
+// Copyright 2015 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.collect.nestedset;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Arrays;
+
+/**
+ * Interns nested sets by their content, so that all sets built with the same order, equal direct
+ * members and the same transitive sets are represented by a single instance, which also shares
+ * its memoized expansion. Arrays of direct members are interned separately, so that sets that
+ * differ only in their transitive sets share their direct members.
+ *
+ * <p>Transitive sets are compared by identity. As they are interned themselves, two sets with the
+ * same content have the same structure all the way down.
+ *
+ * <p>Interned objects are held weakly, in tables that cost a weak reference per distinct object
+ * and no copy of its content. Interning pays off only when many equal sets are built, which is
+ * why it is off by default; see {@link NestedSetBuilder#setInterning}.
+ */
+final class NestedSetInterner {
+
+  private static volatile boolean enabled = false;
+  private static volatile WeakTable<NestedSet<?>> sets = new WeakTable<>();
+  private static volatile WeakTable<Object[]> arrays = new WeakTable<>();
+
+  private NestedSetInterner() {}
+
+  static boolean isEnabled() {
+    return enabled;
+  }
+
+  /** Enables or disables interning, and discards the objects interned so far. */
+  static void setEnabled(boolean enabled) {
+    NestedSetInterner.enabled = enabled;
+    sets = new WeakTable<>();
+    arrays = new WeakTable<>();
+  }
+
+  /**
+   * Returns the interned set with the given content, creating it with {@code order}'s factory if
+   * there is none.
+   */
+  @SuppressWarnings("unchecked")
+  static <E> NestedSet<E> intern(
+      final Order order, Object[] directs, final NestedSet<?>[] transitives) {
+    if (directs.length > 1) {
+      final Object[] uninterned = directs;
+      directs = arrays.intern(new Probe<Object[]>(Arrays.hashCode(directs)) {
+        @Override
+        boolean matches(Object[] value) {
+          return Arrays.equals(value, uninterned);
+        }
+
+        @Override
+        Object[] create() {
+          return uninterned;
+        }
+      });
+    }
+    final Object[] internedDirects = directs;
+    int hash = 31 * (31 * order.hashCode() + Arrays.hashCode(directs))
+        + Arrays.hashCode(transitives);
+    return (NestedSet<E>) sets.intern(new Probe<NestedSet<?>>(hash) {
+      @Override
+      boolean matches(NestedSet<?> value) {
+        // NestedSet does not override equals, so transitive sets are compared by identity.
+        return value.getOrder() == order
+            && Arrays.equals(value.directMembers(), internedDirects)
+            && Arrays.equals(value.transitiveSets(), transitives);
+      }
+
+      @Override
+      NestedSet<?> create() {
+        return NestedSetBuilder.create(order, internedDirects, transitives);
+      }
+    });
+  }
+
+  /** The content of an object to intern. */
+  private abstract static class Probe<V> {
+    final int hash;
+
+    Probe(int hash) {
+      // Spreads the bits, as the table uses the low ones.
+      this.hash = hash ^ (hash >>> 16);
+    }
+
+    abstract boolean matches(V value);
+
+    abstract V create();
+  }
+
+  /** A thread-safe hash table of weakly held values, which are looked up by content. */
+  private static final class WeakTable<V> {
+    private static final int SEGMENTS = 16;
+
+    private final Segment<V>[] segments = newSegments(SEGMENTS);
+
+    WeakTable() {
+      for (int i = 0; i < SEGMENTS; i++) {
+        segments[i] = new Segment<>();
+      }
+    }
+
+    V intern(Probe<V> probe) {
+      return segments[(probe.hash >>> 28) & (SEGMENTS - 1)].intern(probe);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <V> Segment<V>[] newSegments(int length) {
+      return (Segment<V>[]) new Segment<?>[length];
+    }
+  }
+
+  private static final class Segment<V> {
+    private final ReferenceQueue<V> queue = new ReferenceQueue<>();
+    private Entry<V>[] table = newTable(16);
+    private int size;
+
+    synchronized V intern(Probe<V> probe) {
+      expungeStaleEntries();
+      int index = probe.hash & (table.length - 1);
+      for (Entry<V> entry = table[index]; entry != null; entry = entry.next) {
+        if (entry.hash == probe.hash) {
+          V value = entry.get();
+          if (value != null && probe.matches(value)) {
+            return value;
+          }
+        }
+      }
+      V value = probe.create();
+      table[index] = new Entry<>(value, probe.hash, table[index], queue);
+      if (++size > table.length / 4 * 3) {
+        resize();
+      }
+      return value;
+    }
+
+    private void expungeStaleEntries() {
+      for (Object ref = queue.poll(); ref != null; ref = queue.poll()) {
+        @SuppressWarnings("unchecked")
+        Entry<V> stale = (Entry<V>) ref;
+        int index = stale.hash & (table.length - 1);
+        Entry<V> previous = null;
+        for (Entry<V> entry = table[index]; entry != null; entry = entry.next) {
+          if (entry == stale) {
+            if (previous == null) {
+              table[index] = entry.next;
+            } else {
+              previous.next = entry.next;
+            }
+            size--;
+            break;
+          }
+          previous = entry;
+        }
+      }
+    }
+
+    private void resize() {
+      Entry<V>[] newTable = newTable(table.length * 2);
+      for (Entry<V> head : table) {
+        for (Entry<V> entry = head; entry != null; ) {
+          Entry<V> next = entry.next;
+          int index = entry.hash & (newTable.length - 1);
+          entry.next = newTable[index];
+          newTable[index] = entry;
+          entry = next;
+        }
+      }
+      table = newTable;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <V> Entry<V>[] newTable(int length) {
+      return (Entry<V>[]) new Entry<?>[length];
+    }
+  }
+
+  private static final class Entry<V> extends WeakReference<V> {
+    private final int hash;
+    private Entry<V> next;
+
+    Entry(V value, int hash, Entry<V> next, ReferenceQueue<V> queue) {
+      super(value, queue);
+      this.hash = hash;
+      this.next = next;
+    }
+  }
+}
@@ -68,6 +68,14 @@ abstract class OnlyDirectsNestedSet<E> extends NestedSet<E> {
     return (Set<E>) ImmutableSet.copyOf(directDeps);
   }
 
+  @SuppressWarnings("unchecked")
+  @Override
+  public void forEachElement(NestedSetVisitor.Receiver<? super E> receiver) {
+    for (Object e : directDeps) {
+      receiver.accept((E) e);
+    }
+  }
+
   @Override
   public boolean shallowEquals(@Nullable NestedSet<? extends E> other) {
     if (this == other) {
@@ -52,6 +52,11 @@ public abstract class SingleDirectNestedSet<E> extends NestedSet<E> {
   @Override
   public Set<E> toSet() { return ImmutableSet.of(e); }
 
+  @Override
+  public void forEachElement(NestedSetVisitor.Receiver<? super E> receiver) {
+    receiver.accept(e);
+  }
+
   @Override
   public boolean shallowEquals(@Nullable NestedSet<? extends E> other) {
     if (this == other) {
@@ -21,19 +21,26 @@ import com.google.common.base.Throwables;
 import com.google.common.collect.Maps;
 import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
+import java.util.Comparator;
 import java.util.Map;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.RejectedExecutionHandler;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * AbstractQueueVisitor is a wrapper around {@link ThreadPoolExecutor} which
  * delays thread pool shutdown until entire visitation is complete.
  * This is useful for cases in which worker tasks may submit additional tasks.
+ * A {@link java.util.concurrent.ForkJoinPool} may be used instead, so that the
+ * tasks submitted by a worker go to that worker's own queue.
  *
  * <p>Consider the following example:
  * <pre>
@@ -112,6 +119,41 @@ public class AbstractQueueVisitor {
         }
       };
 
+  /**
+   * A task with a priority. Thread pools constructed by {@link #PRIORITY_EXECUTOR_FACTORY} start
+   * queued tasks with higher priorities first.
+   */
+  public interface PrioritizedRunnable extends Runnable {
+    long getPriority();
+  }
+
+  /**
+   * Factory function for constructing {@link ThreadPoolExecutor}s that start queued tasks in the
+   * order of their priorities, as given by {@link PrioritizedRunnable}, and in the order in which
+   * they were enqueued among equal priorities. Tasks without a priority have priority 0. The work
+   * queue of the parameters is not used.
+   */
+  public static final Function<ThreadPoolExecutorParams, ThreadPoolExecutor>
+      PRIORITY_EXECUTOR_FACTORY = new Function<ThreadPoolExecutorParams, ThreadPoolExecutor>() {
+        @Override
+        public ThreadPoolExecutor apply(ThreadPoolExecutorParams p) {
+          return new ThreadPoolExecutor(p.getCorePoolSize(), p.getMaxPoolSize(),
+              p.getKeepAliveTime(), p.getUnits(),
+              new PriorityBlockingQueue<Runnable>(11, PRIORITY_ORDER),
+              new ThreadFactoryBuilder().setNameFormat(p.getPoolName() + " %d").build());
+        }
+      };
+
+  private static final Comparator<Runnable> PRIORITY_ORDER = new Comparator<Runnable>() {
+    @Override
+    public int compare(Runnable r1, Runnable r2) {
+      WrappedRunnable w1 = (WrappedRunnable) r1;
+      WrappedRunnable w2 = (WrappedRunnable) r2;
+      int byPriority = Long.compare(w2.priority, w1.priority);
+      return byPriority != 0 ? byPriority : Long.compare(w1.sequenceNumber, w2.sequenceNumber);
+    }
+  };
+
   /**
    * The first unhandled exception thrown by a worker thread.  We save it
    * and re-throw it from the main thread to detect bugs faster;
@@ -142,6 +184,9 @@ public class AbstractQueueVisitor {
   private final Object zeroRemainingTasks = new Object();
   private long remainingTasks = 0;
 
+  // Orders tasks of equal priorities in the thread pools of PRIORITY_EXECUTOR_FACTORY.
+  private final AtomicLong enqueuedTasks = new AtomicLong();
+
   // Map of thread ==> number of jobs executing in the thread.
   // Currently used only for interrupt handling.
   private final Map<Thread, Long> jobs = Maps.newConcurrentMap();
@@ -151,7 +196,7 @@ public class AbstractQueueVisitor {
    * call to {@link #enqueue(Runnable)}, and removed after call to
    * {@link #work(boolean)}.
    */
-  private final ThreadPoolExecutor pool;
+  private final ExecutorService pool;
 
   /**
    * Flag used to record when the main thread (the thread which called
@@ -282,7 +327,7 @@ public class AbstractQueueVisitor {
    *                            an uncaught exception.
    * @param failFastOnInterrupt if true, don't run new actions after interrupt.
    */
-  public AbstractQueueVisitor(ThreadPoolExecutor executor, boolean shutdownOnCompletion,
+  public AbstractQueueVisitor(ExecutorService executor, boolean shutdownOnCompletion,
                               boolean failFastOnException, boolean failFastOnInterrupt) {
     this(/*concurrent=*/true, executor, shutdownOnCompletion, failFastOnException,
         failFastOnInterrupt);
@@ -301,7 +346,7 @@ public class AbstractQueueVisitor {
    *                            an uncaught exception.
    * @param failFastOnInterrupt if true, don't run new actions after interrupt.
    */
-  public AbstractQueueVisitor(boolean concurrent, ThreadPoolExecutor executor,
+  public AbstractQueueVisitor(boolean concurrent, ExecutorService executor,
                               boolean shutdownOnCompletion, boolean failFastOnException,
                               boolean failFastOnInterrupt) {
     this.concurrent = concurrent;
@@ -311,7 +356,7 @@ public class AbstractQueueVisitor {
     this.ownThreadPool = shutdownOnCompletion;
   }
 
-  public AbstractQueueVisitor(ThreadPoolExecutor executor, boolean failFastOnException) {
+  public AbstractQueueVisitor(ExecutorService executor, boolean failFastOnException) {
     this(executor, true, failFastOnException, true);
   }
 
@@ -391,7 +436,13 @@ public class AbstractQueueVisitor {
           // execute() itself failed, vs. a caller-runs policy on pool exhaustion, where the
           // runnable threw. To be extra cautious, we decrement the task count in a finally
           // block, even though the CountDownLatch is unlikely to throw.
-          recordError(e);
+          if (e instanceof RejectedExecutionException && isInterrupted()) {
+            // Pools other than ThreadPoolExecutor have no RejectedExecutionHandler; drop the task
+            // like the one installed by setRejectedExecutionHandler() does.
+            decrementRemainingTasks();
+          } else {
+            recordError(e);
+          }
         }
       }
     } else {
@@ -417,7 +468,9 @@ public class AbstractQueueVisitor {
     synchronized (zeroRemainingTasks) {
       remainingTasks++;
     }
-    return new Runnable() {
+    long priority =
+        runnable instanceof PrioritizedRunnable ? ((PrioritizedRunnable) runnable).getPriority() : 0;
+    return new WrappedRunnable(priority, enqueuedTasks.getAndIncrement()) {
       @Override
       public void run() {
         Thread thread = null;
@@ -455,6 +508,17 @@ public class AbstractQueueVisitor {
     };
   }
 
+  /** A task as it is passed to the thread pool. */
+  private abstract static class WrappedRunnable implements Runnable {
+    private final long priority;
+    private final long sequenceNumber;
+
+    WrappedRunnable(long priority, long sequenceNumber) {
+      this.priority = priority;
+      this.sequenceNumber = sequenceNumber;
+    }
+  }
+
   private final void addJob(Thread thread) {
     // Note: this looks like a check-then-act race but it isn't, because each
     // key implies thread-locality.
@@ -643,8 +707,8 @@ public class AbstractQueueVisitor {
   }
 
   private void setRejectedExecutionHandler() {
-    if (ownThreadPool) {
-      pool.setRejectedExecutionHandler(new RejectedExecutionHandler() {
+    if (ownThreadPool && pool instanceof ThreadPoolExecutor) {
+      ((ThreadPoolExecutor) pool).setRejectedExecutionHandler(new RejectedExecutionHandler() {
         @Override
         public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
           decrementRemainingTasks();
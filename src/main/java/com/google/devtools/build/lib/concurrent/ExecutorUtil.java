@@ -17,6 +17,9 @@ import com.google.common.base.Preconditions;
 import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinPool.ForkJoinWorkerThreadFactory;
+import java.util.concurrent.ForkJoinWorkerThread;
 import java.util.concurrent.RejectedExecutionHandler;
 import java.util.concurrent.SynchronousQueue;
 import java.util.concurrent.ThreadPoolExecutor;
@@ -99,4 +102,25 @@ public class ExecutorUtil {
     });
     return pool;
   }
+
+  /**
+   * Create a work-stealing pool whose threads are named after the pool. Tasks submitted from one of
+   * its threads are pushed onto that thread's own deque and run last-in first-out, so that tasks
+   * spawned by a task tend to run on the same thread while idle threads steal from the others.
+   *
+   * @param threads the parallelism of the pool
+   * @param name name of the pool
+   * @return the new ForkJoinPool
+   */
+  public static ForkJoinPool newNamedForkJoinPool(int threads, final String name) {
+    return new ForkJoinPool(threads, new ForkJoinWorkerThreadFactory() {
+      @Override
+      public ForkJoinWorkerThread newThread(ForkJoinPool pool) {
+        ForkJoinWorkerThread thread =
+            ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+        thread.setName(name + " " + thread.getPoolIndex());
+        return thread;
+      }
+    }, /*handler=*/null, /*asyncMode=*/false);
+  }
 }
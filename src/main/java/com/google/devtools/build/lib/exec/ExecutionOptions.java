@@ -196,6 +196,56 @@ public class ExecutionOptions extends OptionsBase {
   )
   public int localTestJobs;
 
+  @Option(name = "experimental_measure_local_load",
+      defaultValue = "false",
+      category = "strategy",
+      help = "If true, Blaze measures the CPU and memory usage of the local host while executing "
+          + "actions, and uses it to correct the estimated resource usage of actions: more "
+          + "actions run in parallel if the estimates are too pessimistic, and fewer if the host "
+          + "is short of memory.")
+  public boolean measureLocalLoad;
+
+  @Option(name = "experimental_prioritize_critical_path",
+      defaultValue = "false",
+      category = "strategy",
+      help = "If true, actions that are ready to execute are started in the order of the length "
+          + "of the critical path that followed them in previous builds of this server, rather "
+          + "than in the order in which they became ready. Actions without history that wait "
+          + "for local resources are ordered by the critical path leading to them.")
+  public boolean prioritizeCriticalPath;
+
+  @Option(name = "experimental_action_history",
+      defaultValue = "false",
+      category = "strategy",
+      help = "If true, Blaze records the wall time, CPU time and peak memory of executed actions "
+          + "in the output base, uses them in place of the estimated resource usage of actions "
+          + "when scheduling later builds, and reports actions that became much slower.")
+  public boolean actionHistory;
+
+  @Option(name = "experimental_local_disk_cache",
+      defaultValue = "null",
+      category = "strategy",
+      converter = OptionsUtils.PathFragmentConverter.class,
+      help = "A directory in which action outputs are stored by content, so that actions already "
+          + "executed in any workspace or output base using the same directory do not run again; "
+          + "their outputs are copied from the directory instead.")
+  public PathFragment localDiskCache;
+
+  @Option(name = "experimental_local_disk_cache_max_size_mb",
+      defaultValue = "10240",
+      category = "strategy",
+      help = "The size above which the least recently used entries of "
+          + "--experimental_local_disk_cache are deleted.")
+  public int localDiskCacheMaxSizeMb;
+
+  @Option(name = "experimental_local_disk_cache_hard_links",
+      defaultValue = "false",
+      category = "strategy",
+      help = "Whether outputs are hard-linked out of --experimental_local_disk_cache instead of "
+          + "copied, if the directory is on the same file system. A linked output shares its "
+          + "contents with the cache: editing it in place makes the cache discard the file.")
+  public boolean localDiskCacheHardLinks;
+
   public boolean usingLocalTestJobs() {
     return localTestJobs != 0;
   }
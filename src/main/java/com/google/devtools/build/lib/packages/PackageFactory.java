@@ -48,6 +48,7 @@ import com.google.devtools.build.lib.syntax.Identifier;
 import com.google.devtools.build.lib.syntax.Label;
 import com.google.devtools.build.lib.syntax.MethodLibrary;
 import com.google.devtools.build.lib.syntax.ParserInputSource;
+import com.google.devtools.build.lib.syntax.PersistentASTCache;
 import com.google.devtools.build.lib.syntax.Runtime;
 import com.google.devtools.build.lib.syntax.SkylarkEnvironment;
 import com.google.devtools.build.lib.syntax.SkylarkSignature;
@@ -972,6 +973,50 @@ public final class PackageFactory {
    * Package creation.
    */
 
+  /**
+   * A BUILD file after preprocessing and parsing, together with the events of both steps.
+   */
+  public static class AstAfterPreprocessing {
+    public final boolean preprocessed;
+    public final boolean containsPreprocessingErrors;
+    public final boolean containsTransientPreprocessingErrors;
+    public final BuildFileAST ast;
+    public final Iterable<Event> allEvents;
+
+    public AstAfterPreprocessing(Preprocessor.Result preprocessingResult, BuildFileAST ast,
+        Iterable<Event> allEvents) {
+      this.preprocessed = preprocessingResult.preprocessed;
+      this.containsPreprocessingErrors = preprocessingResult.containsErrors;
+      this.containsTransientPreprocessingErrors = preprocessingResult.containsTransientErrors;
+      this.ast = ast;
+      this.allEvents = allEvents;
+    }
+  }
+
+  /**
+   * Scans and parses the preprocessed build file of the package identified by "packageId". If
+   * "astCache" is not null, the syntax tree is read from it when it has the tree of the same
+   * content.
+   */
+  public AstAfterPreprocessing parseBuildFile(PackageIdentifier packageId,
+      Preprocessor.Result preprocessingResult, Iterable<Event> preprocessingEvents,
+      List<Statement> preludeStatements, CachingPackageLocator locator,
+      @Nullable PersistentASTCache astCache) {
+    StoredEventHandler localReporter = new StoredEventHandler();
+    // Run the lexer and parser with a local reporter, so that errors from other threads do not
+    // show up below. Merge the local and global reporters afterwards.
+    // Logged messages are used as a testability hook tracing the parsing progress
+    LOG.fine("Starting to parse " + packageId);
+    BuildFileAST buildFileAST = astCache == null
+        ? BuildFileAST.parseBuildFile(
+            preprocessingResult.result, preludeStatements, localReporter, locator, false)
+        : astCache.parseBuildFile(
+            preprocessingResult.result, preludeStatements, localReporter, locator, false);
+    LOG.fine("Finished parsing of " + packageId);
+    return new AstAfterPreprocessing(preprocessingResult, buildFileAST,
+        Iterables.concat(preprocessingEvents, localReporter.getEvents()));
+  }
+
   /**
    * Loads, scans parses and evaluates the build file at "buildFile", and
    * creates and returns a Package builder instance capable of building a package identified by
@@ -1000,15 +1045,25 @@ public final class PackageFactory {
       CachingPackageLocator locator,
       RuleVisibility defaultVisibility,
       Globber globber) throws InterruptedException {
-    StoredEventHandler localReporter = new StoredEventHandler();
-    // Run the lexer and parser with a local reporter, so that errors from other threads do not
-    // show up below. Merge the local and global reporters afterwards.
-    // Logged messages are used as a testability hook tracing the parsing progress
-    LOG.fine("Starting to parse " + packageId);
-    BuildFileAST buildFileAST = BuildFileAST.parseBuildFile(
-        preprocessingResult.result, preludeStatements, localReporter, locator, false);
-    LOG.fine("Finished parsing of " + packageId);
+    AstAfterPreprocessing astAfterPreprocessing = parseBuildFile(packageId, preprocessingResult,
+        preprocessingEvents, preludeStatements, locator, /*astCache=*/null);
+    return createPackageFromPreprocessingAst(externalPkg, packageId, buildFile,
+        astAfterPreprocessing, imports, skylarkFileDependencies, defaultVisibility, globber);
+  }
 
+  /**
+   * Same as {@link #createPackageFromPreprocessingResult}, but evaluates an already parsed build
+   * file.
+   */
+  public Package.LegacyBuilder createPackageFromPreprocessingAst(
+      Package externalPkg,
+      PackageIdentifier packageId,
+      Path buildFile,
+      AstAfterPreprocessing astAfterPreprocessing,
+      Map<PathFragment, SkylarkEnvironment> imports,
+      ImmutableList<Label> skylarkFileDependencies,
+      RuleVisibility defaultVisibility,
+      Globber globber) throws InterruptedException {
     MakeEnvironment.Builder makeEnv = new MakeEnvironment.Builder();
     if (platformSetRegexps != null) {
       makeEnv.setPlatformSetRegexps(platformSetRegexps);
@@ -1016,13 +1071,14 @@ public final class PackageFactory {
     try {
       // At this point the package is guaranteed to exist.  It may have parse or
       // evaluation errors, resulting in a diminished number of rules.
-      prefetchGlobs(packageId, buildFileAST, preprocessingResult.preprocessed,
+      prefetchGlobs(packageId, astAfterPreprocessing.ast, astAfterPreprocessing.preprocessed,
           buildFile, globber, defaultVisibility, makeEnv);
       return evaluateBuildFile(
-          externalPkg, packageId, buildFileAST, buildFile, globber,
-          Iterables.concat(preprocessingEvents, localReporter.getEvents()),
-          defaultVisibility, preprocessingResult.containsErrors,
-          preprocessingResult.containsTransientErrors, makeEnv, imports, skylarkFileDependencies);
+          externalPkg, packageId, astAfterPreprocessing.ast, buildFile, globber,
+          astAfterPreprocessing.allEvents, defaultVisibility,
+          astAfterPreprocessing.containsPreprocessingErrors,
+          astAfterPreprocessing.containsTransientPreprocessingErrors, makeEnv, imports,
+          skylarkFileDependencies);
     } catch (InterruptedException e) {
       globber.onInterrupt();
       throw e;
@@ -127,6 +127,21 @@ public class PackageCacheOptions extends OptionsBase {
       help = "Number of threads to use for glob evaluation.")
   public int globbingThreads;
 
+  @Option(name = "experimental_skyframe_fork_join_pool",
+      defaultValue = "false",
+      category = "undocumented",
+      help = "If true, Skyframe evaluates nodes on a work-stealing ForkJoinPool, where the nodes "
+          + "requested by a node are queued on the thread that evaluated it, instead of on a "
+          + "thread pool with a single queue.")
+  public boolean skyframeForkJoinPool;
+
+  @Option(name = "experimental_persistent_ast_cache",
+      defaultValue = "false",
+      category = "undocumented",
+      help = "If true, the syntax trees of BUILD and .bzl files are kept in the output base, so "
+          + "that files that did not change are not parsed again after a server restart.")
+  public boolean persistentAstCache;
+
   @Option(name = "min_pkg_count_for_ct_node_eviction",
       defaultValue = "3700",
       // Why is the default value 3700? As of December 2013, a medium target loads about this many
@@ -17,6 +17,7 @@ import com.google.common.base.Preconditions;
 import com.google.common.base.Predicate;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Iterables;
 import com.google.common.collect.Sets;
 import com.google.devtools.build.lib.cmdline.TargetParsingException;
 import com.google.devtools.build.lib.events.ErrorSensingEventHandler;
@@ -30,6 +31,7 @@ import com.google.devtools.build.lib.pkgcache.PathPackageLocator;
 import com.google.devtools.build.lib.pkgcache.TargetPatternEvaluator;
 import com.google.devtools.build.lib.pkgcache.TransitivePackageLoader;
 import com.google.devtools.build.lib.profiler.Profiler;
+import com.google.devtools.build.lib.query2.engine.Callback;
 import com.google.devtools.build.lib.query2.engine.QueryEnvironment;
 import com.google.devtools.build.lib.query2.engine.QueryEvalResult;
 import com.google.devtools.build.lib.query2.engine.QueryException;
@@ -98,13 +100,13 @@ public abstract class AbstractBlazeQueryEnvironment<T> implements QueryEnvironme
       TransitivePackageLoader transitivePackageLoader, WalkableGraphFactory graphFactory,
       PackageProvider packageProvider,
       TargetPatternEvaluator targetPatternEvaluator, boolean keepGoing, boolean orderedResults,
-      List<String> universeScope, int loadingPhaseThreads,
+      List<String> universeScope, int loadingPhaseThreads, int queryThreads,
       EventHandler eventHandler, Set<Setting> settings, Iterable<QueryFunction> functions,
       @Nullable PathPackageLocator packagePath) {
     return newQueryEnvironment(transitivePackageLoader, graphFactory, packageProvider,
         targetPatternEvaluator, keepGoing, /*strictScope=*/true, orderedResults,
-        universeScope, loadingPhaseThreads, Rule.ALL_LABELS, eventHandler, settings, functions,
-        packagePath);
+        universeScope, loadingPhaseThreads, queryThreads, Rule.ALL_LABELS, eventHandler, settings,
+        functions, packagePath);
   }
 
   public static AbstractBlazeQueryEnvironment<Target> newQueryEnvironment(
@@ -112,7 +114,7 @@ public abstract class AbstractBlazeQueryEnvironment<T> implements QueryEnvironme
       PackageProvider packageProvider,
       TargetPatternEvaluator targetPatternEvaluator, boolean keepGoing, boolean strictScope,
       boolean orderedResults, List<String> universeScope, int loadingPhaseThreads,
-      Predicate<Label> labelFilter,
+      int queryThreads, Predicate<Label> labelFilter,
       EventHandler eventHandler, Set<Setting> settings, Iterable<QueryFunction> functions,
       @Nullable PathPackageLocator packagePath) {
     Preconditions.checkNotNull(universeScope);
@@ -121,7 +123,8 @@ public abstract class AbstractBlazeQueryEnvironment<T> implements QueryEnvironme
         targetPatternEvaluator, keepGoing, strictScope, loadingPhaseThreads,
         labelFilter, eventHandler, settings, functions)
         : new SkyQueryEnvironment(
-            keepGoing, strictScope, loadingPhaseThreads, labelFilter, eventHandler, settings,
+            keepGoing, strictScope, loadingPhaseThreads, queryThreads, labelFilter, eventHandler,
+            settings,
             functions, targetPatternEvaluator.getOffset(), graphFactory, universeScope,
             packagePath);
   }
@@ -137,6 +140,34 @@ public abstract class AbstractBlazeQueryEnvironment<T> implements QueryEnvironme
    */
   public QueryEvalResult<T> evaluateQuery(QueryExpression expr)
       throws QueryException, InterruptedException {
+    final Set<T> resultNodes = new LinkedHashSet<>();
+    boolean success = evaluateQueryInternal(expr, new Callback<T>() {
+      @Override
+      public void process(Iterable<T> partialResult) {
+        Iterables.addAll(resultNodes, partialResult);
+      }
+    });
+    return new QueryEvalResult<>(success, resultNodes);
+  }
+
+  /**
+   * Evaluate the specified query expression in this environment, passing the resulting targets to
+   * {@code callback} as they are computed instead of collecting them. Each target is passed at
+   * most once, but the targets are not in any particular order. No set of the passed targets is
+   * kept here; the expressions remove duplicates themselves, see {@link Callback}.
+   *
+   * @return whether evaluation succeeded without errors; this can only be false if
+   *   {@code --keep_going} was in effect
+   * @throws QueryException if the evaluation failed and {@code --nokeep_going} was in
+   *   effect
+   */
+  public boolean evaluateQuery(QueryExpression expr, Callback<T> callback)
+      throws QueryException, InterruptedException {
+    return evaluateQueryInternal(expr, callback);
+  }
+
+  private boolean evaluateQueryInternal(QueryExpression expr, Callback<T> callback)
+      throws QueryException, InterruptedException {
     long startTime = Profiler.nanoTimeMaybe();
     resolvedTargetPatterns.clear();
 
@@ -151,9 +182,8 @@ public abstract class AbstractBlazeQueryEnvironment<T> implements QueryEnvironme
       throw new QueryException(expr, e.getMessage());
     }
 
-    Set<T> resultNodes;
     try {
-      resultNodes = expr.eval(this);
+      expr.eval(this, callback);
     } catch (QueryException e) {
       throw new QueryException(e, expr);
     } finally {
@@ -175,7 +205,7 @@ public abstract class AbstractBlazeQueryEnvironment<T> implements QueryEnvironme
       }
     }
 
-    return new QueryEvalResult<>(!eventHandler.hasErrors(), resultNodes);
+    return !eventHandler.hasErrors();
   }
 
   public QueryEvalResult<T> evaluateQuery(String query)
@@ -0,0 +1,178 @@
+// Copyright 2015 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.query2;
+
+import com.google.common.base.Predicates;
+import com.google.common.collect.ImmutableList;
+import com.google.devtools.build.lib.events.Event;
+import com.google.devtools.build.lib.packages.Target;
+import com.google.devtools.build.lib.pkgcache.PathPackageLocator;
+import com.google.devtools.build.lib.query2.engine.AllRdepsFunction;
+import com.google.devtools.build.lib.query2.engine.QueryEnvironment;
+import com.google.devtools.build.lib.query2.engine.QueryEnvironment.Argument;
+import com.google.devtools.build.lib.query2.engine.QueryEnvironment.ArgumentType;
+import com.google.devtools.build.lib.query2.engine.QueryEnvironment.Setting;
+import com.google.devtools.build.lib.query2.engine.QueryEnvironment.TargetNotFoundException;
+import com.google.devtools.build.lib.query2.engine.QueryException;
+import com.google.devtools.build.lib.query2.engine.QueryExpression;
+import com.google.devtools.build.lib.syntax.Label;
+import com.google.devtools.build.lib.vfs.PathFragment;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import javax.annotation.Nullable;
+
+/**
+ * An "rdeps" query expression that takes its result from an {@link RdepsIndex} when the universe
+ * is a single recursive pattern such as {@code //foo/...} and the index has current information
+ * about it. Otherwise, the transitive closure of the universe is computed as usual, and if the
+ * universe is a recursive pattern, the loaded packages are recorded in the index for later
+ * queries.
+ *
+ * <p>Targets found through the index are loaded individually, without edges between them, so
+ * ordered output of such a result is not in dependency order.
+ *
+ * <pre>expr ::= RDEPS '(' expr ',' expr ')'</pre>
+ * <pre>       | RDEPS '(' expr ',' expr ',' WORD ')'</pre>
+ */
+public final class IndexedRdepsFunction extends AllRdepsFunction {
+  private final RdepsIndex index;
+  private final PathPackageLocator locator;
+
+  public IndexedRdepsFunction(RdepsIndex index, PathPackageLocator locator) {
+    this.index = index;
+    this.locator = locator;
+  }
+
+  @Override
+  public String getName() {
+    return "rdeps";
+  }
+
+  @Override
+  public int getMandatoryArguments() {
+    return super.getMandatoryArguments() + 1;  // +1 for the universe.
+  }
+
+  @Override
+  public List<ArgumentType> getArgumentTypes() {
+    return ImmutableList.<ArgumentType>builder()
+        .add(ArgumentType.EXPRESSION).addAll(super.getArgumentTypes()).build();
+  }
+
+  @Override
+  @SuppressWarnings("unchecked")
+  public <T> Set<T> eval(QueryEnvironment<T> env, QueryExpression expression, List<Argument> args)
+      throws QueryException, InterruptedException {
+    QueryExpression universe = args.get(0).getExpression();
+    PathFragment directory = getRecursiveDirectory(universe);
+    // Only the Blaze environments, whose nodes are targets, can be indexed.
+    if (directory == null || !(env.getAccessor() instanceof BlazeTargetAccessor)) {
+      return evalWithClosure(env, expression, args);
+    }
+    AbstractBlazeQueryEnvironment<Target> blazeEnv = (AbstractBlazeQueryEnvironment<Target>) env;
+    String universeKey =
+        RdepsIndex.universeKey(universe.toString(), getExcludedMask(env), locator);
+
+    if (index.isCurrent(universeKey)) {
+      Set<Target> result = evalFromIndex(blazeEnv, universeKey, args);
+      if (result != null) {
+        return (Set<T>) result;
+      }
+    }
+
+    Set<Target> universeValue = universe.eval(blazeEnv);
+    blazeEnv.buildTransitiveClosure(expression, universeValue, Integer.MAX_VALUE);
+    Set<Target> closure = blazeEnv.getTransitiveClosure(universeValue);
+    if (!blazeEnv.eventHandler.hasErrors()) {
+      try {
+        index.recordUniverse(universeKey, directory, locator, closure);
+        index.save();
+      } catch (IOException e) {
+        blazeEnv.eventHandler.handle(
+            Event.warn("failed to update the rdeps index: " + e.getMessage()));
+      }
+    }
+    return (Set<T>) eval(blazeEnv, args.subList(1, args.size()), Predicates.in(closure));
+  }
+
+  /** Like the built-in "rdeps": searches within the transitive closure of the universe. */
+  private <T> Set<T> evalWithClosure(QueryEnvironment<T> env, QueryExpression expression,
+      List<Argument> args) throws QueryException, InterruptedException {
+    Set<T> universeValue = args.get(0).getExpression().eval(env);
+    env.buildTransitiveClosure(expression, universeValue, Integer.MAX_VALUE);
+    return eval(env, args.subList(1, args.size()),
+        Predicates.in(env.getTransitiveClosure(universeValue)));
+  }
+
+  /**
+   * Computes the result from the index and loads the targets in it. Returns null if one of them
+   * no longer exists.
+   */
+  @Nullable
+  private Set<Target> evalFromIndex(AbstractBlazeQueryEnvironment<Target> env,
+      String universeKey, List<Argument> args) throws QueryException, InterruptedException {
+    Set<Target> argumentValue = args.get(1).getExpression().eval(env);
+    int depthBound = args.size() > 2 ? args.get(2).getInteger() : Integer.MAX_VALUE;
+    List<String> labels = new ArrayList<>(argumentValue.size());
+    for (Target target : argumentValue) {
+      labels.add(target.getLabel().toString());
+    }
+    Set<String> resultLabels =
+        index.getReverseDeps(universeKey, labels, depthBound, getExcludedMask(env));
+    if (resultLabels == null) {
+      return null;
+    }
+    Set<Target> result = new LinkedHashSet<>();
+    for (String label : resultLabels) {
+      try {
+        result.add(env.getTarget(Label.parseAbsolute(label)));
+      } catch (Label.SyntaxException | TargetNotFoundException e) {
+        return null;
+      }
+    }
+    return result;
+  }
+
+  private static int getExcludedMask(QueryEnvironment<?> env) {
+    return (env.isSettingEnabled(Setting.NO_HOST_DEPS) ? RdepsIndex.HOST_DEP : 0)
+        | (env.isSettingEnabled(Setting.NO_IMPLICIT_DEPS) ? RdepsIndex.IMPLICIT_DEP : 0)
+        | (env.isSettingEnabled(Setting.NO_NODEP_DEPS) ? RdepsIndex.NODEP_DEP : 0);
+  }
+
+  /**
+   * Returns the directory below which the universe matches all packages, if the universe is a
+   * single pattern of the form {@code //dir/...}, or null otherwise.
+   */
+  @Nullable
+  private static PathFragment getRecursiveDirectory(QueryExpression universe) {
+    List<String> patterns = new ArrayList<>();
+    universe.collectTargetPatterns(patterns);
+    if (patterns.size() != 1 || !patterns.get(0).equals(universe.toString())) {
+      return null;
+    }
+    String pattern = patterns.get(0);
+    if (pattern.equals("//...")) {
+      return PathFragment.EMPTY_FRAGMENT;
+    }
+    if (!pattern.startsWith("//") || !pattern.endsWith("/...") || pattern.contains(":")) {
+      return null;
+    }
+    return new PathFragment(pattern.substring(2, pattern.length() - "/...".length()));
+  }
+}
@@ -0,0 +1,673 @@
+// Copyright 2015 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.query2;
+
+import com.google.common.base.Joiner;
+import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.HashMultimap;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.ListMultimap;
+import com.google.common.collect.Multimap;
+import com.google.common.collect.Sets;
+import com.google.devtools.build.lib.Constants;
+import com.google.devtools.build.lib.concurrent.ThreadSafety.ThreadCompatible;
+import com.google.devtools.build.lib.packages.AggregatingAttributeMapper;
+import com.google.devtools.build.lib.packages.Attribute;
+import com.google.devtools.build.lib.packages.AttributeMap;
+import com.google.devtools.build.lib.packages.OutputFile;
+import com.google.devtools.build.lib.packages.Package;
+import com.google.devtools.build.lib.packages.PackageGroup;
+import com.google.devtools.build.lib.packages.Rule;
+import com.google.devtools.build.lib.packages.RuleClass;
+import com.google.devtools.build.lib.packages.Target;
+import com.google.devtools.build.lib.packages.Type;
+import com.google.devtools.build.lib.pkgcache.PathPackageLocator;
+import com.google.devtools.build.lib.skyframe.SkyframeExecutor.ModifiedFilesListener;
+import com.google.devtools.build.lib.syntax.Label;
+import com.google.devtools.build.lib.util.PersistentMap;
+import com.google.devtools.build.lib.util.StringCanonicalizer;
+import com.google.devtools.build.lib.vfs.Dirent;
+import com.google.devtools.build.lib.vfs.FileStatus;
+import com.google.devtools.build.lib.vfs.FileSystem;
+import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.build.lib.vfs.PathFragment;
+import com.google.devtools.build.lib.vfs.Symlinks;
+import com.google.devtools.build.lib.vfs.UnixGlob;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.annotation.Nullable;
+
+/**
+ * A persistent index of the dependency edges of loaded packages, used to answer {@code rdeps}
+ * queries over a recursive universe such as {@code //foo/...} without loading the universe.
+ *
+ * <p>The index has two parts. For every package it has seen, it records the package's targets,
+ * the edges leaving them, and stamps of the files the package was loaded from: its BUILD file,
+ * subincludes, Skylark extensions and the directories its globs may have read. For every universe
+ * whose transitive closure has been computed, it records the targets in the closure and stamps of
+ * the directories under the universe's root, so that added or removed packages are noticed.
+ *
+ * <p>An entry is trusted only after its stamps have been checked against the file system. Checked
+ * entries stay trusted until {@link com.google.devtools.build.lib.skyframe.DiffAwareness} reports
+ * a change that may affect them, so a warm index answers queries without touching the disk.
+ */
+@ThreadCompatible
+public final class RdepsIndex implements ModifiedFilesListener {
+
+  /** Set in the mask of an edge that is not followed with {@code --nohost_deps}. */
+  public static final int HOST_DEP = 1;
+  /** Set in the mask of an edge that is not followed with {@code --noimplicit_deps}. */
+  public static final int IMPLICIT_DEP = 2;
+  /** Set in the mask of an edge that comes from a nodep attribute. */
+  public static final int NODEP_DEP = 4;
+
+  private static final int VERSION = 0x01;
+  private static final String BUILD_FILE_NAME = "BUILD";
+
+  private final FileSystem fileSystem;
+  private final EntryMap<PackageEntry> packages;
+  private final EntryMap<UniverseEntry> universes;
+
+  private final Set<String> verifiedPackages = new HashSet<>();
+  private final Set<String> verifiedUniverses = new HashSet<>();
+
+  // Derived from the persistent maps on demand and dropped whenever they change.
+  @Nullable private ListMultimap<String, ReverseEdge> reverseEdges;
+  @Nullable private Multimap<Path, String> packagesByInput;
+  @Nullable private Multimap<Path, String> universesByDirectory;
+
+  /**
+   * Opens the index stored in {@code directory}. An index that cannot be read is discarded.
+   */
+  public RdepsIndex(Path directory) throws IOException {
+    directory.createDirectory();
+    this.fileSystem = directory.getFileSystem();
+    this.packages = new EntryMap<PackageEntry>(directory.getChild("packages"),
+        directory.getChild("packages_journal")) {
+      @Override
+      protected PackageEntry readValue(DataInputStream in) throws IOException {
+        return PackageEntry.read(in, fileSystem);
+      }
+
+      @Override
+      protected void writeValue(PackageEntry value, DataOutputStream out) throws IOException {
+        value.write(out);
+      }
+    };
+    this.universes = new EntryMap<UniverseEntry>(directory.getChild("universes"),
+        directory.getChild("universes_journal")) {
+      @Override
+      protected UniverseEntry readValue(DataInputStream in) throws IOException {
+        return UniverseEntry.read(in, fileSystem);
+      }
+
+      @Override
+      protected void writeValue(UniverseEntry value, DataOutputStream out) throws IOException {
+        value.write(out);
+      }
+    };
+    try {
+      packages.load();
+      universes.load();
+    } catch (IOException e) {
+      // A truncated entry. Start over rather than failing every query.
+      clear();
+    }
+  }
+
+  /**
+   * Returns the key under which the transitive closure of the recursive pattern is recorded. The
+   * closure depends on the edges that were followed and on the package path, so both are part of
+   * the key.
+   */
+  public static String universeKey(String pattern, int excludedMask, PathPackageLocator locator) {
+    return pattern + " " + excludedMask + " " + Joiner.on(':').join(locator.getPathEntries());
+  }
+
+  /**
+   * Returns whether the universe is recorded and its entry, and the entries of all packages in
+   * its closure, match the file system.
+   */
+  public boolean isCurrent(String universeKey) {
+    UniverseEntry universe = universes.get(universeKey);
+    if (universe == null) {
+      return false;
+    }
+    if (!verifiedUniverses.contains(universeKey)) {
+      if (!allCurrent(universe.directories)) {
+        return false;
+      }
+      verifiedUniverses.add(universeKey);
+    }
+    for (String pkg : universe.closure.keySet()) {
+      if (!isCurrentPackage(pkg)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Returns the labels of the targets in the closure of the universe that reach one of
+   * {@code targets} in at most {@code depthBound} steps, including those of {@code targets} that
+   * are in the closure. Edges whose mask intersects {@code excludedMask} are not followed.
+   *
+   * <p>Returns null if the index does not have current information about the universe.
+   */
+  @Nullable
+  public Set<String> getReverseDeps(String universeKey, Iterable<String> targets, int depthBound,
+      int excludedMask) {
+    if (!isCurrent(universeKey)) {
+      return null;
+    }
+    UniverseEntry universe = universes.get(universeKey);
+    ListMultimap<String, ReverseEdge> edges = getReverseEdges();
+    Set<String> visited = new LinkedHashSet<>();
+    Collection<String> current = ImmutableList.copyOf(targets);
+    // Same traversal as AllRdepsFunction, over labels instead of graph nodes.
+    for (int i = 0; i <= depthBound; i++) {
+      List<String> next = new ArrayList<>();
+      for (String label : current) {
+        if (!universe.contains(label) || !visited.add(label)) {
+          continue;
+        }
+        for (ReverseEdge edge : edges.get(label)) {
+          if ((edge.mask & excludedMask) == 0) {
+            next.add(edge.from);
+          }
+        }
+      }
+      if (next.isEmpty()) {
+        break;
+      }
+      current = next;
+    }
+    return visited;
+  }
+
+  /**
+   * Records the packages of the targets in {@code closure} and, if all of them could be recorded,
+   * the closure itself as the transitive closure of the recursive pattern below
+   * {@code directory}.
+   */
+  public void recordUniverse(String universeKey, PathFragment directory,
+      PathPackageLocator locator, Iterable<Target> closure) throws IOException {
+    Map<String, Package> packagesByName = new HashMap<>();
+    Map<String, Set<String>> targetsByPackage = new HashMap<>();
+    for (Target target : closure) {
+      String pkg = packageName(target);
+      Set<String> names = targetsByPackage.get(pkg);
+      if (names == null) {
+        names = new HashSet<>();
+        targetsByPackage.put(pkg, names);
+        packagesByName.put(pkg, target.getPackage());
+      }
+      names.add(target.getName());
+    }
+
+    ImmutableMap.Builder<String, ImmutableSet<String>> closureBuilder = ImmutableMap.builder();
+    for (Map.Entry<String, Set<String>> entry : targetsByPackage.entrySet()) {
+      String pkg = entry.getKey();
+      if (!isCurrentPackage(pkg) && !recordPackage(pkg, packagesByName.get(pkg), locator)) {
+        return;
+      }
+      closureBuilder.put(pkg, ImmutableSet.copyOf(entry.getValue()));
+    }
+
+    List<Stamp> directories = new ArrayList<>();
+    for (Path pathEntry : locator.getPathEntries()) {
+      Path root = pathEntry.getRelative(directory);
+      if (root.isDirectory(Symlinks.NOFOLLOW) && !stampDirectories(root, false, directories)) {
+        return;
+      }
+    }
+    universes.put(universeKey,
+        new UniverseEntry(ImmutableList.copyOf(directories), closureBuilder.build()));
+    verifiedUniverses.add(universeKey);
+    universesByDirectory = null;
+  }
+
+  /** Writes the changes since the last call to disk. */
+  public void save() throws IOException {
+    packages.save();
+    universes.save();
+  }
+
+  /** Discards the whole index, in memory and on disk. */
+  public void clear() {
+    packages.clear();
+    universes.clear();
+    verifiedPackages.clear();
+    verifiedUniverses.clear();
+    reverseEdges = null;
+    packagesByInput = null;
+    universesByDirectory = null;
+  }
+
+  @Override
+  public void filesModified(Path pathEntry, Iterable<PathFragment> modifiedFiles) {
+    Multimap<Path, String> packageInputs = getPackagesByInput();
+    Multimap<Path, String> universeDirectories = getUniversesByDirectory();
+    for (PathFragment file : modifiedFiles) {
+      Path path = pathEntry.getRelative(file);
+      Path parent = path.getParentDirectory();
+      // Adding or removing a file changes its directory, which globs may have read.
+      verifiedPackages.removeAll(packageInputs.get(path));
+      verifiedPackages.removeAll(packageInputs.get(parent));
+      // Editing a regular file cannot add or remove packages.
+      if (!path.isFile(Symlinks.NOFOLLOW) || path.getBaseName().equals(BUILD_FILE_NAME)) {
+        verifiedUniverses.removeAll(universeDirectories.get(parent));
+      }
+    }
+  }
+
+  @Override
+  public void everythingModified(Path pathEntry) {
+    verifiedPackages.clear();
+    verifiedUniverses.clear();
+  }
+
+  private boolean isCurrentPackage(String pkg) {
+    if (verifiedPackages.contains(pkg)) {
+      return true;
+    }
+    PackageEntry entry = packages.get(pkg);
+    if (entry == null || !allCurrent(entry.inputs)) {
+      return false;
+    }
+    verifiedPackages.add(pkg);
+    return true;
+  }
+
+  /**
+   * Records the edges and inputs of the package. Returns false if the package cannot be indexed,
+   * which is the case if it has errors or if its inputs cannot be tracked by stamps.
+   */
+  private boolean recordPackage(String pkg, Package pkgObject, PathPackageLocator locator)
+      throws IOException {
+    if (pkgObject.containsErrors()) {
+      return false;
+    }
+    List<Stamp> inputs = new ArrayList<>();
+    inputs.add(Stamp.of(pkgObject.getFilename()));
+    for (Label label : Sets.union(pkgObject.getSubincludeLabels(),
+        ImmutableSet.copyOf(pkgObject.getSkylarkFileDependencies()))) {
+      Path buildFile =
+          locator.getPackageBuildFileNullable(label.getPackageIdentifier(),
+              UnixGlob.DEFAULT_SYSCALLS_REF);
+      if (buildFile == null) {
+        return false;
+      }
+      inputs.add(Stamp.of(buildFile.getParentDirectory().getRelative(label.getName())));
+    }
+    if (!stampDirectories(pkgObject.getPackageDirectory(), true, inputs)) {
+      return false;
+    }
+
+    ImmutableList.Builder<String> targets = ImmutableList.builder();
+    ImmutableList.Builder<Edge> edges = ImmutableList.builder();
+    int index = 0;
+    for (Target target : pkgObject.getTargets()) {
+      targets.add(target.getName());
+      addEdges(index++, target, edges);
+    }
+    packages.put(pkg, new PackageEntry(ImmutableList.copyOf(inputs), targets.build(),
+        edges.build()));
+    verifiedPackages.add(pkg);
+    reverseEdges = null;
+    packagesByInput = null;
+    return true;
+  }
+
+  /**
+   * Adds the edges that {@link LabelVisitor} follows from {@code target}. For aspects, the
+   * labels that any dependency could require are used, which may add some edges.
+   */
+  private static void addEdges(final int from, Target target,
+      final ImmutableList.Builder<Edge> edges) {
+    if (target instanceof OutputFile) {
+      edges.add(new Edge(from, ((OutputFile) target).getGeneratingRule().getLabel(), 0));
+    } else if (target instanceof PackageGroup) {
+      for (Label include : ((PackageGroup) target).getIncludes()) {
+        edges.add(new Edge(from, include, 0));
+      }
+      return;
+    }
+
+    int visibilityMask = 0;
+    if (target instanceof Rule) {
+      final Rule rule = (Rule) target;
+      AggregatingAttributeMapper.of(rule).visitLabels(new AttributeMap.AcceptsLabelAttribute() {
+        @Override
+        public void acceptLabelAttribute(Label label, Attribute attribute) {
+          edges.add(new Edge(from, label, mask(rule, attribute)));
+        }
+      });
+      Set<Label> aspectLabels = ImmutableSet.copyOf(rule.getAspectLabelsSuperset(Rule.ALL_DEPS));
+      if (!aspectLabels.isEmpty()) {
+        Set<Label> nonHost = ImmutableSet.copyOf(rule.getAspectLabelsSuperset(Rule.NO_HOST_DEPS));
+        Set<Label> explicit =
+            ImmutableSet.copyOf(rule.getAspectLabelsSuperset(Rule.NO_IMPLICIT_DEPS));
+        Set<Label> nonNodep =
+            ImmutableSet.copyOf(rule.getAspectLabelsSuperset(Rule.NO_NODEP_ATTRIBUTES));
+        for (Label label : aspectLabels) {
+          edges.add(new Edge(from, label, (nonHost.contains(label) ? 0 : HOST_DEP)
+              | (explicit.contains(label) ? 0 : IMPLICIT_DEP)
+              | (nonNodep.contains(label) ? 0 : NODEP_DEP)));
+        }
+      }
+      RuleClass ruleClass = rule.getRuleClassObject();
+      if (!ruleClass.hasAttr("visibility", Type.NODEP_LABEL_LIST)) {
+        return;
+      }
+      visibilityMask = mask(rule, ruleClass.getAttributeByName("visibility"));
+    }
+    for (Label label : target.getVisibility().getDependencyLabels()) {
+      edges.add(new Edge(from, label, visibilityMask));
+    }
+  }
+
+  private static int mask(Rule rule, Attribute attribute) {
+    return (Rule.NO_HOST_DEPS.apply(rule, attribute) ? 0 : HOST_DEP)
+        | (Rule.NO_IMPLICIT_DEPS.apply(rule, attribute) ? 0 : IMPLICIT_DEP)
+        | (Rule.NO_NODEP_ATTRIBUTES.apply(rule, attribute) ? 0 : NODEP_DEP);
+  }
+
+  /**
+   * Adds stamps of {@code directory} and the directories below it to {@code stamps}. If
+   * {@code stopAtPackages} is set, directories containing a BUILD file are not entered. Returns
+   * false if a symbolic link to a directory is found, as changes behind it would go unnoticed.
+   * The convenience symlinks in the workspace are skipped.
+   */
+  private static boolean stampDirectories(Path directory, boolean stopAtPackages,
+      List<Stamp> stamps) throws IOException {
+    stamps.add(Stamp.of(directory));
+    for (Dirent dirent : directory.readdir(Symlinks.NOFOLLOW)) {
+      Path child = directory.getChild(dirent.getName());
+      if (dirent.getType() == Dirent.Type.SYMLINK) {
+        if (!dirent.getName().startsWith(Constants.PRODUCT_NAME + "-")
+            && child.isDirectory(Symlinks.FOLLOW)) {
+          return false;
+        }
+      } else if (dirent.getType() == Dirent.Type.DIRECTORY) {
+        if (stopAtPackages && child.getChild(BUILD_FILE_NAME).exists()) {
+          continue;
+        }
+        if (!stampDirectories(child, stopAtPackages, stamps)) {
+          return false;
+        }
+      }
+    }
+    return true;
+  }
+
+  private static boolean allCurrent(Iterable<Stamp> stamps) {
+    for (Stamp stamp : stamps) {
+      if (!stamp.isCurrent()) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private ListMultimap<String, ReverseEdge> getReverseEdges() {
+    if (reverseEdges == null) {
+      reverseEdges = ArrayListMultimap.create();
+      for (Map.Entry<String, PackageEntry> entry : packages.entrySet()) {
+        PackageEntry pkg = entry.getValue();
+        List<String> labels = new ArrayList<>(pkg.targets.size());
+        for (String name : pkg.targets) {
+          labels.add(entry.getKey() + ":" + name);
+        }
+        for (Edge edge : pkg.edges) {
+          reverseEdges.put(edge.to, new ReverseEdge(labels.get(edge.from), edge.mask));
+        }
+      }
+    }
+    return reverseEdges;
+  }
+
+  private Multimap<Path, String> getPackagesByInput() {
+    if (packagesByInput == null) {
+      packagesByInput = HashMultimap.create();
+      for (Map.Entry<String, PackageEntry> entry : packages.entrySet()) {
+        for (Stamp stamp : entry.getValue().inputs) {
+          packagesByInput.put(stamp.path, entry.getKey());
+        }
+      }
+    }
+    return packagesByInput;
+  }
+
+  private Multimap<Path, String> getUniversesByDirectory() {
+    if (universesByDirectory == null) {
+      universesByDirectory = HashMultimap.create();
+      for (Map.Entry<String, UniverseEntry> entry : universes.entrySet()) {
+        for (Stamp stamp : entry.getValue().directories) {
+          universesByDirectory.put(stamp.path, entry.getKey());
+        }
+      }
+    }
+    return universesByDirectory;
+  }
+
+  /** Returns the package part of the target's label, e.g. {@code //foo}. */
+  private static String packageName(Target target) {
+    String label = target.getLabel().toString();
+    return label.substring(0, label.length() - target.getName().length() - 1);
+  }
+
+  /** The last change time of a file or directory, or -1 if it did not exist. */
+  private static final class Stamp {
+    private final Path path;
+    private final long changeTime;
+
+    private Stamp(Path path, long changeTime) {
+      this.path = path;
+      this.changeTime = changeTime;
+    }
+
+    static Stamp of(Path path) throws IOException {
+      return new Stamp(path, changeTime(path));
+    }
+
+    boolean isCurrent() {
+      try {
+        return changeTime(path) == changeTime;
+      } catch (IOException e) {
+        return false;
+      }
+    }
+
+    private static long changeTime(Path path) throws IOException {
+      FileStatus status = path.statIfFound(Symlinks.FOLLOW);
+      return status == null ? -1 : status.getLastChangeTime();
+    }
+
+    static ImmutableList<Stamp> readList(DataInputStream in, FileSystem fileSystem)
+        throws IOException {
+      int size = in.readInt();
+      ImmutableList.Builder<Stamp> stamps = ImmutableList.builder();
+      for (int i = 0; i < size; i++) {
+        stamps.add(new Stamp(fileSystem.getPath(in.readUTF()), in.readLong()));
+      }
+      return stamps.build();
+    }
+
+    static void writeList(List<Stamp> stamps, DataOutputStream out) throws IOException {
+      out.writeInt(stamps.size());
+      for (Stamp stamp : stamps) {
+        out.writeUTF(stamp.path.getPathString());
+        out.writeLong(stamp.changeTime);
+      }
+    }
+  }
+
+  /** An edge from the target with the given index in its package to a label. */
+  private static final class Edge {
+    private final int from;
+    private final String to;
+    private final int mask;
+
+    Edge(int from, Label to, int mask) {
+      this(from, to.toString(), mask);
+    }
+
+    Edge(int from, String to, int mask) {
+      this.from = from;
+      this.to = to;
+      this.mask = mask;
+    }
+  }
+
+  private static final class ReverseEdge {
+    private final String from;
+    private final int mask;
+
+    ReverseEdge(String from, int mask) {
+      this.from = from;
+      this.mask = mask;
+    }
+  }
+
+  private static final class PackageEntry {
+    private final ImmutableList<Stamp> inputs;
+    private final ImmutableList<String> targets;
+    private final ImmutableList<Edge> edges;
+
+    PackageEntry(ImmutableList<Stamp> inputs, ImmutableList<String> targets,
+        ImmutableList<Edge> edges) {
+      this.inputs = inputs;
+      this.targets = targets;
+      this.edges = edges;
+    }
+
+    static PackageEntry read(DataInputStream in, FileSystem fileSystem) throws IOException {
+      ImmutableList<Stamp> inputs = Stamp.readList(in, fileSystem);
+      int targetCount = in.readInt();
+      ImmutableList.Builder<String> targets = ImmutableList.builder();
+      for (int i = 0; i < targetCount; i++) {
+        targets.add(in.readUTF());
+      }
+      int edgeCount = in.readInt();
+      ImmutableList.Builder<Edge> edges = ImmutableList.builder();
+      for (int i = 0; i < edgeCount; i++) {
+        int from = in.readInt();
+        if (from < 0 || from >= targetCount) {
+          throw new IOException("corrupt edge source: " + from);
+        }
+        edges.add(new Edge(from, StringCanonicalizer.intern(in.readUTF()), in.readByte()));
+      }
+      return new PackageEntry(inputs, targets.build(), edges.build());
+    }
+
+    void write(DataOutputStream out) throws IOException {
+      Stamp.writeList(inputs, out);
+      out.writeInt(targets.size());
+      for (String target : targets) {
+        out.writeUTF(target);
+      }
+      out.writeInt(edges.size());
+      for (Edge edge : edges) {
+        out.writeInt(edge.from);
+        out.writeUTF(edge.to);
+        out.writeByte(edge.mask);
+      }
+    }
+  }
+
+  private static final class UniverseEntry {
+    private final ImmutableList<Stamp> directories;
+    /** The names of the targets in the closure, by the package part of their labels. */
+    private final ImmutableMap<String, ImmutableSet<String>> closure;
+
+    UniverseEntry(ImmutableList<Stamp> directories,
+        ImmutableMap<String, ImmutableSet<String>> closure) {
+      this.directories = directories;
+      this.closure = closure;
+    }
+
+    boolean contains(String label) {
+      int colon = label.lastIndexOf(':');
+      ImmutableSet<String> names = closure.get(label.substring(0, colon));
+      return names != null && names.contains(label.substring(colon + 1));
+    }
+
+    static UniverseEntry read(DataInputStream in, FileSystem fileSystem) throws IOException {
+      ImmutableList<Stamp> directories = Stamp.readList(in, fileSystem);
+      int packageCount = in.readInt();
+      ImmutableMap.Builder<String, ImmutableSet<String>> closure = ImmutableMap.builder();
+      for (int i = 0; i < packageCount; i++) {
+        String pkg = in.readUTF();
+        int targetCount = in.readInt();
+        ImmutableSet.Builder<String> names = ImmutableSet.builder();
+        for (int j = 0; j < targetCount; j++) {
+          names.add(in.readUTF());
+        }
+        closure.put(pkg, names.build());
+      }
+      return new UniverseEntry(directories, closure.build());
+    }
+
+    void write(DataOutputStream out) throws IOException {
+      Stamp.writeList(directories, out);
+      out.writeInt(closure.size());
+      for (Map.Entry<String, ImmutableSet<String>> entry : closure.entrySet()) {
+        out.writeUTF(entry.getKey());
+        out.writeInt(entry.getValue().size());
+        for (String name : entry.getValue()) {
+          out.writeUTF(name);
+        }
+      }
+    }
+  }
+
+  /**
+   * A persistent map keyed by strings. The journal is not written on every update; the index is
+   * saved explicitly once a query has recorded its packages.
+   */
+  private abstract static class EntryMap<V> extends PersistentMap<String, V> {
+    EntryMap(Path mapFile, Path journalFile) {
+      super(VERSION, new HashMap<String, V>(), mapFile, journalFile);
+    }
+
+    @Override
+    protected boolean updateJournal() {
+      return false;
+    }
+
+    @Override
+    protected String readKey(DataInputStream in) throws IOException {
+      return in.readUTF();
+    }
+
+    @Override
+    protected void writeKey(String key, DataOutputStream out) throws IOException {
+      out.writeUTF(key);
+    }
+  }
+}
@@ -18,6 +18,7 @@ import com.google.common.base.Functions;
 import com.google.common.base.Preconditions;
 import com.google.common.base.Predicate;
 import com.google.common.base.Predicates;
+import com.google.common.base.Throwables;
 import com.google.common.collect.ArrayListMultimap;
 import com.google.common.collect.Collections2;
 import com.google.common.collect.ImmutableList;
@@ -27,6 +28,7 @@ import com.google.common.collect.Iterables;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Multimap;
 import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.google.devtools.build.lib.cmdline.PackageIdentifier;
 import com.google.devtools.build.lib.cmdline.TargetParsingException;
 import com.google.devtools.build.lib.cmdline.TargetPattern;
@@ -43,6 +45,7 @@ import com.google.devtools.build.lib.pkgcache.PathPackageLocator;
 import com.google.devtools.build.lib.pkgcache.TargetPatternEvaluator;
 import com.google.devtools.build.lib.profiler.Profiler;
 import com.google.devtools.build.lib.query2.engine.AllRdepsFunction;
+import com.google.devtools.build.lib.query2.engine.Callback;
 import com.google.devtools.build.lib.query2.engine.QueryEvalResult;
 import com.google.devtools.build.lib.query2.engine.QueryException;
 import com.google.devtools.build.lib.query2.engine.QueryExpression;
@@ -66,16 +69,22 @@ import com.google.devtools.build.skyframe.SkyValue;
 import com.google.devtools.build.skyframe.WalkableGraph;
 import com.google.devtools.build.skyframe.WalkableGraph.WalkableGraphFactory;
 
-import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Collection;
-import java.util.Deque;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.logging.Logger;
 
 import javax.annotation.Nullable;
@@ -87,12 +96,21 @@ import javax.annotation.Nullable;
  * even if the full closure isn't needed.
  */
 public class SkyQueryEnvironment extends AbstractBlazeQueryEnvironment<Target> {
+  /**
+   * Number of targets whose edges are looked up together. Larger lookups are split into batches of
+   * this size, which are processed in parallel.
+   */
+  private static final int BATCH_SIZE = 1000;
+
   private WalkableGraph graph;
 
   private ImmutableList<TargetPatternKey> universeTargetPatternKeys;
 
   private final BlazeTargetAccessor accessor = new BlazeTargetAccessor(this);
   private final int loadingPhaseThreads;
+  private final int queryThreads;
+  // Only set during evaluation, and only if queryThreads > 1.
+  @Nullable private ExecutorService executor;
   private final WalkableGraphFactory graphFactory;
   private final List<String> universeScope;
   private final String parserPrefix;
@@ -110,7 +128,7 @@ public class SkyQueryEnvironment extends AbstractBlazeQueryEnvironment<Target> {
   };
 
   public SkyQueryEnvironment(boolean keepGoing, boolean strictScope, int loadingPhaseThreads,
-      Predicate<Label> labelFilter,
+      int queryThreads, Predicate<Label> labelFilter,
       EventHandler eventHandler,
       Set<Setting> settings,
       Iterable<QueryFunction> extraFunctions, String parserPrefix,
@@ -121,6 +139,7 @@ public class SkyQueryEnvironment extends AbstractBlazeQueryEnvironment<Target> {
         settings,
         extraFunctions);
     this.loadingPhaseThreads = loadingPhaseThreads;
+    this.queryThreads = queryThreads;
     this.graphFactory = graphFactory;
     this.pkgPath = pkgPath;
     this.universeScope = Preconditions.checkNotNull(universeScope);
@@ -165,7 +184,84 @@ public class SkyQueryEnvironment extends AbstractBlazeQueryEnvironment<Target> {
     // errors here.
     eventHandler.resetErrors();
     init();
-    return super.evaluateQuery(expr);
+    startExecutor();
+    try {
+      return super.evaluateQuery(expr);
+    } finally {
+      shutdownExecutor();
+    }
+  }
+
+  @Override
+  public boolean evaluateQuery(QueryExpression expr, Callback<Target> callback)
+      throws QueryException, InterruptedException {
+    // See evaluateQuery(QueryExpression) above.
+    eventHandler.resetErrors();
+    init();
+    startExecutor();
+    try {
+      return super.evaluateQuery(expr, callback);
+    } finally {
+      shutdownExecutor();
+    }
+  }
+
+  private void startExecutor() {
+    if (queryThreads > 1) {
+      executor = Executors.newFixedThreadPool(queryThreads, new ThreadFactoryBuilder()
+          .setNameFormat("SkyQueryEnvironment %d").setDaemon(true).build());
+    }
+  }
+
+  private void shutdownExecutor() {
+    if (executor != null) {
+      executor.shutdownNow();
+      executor = null;
+    }
+  }
+
+  /**
+   * Splits {@code inputs} into batches of {@link #BATCH_SIZE}, applies {@code function} to each
+   * batch, and returns the results in the order of the batches. The batches are processed in
+   * parallel if there is more than one and an executor is available. If the calling thread is
+   * interrupted, the batches that have not finished are cancelled.
+   */
+  private <I, O> List<O> mapBatches(Iterable<I> inputs, final Function<List<I>, O> function)
+      throws InterruptedException {
+    List<List<I>> batches = ImmutableList.copyOf(Iterables.partition(inputs, BATCH_SIZE));
+    if (executor == null || batches.size() <= 1) {
+      List<O> results = new ArrayList<>(batches.size());
+      for (List<I> batch : batches) {
+        results.add(function.apply(batch));
+      }
+      return results;
+    }
+    List<Future<O>> futures = new ArrayList<>(batches.size());
+    for (final List<I> batch : batches) {
+      futures.add(executor.submit(new Callable<O>() {
+        @Override
+        public O call() {
+          return function.apply(batch);
+        }
+      }));
+    }
+    List<O> results = new ArrayList<>(futures.size());
+    boolean done = false;
+    try {
+      for (Future<O> future : futures) {
+        results.add(future.get());
+      }
+      done = true;
+    } catch (ExecutionException e) {
+      throw Throwables.propagate(e.getCause());
+    } finally {
+      if (!done) {
+        for (Future<O> future : futures) {
+          future.cancel(true);
+        }
+      }
+    }
+    return results;
   }
 
   private Map<Target, Collection<Target>> makeTargetsMap(Map<SkyKey, Iterable<SkyKey>> input) {
@@ -207,44 +303,78 @@ public class SkyQueryEnvironment extends AbstractBlazeQueryEnvironment<Target> {
         });
   }
 
+  /** Returns the filtered forward deps of each of the given targets that is in the graph. */
+  private Map<Target, Collection<Target>> getFwdDepsMap(Iterable<Target> targets)
+      throws InterruptedException {
+    Map<Target, Collection<Target>> result = new LinkedHashMap<>();
+    for (Map<Target, Collection<Target>> batchResult : mapBatches(targets,
+        new Function<List<Target>, Map<Target, Collection<Target>>>() {
+          @Override
+          public Map<Target, Collection<Target>> apply(List<Target> batch) {
+            ImmutableMap.Builder<Target, Collection<Target>> fwdDeps = ImmutableMap.builder();
+            for (Map.Entry<Target, Collection<Target>> entry : getRawFwdDeps(batch).entrySet()) {
+              fwdDeps.put(entry.getKey(),
+                  ImmutableList.copyOf(filterFwdDeps(entry.getKey(), entry.getValue())));
+            }
+            return fwdDeps.build();
+          }
+        })) {
+      result.putAll(batchResult);
+    }
+    return result;
+  }
+
   @Override
-  public Collection<Target> getFwdDeps(Iterable<Target> targets) {
+  public Collection<Target> getFwdDeps(Iterable<Target> targets) throws InterruptedException {
     Set<Target> result = new HashSet<>();
-    for (Map.Entry<Target, Collection<Target>> entry : getRawFwdDeps(targets).entrySet()) {
-      result.addAll(filterFwdDeps(entry.getKey(), entry.getValue()));
+    for (Collection<Target> fwdDeps : getFwdDepsMap(targets).values()) {
+      result.addAll(fwdDeps);
     }
     return result;
   }
 
   @Override
-  public Collection<Target> getReverseDeps(Iterable<Target> targets) {
-    Set<Target> result = CompactHashSet.create();
-    Map<Target, Collection<Target>> rawReverseDeps = getRawReverseDeps(targets);
+  public Collection<Target> getReverseDeps(Iterable<Target> targets) throws InterruptedException {
+    Map<Target, Collection<Target>> rawReverseDeps = new HashMap<>();
+    for (Map<Target, Collection<Target>> batchResult : mapBatches(targets,
+        new Function<List<Target>, Map<Target, Collection<Target>>>() {
+          @Override
+          public Map<Target, Collection<Target>> apply(List<Target> batch) {
+            return getRawReverseDeps(batch);
+          }
+        })) {
+      rawReverseDeps.putAll(batchResult);
+    }
 
-    CompactHashSet<Target> visited = CompactHashSet.create();
+    Set<Target> parents = CompactHashSet.create();
+    for (Collection<Target> parentCollection : rawReverseDeps.values()) {
+      parents.addAll(parentCollection);
+    }
 
-    Set<Label> keys = CompactHashSet.create(Collections2.transform(rawReverseDeps.keySet(),
+    final Set<Label> keys = CompactHashSet.create(Collections2.transform(rawReverseDeps.keySet(),
         TARGET_LABEL_FUNCTION));
-    for (Collection<Target> parentCollection : rawReverseDeps.values()) {
-      for (Target parent : parentCollection) {
-        if (visited.add(parent)) {
-          if (parent instanceof Rule) {
-            for (Label label : getAllowedDeps((Rule) parent)) {
-              if (keys.contains(label)) {
-                result.add(parent);
+    Set<Target> result = CompactHashSet.create();
+    for (List<Target> batchResult : mapBatches(parents,
+        new Function<List<Target>, List<Target>>() {
+          @Override
+          public List<Target> apply(List<Target> batch) {
+            List<Target> allowedParents = new ArrayList<>();
+            for (Target parent : batch) {
+              if (!(parent instanceof Rule)
+                  || !Collections.disjoint(getAllowedDeps((Rule) parent), keys)) {
+                allowedParents.add(parent);
               }
             }
-          } else {
-            result.add(parent);
+            return allowedParents;
           }
-        }
-      }
+        })) {
+      result.addAll(batchResult);
     }
     return result;
   }
 
   @Override
-  public Set<Target> getTransitiveClosure(Set<Target> targets) {
+  public Set<Target> getTransitiveClosure(Set<Target> targets) throws InterruptedException {
     Set<Target> visited = new HashSet<>();
     Collection<Target> current = targets;
     while (!current.isEmpty()) {
@@ -256,26 +386,32 @@ public class SkyQueryEnvironment extends AbstractBlazeQueryEnvironment<Target> {
     return ImmutableSet.copyOf(visited);
   }
 
-  // Implemented with a breadth-first search.
+  // Implemented with a breadth-first search, which looks up the deps of each level in parallel.
   @Override
-  public Set<Target> getNodesOnPath(Target from, Target to) {
+  public Set<Target> getNodesOnPath(Target from, Target to) throws InterruptedException {
     // Tree of nodes visited so far.
     Map<Target, Target> nodeToParent = new HashMap<>();
-    // Contains all nodes left to visit in a (LIFO) stack.
-    Deque<Target> toVisit = new ArrayDeque<>();
-    toVisit.add(from);
     nodeToParent.put(from, null);
-    while (!toVisit.isEmpty()) {
-      Target current = toVisit.removeFirst();
-      if (to.equals(current)) {
+    Collection<Target> current = ImmutableList.of(from);
+    while (!current.isEmpty()) {
+      if (nodeToParent.containsKey(to)) {
         return ImmutableSet.copyOf(Digraph.getPathToTreeNode(nodeToParent, to));
       }
-      for (Target dep : getFwdDeps(ImmutableList.of(current))) {
-        if (!nodeToParent.containsKey(dep)) {
-          nodeToParent.put(dep, current);
-          toVisit.addFirst(dep);
+      Map<Target, Collection<Target>> fwdDeps = getFwdDepsMap(current);
+      List<Target> next = new ArrayList<>();
+      for (Target node : current) {
+        Collection<Target> deps = fwdDeps.get(node);
+        if (deps == null) {
+          continue;
+        }
+        for (Target dep : deps) {
+          if (!nodeToParent.containsKey(dep)) {
+            nodeToParent.put(dep, node);
+            next.add(dep);
+          }
         }
       }
+      current = next;
     }
     // Note that the only current caller of this method checks first to see if there is a path
     // before calling this method. It is not clear what the return value should be here.
@@ -16,7 +16,9 @@ package com.google.devtools.build.lib.query2.engine;
 import com.google.common.base.Preconditions;
 import com.google.common.collect.ImmutableList;
 
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashSet;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Set;
@@ -71,6 +73,38 @@ class BinaryOperatorExpression extends QueryExpression {
     return lhsValue;
   }
 
+  /**
+   * Streams the operands of a union one after the other, leaving out the elements that an earlier
+   * operand already passed. Intersections and differences need the whole of their operands and
+   * are evaluated as a single batch.
+   */
+  @Override
+  public <T> void eval(QueryEnvironment<T> env, final Callback<T> callback)
+      throws QueryException, InterruptedException {
+    if (operator != Lexer.TokenKind.UNION && operator != Lexer.TokenKind.PLUS) {
+      super.eval(env, callback);
+      return;
+    }
+    final Set<T> seen = new HashSet<>();
+    Callback<T> uniquifyingCallback = new Callback<T>() {
+      @Override
+      public void process(Iterable<T> partialResult) throws QueryException, InterruptedException {
+        List<T> unseen = new ArrayList<>();
+        for (T element : partialResult) {
+          if (seen.add(element)) {
+            unseen.add(element);
+          }
+        }
+        if (!unseen.isEmpty()) {
+          callback.process(unseen);
+        }
+      }
+    };
+    for (QueryExpression operand : operands) {
+      operand.eval(env, uniquifyingCallback);
+    }
+  }
+
   @Override
   public void collectTargetPatterns(Collection<String> literals) {
     for (QueryExpression subExpression : operands) {
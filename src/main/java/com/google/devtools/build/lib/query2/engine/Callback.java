@@ -0,0 +1,30 @@
+// Copyright 2015 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.query2.engine;
+
+/**
+ * A consumer of the partial results of a query evaluation.
+ *
+ * <p>Query expressions that support streaming evaluation call {@link #process} with successive
+ * batches of their result instead of materializing the whole result as a set. The batches of a
+ * single evaluation do not overlap: an expression that could pass an element twice, such as a
+ * union, removes the duplicates itself, so that consumers need not keep a set of the result.
+ *
+ * @param <T> the node type of the elements.
+ */
+public interface Callback<T> {
+
+  /** Processes a batch of the result. */
+  void process(Iterable<T> partialResult) throws QueryException, InterruptedException;
+}
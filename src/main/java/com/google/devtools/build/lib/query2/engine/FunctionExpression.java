@@ -20,6 +20,7 @@ import com.google.common.collect.Iterables;
 import com.google.devtools.build.lib.query2.engine.QueryEnvironment.Argument;
 import com.google.devtools.build.lib.query2.engine.QueryEnvironment.ArgumentType;
 import com.google.devtools.build.lib.query2.engine.QueryEnvironment.QueryFunction;
+import com.google.devtools.build.lib.query2.engine.QueryEnvironment.StreamableQueryFunction;
 
 import java.util.Collection;
 import java.util.List;
@@ -42,6 +43,16 @@ public class FunctionExpression extends QueryExpression {
     return function.<T>eval(env, this, args);
   }
 
+  @Override
+  public <T> void eval(QueryEnvironment<T> env, Callback<T> callback)
+      throws QueryException, InterruptedException {
+    if (function instanceof StreamableQueryFunction) {
+      ((StreamableQueryFunction) function).<T>eval(env, this, args, callback);
+    } else {
+      super.eval(env, callback);
+    }
+  }
+
   @Override
   public void collectTargetPatterns(Collection<String> literals) {
     for (Argument arg : args) {
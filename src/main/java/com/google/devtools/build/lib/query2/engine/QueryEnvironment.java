@@ -120,6 +120,18 @@ public interface QueryEnvironment<T> {
         throws QueryException, InterruptedException;
   }
 
+  /**
+   * A query function that can pass its result to a {@link Callback} in batches, as it is computed.
+   */
+  interface StreamableQueryFunction extends QueryFunction {
+    /**
+     * Like {@link QueryFunction#eval}, but passes the result to {@code callback} instead of
+     * returning it. No element is passed twice, see {@link Callback}.
+     */
+    <T> void eval(QueryEnvironment<T> env, QueryExpression expression, List<Argument> args,
+        Callback<T> callback) throws QueryException, InterruptedException;
+  }
+
   /**
    * Exception type for the case where a target cannot be found. It's basically a wrapper for
    * whatever exception is internally thrown.
@@ -147,17 +159,17 @@ public interface QueryEnvironment<T> {
   T getOrCreate(T target);
 
   /** Returns the direct forward dependencies of the specified targets. */
-  Collection<T> getFwdDeps(Iterable<T> targets);
+  Collection<T> getFwdDeps(Iterable<T> targets) throws InterruptedException;
 
   /** Returns the direct reverse dependencies of the specified targets. */
-  Collection<T> getReverseDeps(Iterable<T> targets);
+  Collection<T> getReverseDeps(Iterable<T> targets) throws InterruptedException;
 
   /**
    * Returns the forward transitive closure of all of the targets in
    * "targets".  Callers must ensure that {@link #buildTransitiveClosure}
    * has been called for the relevant subgraph.
    */
-  Set<T> getTransitiveClosure(Set<T> targets);
+  Set<T> getTransitiveClosure(Set<T> targets) throws InterruptedException;
 
   /**
    * Construct the dependency graph for a depth-bounded forward transitive closure
@@ -175,7 +187,7 @@ public interface QueryEnvironment<T> {
   /**
    * Returns the set of nodes on some path from "from" to "to".
    */
-  Set<T> getNodesOnPath(T from, T to);
+  Set<T> getNodesOnPath(T from, T to) throws InterruptedException;
 
   /**
    * Returns the value of the specified variable, or null if it is undefined.
@@ -70,6 +70,20 @@ public abstract class QueryExpression {
   public abstract <T> Set<T> eval(QueryEnvironment<T> env)
       throws QueryException, InterruptedException;
 
+  /**
+   * Evaluates this query in the specified environment and passes the result to {@code callback},
+   * possibly in several batches. No element is passed twice, see {@link Callback}.
+   *
+   * <p>The default implementation passes the result of {@link #eval(QueryEnvironment)} in a
+   * single batch. Expressions whose result can be computed piecewise override this, so that the
+   * consumer can start processing before the whole result is known and the intermediate sets need
+   * not be materialized.
+   */
+  public <T> void eval(QueryEnvironment<T> env, Callback<T> callback)
+      throws QueryException, InterruptedException {
+    callback.process(eval(env));
+  }
+
   /**
    * Collects all target patterns that are referenced anywhere within this query expression and adds
    * them to the given collection, which must be mutable.
@@ -15,8 +15,9 @@ package com.google.devtools.build.lib.query2.engine;
 
 import com.google.common.collect.ImmutableList;
 import com.google.devtools.build.lib.query2.engine.QueryEnvironment.Argument;
-import com.google.devtools.build.lib.query2.engine.QueryEnvironment.QueryFunction;
+import com.google.devtools.build.lib.query2.engine.QueryEnvironment.StreamableQueryFunction;
 
+import java.util.ArrayList;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Set;
@@ -26,33 +27,66 @@ import java.util.regex.Pattern;
  * An abstract class that provides generic regex filter expression. Actual
  * expression are implemented by the subclasses.
  */
-abstract class RegexFilterExpression implements QueryFunction {
+abstract class RegexFilterExpression implements StreamableQueryFunction {
   protected RegexFilterExpression() {
   }
 
   @Override
   public <T> Set<T> eval(QueryEnvironment<T> env, QueryExpression expression, List<Argument> args)
       throws QueryException, InterruptedException {
-    Pattern compiledPattern;
+    Pattern compiledPattern = compilePattern(expression, args);
+    QueryExpression argument = args.get(args.size() - 1).getExpression();
+
+    Set<T> result = new LinkedHashSet<>();
+    for (T target : argument.eval(env)) {
+      if (matches(env, args, compiledPattern, target)) {
+        result.add(target);
+      }
+    }
+    return result;
+  }
+
+  @Override
+  public <T> void eval(final QueryEnvironment<T> env, QueryExpression expression,
+      final List<Argument> args, final Callback<T> callback)
+      throws QueryException, InterruptedException {
+    final Pattern compiledPattern = compilePattern(expression, args);
+    QueryExpression argument = args.get(args.size() - 1).getExpression();
+
+    argument.eval(env, new Callback<T>() {
+      @Override
+      public void process(Iterable<T> partialResult) throws QueryException, InterruptedException {
+        List<T> matching = new ArrayList<>();
+        for (T target : partialResult) {
+          if (matches(env, args, compiledPattern, target)) {
+            matching.add(target);
+          }
+        }
+        if (!matching.isEmpty()) {
+          callback.process(matching);
+        }
+      }
+    });
+  }
+
+  private Pattern compilePattern(QueryExpression expression, List<Argument> args)
+      throws QueryException {
     try {
-      compiledPattern = Pattern.compile(getPattern(args));
+      return Pattern.compile(getPattern(args));
     } catch (IllegalArgumentException e) {
       throw new QueryException(expression, "illegal pattern regexp in '" + this + "': "
                                + e.getMessage());
     }
+  }
 
-    QueryExpression argument = args.get(args.size() - 1).getExpression();
-
-    Set<T> result = new LinkedHashSet<>();
-    for (T target : argument.eval(env)) {
-      for (String str : getFilterStrings(env, args, target)) {
-        if ((str != null) && compiledPattern.matcher(str).find()) {
-          result.add(target);
-          break;
-        }
+  private <T> boolean matches(
+      QueryEnvironment<T> env, List<Argument> args, Pattern compiledPattern, T target) {
+    for (String str : getFilterStrings(env, args, target)) {
+      if ((str != null) && compiledPattern.matcher(str).find()) {
+        return true;
       }
     }
-    return result;
+    return false;
   }
 
   /**
@@ -165,6 +165,22 @@ public abstract class OutputFormatter implements Serializable {
         AspectResolver aspectResolver) throws IOException, InterruptedException;
   }
 
+  /**
+   * Output formatter that can write the result of a query as it is being computed.
+   *
+   * <p>Streaming is only used for unordered output, so streamed formatters must also be
+   * {@link UnorderedFormatter}s. Streaming lets the query start printing before evaluation is
+   * complete, and spares materializing the whole result set.
+   */
+  public interface StreamedFormatter extends UnorderedFormatter {
+    /**
+     * Returns a callback that writes each batch of targets that it is given to {@code out}. The
+     * batches are guaranteed not to contain targets seen in earlier batches.
+     */
+    OutputFormatterCallback<Target> createStreamCallback(QueryOptions options, PrintStream out,
+        AspectResolver aspectResolver);
+  }
+
   /**
    * Returns the user-visible name of the output formatter.
    */
@@ -196,7 +212,8 @@ public abstract class OutputFormatter implements Serializable {
    * An output formatter that prints the labels of the resulting target set in
    * topological order, optionally with the target's kind.
    */
-  private static class LabelOutputFormatter extends AbstractUnorderedFormatter {
+  private static class LabelOutputFormatter extends AbstractUnorderedFormatter
+      implements StreamedFormatter {
 
     private final boolean showKind;
 
@@ -212,7 +229,22 @@ public abstract class OutputFormatter implements Serializable {
     @Override
     public void outputUnordered(QueryOptions options, Iterable<Target> result, PrintStream out,
         AspectResolver aspectResolver) {
-      for (Target target : result) {
+      print(result, out);
+    }
+
+    @Override
+    public OutputFormatterCallback<Target> createStreamCallback(QueryOptions options,
+        final PrintStream out, AspectResolver aspectResolver) {
+      return new OutputFormatterCallback<Target>() {
+        @Override
+        protected void processOutput(Iterable<Target> partialResult) {
+          print(partialResult, out);
+        }
+      };
+    }
+
+    private void print(Iterable<Target> targets, PrintStream out) {
+      for (Target target : targets) {
         if (showKind) {
           out.print(target.getTargetKind());
           out.print(' ');
@@ -236,7 +268,8 @@ public abstract class OutputFormatter implements Serializable {
    * An output formatter that prints the names of the packages of the target
    * set, in lexicographical order without duplicates.
    */
-  private static class PackageOutputFormatter extends AbstractUnorderedFormatter {
+  private static class PackageOutputFormatter extends AbstractUnorderedFormatter
+      implements StreamedFormatter {
     @Override
     public String getName() {
       return "package";
@@ -246,9 +279,38 @@ public abstract class OutputFormatter implements Serializable {
     public void outputUnordered(QueryOptions options, Iterable<Target> result, PrintStream out,
         AspectResolver aspectResolver) {
       Set<String> packageNames = Sets.newTreeSet();
-      for (Target target : result) {
+      addPackageNames(result, packageNames);
+      print(packageNames, out);
+    }
+
+    /**
+     * Returns a callback that keeps only the package names of the targets it is given, which are
+     * far fewer than the targets, and prints them when it is closed.
+     */
+    @Override
+    public OutputFormatterCallback<Target> createStreamCallback(QueryOptions options,
+        final PrintStream out, AspectResolver aspectResolver) {
+      final Set<String> packageNames = Sets.newTreeSet();
+      return new OutputFormatterCallback<Target>() {
+        @Override
+        protected void processOutput(Iterable<Target> partialResult) {
+          addPackageNames(partialResult, packageNames);
+        }
+
+        @Override
+        public void close() {
+          print(packageNames, out);
+        }
+      };
+    }
+
+    private static void addPackageNames(Iterable<Target> targets, Set<String> packageNames) {
+      for (Target target : targets) {
         packageNames.add(target.getLabel().getPackageName());
       }
+    }
+
+    private static void print(Set<String> packageNames, PrintStream out) {
       for (String packageName : packageNames) {
         out.println(packageName);
       }
@@ -0,0 +1,57 @@
+// Copyright 2015 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.query2.output;
+
+import com.google.devtools.build.lib.query2.engine.Callback;
+import com.google.devtools.build.lib.query2.engine.QueryException;
+
+import java.io.IOException;
+
+import javax.annotation.Nullable;
+
+/**
+ * A {@link Callback} that writes the batches of a streamed query result as they are computed.
+ *
+ * <p>{@link Callback#process} cannot throw {@link IOException}, so an I/O error aborts the query
+ * with a {@link QueryException} and is kept for the caller to retrieve with
+ * {@link #getIoException}.
+ */
+public abstract class OutputFormatterCallback<T> implements Callback<T> {
+
+  @Nullable private IOException ioException;
+
+  /** Called once, after the last batch, to write anything that could not be written earlier. */
+  public void close() throws IOException {}
+
+  /** Writes a batch of the result. */
+  protected abstract void processOutput(Iterable<T> partialResult)
+      throws IOException, InterruptedException;
+
+  @Override
+  public final void process(Iterable<T> partialResult)
+      throws QueryException, InterruptedException {
+    try {
+      processOutput(partialResult);
+    } catch (IOException e) {
+      ioException = e;
+      throw new QueryException("I/O error while writing the query result: " + e.getMessage());
+    }
+  }
+
+  /** Returns the I/O error that aborted the output, if any. */
+  @Nullable
+  public IOException getIoException() {
+    return ioException;
+  }
+}
@@ -34,7 +34,7 @@ import com.google.devtools.build.lib.packages.Rule;
 import com.google.devtools.build.lib.packages.Target;
 import com.google.devtools.build.lib.query2.FakeSubincludeTarget;
 import com.google.devtools.build.lib.query2.output.AspectResolver.BuildFileDependencyMode;
-import com.google.devtools.build.lib.query2.output.OutputFormatter.UnorderedFormatter;
+import com.google.devtools.build.lib.query2.output.OutputFormatter.StreamedFormatter;
 import com.google.devtools.build.lib.query2.output.QueryOptions.OrderOutput;
 import com.google.devtools.build.lib.query2.proto.proto2api.Build;
 import com.google.devtools.build.lib.syntax.Label;
@@ -54,7 +54,7 @@ import java.util.Set;
  * By taking the bytes and calling {@code mergeFrom()} on a
  * {@code Build.QueryResult} object the full result can be reconstructed.
  */
-public class ProtoOutputFormatter extends OutputFormatter implements UnorderedFormatter {
+public class ProtoOutputFormatter extends OutputFormatter implements StreamedFormatter {
 
   /**
    * A special attribute name for the rule implementation hash code.
@@ -78,13 +78,39 @@ public class ProtoOutputFormatter extends OutputFormatter implements UnorderedFo
   @Override
   public void outputUnordered(QueryOptions options, Iterable<Target> result, PrintStream out,
       AspectResolver aspectResolver) throws IOException, InterruptedException {
+    setOptions(options, aspectResolver);
+    writeQueryResult(result, out);
+  }
+
+  /**
+   * Returns a callback that writes a {@code Build.QueryResult} for each batch of targets. The
+   * target field is repeated, so the concatenation of these messages parses the same as a single
+   * message holding all the targets, and the output is compatible with {@link #outputUnordered}.
+   */
+  @Override
+  public OutputFormatterCallback<Target> createStreamCallback(QueryOptions options,
+      final PrintStream out, AspectResolver aspectResolver) {
+    setOptions(options, aspectResolver);
+    return new OutputFormatterCallback<Target>() {
+      @Override
+      protected void processOutput(Iterable<Target> partialResult)
+          throws IOException, InterruptedException {
+        writeQueryResult(partialResult, out);
+      }
+    };
+  }
+
+  private void setOptions(QueryOptions options, AspectResolver aspectResolver) {
     relativeLocations = options.relativeLocations;
     this.aspectResolver = aspectResolver;
     this.includeDefaultValues = options.protoIncludeDefaultValues;
     setDependencyFilter(options);
+  }
 
+  private void writeQueryResult(Iterable<Target> targets, PrintStream out)
+      throws IOException, InterruptedException {
     Build.QueryResult.Builder queryResult = Build.QueryResult.newBuilder();
-    for (Target target : result) {
+    for (Target target : targets) {
       addTarget(queryResult, target);
     }
 
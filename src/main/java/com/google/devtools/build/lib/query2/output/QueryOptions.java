@@ -191,6 +191,21 @@ public class QueryOptions extends OptionsBase {
           + "targets.")
   public List<String> universeScope;
 
+  @Option(name = "query_threads",
+      defaultValue = "4",
+      category = "query",
+      help = "Number of threads used to look up dependencies and reverse dependencies in the "
+          + "graph when --universe_scope is set.")
+  public int queryThreads;
+
+  @Option(name = "experimental_rdeps_index",
+      defaultValue = "false",
+      category = "query",
+      help = "If true, rdeps(//dir/..., x) queries are answered from a persistent index of the "
+          + "dependency edges of previously loaded packages when it is up to date, instead of "
+          + "loading the whole universe. Has no effect when --universe_scope is set.")
+  public boolean useRdepsIndex;
+
   @Option(name = "relative_locations",
       defaultValue = "false",
       category = "query",
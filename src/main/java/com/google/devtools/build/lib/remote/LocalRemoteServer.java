@@ -0,0 +1,411 @@
+// Copyright 2015 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.remote;
+
+import com.google.common.io.BaseEncoding;
+import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.devtools.build.lib.remote.RemoteProtocol.Blob;
+import com.google.devtools.build.lib.remote.RemoteProtocol.DownloadRequest;
+import com.google.devtools.build.lib.remote.RemoteProtocol.EnvironmentVariable;
+import com.google.devtools.build.lib.remote.RemoteProtocol.ExecuteRequest;
+import com.google.devtools.build.lib.remote.RemoteProtocol.ExecuteResponse;
+import com.google.devtools.build.lib.remote.RemoteProtocol.FileEntry;
+import com.google.devtools.build.lib.remote.RemoteProtocol.FindMissingResponse;
+import com.google.devtools.build.lib.remote.RemoteProtocol.RemoteRequest;
+import com.google.devtools.build.lib.remote.RemoteProtocol.RemoteResponse;
+import com.google.devtools.build.lib.shell.AbnormalTerminationException;
+import com.google.devtools.build.lib.shell.Command;
+import com.google.devtools.build.lib.shell.CommandException;
+import com.google.devtools.build.lib.shell.CommandResult;
+import com.google.devtools.build.lib.shell.TerminationStatus;
+import com.google.devtools.build.lib.vfs.DigestHashFunction;
+import com.google.devtools.build.lib.vfs.FileSystemUtils;
+import com.google.devtools.build.lib.vfs.JavaIoFileSystem;
+import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.build.lib.vfs.PathFragment;
+import com.google.devtools.build.lib.vfs.Symlinks;
+import com.google.protobuf.ByteString;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A reference implementation of the remote execution protocol that runs commands on the local
+ * machine. Blobs are kept in a content-addressed directory, and the results of successful commands
+ * are cached by the digest of their request, so that the server also works as a shared cache.
+ *
+ * <p>The server can run inside Blaze (see {@code --experimental_remote_local_server_dir}) or as a
+ * separate process via {@link #main}. It only listens on the loopback interface and runs whatever
+ * it is asked to, so it is meant for testing the remote strategy, not for production use.
+ */
+public final class LocalRemoteServer implements Closeable {
+  private static final Logger LOG = Logger.getLogger(LocalRemoteServer.class.getName());
+
+  private static final BaseEncoding HEX = BaseEncoding.base16().lowerCase();
+
+  private final Path root;
+  private final Path casDir;
+  private final Path acDir;
+  private final Path workDir;
+  private final ServerSocket serverSocket;
+  private final ExecutorService connectionHandlers = Executors.newCachedThreadPool(
+      new ThreadFactoryBuilder().setNameFormat("local-remote-server-%d").setDaemon(true).build());
+  // Guarded by itself.
+  private final Set<Socket> connections = new HashSet<>();
+
+  /**
+   * Creates a server that keeps its state under {@code root} and listens on {@code port} of the
+   * loopback interface, or on any free port if {@code port} is 0. Call {@link #start} to accept
+   * connections.
+   */
+  public LocalRemoteServer(Path root, int port) throws IOException {
+    this.root = root;
+    this.casDir = root.getChild("cas");
+    this.acDir = root.getChild("ac");
+    this.workDir = root.getChild("work");
+    FileSystemUtils.createDirectoryAndParents(casDir);
+    FileSystemUtils.createDirectoryAndParents(acDir);
+    FileSystemUtils.deleteTree(workDir);
+    FileSystemUtils.createDirectoryAndParents(workDir);
+    this.serverSocket = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+  }
+
+  public Path getRoot() {
+    return root;
+  }
+
+  /**
+   * Returns the address clients connect to, in the form {@code host:port}.
+   */
+  public String getAddress() {
+    return serverSocket.getInetAddress().getHostAddress() + ":" + serverSocket.getLocalPort();
+  }
+
+  /**
+   * Starts accepting connections on a background thread.
+   */
+  public void start() {
+    Thread acceptor = new Thread("local-remote-server") {
+      @Override
+      public void run() {
+        acceptConnections();
+      }
+    };
+    acceptor.setDaemon(true);
+    acceptor.start();
+  }
+
+  private void acceptConnections() {
+    while (!serverSocket.isClosed()) {
+      final Socket socket;
+      try {
+        socket = serverSocket.accept();
+      } catch (IOException e) {
+        if (!serverSocket.isClosed()) {
+          LOG.log(Level.WARNING, "Failed to accept connection: " + e.getMessage(), e);
+        }
+        continue;
+      }
+      connectionHandlers.execute(new Runnable() {
+        @Override
+        public void run() {
+          handleConnection(socket);
+        }
+      });
+    }
+  }
+
+  private void handleConnection(Socket socket) {
+    synchronized (connections) {
+      if (serverSocket.isClosed()) {
+        closeQuietly(socket);
+        return;
+      }
+      connections.add(socket);
+    }
+    // The blobs being uploaded on this connection, by digest.
+    Map<ByteString, Path> uploads = new HashMap<>();
+    try (Socket s = socket) {
+      InputStream in = new BufferedInputStream(s.getInputStream());
+      OutputStream out = new BufferedOutputStream(s.getOutputStream());
+      RemoteRequest request;
+      while ((request = RemoteRequest.parseDelimitedFrom(in)) != null) {
+        RemoteResponse response;
+        try {
+          response = handle(request, uploads);
+        } catch (IOException e) {
+          response = RemoteResponse.newBuilder().setError(String.valueOf(e.getMessage())).build();
+        }
+        response.writeDelimitedTo(out);
+        out.flush();
+      }
+    } catch (IOException e) {
+      LOG.log(Level.INFO, "Connection closed: " + e.getMessage(), e);
+    } finally {
+      synchronized (connections) {
+        connections.remove(socket);
+      }
+      for (Path partial : uploads.values()) {
+        try {
+          partial.delete();
+        } catch (IOException e) {
+          // Left for the next start of the server.
+        }
+      }
+    }
+  }
+
+  private static void closeQuietly(Socket socket) {
+    try {
+      socket.close();
+    } catch (IOException e) {
+      // Closing anyway.
+    }
+  }
+
+  private RemoteResponse handle(RemoteRequest request, Map<ByteString, Path> uploads)
+      throws IOException {
+    RemoteResponse.Builder response = RemoteResponse.newBuilder();
+    switch (request.getRequestCase()) {
+      case FIND_MISSING:
+        FindMissingResponse.Builder missing = FindMissingResponse.newBuilder();
+        for (ByteString digest : request.getFindMissing().getDigestsList()) {
+          if (!blobPath(digest).exists()) {
+            missing.addDigests(digest);
+          }
+        }
+        return response.setFindMissing(missing).build();
+      case UPLOAD:
+        putChunk(request.getUpload(), uploads);
+        return response.build();
+      case DOWNLOAD:
+        return response.setDownload(getChunk(request.getDownload())).build();
+      case EXECUTE:
+        return response.setExecute(execute(request.getExecute())).build();
+      default:
+        throw new IOException("Unknown request " + request.getRequestCase());
+    }
+  }
+
+  private Path blobPath(ByteString digest) {
+    return casDir.getChild(HEX.encode(digest.toByteArray()));
+  }
+
+  /**
+   * Appends a chunk to the blob being uploaded, and moves the blob into place once it is complete
+   * and its contents match its digest.
+   */
+  private void putChunk(Blob chunk, Map<ByteString, Path> uploads) throws IOException {
+    Path tmp = uploads.get(chunk.getDigest());
+    if (chunk.getOffset() == 0) {
+      if (tmp != null) {
+        tmp.delete();
+      }
+      tmp = casDir.getChild(UUID.randomUUID() + ".tmp");
+      FileSystemUtils.createEmptyFile(tmp);
+      uploads.put(chunk.getDigest(), tmp);
+    } else if (tmp == null || tmp.getFileSize() != chunk.getOffset()) {
+      throw new IOException("Chunk at offset " + chunk.getOffset() + " of "
+          + HEX.encode(chunk.getDigest().toByteArray()) + " was uploaded out of order");
+    }
+    try (OutputStream out = tmp.getOutputStream(true)) {
+      chunk.getContents().writeTo(out);
+    }
+    long end = chunk.getOffset() + chunk.getContents().size();
+    if (end > chunk.getSize()) {
+      throw new IOException("Upload of " + HEX.encode(chunk.getDigest().toByteArray())
+          + " is longer than its size");
+    }
+    if (end == chunk.getSize()) {
+      uploads.remove(chunk.getDigest());
+      try {
+        byte[] digest = digestFunction(chunk.getDigestFunction()).digest(tmp);
+        if (!chunk.getDigest().equals(ByteString.copyFrom(digest))) {
+          throw new IOException("Upload of " + HEX.encode(chunk.getDigest().toByteArray())
+              + " does not match its digest");
+        }
+        tmp.renameTo(blobPath(chunk.getDigest()));
+      } catch (IOException e) {
+        tmp.delete();
+        throw e;
+      }
+    }
+  }
+
+  private static DigestHashFunction digestFunction(String name) throws IOException {
+    try {
+      return DigestHashFunction.valueOf(name);
+    } catch (IllegalArgumentException e) {
+      throw new IOException("Unknown digest function '" + name + "'");
+    }
+  }
+
+  private Blob getChunk(DownloadRequest request) throws IOException {
+    ByteString digest = request.getDigest();
+    Path blob = blobPath(digest);
+    if (!blob.exists()) {
+      throw new IOException("No blob with digest " + HEX.encode(digest.toByteArray()));
+    }
+    long size = blob.getFileSize();
+    if (request.getOffset() < 0 || request.getOffset() > size) {
+      throw new IOException("Offset " + request.getOffset() + " is outside of "
+          + HEX.encode(digest.toByteArray()));
+    }
+    byte[] contents = new byte[(int) Math.min(RemoteClient.CHUNK_SIZE, size - request.getOffset())];
+    try (InputStream in = blob.getInputStream()) {
+      ByteStreams.skipFully(in, request.getOffset());
+      ByteStreams.readFully(in, contents);
+    }
+    return Blob.newBuilder()
+        .setDigest(digest)
+        .setContents(ByteString.copyFrom(contents))
+        .setOffset(request.getOffset())
+        .setSize(size)
+        .build();
+  }
+
+  /**
+   * Returns the path of {@code execPath} under {@code execRoot}, failing if it could be outside of
+   * it.
+   */
+  private static Path resolve(Path execRoot, String execPath) throws IOException {
+    PathFragment fragment = new PathFragment(execPath);
+    if (fragment.isAbsolute() || !fragment.isNormalized() || fragment.segmentCount() == 0) {
+      throw new IOException("'" + execPath + "' is not a relative path below the exec root");
+    }
+    return execRoot.getRelative(fragment);
+  }
+
+  private ExecuteResponse execute(ExecuteRequest request) throws IOException {
+    DigestHashFunction digestFunction = digestFunction(request.getDigestFunction());
+    Path cachedResult = acDir.getChild(HEX.encode(
+        digestFunction.getHashFunction().hashBytes(
+            request.toBuilder().setAcceptCached(false).build().toByteArray()).asBytes()));
+    if (request.getAcceptCached() && cachedResult.exists()) {
+      return ExecuteResponse.parseFrom(FileSystemUtils.readContent(cachedResult)).toBuilder()
+          .setCached(true)
+          .build();
+    }
+
+    Path execRoot = workDir.getChild(UUID.randomUUID().toString());
+    try {
+      for (FileEntry input : request.getInputsList()) {
+        Path blob = blobPath(input.getDigest());
+        if (!blob.exists()) {
+          throw new IOException("Input " + input.getPath() + " was not uploaded");
+        }
+        Path path = resolve(execRoot, input.getPath());
+        FileSystemUtils.createDirectoryAndParents(path.getParentDirectory());
+        FileSystemUtils.copyFile(blob, path);
+        path.setExecutable(input.getExecutable());
+      }
+      for (String output : request.getOutputPathsList()) {
+        FileSystemUtils.createDirectoryAndParents(resolve(execRoot, output).getParentDirectory());
+      }
+
+      Map<String, String> env = new HashMap<>();
+      for (EnvironmentVariable variable : request.getEnvironmentList()) {
+        env.put(variable.getName(), variable.getValue());
+      }
+      Command command = new Command(request.getArgumentsList().toArray(new String[0]), env,
+          execRoot.getPathFile());
+      CommandResult result;
+      try {
+        result = command.execute(new byte[0]);
+      } catch (AbnormalTerminationException e) {
+        result = e.getResult();
+      } catch (CommandException e) {
+        throw new IOException("Failed to run " + request.getArguments(0) + ": " + e.getMessage());
+      }
+      TerminationStatus status = result.getTerminationStatus();
+      ExecuteResponse.Builder response = ExecuteResponse.newBuilder()
+          .setExitCode(status.exited() ? status.getExitCode() : 128 + status.getTerminatingSignal())
+          .setStdout(ByteString.copyFrom(result.getStdout()))
+          .setStderr(ByteString.copyFrom(result.getStderr()));
+      for (String output : request.getOutputPathsList()) {
+        Path path = execRoot.getRelative(output);
+        if (!path.isFile(Symlinks.NOFOLLOW)) {
+          continue;
+        }
+        byte[] digest = digestFunction.digest(path);
+        boolean executable = path.isExecutable();
+        Path blob = casDir.getChild(HEX.encode(digest));
+        if (!blob.exists()) {
+          path.renameTo(blob);
+        }
+        response.addOutputs(FileEntry.newBuilder()
+            .setPath(output)
+            .setDigest(ByteString.copyFrom(digest))
+            .setExecutable(executable));
+      }
+      ExecuteResponse executeResponse = response.build();
+      if (executeResponse.getExitCode() == 0) {
+        Path tmp = acDir.getChild(UUID.randomUUID() + ".tmp");
+        FileSystemUtils.writeContent(tmp, executeResponse.toByteArray());
+        tmp.renameTo(cachedResult);
+      }
+      return executeResponse;
+    } finally {
+      FileSystemUtils.deleteTree(execRoot);
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    List<Socket> open;
+    synchronized (connections) {
+      serverSocket.close();
+      open = new ArrayList<>(connections);
+    }
+    // Unblocks the handlers waiting for the next request.
+    for (Socket socket : open) {
+      closeQuietly(socket);
+    }
+    connectionHandlers.shutdownNow();
+  }
+
+  /**
+   * Runs a server in the foreground. Usage: {@code LocalRemoteServer <directory> <port>}.
+   */
+  public static void main(String[] args) throws Exception {
+    if (args.length != 2) {
+      System.err.println("Usage: LocalRemoteServer <directory> <port>");
+      System.exit(2);
+    }
+    Path root = new JavaIoFileSystem().getPath(new File(args[0]).getAbsolutePath());
+    LocalRemoteServer server = new LocalRemoteServer(root, Integer.parseInt(args[1]));
+    System.err.println("Listening on " + server.getAddress());
+    server.acceptConnections();
+  }
+}
@@ -0,0 +1,171 @@
+// Copyright 2015 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.remote;
+
+import com.google.common.io.ByteStreams;
+import com.google.devtools.build.lib.remote.RemoteProtocol.Blob;
+import com.google.devtools.build.lib.remote.RemoteProtocol.DownloadRequest;
+import com.google.devtools.build.lib.remote.RemoteProtocol.ExecuteRequest;
+import com.google.devtools.build.lib.remote.RemoteProtocol.ExecuteResponse;
+import com.google.devtools.build.lib.remote.RemoteProtocol.FindMissingRequest;
+import com.google.devtools.build.lib.remote.RemoteProtocol.RemoteRequest;
+import com.google.devtools.build.lib.remote.RemoteProtocol.RemoteResponse;
+import com.google.devtools.build.lib.vfs.DigestHashFunction;
+import com.google.devtools.build.lib.vfs.Path;
+import com.google.protobuf.ByteString;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A connection to a remote execution server. Requests are sent one at a time; a client must not
+ * be shared by threads.
+ */
+final class RemoteClient implements Closeable {
+  /** The maximum size of the contents of a {@link Blob} message. */
+  static final int CHUNK_SIZE = 1 << 20;
+
+  private final Socket socket;
+  private final InputStream in;
+  private final OutputStream out;
+
+  private RemoteClient(Socket socket) throws IOException {
+    this.socket = socket;
+    this.in = new BufferedInputStream(socket.getInputStream());
+    this.out = new BufferedOutputStream(socket.getOutputStream());
+  }
+
+  /**
+   * Connects to the server at {@code address}, which has the form {@code host:port}. Connecting
+   * and every later wait for a response fail after {@code timeoutMillis}.
+   */
+  static RemoteClient connect(String address, int timeoutMillis) throws IOException {
+    int colon = address.lastIndexOf(':');
+    if (colon <= 0) {
+      throw new IOException("Remote executor address '" + address + "' is not of the form "
+          + "host:port");
+    }
+    int port;
+    try {
+      port = Integer.parseInt(address.substring(colon + 1));
+    } catch (NumberFormatException e) {
+      throw new IOException("Invalid port in remote executor address '" + address + "'", e);
+    }
+    Socket socket = new Socket();
+    try {
+      socket.connect(new InetSocketAddress(address.substring(0, colon), port), timeoutMillis);
+      socket.setSoTimeout(timeoutMillis);
+      socket.setTcpNoDelay(true);
+      return new RemoteClient(socket);
+    } catch (IOException e) {
+      socket.close();
+      throw e;
+    }
+  }
+
+  private RemoteResponse call(RemoteRequest request) throws IOException {
+    request.writeDelimitedTo(out);
+    out.flush();
+    RemoteResponse response = RemoteResponse.parseDelimitedFrom(in);
+    if (response == null) {
+      throw new IOException("Remote executor closed the connection");
+    }
+    if (!response.getError().isEmpty()) {
+      throw new IOException("Remote executor failed: " + response.getError());
+    }
+    return response;
+  }
+
+  /**
+   * Returns the digests among {@code digests} whose contents the server does not have.
+   */
+  List<ByteString> findMissing(Iterable<ByteString> digests) throws IOException {
+    return call(RemoteRequest.newBuilder()
+        .setFindMissing(FindMissingRequest.newBuilder().addAllDigests(digests))
+        .build())
+        .getFindMissing().getDigestsList();
+  }
+
+  /**
+   * Uploads the contents of {@code path}, whose digest computed with {@code digestFunction} is
+   * {@code digest}, in chunks.
+   */
+  void upload(ByteString digest, DigestHashFunction digestFunction, Path path)
+      throws IOException {
+    long size = path.getFileSize();
+    try (InputStream contents = path.getInputStream()) {
+      long offset = 0;
+      do {
+        byte[] chunk = new byte[(int) Math.min(CHUNK_SIZE, size - offset)];
+        ByteStreams.readFully(contents, chunk);
+        call(RemoteRequest.newBuilder()
+            .setUpload(Blob.newBuilder()
+                .setDigest(digest)
+                .setContents(ByteString.copyFrom(chunk))
+                .setOffset(offset)
+                .setSize(size)
+                .setDigestFunction(digestFunction.name()))
+            .build());
+        offset += chunk.length;
+      } while (offset < size);
+    }
+  }
+
+  /**
+   * Downloads the blob with the given digest into {@code target}, in chunks. Fails, deleting
+   * {@code target}, if the contents do not have that digest when computed with
+   * {@code digestFunction}.
+   */
+  void download(ByteString digest, DigestHashFunction digestFunction, Path target)
+      throws IOException {
+    try (OutputStream contents = target.getOutputStream()) {
+      long offset = 0;
+      long size;
+      do {
+        Blob blob = call(RemoteRequest.newBuilder()
+            .setDownload(DownloadRequest.newBuilder().setDigest(digest).setOffset(offset))
+            .build())
+            .getDownload();
+        if (!blob.getDigest().equals(digest) || blob.getOffset() != offset
+            || (blob.getContents().isEmpty() && offset < blob.getSize())) {
+          throw new IOException("Remote executor returned the wrong blob");
+        }
+        blob.getContents().writeTo(contents);
+        offset += blob.getContents().size();
+        size = blob.getSize();
+      } while (offset < size);
+    }
+    if (!Arrays.equals(digestFunction.digest(target), digest.toByteArray())) {
+      target.delete();
+      throw new IOException("Remote executor returned a blob that does not match its digest");
+    }
+  }
+
+  ExecuteResponse execute(ExecuteRequest request) throws IOException {
+    return call(RemoteRequest.newBuilder().setExecute(request).build()).getExecute();
+  }
+
+  @Override
+  public void close() throws IOException {
+    socket.close();
+  }
+}
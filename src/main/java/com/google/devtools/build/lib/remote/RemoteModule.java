@@ -0,0 +1,113 @@
+// Copyright 2015 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.remote;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.eventbus.Subscribe;
+import com.google.devtools.build.lib.actions.ActionContextProvider;
+import com.google.devtools.build.lib.buildtool.BuildRequest;
+import com.google.devtools.build.lib.buildtool.buildevent.BuildStartingEvent;
+import com.google.devtools.build.lib.events.Event;
+import com.google.devtools.build.lib.runtime.BlazeModule;
+import com.google.devtools.build.lib.runtime.BlazeRuntime;
+import com.google.devtools.build.lib.runtime.Command;
+import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.common.options.OptionsBase;
+
+import java.io.IOException;
+
+/**
+ * A module that provides the remote spawn strategy, and runs the reference server in-process if
+ * --experimental_remote_local_server_dir is set.
+ */
+public class RemoteModule extends BlazeModule {
+  private BuildRequest buildRequest;
+  private BlazeRuntime runtime;
+  private LocalRemoteServer localServer;
+
+  @Override
+  public Iterable<ActionContextProvider> getActionContextProviders() {
+    Preconditions.checkNotNull(buildRequest);
+    Preconditions.checkNotNull(runtime);
+
+    RemoteOptions options = buildRequest.getOptions(RemoteOptions.class);
+    String executorAddress = options.remoteExecutor;
+    if (executorAddress == null && options.remoteLocalServerDir != null) {
+      Path serverDir = runtime.getWorkspace().getRelative(options.remoteLocalServerDir);
+      try {
+        executorAddress = getLocalServer(serverDir).getAddress();
+      } catch (IOException e) {
+        runtime.getReporter().handle(Event.error(
+            "Couldn't start the local remote execution server: " + e.getMessage()));
+      }
+    }
+    if (executorAddress == null) {
+      return ImmutableList.of();
+    }
+    return ImmutableList.<ActionContextProvider>of(
+        new RemoteActionContextProvider(runtime.getExecRoot(), buildRequest, executorAddress));
+  }
+
+  /**
+   * Returns the in-process server for {@code serverDir}, starting it if necessary. The server
+   * keeps running across commands until the directory changes or Blaze shuts down.
+   */
+  private LocalRemoteServer getLocalServer(Path serverDir) throws IOException {
+    if (localServer != null && !localServer.getRoot().equals(serverDir)) {
+      localServer.close();
+      localServer = null;
+    }
+    if (localServer == null) {
+      localServer = new LocalRemoteServer(serverDir, 0);
+      localServer.start();
+    }
+    return localServer;
+  }
+
+  @Override
+  public Iterable<Class<? extends OptionsBase>> getCommandOptions(Command command) {
+    return command.builds()
+        ? ImmutableList.<Class<? extends OptionsBase>>of(RemoteOptions.class)
+        : ImmutableList.<Class<? extends OptionsBase>>of();
+  }
+
+  @Override
+  public void beforeCommand(BlazeRuntime runtime, Command command) {
+    this.runtime = runtime;
+    runtime.getEventBus().register(this);
+  }
+
+  @Subscribe
+  public void buildStarting(BuildStartingEvent event) {
+    buildRequest = event.getRequest();
+  }
+
+  @Override
+  public void afterCommand() {
+    buildRequest = null;
+  }
+
+  @Override
+  public void blazeShutdown() {
+    if (localServer != null) {
+      try {
+        localServer.close();
+      } catch (IOException e) {
+        // Shutting down anyway.
+      }
+      localServer = null;
+    }
+  }
+}
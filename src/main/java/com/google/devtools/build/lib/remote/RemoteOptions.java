@@ -0,0 +1,59 @@
+// Copyright 2015 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.remote;
+
+import com.google.devtools.build.lib.util.OptionsUtils;
+import com.google.devtools.build.lib.vfs.PathFragment;
+import com.google.devtools.common.options.Option;
+import com.google.devtools.common.options.OptionsBase;
+
+/**
+ * Options related to remote execution.
+ */
+public class RemoteOptions extends OptionsBase {
+  @Option(name = "remote_executor",
+      defaultValue = "null",
+      category = "strategy",
+      help = "The host:port of the server that runs spawns if you use the 'remote' strategy.")
+  public String remoteExecutor;
+
+  @Option(name = "experimental_remote_local_server_dir",
+      defaultValue = "null",
+      category = "strategy",
+      converter = OptionsUtils.PathFragmentConverter.class,
+      help = "If set, and --remote_executor is not, the 'remote' strategy runs spawns on a "
+          + "reference server inside the Blaze server, which keeps its blobs in this directory. "
+          + "Intended for testing.")
+  public PathFragment remoteLocalServerDir;
+
+  @Option(name = "remote_accept_cached",
+      defaultValue = "true",
+      category = "strategy",
+      help = "Whether to accept results of earlier identical spawns from the remote executor.")
+  public boolean remoteAcceptCached;
+
+  @Option(name = "remote_local_fallback",
+      defaultValue = "true",
+      category = "strategy",
+      help = "Whether to run spawns locally if the remote executor cannot be reached or cannot "
+          + "run them.")
+  public boolean remoteLocalFallback;
+
+  @Option(name = "remote_timeout",
+      defaultValue = "3600",
+      category = "strategy",
+      help = "The number of seconds to wait for the remote executor to connect or to answer a "
+          + "request, including running a spawn.")
+  public int remoteTimeoutSeconds;
+}
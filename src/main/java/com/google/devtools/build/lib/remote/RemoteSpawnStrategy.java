@@ -0,0 +1,231 @@
+// Copyright 2015 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.remote;
+
+import com.google.devtools.build.lib.actions.ActionExecutionContext;
+import com.google.devtools.build.lib.actions.ActionInput;
+import com.google.devtools.build.lib.actions.ActionInputFileCache;
+import com.google.devtools.build.lib.actions.ActionInputHelper;
+import com.google.devtools.build.lib.actions.EnvironmentalExecException;
+import com.google.devtools.build.lib.actions.ExecException;
+import com.google.devtools.build.lib.actions.ExecutionStrategy;
+import com.google.devtools.build.lib.actions.Executor;
+import com.google.devtools.build.lib.actions.Spawn;
+import com.google.devtools.build.lib.actions.SpawnActionContext;
+import com.google.devtools.build.lib.actions.UserExecException;
+import com.google.devtools.build.lib.events.Event;
+import com.google.devtools.build.lib.remote.RemoteProtocol.EnvironmentVariable;
+import com.google.devtools.build.lib.remote.RemoteProtocol.ExecuteRequest;
+import com.google.devtools.build.lib.remote.RemoteProtocol.ExecuteResponse;
+import com.google.devtools.build.lib.remote.RemoteProtocol.FileEntry;
+import com.google.devtools.build.lib.standalone.StandaloneSpawnStrategy;
+import com.google.devtools.build.lib.syntax.Label;
+import com.google.devtools.build.lib.util.CommandFailureUtils;
+import com.google.devtools.build.lib.util.io.FileOutErr;
+import com.google.devtools.build.lib.vfs.DigestHashFunction;
+import com.google.devtools.build.lib.vfs.FileSystemUtils;
+import com.google.devtools.build.lib.vfs.Path;
+import com.google.protobuf.ByteString;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Strategy that runs spawns on a remote executor. The contents of the inputs the executor does
+ * not have yet are uploaded, the command is run remotely and its outputs are downloaded into the
+ * exec root.
+ *
+ * <p>Spawns that are not remotable or that need runfiles are run locally, as are all spawns if
+ * the executor cannot be reached and --remote_local_fallback is set.
+ *
+ * <p>Connections to the executor are kept open and reused by later spawns until
+ * {@link #closeConnections} is called at the end of the execution phase.
+ */
+@ExecutionStrategy(name = { "remote" }, contextType = SpawnActionContext.class)
+final class RemoteSpawnStrategy implements SpawnActionContext {
+  private final String executorAddress;
+  private final boolean acceptCached;
+  private final boolean localFallback;
+  private final int timeoutMillis;
+  private final boolean verboseFailures;
+  private final StandaloneSpawnStrategy localStrategy;
+  private final Queue<RemoteClient> idleClients = new ConcurrentLinkedQueue<>();
+
+  RemoteSpawnStrategy(Path execRoot, String executorAddress, RemoteOptions options,
+      boolean verboseFailures) {
+    this.executorAddress = executorAddress;
+    this.acceptCached = options.remoteAcceptCached;
+    this.localFallback = options.remoteLocalFallback;
+    this.timeoutMillis = (int) TimeUnit.SECONDS.toMillis(options.remoteTimeoutSeconds);
+    this.verboseFailures = verboseFailures;
+    this.localStrategy = new StandaloneSpawnStrategy(execRoot, verboseFailures);
+  }
+
+  @Override
+  public void exec(Spawn spawn, ActionExecutionContext actionExecutionContext)
+      throws ExecException, InterruptedException {
+    if (!spawn.isRemotable() || !spawn.getRunfilesManifests().isEmpty()
+        || !spawn.getFilesetManifests().isEmpty()) {
+      localStrategy.exec(spawn, actionExecutionContext);
+      return;
+    }
+
+    Executor executor = actionExecutionContext.getExecutor();
+    if (executor.reportsSubcommands()) {
+      executor.reportSubcommand(
+          Label.print(spawn.getOwner().getLabel()) + " [" + spawn.getResourceOwner().prettyPrint()
+              + "]", spawn.asShellCommand(executor.getExecRoot()));
+    }
+
+    ExecuteResponse response;
+    try {
+      response = execRemotely(spawn, actionExecutionContext);
+    } catch (IOException e) {
+      if (!localFallback) {
+        throw new EnvironmentalExecException("Remote execution failed: " + e.getMessage(), e);
+      }
+      executor.getEventHandler().handle(Event.warn(spawn.getOwner().getLocation(),
+          "Remote execution failed, running locally: " + e.getMessage()));
+      localStrategy.exec(spawn, actionExecutionContext);
+      return;
+    }
+
+    FileOutErr outErr = actionExecutionContext.getFileOutErr();
+    try {
+      response.getStdout().writeTo(outErr.getOutputStream());
+      response.getStderr().writeTo(outErr.getErrorStream());
+    } catch (IOException e) {
+      throw new EnvironmentalExecException("Failed to write output of remote execution", e);
+    }
+    if (response.getExitCode() != 0) {
+      String message = CommandFailureUtils.describeCommandFailure(verboseFailures,
+          spawn.getArguments(), spawn.getEnvironment(), executor.getExecRoot().getPathString());
+      throw new UserExecException(
+          String.format("%s: remote command exited with %d", message, response.getExitCode()));
+    }
+  }
+
+  /**
+   * Runs {@code spawn} on the executor and, if it succeeds, downloads its outputs.
+   */
+  private ExecuteResponse execRemotely(Spawn spawn, ActionExecutionContext actionExecutionContext)
+      throws IOException {
+    ActionInputFileCache inputFileCache = actionExecutionContext.getActionInputFileCache();
+    DigestHashFunction digestFunction = DigestHashFunction.getDefault();
+    ExecuteRequest.Builder request = ExecuteRequest.newBuilder()
+        .addAllArguments(spawn.getArguments())
+        .setDigestFunction(digestFunction.name())
+        .setAcceptCached(acceptCached);
+    for (Map.Entry<String, String> variable : spawn.getEnvironment().entrySet()) {
+      request.addEnvironment(EnvironmentVariable.newBuilder()
+          .setName(variable.getKey())
+          .setValue(variable.getValue()));
+    }
+    Map<ByteString, ActionInput> inputsByDigest = new HashMap<>();
+    for (ActionInput input : ActionInputHelper.expandMiddlemen(
+        spawn.getInputFiles(), actionExecutionContext.getMiddlemanExpander())) {
+      ByteString digest = inputFileCache.getDigest(input);
+      if (digest == null) {
+        throw new IOException("Cannot compute the digest of " + input.getExecPathString());
+      }
+      inputsByDigest.put(digest, input);
+      request.addInputs(FileEntry.newBuilder()
+          .setPath(input.getExecPathString())
+          .setDigest(digest)
+          .setExecutable(inputFileCache.getInputPath(input).isExecutable()));
+    }
+    for (ActionInput output : spawn.getOutputFiles()) {
+      request.addOutputPaths(output.getExecPathString());
+    }
+
+    RemoteClient client = idleClients.poll();
+    if (client == null) {
+      client = RemoteClient.connect(executorAddress, timeoutMillis);
+    }
+    boolean reusable = false;
+    try {
+      for (ByteString digest : client.findMissing(inputsByDigest.keySet())) {
+        client.upload(digest, digestFunction,
+            inputFileCache.getInputPath(inputsByDigest.get(digest)));
+      }
+      ExecuteResponse response = client.execute(request.build());
+      if (response.getExitCode() == 0) {
+        downloadOutputs(client, digestFunction, response, spawn.getOutputFiles(),
+            actionExecutionContext.getExecutor().getExecRoot());
+      }
+      reusable = true;
+      return response;
+    } finally {
+      if (reusable) {
+        idleClients.add(client);
+      } else {
+        // The connection may be in the middle of a response.
+        client.close();
+      }
+    }
+  }
+
+  /**
+   * Downloads the outputs listed in {@code response} into {@code execRoot}. Fails if the executor
+   * returned a file that is not one of {@code outputFiles}, so that it cannot write anywhere else.
+   */
+  static void downloadOutputs(RemoteClient client, DigestHashFunction digestFunction,
+      ExecuteResponse response, Iterable<? extends ActionInput> outputFiles, Path execRoot)
+      throws IOException {
+    Map<String, ActionInput> expectedOutputs = new HashMap<>();
+    for (ActionInput output : outputFiles) {
+      expectedOutputs.put(output.getExecPathString(), output);
+    }
+    for (FileEntry output : response.getOutputsList()) {
+      ActionInput expected = expectedOutputs.get(output.getPath());
+      if (expected == null) {
+        throw new IOException("Remote executor returned '" + output.getPath()
+            + "', which is not an output of the command");
+      }
+      Path path = execRoot.getRelative(expected.getExecPathString());
+      FileSystemUtils.createDirectoryAndParents(path.getParentDirectory());
+      path.delete();
+      client.download(output.getDigest(), digestFunction, path);
+      path.setExecutable(output.getExecutable());
+    }
+  }
+
+  /**
+   * Closes the connections kept open for later spawns.
+   */
+  void closeConnections() {
+    RemoteClient client;
+    while ((client = idleClients.poll()) != null) {
+      try {
+        client.close();
+      } catch (IOException e) {
+        // Nothing left to do with it.
+      }
+    }
+  }
+
+  @Override
+  public String strategyLocality(String mnemonic, boolean remotable) {
+    return remotable ? "remote" : "standalone";
+  }
+
+  @Override
+  public boolean isRemotable(String mnemonic, boolean remotable) {
+    return remotable;
+  }
+}
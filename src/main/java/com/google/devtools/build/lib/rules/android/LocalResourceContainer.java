@@ -27,6 +27,7 @@ import com.google.devtools.build.lib.vfs.PathFragment;
 
 import java.util.Collection;
 import java.util.LinkedHashSet;
+import java.util.List;
 
 /**
  * The collected resources and assets artifacts and roots.
@@ -265,9 +266,10 @@ public final class LocalResourceContainer {
 
     private static PathFragment makeRelativeTo(PathFragment ancestor, PathFragment path) {
       String cutAtSegment = ancestor.getSegment(ancestor.segmentCount() - 1);
-      int totalPathSegments = path.segmentCount() - 1;
+      List<String> segments = path.getSegments();
+      int totalPathSegments = segments.size() - 1;
       for (int i = totalPathSegments; i >= 0; i--) {
-        if (path.getSegment(i).equals(cutAtSegment)) {
+        if (segments.get(i).equals(cutAtSegment)) {
           return path.subFragment(i, totalPathSegments);
         }
       }
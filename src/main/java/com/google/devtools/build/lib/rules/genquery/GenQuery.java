@@ -279,6 +279,7 @@ public class GenQuery implements RuleConfiguredTargetFactory {
               /*orderedResults=*/QueryOutputUtils.orderResults(queryOptions, formatter),
               /*universeScope=*/ImmutableList.<String>of(),
               /*loadingPhaseThreads=*/4,
+              /*queryThreads=*/1,
               labelFilter,
               getEventHandler(ruleContext),
               settings,
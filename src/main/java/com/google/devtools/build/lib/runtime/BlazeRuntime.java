@@ -32,9 +32,11 @@ import com.google.common.eventbus.SubscriberExceptionContext;
 import com.google.common.eventbus.SubscriberExceptionHandler;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.Uninterruptibles;
+import com.google.devtools.build.lib.actions.ActionHistory;
 import com.google.devtools.build.lib.actions.PackageRootResolver;
 import com.google.devtools.build.lib.actions.cache.ActionCache;
 import com.google.devtools.build.lib.actions.cache.CompactPersistentActionCache;
+import com.google.devtools.build.lib.actions.cache.MappedActionCache;
 import com.google.devtools.build.lib.actions.cache.NullActionCache;
 import com.google.devtools.build.lib.analysis.BlazeDirectories;
 import com.google.devtools.build.lib.analysis.BlazeVersionInfo;
@@ -50,6 +52,7 @@ import com.google.devtools.build.lib.analysis.config.ConfigurationFactory;
 import com.google.devtools.build.lib.analysis.config.DefaultsPackage;
 import com.google.devtools.build.lib.analysis.config.InvalidConfigurationException;
 import com.google.devtools.build.lib.buildtool.BuildTool;
+import com.google.devtools.build.lib.collect.nestedset.NestedSetBuilder;
 import com.google.devtools.build.lib.events.Event;
 import com.google.devtools.build.lib.events.OutputFilter;
 import com.google.devtools.build.lib.events.Reporter;
@@ -69,6 +72,7 @@ import com.google.devtools.build.lib.profiler.ProfilePhase;
 import com.google.devtools.build.lib.profiler.Profiler;
 import com.google.devtools.build.lib.profiler.Profiler.ProfiledTaskKinds;
 import com.google.devtools.build.lib.profiler.ProfilerTask;
+import com.google.devtools.build.lib.query2.RdepsIndex;
 import com.google.devtools.build.lib.query2.output.OutputFormatter;
 import com.google.devtools.build.lib.rules.test.CoverageReportActionFactory;
 import com.google.devtools.build.lib.runtime.commands.BuildCommand;
@@ -88,6 +92,7 @@ import com.google.devtools.build.lib.server.RPCServer;
 import com.google.devtools.build.lib.server.ServerCommand;
 import com.google.devtools.build.lib.server.signal.InterruptSignalHandler;
 import com.google.devtools.build.lib.skyframe.DiffAwareness;
+import com.google.devtools.build.lib.skyframe.PersistentGraphSupplier;
 import com.google.devtools.build.lib.skyframe.PrecomputedValue;
 import com.google.devtools.build.lib.skyframe.SequencedSkyframeExecutorFactory;
 import com.google.devtools.build.lib.skyframe.SkyValueDirtinessChecker;
@@ -104,12 +109,16 @@ import com.google.devtools.build.lib.util.OsUtils;
 import com.google.devtools.build.lib.util.ThreadUtils;
 import com.google.devtools.build.lib.util.io.OutErr;
 import com.google.devtools.build.lib.util.io.TimestampGranularityMonitor;
+import com.google.devtools.build.lib.vfs.BatchStat;
+import com.google.devtools.build.lib.vfs.DigestHashFunction;
 import com.google.devtools.build.lib.vfs.FileSystem;
 import com.google.devtools.build.lib.vfs.FileSystemUtils;
 import com.google.devtools.build.lib.vfs.JavaIoFileSystem;
 import com.google.devtools.build.lib.vfs.Path;
 import com.google.devtools.build.lib.vfs.PathFragment;
+import com.google.devtools.build.lib.vfs.UnixBatchStat;
 import com.google.devtools.build.lib.vfs.UnixFileSystem;
+import com.google.devtools.build.skyframe.InMemoryMemoizingEvaluator;
 import com.google.devtools.build.skyframe.SkyFunction;
 import com.google.devtools.build.skyframe.SkyFunctionName;
 import com.google.devtools.common.options.Option;
@@ -182,6 +191,8 @@ public final class BlazeRuntime {
   private final ConfiguredRuleClassProvider ruleClassProvider;
   private final BuildView view;
   private ActionCache actionCache;
+  private RdepsIndex rdepsIndex;
+  private ActionHistory actionHistory;
   private final TimestampGranularityMonitor timestampGranularityMonitor;
   private final Clock clock;
   private final BuildTool buildTool;
@@ -213,6 +224,9 @@ public final class BlazeRuntime {
 
   private final ProjectFile.Provider projectFileProvider;
 
+  // Non-null if the Skyframe graph is restored from and saved to the output base.
+  @Nullable private final PersistentGraphSupplier persistentGraphSupplier;
+
   private class BlazeModuleEnvironment implements BlazeModule.ModuleEnvironment {
     @Override
     public Path getFileFromDepot(Label label)
@@ -239,7 +253,8 @@ public final class BlazeRuntime {
       Map<String, String> clientEnv,
       TimestampGranularityMonitor timestampGranularityMonitor,
       SubscriberExceptionHandler eventBusExceptionHandler,
-      BinTools binTools, ProjectFile.Provider projectFileProvider) {
+      BinTools binTools, ProjectFile.Provider projectFileProvider,
+      @Nullable PersistentGraphSupplier persistentGraphSupplier) {
     this.workspaceStatusActionFactory = workspaceStatusActionFactory;
     this.directories = directories;
     this.workingDirectory = directories.getWorkspace();
@@ -247,6 +262,7 @@ public final class BlazeRuntime {
     this.packageFactory = pkgFactory;
     this.binTools = binTools;
     this.projectFileProvider = projectFileProvider;
+    this.persistentGraphSupplier = persistentGraphSupplier;
 
     this.skyframeExecutor = skyframeExecutor;
     this.packageRootResolver = new SkyframePackageRootResolver(skyframeExecutor);
@@ -633,6 +649,15 @@ public final class BlazeRuntime {
         return actionCache;
       }
       long startTime = Profiler.nanoTimeMaybe();
+      if (startupOptionsProvider.getOptions(BlazeServerStartupOptions.class).mmapActionCache) {
+        try {
+          // Opening only maps the files; unreadable files are discarded by the cache itself.
+          actionCache = new MappedActionCache(getCacheDirectory());
+          return actionCache;
+        } finally {
+          Profiler.instance().logSimpleTask(startTime, ProfilerTask.INFO, "Loading action cache");
+        }
+      }
       try {
         actionCache = new CompactPersistentActionCache(getCacheDirectory(), clock);
       } catch (IOException e) {
@@ -656,6 +681,40 @@ public final class BlazeRuntime {
     return actionCache;
   }
 
+  /**
+   * Returns the lazily instantiated index of reverse dependencies used by queries. The same
+   * instance is kept for the lifetime of the server, as it learns about changed files from the
+   * Skyframe executor.
+   */
+  public RdepsIndex getRdepsIndex() throws IOException {
+    if (rdepsIndex == null) {
+      long startTime = Profiler.nanoTimeMaybe();
+      try {
+        rdepsIndex = new RdepsIndex(getOutputBase().getChild("query_index"));
+      } finally {
+        Profiler.instance().logSimpleTask(startTime, ProfilerTask.INFO, "Loading rdeps index");
+      }
+      skyframeExecutor.addModifiedFilesListener(rdepsIndex);
+    }
+    return rdepsIndex;
+  }
+
+  /**
+   * Returns the lazily instantiated history of action executions. The same instance is kept for
+   * the lifetime of the server.
+   */
+  public ActionHistory getActionHistory() throws IOException {
+    if (actionHistory == null) {
+      long startTime = Profiler.nanoTimeMaybe();
+      try {
+        actionHistory = new ActionHistory(getOutputBase().getChild("action_history"));
+      } finally {
+        Profiler.instance().logSimpleTask(startTime, ProfilerTask.INFO, "Loading action history");
+      }
+    }
+    return actionHistory;
+  }
+
   /**
    * Removes in-memory caches.
    */
@@ -663,6 +722,12 @@ public final class BlazeRuntime {
     clearSkyframeRelevantCaches();
     actionCache = null;
     FileSystemUtils.deleteTree(getCacheDirectory());
+    if (rdepsIndex != null) {
+      rdepsIndex.clear();
+    }
+    if (actionHistory != null) {
+      actionHistory.clear();
+    }
   }
 
   /** Removes skyframe cache and other caches that must be kept synchronized with skyframe. */
@@ -699,6 +764,18 @@ public final class BlazeRuntime {
     return projectFileProvider;
   }
 
+  /**
+   * Returns a batch statter for the local file system, or null if it has none. Checking the
+   * outputs of a large build for modifications then takes one JNI call per thousand files instead
+   * of one per file.
+   */
+  @Nullable
+  private BatchStat getLocalBatchStatter() {
+    return directories.getFileSystem() instanceof UnixFileSystem
+        ? new UnixBatchStat(directories.getExecRoot())
+        : null;
+  }
+
   /**
    * Hook method called by the BlazeCommandDispatcher prior to the dispatch of
    * each command.
@@ -731,7 +808,7 @@ public final class BlazeRuntime {
     }
 
     skyframeExecutor.setBatchStatter(outputService == null
-        ? null
+        ? getLocalBatchStatter()
         : outputService.getBatchStatter());
 
     outputFileSystem = determineOutputFileSystem();
@@ -1018,6 +1095,13 @@ public final class BlazeRuntime {
     for (BlazeModule module : blazeModules) {
       module.blazeShutdown();
     }
+    if (persistentGraphSupplier != null) {
+      try {
+        LOG.info("Saved " + persistentGraphSupplier.save() + " Skyframe nodes");
+      } catch (IOException e) {
+        LOG.warning("Failed to save the Skyframe graph: " + e.getMessage());
+      }
+    }
   }
 
   /**
@@ -1464,6 +1548,9 @@ public final class BlazeRuntime {
       fs = fileSystemImplementation();
     }
     Path.setFileSystemForSerialization(fs);
+    DigestHashFunction.setDefault(startupOptions.digestFunction);
+    NestedSetBuilder.setInterning(startupOptions.internNestedSets);
+    NestedSetBuilder.setExpansionCacheSize(startupOptions.nestedSetExpansionCacheSize);
 
     Path installBasePath = fs.getPath(installBase);
     Path outputBasePath = fs.getPath(outputBase);
@@ -1745,6 +1832,18 @@ public final class BlazeRuntime {
               skyFunctions.build(),
               precomputedValues.build(),
               customDirtinessCheckers.build());
+      PersistentGraphSupplier persistentGraphSupplier = null;
+      if (startupOptionsProvider != null) {
+        BlazeServerStartupOptions startupOptions =
+            startupOptionsProvider.getOptions(BlazeServerStartupOptions.class);
+        if (startupOptions.persistentSkyframeGraph) {
+          persistentGraphSupplier = new PersistentGraphSupplier(
+              directories.getOutputBase().getChild("skyframe_graph"));
+          skyframeExecutor.setEvaluatorSupplier(persistentGraphSupplier);
+        } else if (startupOptions.compactSkyframeGraph) {
+          skyframeExecutor.setEvaluatorSupplier(InMemoryMemoizingEvaluator.COMPACT_SUPPLIER);
+        }
+      }
 
       if (configurationFactory == null) {
         configurationFactory = new ConfigurationFactory(
@@ -1766,7 +1865,7 @@ public final class BlazeRuntime {
           pkgFactory, ruleClassProvider, configurationFactory,
           clock, startupOptionsProvider, ImmutableList.copyOf(blazeModules),
           clientEnv, timestampMonitor,
-          eventBusExceptionHandler, binTools, projectFileProvider);
+          eventBusExceptionHandler, binTools, projectFileProvider, persistentGraphSupplier);
     }
 
     public Builder setBinTools(BinTools binTools) {
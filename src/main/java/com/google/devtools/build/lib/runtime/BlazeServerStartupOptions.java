@@ -15,6 +15,7 @@ package com.google.devtools.build.lib.runtime;
 
 import com.google.common.collect.ImmutableMap;
 import com.google.devtools.build.lib.util.OptionsUtils;
+import com.google.devtools.build.lib.vfs.DigestHashFunction;
 import com.google.devtools.build.lib.vfs.PathFragment;
 import com.google.devtools.common.options.Converter;
 import com.google.devtools.common.options.Option;
@@ -235,6 +236,53 @@ public class BlazeServerStartupOptions extends OptionsBase {
           + "changes instead of scanning every file for a change.")
   public boolean watchFS;
 
+  @Option(name = "digest_function",
+      defaultValue = "MD5",
+      category = "undocumented",
+      converter = DigestHashFunction.Converter.class,
+      help = "The function used to digest the contents of files: MD5, SHA1, SHA256, or "
+          + "MURMUR3_TREE, a fast non-cryptographic hash of the file in chunks that are digested "
+          + "in parallel. Only use MURMUR3_TREE if digests are not shared with untrusted parties.")
+  public DigestHashFunction digestFunction;
+
+  @Option(name = "experimental_mmap_action_cache",
+      defaultValue = "false",
+      category = "undocumented",
+      help = "If true, Blaze keeps the action cache in memory-mapped files that are not loaded "
+          + "into the heap at startup, and updates them without a global lock.")
+  public boolean mmapActionCache;
+
+  @Option(name = "experimental_compact_skyframe_graph",
+      defaultValue = "false",
+      category = "undocumented",
+      help = "If true, Skyframe stores the edges of its graph as varint-encoded ids instead of "
+          + "references, which takes less memory but more CPU to traverse.")
+  public boolean compactSkyframeGraph;
+
+  @Option(name = "experimental_persistent_skyframe_graph",
+      defaultValue = "false",
+      category = "undocumented",
+      help = "If true, the Skyframe graph is written to the output base when the server shuts down "
+          + "and restored by the next server, so that its first build is incremental. Takes "
+          + "precedence over --experimental_compact_skyframe_graph.")
+  public boolean persistentSkyframeGraph;
+
+  @Option(name = "experimental_intern_nested_sets",
+      defaultValue = "false",
+      category = "undocumented",
+      help = "If true, nested sets built during analysis are interned by content, so that equal "
+          + "sets share one instance. Reduces memory use for deep dependency trees at the cost of "
+          + "a lookup per built set.")
+  public boolean internNestedSets;
+
+  @Option(name = "experimental_nested_set_expansion_cache_size",
+      defaultValue = "0",
+      category = "undocumented",
+      help = "The maximum total number of elements in the cached expansions of large nested sets, "
+          + "such as the classpaths and link inputs that many actions share. Cached expansions "
+          + "are held as long as their nested set is reachable. 0 disables the cache.")
+  public int nestedSetExpansionCacheSize;
+
   @Option(name = "use_webstatusserver",
       defaultValue = "0",
       category = "server startup",
@@ -14,15 +14,24 @@
 package com.google.devtools.build.lib.runtime;
 
 import com.google.common.base.Joiner;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Iterables;
 import com.google.common.eventbus.EventBus;
 import com.google.common.eventbus.Subscribe;
+import com.google.devtools.build.lib.actions.Action;
+import com.google.devtools.build.lib.actions.ActionHistory;
+import com.google.devtools.build.lib.actions.ActionMetadata;
+import com.google.devtools.build.lib.actions.ResourceManager;
 import com.google.devtools.build.lib.buildtool.buildevent.BuildCompleteEvent;
 import com.google.devtools.build.lib.buildtool.buildevent.ExecutionStartingEvent;
 import com.google.devtools.build.lib.events.Event;
 import com.google.devtools.build.lib.events.Reporter;
+import com.google.devtools.build.lib.exec.ExecutionOptions;
 import com.google.devtools.build.lib.profiler.Profiler;
 import com.google.devtools.build.lib.profiler.ProfilerTask;
+import com.google.devtools.build.lib.skyframe.SkyframeExecutor;
 import com.google.devtools.build.lib.util.BlazeClock;
+import com.google.devtools.common.options.OptionsProvider;
 
 import java.util.ArrayList;
 import java.util.List;
@@ -36,21 +45,62 @@ public class BuildSummaryStatsModule extends BlazeModule {
 
   private static final Logger LOG = Logger.getLogger(BuildSummaryStatsModule.class.getName());
 
+  // The number of actions that became slower than in previous builds shown to the user.
+  private static final int REPORTED_REGRESSIONS = 5;
+
+  // Kept for the lifetime of the server, so that each build is prioritized by the previous ones.
+  private final CriticalPathHistory criticalPathHistory = new CriticalPathHistory();
+
   private SimpleCriticalPathComputer criticalPathComputer;
   private EventBus eventBus;
   private Reporter reporter;
+  private SkyframeExecutor skyframeExecutor;
+  private boolean prioritizeCriticalPath;
 
   @Override
   public void beforeCommand(BlazeRuntime runtime, Command command) {
     this.reporter = runtime.getReporter();
     this.eventBus = runtime.getEventBus();
+    this.skyframeExecutor = runtime.getSkyframeExecutor();
     eventBus.register(this);
   }
 
+  @Override
+  public void handleOptions(OptionsProvider optionsProvider) {
+    ExecutionOptions options = optionsProvider.getOptions(ExecutionOptions.class);
+    prioritizeCriticalPath = options != null && options.prioritizeCriticalPath;
+  }
+
   @Subscribe
   public void executionPhaseStarting(ExecutionStartingEvent event) {
-    criticalPathComputer = new SimpleCriticalPathComputer(BlazeClock.instance());
-    eventBus.register(criticalPathComputer);
+    final SimpleCriticalPathComputer computer = new SimpleCriticalPathComputer(
+        BlazeClock.instance(), /*recordDependencies=*/prioritizeCriticalPath);
+    criticalPathComputer = computer;
+    eventBus.register(computer);
+    if (prioritizeCriticalPath) {
+      // Ready actions with the longest remaining critical paths in previous builds are executed
+      // first, since they are the likeliest to be on the critical path of this build.
+      final ResourceManager.Prioritizer byHistory = new ResourceManager.Prioritizer() {
+        @Override
+        public long getPriority(ActionMetadata owner) {
+          return owner instanceof Action
+              ? criticalPathHistory.getRemainingPathNanos((Action) owner)
+              : -1;
+        }
+      };
+      skyframeExecutor.setActionPrioritizer(byHistory);
+      // Actions waiting for resources that are new to the history are ranked by the critical
+      // path behind them instead, which is known without a history.
+      ResourceManager.instance().setPrioritizer(new ResourceManager.Prioritizer() {
+        @Override
+        public long getPriority(ActionMetadata owner) {
+          long priority = byHistory.getPriority(owner);
+          return priority >= 0 || !(owner instanceof Action)
+              ? priority
+              : computer.getInputsCriticalPathNanos((Action) owner);
+        }
+      });
+    }
   }
 
   @Subscribe
@@ -78,11 +128,30 @@ public class BuildSummaryStatsModule extends BlazeModule {
               ProfilerTask.CRITICAL_PATH_COMPONENT, stat.getAction());
         }
         Profiler.instance().completeTask(ProfilerTask.CRITICAL_PATH);
+        criticalPathHistory.record(criticalPathComputer);
+      }
+
+      List<ActionHistory.Regression> regressions = ImmutableList.of();
+      ActionHistory actionHistory = ResourceManager.instance().getActionHistory();
+      if (actionHistory != null) {
+        regressions = actionHistory.getRegressions();
+        if (!regressions.isEmpty()) {
+          items.add(regressions.size() + " actions slower than in previous builds");
+          LOG.info("Slower actions:\n  " + Joiner.on("\n  ").join(regressions));
+        }
       }
 
       reporter.handle(Event.info(Joiner.on(", ").join(items)));
+      if (!regressions.isEmpty()) {
+        reporter.handle(Event.info("Slowest regressions:\n  " + Joiner.on("\n  ")
+            .join(Iterables.limit(regressions, REPORTED_REGRESSIONS))));
+      }
     } finally {
       criticalPathComputer = null;
+      ResourceManager.instance().setPrioritizer(null);
+      if (prioritizeCriticalPath) {
+        skyframeExecutor.setActionPrioritizer(null);
+      }
     }
   }
 }
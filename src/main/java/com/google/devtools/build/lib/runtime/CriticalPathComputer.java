@@ -30,9 +30,12 @@ import com.google.devtools.build.lib.util.Clock;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.List;
 import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ConcurrentMap;
 
+import javax.annotation.Nullable;
 import javax.annotation.concurrent.ThreadSafe;
 
 /**
@@ -70,9 +73,39 @@ public abstract class CriticalPathComputer<C extends AbstractCriticalPathCompone
 
   private final Object lock = new Object();
 
+  /** A completed component with the components that generated its inputs. */
+  static final class Completion<C> {
+    final C component;
+    /** False if the action was a cache hit. */
+    final boolean executed;
+    final List<C> deps;
+
+    Completion(C component, boolean executed, List<C> deps) {
+      this.component = component;
+      this.executed = executed;
+      this.deps = deps;
+    }
+  }
+
+  /**
+   * The completed components in the order of their completion, if dependencies are recorded. An
+   * action completes after all actions it depends on.
+   */
+  @Nullable private final ConcurrentLinkedQueue<Completion<C>> completions;
+
   protected CriticalPathComputer(Clock clock) {
+    this(clock, /*recordDependencies=*/false);
+  }
+
+  /**
+   * @param recordDependencies whether to record which components each component depends on, for
+   *     {@link CriticalPathHistory}. This retains an object per dependency until the computer is
+   *     discarded.
+   */
+  protected CriticalPathComputer(Clock clock, boolean recordDependencies) {
     this.clock = clock;
     maxCriticalPath = null;
+    completions = recordDependencies ? new ConcurrentLinkedQueue<Completion<C>>() : null;
   }
 
   /**
@@ -113,7 +146,7 @@ public abstract class CriticalPathComputer<C extends AbstractCriticalPathCompone
   public void middlemanAction(ActionMiddlemanEvent event) {
     Action action = event.getAction();
     C component = tryAddComponent(createComponent(action, event.getNanoTimeStart()));
-    finalizeActionStat(event.getNanoTimeStart(), action, component);
+    finalizeActionStat(event.getNanoTimeStart(), action, component, /*executed=*/true);
   }
 
   /**
@@ -163,7 +196,7 @@ public abstract class CriticalPathComputer<C extends AbstractCriticalPathCompone
   public void actionCached(CachedActionEvent event) {
     Action action = event.getAction();
     C component = tryAddComponent(createComponent(action, event.getNanoTimeStart()));
-    finalizeActionStat(event.getNanoTimeStart(), action, component);
+    finalizeActionStat(event.getNanoTimeStart(), action, component, /*executed=*/false);
   }
 
   /**
@@ -175,7 +208,7 @@ public abstract class CriticalPathComputer<C extends AbstractCriticalPathCompone
     Action action = event.getAction();
     C component = Preconditions.checkNotNull(
         outputArtifactToComponent.get(action.getPrimaryOutput()));
-    finalizeActionStat(event.getRelativeActionStartTime(), action, component);
+    finalizeActionStat(event.getRelativeActionStartTime(), action, component, /*executed=*/true);
   }
 
   /** Maximum critical path component found during the build. */
@@ -185,6 +218,21 @@ public abstract class CriticalPathComputer<C extends AbstractCriticalPathCompone
     }
   }
 
+  /**
+   * Returns the length of the longest critical path that ends in a generated input of the action,
+   * or 0 if no input has been generated by a completed action during this build.
+   */
+  public long getInputsCriticalPathNanos(Action action) {
+    long max = 0;
+    for (Artifact input : action.getInputs()) {
+      C depComponent = outputArtifactToComponent.get(input);
+      if (depComponent != null && !depComponent.isRunning) {
+        max = Math.max(max, depComponent.getAggregatedElapsedTimeNanos());
+      }
+    }
+    return max;
+  }
+
   /**
    * The list of slowest individual components, ignoring the time to build dependencies.
    */
@@ -197,11 +245,29 @@ public abstract class CriticalPathComputer<C extends AbstractCriticalPathCompone
     return ImmutableList.copyOf(list).reverse();
   }
 
-  private void finalizeActionStat(long startTimeNanos, Action action, C component) {
+  /**
+   * Returns the completed components in the order of their completion, with the components they
+   * depend on, or an empty list if dependencies are not recorded.
+   */
+  List<Completion<C>> getCompletions() {
+    return completions == null
+        ? ImmutableList.<Completion<C>>of()
+        : ImmutableList.copyOf(completions);
+  }
+
+  private void finalizeActionStat(long startTimeNanos, Action action, C component,
+      boolean executed) {
     boolean updated = component.finishActionExecution(startTimeNanos, clock.nanoTime());
 
+    List<C> deps = completions == null ? null : new ArrayList<C>();
     for (Artifact input : action.getInputs()) {
-      addArtifactDependency(component, input);
+      C depComponent = addArtifactDependency(component, input);
+      if (deps != null && depComponent != null) {
+        deps.add(depComponent);
+      }
+    }
+    if (completions != null) {
+      completions.add(new Completion<>(component, executed, deps));
     }
 
     synchronized (lock) {
@@ -240,12 +306,16 @@ public abstract class CriticalPathComputer<C extends AbstractCriticalPathCompone
 
   /**
    * If "input" is a generated artifact, link its critical path to the one we're building.
+   *
+   * @return the component that generated the input, or null if there is none
    */
-  private void addArtifactDependency(C actionStats, Artifact input) {
+  @Nullable
+  private C addArtifactDependency(C actionStats, Artifact input) {
     C depComponent = outputArtifactToComponent.get(input);
     if (depComponent != null) {
       actionStats.addDepInfo(depComponent);
     }
+    return depComponent;
   }
 }
 
@@ -0,0 +1,83 @@
+// Copyright 2015 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.runtime;
+
+import com.google.devtools.build.lib.actions.Action;
+import com.google.devtools.build.lib.concurrent.ThreadSafety.ThreadSafe;
+import com.google.devtools.build.lib.vfs.PathFragment;
+
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Remembers, from one build to the next, the remaining critical path of each action: the time from
+ * the start of the action to the end of the longest chain of actions that depended on it. Starting
+ * the actions with the longest remaining paths first shortens builds that are bound by a chain of
+ * actions, as long as the action graph does not change much between builds.
+ *
+ * <p>Actions are identified by the exec paths of their primary outputs.
+ */
+@ThreadSafe
+public final class CriticalPathHistory {
+
+  // The durations of the last executions of actions, for actions that are cache hits later on.
+  private final ConcurrentMap<PathFragment, Long> elapsedNanos = new ConcurrentHashMap<>();
+  private final ConcurrentMap<PathFragment, Long> remainingPathNanos = new ConcurrentHashMap<>();
+
+  /**
+   * Returns the remaining critical path of the action in the last recorded build that completed
+   * it, or -1 if there is none.
+   */
+  public long getRemainingPathNanos(Action action) {
+    Long nanos = remainingPathNanos.get(action.getPrimaryOutput().getExecPath());
+    return nanos == null ? -1 : nanos;
+  }
+
+  /**
+   * Records the remaining critical paths of the actions that the computer saw complete. Actions
+   * that were cache hits count with the duration of their last recorded execution, so that an
+   * incremental build does not make the chains it did not execute look short.
+   */
+  <C extends AbstractCriticalPathComponent<C>> void record(CriticalPathComputer<C, ?> computer) {
+    List<CriticalPathComputer.Completion<C>> completions = computer.getCompletions();
+    // The longest remaining path of the components that depend on each component. Visiting
+    // components in reverse completion order visits all dependents of a component before it.
+    Map<C, Long> dependentsPathNanos = new IdentityHashMap<>();
+    for (int i = completions.size() - 1; i >= 0; i--) {
+      CriticalPathComputer.Completion<C> completion = completions.get(i);
+      PathFragment key = completion.component.getAction().getPrimaryOutput().getExecPath();
+      long elapsed = completion.component.getElapsedTimeNanos();
+      if (completion.executed) {
+        elapsedNanos.put(key, elapsed);
+      } else {
+        Long lastElapsed = elapsedNanos.get(key);
+        if (lastElapsed != null) {
+          elapsed = lastElapsed;
+        }
+      }
+      Long dependentsPath = dependentsPathNanos.get(completion.component);
+      long remainingPath = elapsed + (dependentsPath == null ? 0 : dependentsPath);
+      remainingPathNanos.put(key, remainingPath);
+      for (C dep : completion.deps) {
+        Long depDependentsPath = dependentsPathNanos.get(dep);
+        if (depDependentsPath == null || depDependentsPath < remainingPath) {
+          dependentsPathNanos.put(dep, remainingPath);
+        }
+      }
+    }
+  }
+}
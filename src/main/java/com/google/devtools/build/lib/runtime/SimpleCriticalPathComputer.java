@@ -28,6 +28,10 @@ public class SimpleCriticalPathComputer
     super(clock);
   }
 
+  public SimpleCriticalPathComputer(Clock clock, boolean recordDependencies) {
+    super(clock, recordDependencies);
+  }
+
   @Override
   public SimpleCriticalPathComponent createComponent(Action action, long relativeStartNanos) {
     return new SimpleCriticalPathComponent(action, relativeStartNanos);
@@ -21,12 +21,18 @@ import com.google.devtools.build.lib.events.Event;
 import com.google.devtools.build.lib.packages.Target;
 import com.google.devtools.build.lib.pkgcache.PackageCacheOptions;
 import com.google.devtools.build.lib.query2.AbstractBlazeQueryEnvironment;
+import com.google.devtools.build.lib.query2.IndexedRdepsFunction;
+import com.google.devtools.build.lib.query2.RdepsIndex;
+import com.google.devtools.build.lib.query2.engine.Callback;
 import com.google.devtools.build.lib.query2.engine.QueryEnvironment.QueryFunction;
 import com.google.devtools.build.lib.query2.engine.QueryEnvironment.Setting;
 import com.google.devtools.build.lib.query2.engine.QueryEvalResult;
 import com.google.devtools.build.lib.query2.engine.QueryException;
 import com.google.devtools.build.lib.query2.engine.QueryExpression;
+import com.google.devtools.build.lib.query2.output.AspectResolver;
 import com.google.devtools.build.lib.query2.output.OutputFormatter;
+import com.google.devtools.build.lib.query2.output.OutputFormatter.StreamedFormatter;
+import com.google.devtools.build.lib.query2.output.OutputFormatterCallback;
 import com.google.devtools.build.lib.query2.output.QueryOptions;
 import com.google.devtools.build.lib.query2.output.QueryOutputUtils;
 import com.google.devtools.build.lib.runtime.BlazeCommand;
@@ -43,6 +49,9 @@ import java.io.PrintStream;
 import java.nio.channels.ClosedByInterruptException;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.annotation.Nullable;
 
 /**
  * Command line wrapper for executing a query with blaze.
@@ -104,13 +113,23 @@ public final class QueryCommand implements BlazeCommand {
 
     String query = Joiner.on(' ').join(options.getResidue());
 
+    RdepsIndex rdepsIndex = null;
+    if (queryOptions.useRdepsIndex && queryOptions.universeScope.isEmpty()) {
+      try {
+        rdepsIndex = runtime.getRdepsIndex();
+      } catch (IOException e) {
+        runtime.getReporter().handle(Event.warn("Failed to load the rdeps index: "
+            + e.getMessage() + "; rdeps queries will load their universe"));
+      }
+    }
+
     Set<Setting> settings = queryOptions.toSettings();
     AbstractBlazeQueryEnvironment<Target> env = newQueryEnvironment(
         runtime,
         queryOptions.keepGoing,
         QueryOutputUtils.orderResults(queryOptions, formatter),
-        queryOptions.universeScope, queryOptions.loadingPhaseThreads,
-        settings);
+        queryOptions.universeScope, queryOptions.loadingPhaseThreads, queryOptions.queryThreads,
+        settings, rdepsIndex);
 
     // 1. Parse query:
     QueryExpression expr;
@@ -122,6 +141,13 @@ public final class QueryCommand implements BlazeCommand {
       return ExitCode.COMMAND_LINE_ERROR;
     }
 
+    AspectResolver aspectResolver =
+        queryOptions.aspectDeps.createResolver(runtime.getPackageManager(), runtime.getReporter());
+    if (QueryOutputUtils.streamResults(queryOptions, formatter)) {
+      return evaluateAndStream(runtime, env, expr, queryOptions, (StreamedFormatter) formatter,
+          aspectResolver);
+    }
+
     // 2. Evaluate expression:
     QueryEvalResult<Target> result;
     try {
@@ -140,9 +166,7 @@ public final class QueryCommand implements BlazeCommand {
     // 3. Output results:
     PrintStream output = new PrintStream(runtime.getReporter().getOutErr().getOutputStream());
     try {
-      QueryOutputUtils.output(queryOptions, result, formatter, output,
-          queryOptions.aspectDeps.createResolver(
-              runtime.getPackageManager(), runtime.getReporter()));
+      QueryOutputUtils.output(queryOptions, result, formatter, output, aspectResolver);
     } catch (ClosedByInterruptException | InterruptedException e) {
       runtime.getReporter().handle(Event.error("query interrupted"));
       return ExitCode.INTERRUPTED;
@@ -159,6 +183,59 @@ public final class QueryCommand implements BlazeCommand {
     return result.getSuccess() ? ExitCode.SUCCESS : ExitCode.PARTIAL_ANALYSIS_FAILURE;
   }
 
+  /**
+   * Evaluates the query and writes each batch of the result as soon as it is computed, so that
+   * output starts early and the result is never held in memory as a whole.
+   */
+  private static ExitCode evaluateAndStream(BlazeRuntime runtime,
+      AbstractBlazeQueryEnvironment<Target> env, QueryExpression expr, QueryOptions queryOptions,
+      StreamedFormatter formatter, AspectResolver aspectResolver) {
+    // Results are written during evaluation, so switch the handler before evaluating.
+    runtime.getReporter().switchToAnsiAllowingHandler();
+    PrintStream output = new PrintStream(runtime.getReporter().getOutErr().getOutputStream());
+    final OutputFormatterCallback<Target> formatterCallback =
+        formatter.createStreamCallback(queryOptions, output, aspectResolver);
+    final AtomicBoolean empty = new AtomicBoolean(true);
+    boolean success;
+    try {
+      success = env.evaluateQuery(expr, new Callback<Target>() {
+        @Override
+        public void process(Iterable<Target> partialResult)
+            throws QueryException, InterruptedException {
+          empty.set(false);
+          formatterCallback.process(partialResult);
+        }
+      });
+      formatterCallback.close();
+    } catch (QueryException | InterruptedException e) {
+      if (formatterCallback.getIoException() != null) {
+        return handleOutputError(runtime, formatterCallback.getIoException());
+      }
+      // Keep consistent with reportBuildFileError()
+      runtime.getReporter().handle(Event.error(
+          e.getMessage() == null ? e.toString() : e.getMessage()));
+      return ExitCode.ANALYSIS_FAILURE;
+    } catch (IOException e) {
+      return handleOutputError(runtime, e);
+    } finally {
+      output.flush();
+    }
+    if (empty.get()) {
+      runtime.getReporter().handle(Event.info("Empty results"));
+    }
+
+    return success ? ExitCode.SUCCESS : ExitCode.PARTIAL_ANALYSIS_FAILURE;
+  }
+
+  private static ExitCode handleOutputError(BlazeRuntime runtime, IOException e) {
+    if (e instanceof ClosedByInterruptException) {
+      runtime.getReporter().handle(Event.error("query interrupted"));
+      return ExitCode.INTERRUPTED;
+    }
+    runtime.getReporter().handle(Event.error("I/O error: " + e.getMessage()));
+    return ExitCode.LOCAL_ENVIRONMENTAL_ERROR;
+  }
+
   @VisibleForTesting // for com.google.devtools.deps.gquery.test.QueryResultTestUtil
   public static AbstractBlazeQueryEnvironment<Target> newQueryEnvironment(BlazeRuntime runtime,
       boolean keepGoing, boolean orderedResults, int loadingPhaseThreads,
@@ -171,16 +248,42 @@ public final class QueryCommand implements BlazeCommand {
       boolean keepGoing, boolean orderedResults, List<String> universeScope,
       int loadingPhaseThreads,
       Set<Setting> settings) {
+    return newQueryEnvironment(runtime, keepGoing, orderedResults, universeScope,
+        loadingPhaseThreads, /*queryThreads=*/1, settings);
+  }
+
+  public static AbstractBlazeQueryEnvironment<Target> newQueryEnvironment(BlazeRuntime runtime,
+      boolean keepGoing, boolean orderedResults, List<String> universeScope,
+      int loadingPhaseThreads, int queryThreads,
+      Set<Setting> settings) {
+    return newQueryEnvironment(runtime, keepGoing, orderedResults, universeScope,
+        loadingPhaseThreads, queryThreads, settings, /*rdepsIndex=*/null);
+  }
+
+  /**
+   * Creates a query environment. If {@code rdepsIndex} is given, the "rdeps" function consults it
+   * instead of always loading the universe.
+   */
+  public static AbstractBlazeQueryEnvironment<Target> newQueryEnvironment(BlazeRuntime runtime,
+      boolean keepGoing, boolean orderedResults, List<String> universeScope,
+      int loadingPhaseThreads, int queryThreads,
+      Set<Setting> settings, @Nullable RdepsIndex rdepsIndex) {
     ImmutableList.Builder<QueryFunction> functions = ImmutableList.builder();
     for (BlazeModule module : runtime.getBlazeModules()) {
       functions.addAll(module.getQueryFunctions());
     }
+    if (rdepsIndex != null) {
+      // Replaces the built-in function of the same name.
+      functions.add(new IndexedRdepsFunction(rdepsIndex,
+          runtime.getPackageManager().getPackagePath()));
+    }
     return AbstractBlazeQueryEnvironment.newQueryEnvironment(
         runtime.getPackageManager().newTransitiveLoader(),
         runtime.getSkyframeExecutor(),
         runtime.getPackageManager(),
         runtime.getTargetPatternEvaluator(),
-        keepGoing, orderedResults, universeScope, loadingPhaseThreads, runtime.getReporter(),
+        keepGoing, orderedResults, universeScope, loadingPhaseThreads, queryThreads,
+        runtime.getReporter(),
         settings,
         functions.build(),
         runtime.getPackageManager().getPackagePath());
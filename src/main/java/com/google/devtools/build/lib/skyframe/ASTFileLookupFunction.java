@@ -20,6 +20,9 @@ import com.google.devtools.build.lib.packages.CachingPackageLocator;
 import com.google.devtools.build.lib.packages.RuleClassProvider;
 import com.google.devtools.build.lib.pkgcache.PathPackageLocator;
 import com.google.devtools.build.lib.syntax.BuildFileAST;
+import com.google.devtools.build.lib.syntax.ParserInputSource;
+import com.google.devtools.build.lib.syntax.PersistentASTCache;
+import com.google.devtools.build.lib.syntax.Statement;
 import com.google.devtools.build.lib.vfs.Path;
 import com.google.devtools.build.lib.vfs.PathFragment;
 import com.google.devtools.build.lib.vfs.RootedPath;
@@ -95,13 +98,16 @@ public class ASTFileLookupFunction implements SkyFunction {
   private final AtomicReference<PathPackageLocator> pkgLocator;
   private final RuleClassProvider ruleClassProvider;
   private final CachingPackageLocator packageManager;
+  private final AtomicReference<PersistentASTCache> persistentAstCache;
 
   public ASTFileLookupFunction(AtomicReference<PathPackageLocator> pkgLocator,
       CachingPackageLocator packageManager,
-      RuleClassProvider ruleClassProvider) {
+      RuleClassProvider ruleClassProvider,
+      AtomicReference<PersistentASTCache> persistentAstCache) {
     this.pkgLocator = pkgLocator;
     this.packageManager = packageManager;
     this.ruleClassProvider = ruleClassProvider;
+    this.persistentAstCache = persistentAstCache;
   }
 
   @Override
@@ -121,12 +127,21 @@ public class ASTFileLookupFunction implements SkyFunction {
       Path path = lookupResult.rootedPath().asPath();
       // Skylark files end with bzl.
       boolean parseAsSkylark = astFilePathFragment.getPathString().endsWith(".bzl");
+      PersistentASTCache astCache = persistentAstCache.get();
       try {
-        ast = parseAsSkylark
-            ? BuildFileAST.parseSkylarkFile(path, env.getListener(),
-                packageManager, ruleClassProvider.getSkylarkValidationEnvironment().clone())
-            : BuildFileAST.parseBuildFile(path, env.getListener(),
-                packageManager, false);
+        if (astCache == null) {
+          ast = parseAsSkylark
+              ? BuildFileAST.parseSkylarkFile(path, env.getListener(),
+                  packageManager, ruleClassProvider.getSkylarkValidationEnvironment().clone())
+              : BuildFileAST.parseBuildFile(path, env.getListener(),
+                  packageManager, false);
+        } else {
+          ast = parseAsSkylark
+              ? astCache.parseSkylarkFile(path, env.getListener(),
+                  packageManager, ruleClassProvider.getSkylarkValidationEnvironment().clone())
+              : astCache.parseBuildFile(ParserInputSource.create(path),
+                  ImmutableList.<Statement>of(), env.getListener(), packageManager, false);
+        }
       } catch (IOException e) {
         throw new ASTLookupFunctionException(new ErrorReadingSkylarkExtensionException(
             e.getMessage()), Transience.TRANSIENT);
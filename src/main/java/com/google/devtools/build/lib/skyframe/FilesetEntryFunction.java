@@ -33,6 +33,7 @@ import com.google.devtools.build.skyframe.SkyKey;
 import com.google.devtools.build.skyframe.SkyValue;
 
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
@@ -145,8 +146,9 @@ public final class FilesetEntryFunction implements SkyFunction {
           if (path.segmentCount() > 0) {
             path = t.getDestPath().getRelative(path);
             DirectoryTree dir = root;
-            for (int i = 0; i < path.segmentCount() - 1; ++i) {
-              dir = dir.addOrGetSubdir(path.getSegment(i));
+            List<String> segments = path.getSegments();
+            for (int i = 0; i < segments.size() - 1; ++i) {
+              dir = dir.addOrGetSubdir(segments.get(i));
             }
             dir.maybeAddFile(f);
           }
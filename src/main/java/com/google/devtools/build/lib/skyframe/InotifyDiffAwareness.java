@@ -0,0 +1,323 @@
+// Copyright 2015 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.skyframe;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.devtools.build.lib.unix.FilesystemUtils;
+import com.google.devtools.build.lib.unix.FilesystemUtils.Dirents;
+import com.google.devtools.build.lib.unix.Inotify;
+import com.google.devtools.build.lib.util.OS;
+import com.google.devtools.build.lib.vfs.ModifiedFileSet;
+import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.build.lib.vfs.PathFragment;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * File system watcher for local file systems on Linux that talks to inotify directly.
+ *
+ * <p>Unlike {@link LocalDiffAwareness}, which goes through the Java WatchService, all directories
+ * share a single event queue, so events are seen in the order they happened, and registering a
+ * directory does not cost a stat of each of its entries. An overflow of the kernel queue breaks
+ * this diff awareness, which makes Skyframe check all files for one build.
+ */
+public class InotifyDiffAwareness implements DiffAwareness {
+
+  /** Factory for creating {@link InotifyDiffAwareness} instances. */
+  public static class Factory implements DiffAwareness.Factory {
+    private final ImmutableList<String> prefixBlacklist;
+
+    /**
+     * Creates a new factory. inotify does not see changes made by other hosts to network file
+     * systems; the prefix blacklist can be used to exclude known paths that point to them.
+     */
+    public Factory(ImmutableList<String> prefixBlacklist) {
+      this.prefixBlacklist = prefixBlacklist;
+    }
+
+    @Override
+    public DiffAwareness maybeCreate(Path pathEntry) {
+      if (OS.getCurrent() != OS.LINUX) {
+        return null;
+      }
+      Path resolvedPathEntry;
+      try {
+        resolvedPathEntry = pathEntry.resolveSymbolicLinks();
+      } catch (IOException e) {
+        return null;
+      }
+      PathFragment resolvedPathEntryFragment = resolvedPathEntry.asFragment();
+      for (String prefix : prefixBlacklist) {
+        if (resolvedPathEntryFragment.startsWith(new PathFragment(prefix))) {
+          return null;
+        }
+      }
+
+      Inotify inotify;
+      try {
+        inotify = Inotify.open();
+      } catch (IOException | UnsatisfiedLinkError e) {
+        return null;
+      }
+      return new InotifyDiffAwareness(resolvedPathEntryFragment, inotify);
+    }
+  }
+
+  private static final int WATCH_MASK = Inotify.IN_MODIFY | Inotify.IN_ATTRIB
+      | Inotify.IN_MOVED_FROM | Inotify.IN_MOVED_TO | Inotify.IN_CREATE | Inotify.IN_DELETE
+      | Inotify.IN_DELETE_SELF | Inotify.IN_MOVE_SELF | Inotify.IN_ONLYDIR
+      | Inotify.IN_DONT_FOLLOW | Inotify.IN_EXCL_UNLINK;
+
+  private int numGetCurrentViewCalls = 0;
+
+  /** Root directory to watch. This is an absolute path. */
+  private final PathFragment watchRoot;
+
+  private final Inotify inotify;
+
+  /** The watched directories, relative to {@link #watchRoot}, by watch descriptor. */
+  private final Map<Integer, PathFragment> watchedDirs = new HashMap<>();
+
+  /**
+   * The inverse of {@link #watchedDirs}. Paths are ordered segment by segment, so the directories
+   * below a directory directly follow it.
+   */
+  private final NavigableMap<PathFragment, Integer> watchDescriptors = new TreeMap<>();
+
+  private InotifyDiffAwareness(PathFragment watchRoot, Inotify inotify) {
+    this.watchRoot = watchRoot;
+    this.inotify = inotify;
+  }
+
+  /**
+   * The inotify queue is inherently sequential and side-effectful, so we enforce this by only
+   * supporting {@link #getDiff} calls that happen to be sequential.
+   */
+  private static class SequentialView implements DiffAwareness.View {
+    private final InotifyDiffAwareness owner;
+    private final int position;
+    private final Set<PathFragment> modifiedPaths;
+
+    public SequentialView(InotifyDiffAwareness owner, int position,
+        Set<PathFragment> modifiedPaths) {
+      this.owner = owner;
+      this.position = position;
+      this.modifiedPaths = modifiedPaths;
+    }
+
+    public static boolean areInSequence(SequentialView oldView, SequentialView newView) {
+      return oldView.owner == newView.owner && (oldView.position + 1) == newView.position;
+    }
+
+    @Override
+    public String toString() {
+      return String.format("SequentialView[owner=%s, position=%d, modifiedPaths=%s]", owner,
+          position, modifiedPaths);
+    }
+  }
+
+  @Override
+  public SequentialView getCurrentView() throws BrokenDiffAwarenessException {
+    Set<PathFragment> modifiedPaths;
+    try {
+      if (numGetCurrentViewCalls++ == 0) {
+        registerSubDirectoriesAndReturnContents(PathFragment.EMPTY_FRAGMENT);
+        modifiedPaths = ImmutableSet.of();
+      } else {
+        modifiedPaths = collectChanges();
+      }
+    } catch (BrokenDiffAwarenessException e) {
+      close();
+      throw e;
+    } catch (IOException e) {
+      close();
+      throw new BrokenDiffAwarenessException(
+          "Error encountered with inotify file system watcher " + e);
+    }
+    return new SequentialView(this, numGetCurrentViewCalls, modifiedPaths);
+  }
+
+  @Override
+  public ModifiedFileSet getDiff(View oldView, View newView)
+      throws IncompatibleViewException, BrokenDiffAwarenessException {
+    SequentialView oldSequentialView;
+    SequentialView newSequentialView;
+    try {
+      oldSequentialView = (SequentialView) oldView;
+      newSequentialView = (SequentialView) newView;
+    } catch (ClassCastException e) {
+      throw new IncompatibleViewException("Given views are not from InotifyDiffAwareness");
+    }
+    if (!SequentialView.areInSequence(oldSequentialView, newSequentialView)) {
+      return ModifiedFileSet.EVERYTHING_MODIFIED;
+    }
+    return ModifiedFileSet.builder().modifyAll(newSequentialView.modifiedPaths).build();
+  }
+
+  @Override
+  public String name() {
+    return "inotify";
+  }
+
+  @Override
+  public void close() {
+    try {
+      inotify.close();
+    } catch (IOException ignored) {
+      // Nothing we can do here.
+    }
+  }
+
+  /** Returns the paths changed since the last call, relative to the watch root. */
+  private Set<PathFragment> collectChanges() throws BrokenDiffAwarenessException, IOException {
+    Set<PathFragment> createdFilesAndDirectories = new HashSet<>();
+    Set<PathFragment> deletedOrModifiedFilesAndDirectories = new HashSet<>();
+
+    List<Inotify.Event> events;
+    while (!(events = inotify.readEvents()).isEmpty()) {
+      // Events from all directories arrive in the order they happened, so replaying them
+      // constructs the net diff since the last #collectChanges call.
+      for (Inotify.Event event : events) {
+        int mask = event.getMask();
+        if ((mask & Inotify.IN_Q_OVERFLOW) != 0) {
+          throw new BrokenDiffAwarenessException("Overflow when watching local filesystem for "
+              + "changes; consider raising /proc/sys/fs/inotify/max_queued_events");
+        }
+        PathFragment dir = watchedDirs.get(event.getWatchDescriptor());
+        if (dir == null) {
+          // An event that was queued before we stopped watching a moved or deleted directory.
+          continue;
+        }
+        if ((mask & (Inotify.IN_IGNORED | Inotify.IN_DELETE_SELF | Inotify.IN_MOVE_SELF
+            | Inotify.IN_UNMOUNT)) != 0) {
+          if (dir.equals(PathFragment.EMPTY_FRAGMENT)) {
+            throw new IOException("Root directory " + watchRoot + " became inaccessible.");
+          }
+          // The parent directory reports the deletion or move of this one.
+          continue;
+        }
+        if (event.getName().isEmpty()) {
+          // A change to the attributes of the directory itself, which its parent also reports.
+          continue;
+        }
+        PathFragment path = dir.getRelative(event.getName());
+        if ((mask & (Inotify.IN_CREATE | Inotify.IN_MOVED_TO)) != 0) {
+          createdFilesAndDirectories.add(path);
+          deletedOrModifiedFilesAndDirectories.remove(path);
+        } else if ((mask & (Inotify.IN_DELETE | Inotify.IN_MOVED_FROM)) != 0) {
+          createdFilesAndDirectories.remove(path);
+          deletedOrModifiedFilesAndDirectories.add(path);
+          if ((mask & Inotify.IN_ISDIR) != 0) {
+            // A moved directory keeps its watches, which would report changes under its old
+            // name, so stop watching it and its subdirectories.
+            deletedOrModifiedFilesAndDirectories.addAll(unregisterDirectoryTree(path));
+          }
+        } else if (!createdFilesAndDirectories.contains(path)) {
+          // If a file was created and then modified, then the net diff is that it was created.
+          deletedOrModifiedFilesAndDirectories.add(path);
+        }
+      }
+    }
+
+    Set<PathFragment> changedPaths = new HashSet<>();
+    for (PathFragment path : createdFilesAndDirectories) {
+      changedPaths.add(path);
+      if (isDirectory(path)) {
+        // This is a new directory, so changes to it since its creation have not been watched.
+        // We manually traverse the directory tree to register all the new subdirectories and find
+        // all the new subdirectories and files.
+        changedPaths.addAll(registerSubDirectoriesAndReturnContents(path));
+      }
+    }
+    changedPaths.addAll(deletedOrModifiedFilesAndDirectories);
+    return changedPaths;
+  }
+
+  private boolean isDirectory(PathFragment path) {
+    return FilesystemUtils.isDirectory(watchRoot.getRelative(path).getPathString());
+  }
+
+  /**
+   * Traverses the directory tree at {@code rootDir} to watch its directories. Returns all paths
+   * traversed, relative to the watch root. Only directories whose entry types the file system
+   * does not report are stat-ed.
+   */
+  private Set<PathFragment> registerSubDirectoriesAndReturnContents(PathFragment rootDir)
+      throws IOException {
+    Set<PathFragment> visitedPaths = new HashSet<>();
+    List<PathFragment> pending = new ArrayList<>();
+    pending.add(rootDir);
+    while (!pending.isEmpty()) {
+      PathFragment dir = pending.remove(pending.size() - 1);
+      String absoluteDir = watchRoot.getRelative(dir).getPathString();
+      // It's important that we watch the directory before we list its children. This way we are
+      // guaranteed to see new files/directories either on this #getDiff or the next one.
+      int wd;
+      Dirents dirents;
+      try {
+        wd = inotify.addWatch(absoluteDir, WATCH_MASK);
+        dirents = FilesystemUtils.readdir(absoluteDir, FilesystemUtils.ReadTypes.NOFOLLOW);
+      } catch (FileNotFoundException e) {
+        if (dir.equals(rootDir)) {
+          throw e;
+        }
+        // Deleted during the traversal; the deletion event has been queued.
+        continue;
+      }
+      watchedDirs.put(wd, dir);
+      watchDescriptors.put(dir, wd);
+      visitedPaths.add(dir);
+      for (int i = 0; i < dirents.size(); i++) {
+        PathFragment child = dir.getRelative(dirents.getName(i));
+        if (dirents.getType(i) == Dirents.Type.DIRECTORY) {
+          pending.add(child);
+        } else {
+          visitedPaths.add(child);
+        }
+      }
+    }
+    return visitedPaths;
+  }
+
+  /**
+   * Stops watching {@code dir} and the directories below it, and returns them.
+   */
+  private Set<PathFragment> unregisterDirectoryTree(PathFragment dir) throws IOException {
+    Set<PathFragment> unregistered = new HashSet<>();
+    Iterator<Map.Entry<PathFragment, Integer>> it =
+        watchDescriptors.tailMap(dir, true).entrySet().iterator();
+    while (it.hasNext()) {
+      Map.Entry<PathFragment, Integer> entry = it.next();
+      if (!entry.getKey().startsWith(dir)) {
+        break;
+      }
+      inotify.removeWatch(entry.getValue());
+      watchedDirs.remove(entry.getValue());
+      unregistered.add(entry.getKey());
+      it.remove();
+    }
+    return unregistered;
+  }
+}
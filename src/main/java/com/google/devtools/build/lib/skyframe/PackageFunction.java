@@ -36,6 +36,7 @@ import com.google.devtools.build.lib.packages.InvalidPackageNameException;
 import com.google.devtools.build.lib.packages.NoSuchPackageException;
 import com.google.devtools.build.lib.packages.Package;
 import com.google.devtools.build.lib.packages.PackageFactory;
+import com.google.devtools.build.lib.packages.PackageFactory.AstAfterPreprocessing;
 import com.google.devtools.build.lib.packages.PackageFactory.Globber;
 import com.google.devtools.build.lib.packages.Preprocessor;
 import com.google.devtools.build.lib.packages.RuleVisibility;
@@ -49,6 +50,7 @@ import com.google.devtools.build.lib.syntax.BuildFileAST;
 import com.google.devtools.build.lib.syntax.EvalException;
 import com.google.devtools.build.lib.syntax.Label;
 import com.google.devtools.build.lib.syntax.ParserInputSource;
+import com.google.devtools.build.lib.syntax.PersistentASTCache;
 import com.google.devtools.build.lib.syntax.SkylarkEnvironment;
 import com.google.devtools.build.lib.syntax.Statement;
 import com.google.devtools.build.lib.util.Pair;
@@ -72,6 +74,7 @@ import java.util.Map.Entry;
 import java.util.Set;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 import javax.annotation.Nullable;
 
@@ -84,6 +87,8 @@ public class PackageFunction implements SkyFunction {
   private final PackageFactory packageFactory;
   private final CachingPackageLocator packageLocator;
   private final Cache<PackageIdentifier, Package.LegacyBuilder> packageFunctionCache;
+  private final Cache<PackageIdentifier, AstAfterPreprocessing> astCache;
+  private final AtomicReference<PersistentASTCache> persistentAstCache;
   private final AtomicBoolean showLoadingProgress;
   private final AtomicInteger numPackagesLoaded;
   private final Profiler profiler = Profiler.instance();
@@ -96,6 +101,8 @@ public class PackageFunction implements SkyFunction {
   public PackageFunction(Reporter reporter, PackageFactory packageFactory,
       CachingPackageLocator pkgLocator, AtomicBoolean showLoadingProgress,
       Cache<PackageIdentifier, Package.LegacyBuilder> packageFunctionCache,
+      Cache<PackageIdentifier, AstAfterPreprocessing> astCache,
+      AtomicReference<PersistentASTCache> persistentAstCache,
       AtomicInteger numPackagesLoaded) {
     this.reporter = reporter;
 
@@ -107,6 +114,8 @@ public class PackageFunction implements SkyFunction {
     this.packageLocator = pkgLocator;
     this.showLoadingProgress = showLoadingProgress;
     this.packageFunctionCache = packageFunctionCache;
+    this.astCache = astCache;
+    this.persistentAstCache = persistentAstCache;
     this.numPackagesLoaded = numPackagesLoaded;
   }
 
@@ -441,7 +450,7 @@ public class PackageFunction implements SkyFunction {
 
     // Load the BUILD file AST and handle Skylark dependencies. This way BUILD files are
     // only loaded twice if there are unavailable Skylark or package dependencies or an
-    // IOException occurs. Note that the BUILD files are still parsed two times.
+    // IOException occurs. The AST is kept between the two loads, so BUILD files are parsed once.
     ParserInputSource inputSource;
     try {
       if (showLoadingProgress.get() && packageFunctionCache.getIfPresent(packageId) == null) {
@@ -533,27 +542,17 @@ public class PackageFunction implements SkyFunction {
     return ok;
   }
 
-  // TODO(bazel-team): this should take the AST so we don't parse the file twice.
   @Nullable
   private SkylarkImportResult discoverSkylarkImports(
       Path buildFilePath,
       PathFragment buildFileFragment,
       PackageIdentifier packageId,
       Environment env,
-      ParserInputSource inputSource,
-      List<Statement> preludeStatements)
+      BuildFileAST buildFileAST)
       throws PackageFunctionException {
-    StoredEventHandler eventHandler = new StoredEventHandler();
-    BuildFileAST buildFileAST =
-        BuildFileAST.parseBuildFile(
-            inputSource,
-            preludeStatements,
-            eventHandler,
-            /* package locator */ null,
-            /* parse python */ false);
     SkylarkImportResult importResult;
     boolean includeRepositoriesFetched;
-    if (eventHandler.hasErrors()) {
+    if (buildFileAST.containsErrors()) {
       importResult =
           new SkylarkImportResult(
               ImmutableMap.<PathFragment, SkylarkEnvironment>of(), ImmutableList.<Label>of());
@@ -800,11 +799,19 @@ public class PackageFunction implements SkyFunction {
       try {
         Globber globber = packageFactory.createLegacyGlobber(buildFilePath.getParentDirectory(),
             packageId, packageLocator);
-        StoredEventHandler localReporter = new StoredEventHandler();
-        Preprocessor.Result preprocessingResult = replacementSource == null
-            ? packageFactory.preprocess(packageId, buildFilePath, inputSource, globber,
-                localReporter)
-                : Preprocessor.Result.noPreprocessing(replacementSource);
+        AstAfterPreprocessing astAfterPreprocessing = astCache.getIfPresent(packageId);
+        if (astAfterPreprocessing == null) {
+          StoredEventHandler localReporter = new StoredEventHandler();
+          Preprocessor.Result preprocessingResult = replacementSource == null
+              ? packageFactory.preprocess(packageId, buildFilePath, inputSource, globber,
+                  localReporter)
+                  : Preprocessor.Result.noPreprocessing(replacementSource);
+          astAfterPreprocessing = packageFactory.parseBuildFile(packageId, preprocessingResult,
+              localReporter.getEvents(), preludeStatements, packageLocator,
+              persistentAstCache.get());
+          // Kept until the Skylark imports are available.
+          astCache.put(packageId, astAfterPreprocessing);
+        }
 
         SkylarkImportResult importResult =
             discoverSkylarkImports(
@@ -812,16 +819,15 @@ public class PackageFunction implements SkyFunction {
                 buildFileFragment,
                 packageId,
                 env,
-                preprocessingResult.result,
-                preludeStatements);
+                astAfterPreprocessing.ast);
         if (importResult == null) {
           return null;
         }
+        astCache.invalidate(packageId);
 
-        pkgBuilder = packageFactory.createPackageFromPreprocessingResult(externalPkg, packageId,
-            buildFilePath, preprocessingResult, localReporter.getEvents(), preludeStatements,
-            importResult.importMap, importResult.fileDependencies, packageLocator,
-            defaultVisibility, globber);
+        pkgBuilder = packageFactory.createPackageFromPreprocessingAst(externalPkg, packageId,
+            buildFilePath, astAfterPreprocessing, importResult.importMap,
+            importResult.fileDependencies, defaultVisibility, globber);
         numPackagesLoaded.incrementAndGet();
         packageFunctionCache.put(packageId, pkgBuilder);
       } finally {
@@ -0,0 +1,125 @@
+// Copyright 2015 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.skyframe;
+
+import com.google.devtools.build.lib.concurrent.ThreadSafety.ThreadSafe;
+import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.build.skyframe.Differencer;
+import com.google.devtools.build.skyframe.EvaluationProgressReceiver;
+import com.google.devtools.build.skyframe.InMemoryGraph;
+import com.google.devtools.build.skyframe.InMemoryMemoizingEvaluator;
+import com.google.devtools.build.skyframe.MemoizingEvaluator;
+import com.google.devtools.build.skyframe.MemoizingEvaluator.EmittedEventState;
+import com.google.devtools.build.skyframe.MemoizingEvaluator.EvaluatorSupplier;
+import com.google.devtools.build.skyframe.PersistentInMemoryGraph;
+import com.google.devtools.build.skyframe.SkyFunction;
+import com.google.devtools.build.skyframe.SkyFunctionName;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Map;
+import java.util.logging.Logger;
+
+import javax.annotation.Nullable;
+
+/**
+ * Supplies evaluators whose graph is restored from a snapshot written by a previous server, so
+ * that the first build after a restart does not start from an empty graph.
+ *
+ * <p>The snapshot is read by the first evaluator only, and deleted as soon as it has been read, so
+ * that a server that dies before writing a new one starts from scratch. An evaluator recreated
+ * later, for instance by {@code clean}, starts empty. Snapshots that cannot be read are discarded.
+ *
+ * <p>Restored nodes need no special invalidation: a new server has no diff information for its
+ * package roots, so the first build checks every file system node in the graph against the disk.
+ */
+@ThreadSafe
+public final class PersistentGraphSupplier implements EvaluatorSupplier {
+
+  private static final Logger LOG = Logger.getLogger(PersistentGraphSupplier.class.getName());
+
+  private final Path snapshotFile;
+  private boolean snapshotRead = false;
+  @Nullable private PersistentInMemoryGraph graph = null;
+
+  public PersistentGraphSupplier(Path snapshotFile) {
+    this.snapshotFile = snapshotFile;
+  }
+
+  @Override
+  public synchronized MemoizingEvaluator create(
+      Map<? extends SkyFunctionName, ? extends SkyFunction> skyFunctions, Differencer differencer,
+      @Nullable EvaluationProgressReceiver invalidationReceiver,
+      EmittedEventState emittedEventState, boolean keepEdges) {
+    // Without edges the graph cannot be invalidated, so there is no point in restoring it.
+    graph = keepEdges ? readSnapshot() : null;
+    return new InMemoryMemoizingEvaluator(skyFunctions, differencer, invalidationReceiver,
+        emittedEventState, graph != null ? graph : new InMemoryGraph(keepEdges));
+  }
+
+  private PersistentInMemoryGraph readSnapshot() {
+    if (snapshotRead) {
+      return new PersistentInMemoryGraph();
+    }
+    snapshotRead = true;
+    if (!snapshotFile.exists()) {
+      return new PersistentInMemoryGraph();
+    }
+    try (InputStream in = new BufferedInputStream(snapshotFile.getInputStream())) {
+      return PersistentInMemoryGraph.load(in);
+    } catch (IOException e) {
+      LOG.warning("Discarding unreadable Skyframe graph snapshot " + snapshotFile + ": "
+          + e.getMessage());
+      return new PersistentInMemoryGraph();
+    } finally {
+      delete(snapshotFile);
+    }
+  }
+
+  private static void delete(Path file) {
+    try {
+      file.delete();
+    } catch (IOException e) {
+      LOG.warning("Cannot delete Skyframe graph snapshot " + file + ": " + e.getMessage());
+    }
+  }
+
+  /**
+   * Writes the graph of the last evaluator created to the snapshot file. Must not be called in
+   * parallel with an evaluation.
+   *
+   * @return the number of nodes written
+   */
+  public synchronized int save() throws IOException {
+    if (graph == null) {
+      return 0;
+    }
+    Path tmpFile = snapshotFile.getParentDirectory().getChild(snapshotFile.getBaseName() + ".tmp");
+    int written;
+    try (OutputStream out = new BufferedOutputStream(tmpFile.getOutputStream())) {
+      written = graph.save(out);
+    }
+    // The snapshot only becomes visible once it is complete.
+    try {
+      tmpFile.renameTo(snapshotFile);
+    } catch (IOException e) {
+      delete(tmpFile);
+      throw e;
+    }
+    return written;
+  }
+}
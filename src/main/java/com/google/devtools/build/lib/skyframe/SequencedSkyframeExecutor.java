@@ -293,6 +293,7 @@ public final class SequencedSkyframeExecutor extends SkyframeExecutor {
     for (Path pathEntry : pkgLocator.get().getPathEntries()) {
       DiffAwarenessManager.ProcessableModifiedFileSet modifiedFileSet =
           diffAwarenessManager.getDiff(pathEntry);
+      notifyModifiedFilesListeners(pathEntry, modifiedFileSet.getModifiedFileSet());
       if (modifiedFileSet.getModifiedFileSet().treatEverythingAsModified()) {
         pathEntriesWithoutDiffInformation.add(Pair.of(pathEntry, modifiedFileSet));
       } else {
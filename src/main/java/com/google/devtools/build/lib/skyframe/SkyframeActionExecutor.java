@@ -31,6 +31,7 @@ import com.google.devtools.build.lib.actions.ActionExecutionContextFactory;
 import com.google.devtools.build.lib.actions.ActionExecutionException;
 import com.google.devtools.build.lib.actions.ActionExecutionStatusReporter;
 import com.google.devtools.build.lib.actions.ActionGraph;
+import com.google.devtools.build.lib.actions.ActionHistory;
 import com.google.devtools.build.lib.actions.ActionInput;
 import com.google.devtools.build.lib.actions.ActionInputFileCache;
 import com.google.devtools.build.lib.actions.ActionLogBufferPathGenerator;
@@ -52,6 +53,8 @@ import com.google.devtools.build.lib.actions.PackageRootResolver;
 import com.google.devtools.build.lib.actions.ResourceManager;
 import com.google.devtools.build.lib.actions.ResourceSet;
 import com.google.devtools.build.lib.actions.TargetOutOfDateException;
+import com.google.devtools.build.lib.actions.cache.DiskOutputCache;
+import com.google.devtools.build.lib.actions.cache.Metadata;
 import com.google.devtools.build.lib.actions.cache.MetadataHandler;
 import com.google.devtools.build.lib.concurrent.ExecutorUtil;
 import com.google.devtools.build.lib.concurrent.Sharder;
@@ -61,9 +64,12 @@ import com.google.devtools.build.lib.events.Reporter;
 import com.google.devtools.build.lib.profiler.Profiler;
 import com.google.devtools.build.lib.profiler.ProfilerTask;
 import com.google.devtools.build.lib.syntax.Label;
+import com.google.devtools.build.lib.util.BlazeClock;
+import com.google.devtools.build.lib.util.Fingerprint;
 import com.google.devtools.build.lib.util.Pair;
 import com.google.devtools.build.lib.util.io.FileOutErr;
 import com.google.devtools.build.lib.util.io.OutErr;
+import com.google.devtools.build.lib.vfs.DigestHashFunction;
 import com.google.devtools.build.lib.vfs.Path;
 import com.google.devtools.build.lib.vfs.PathFragment;
 import com.google.devtools.build.lib.vfs.Symlinks;
@@ -74,10 +80,12 @@ import java.io.IOException;
 import java.util.Collection;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.SortedMap;
+import java.util.TreeMap;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
@@ -88,6 +96,8 @@ import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.FutureTask;
 import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 import javax.annotation.Nullable;
 
@@ -96,12 +106,15 @@ import javax.annotation.Nullable;
  * all output artifacts were created, error reporting, etc.
  */
 public final class SkyframeActionExecutor implements ActionExecutionContextFactory {
+  private static final Logger LOG = Logger.getLogger(SkyframeActionExecutor.class.getName());
+
   private final Reporter reporter;
   private final AtomicReference<EventBus> eventBus;
   private final ResourceManager resourceManager;
   private Executor executorEngine;
   private ActionLogBufferPathGenerator actionLogBufferPathGenerator;
   private ActionCacheChecker actionCacheChecker;
+  @Nullable private DiskOutputCache outputCache;
   private final Profiler profiler = Profiler.instance();
   private boolean explain;
 
@@ -349,6 +362,14 @@ public final class SkyframeActionExecutor implements ActionExecutionContextFacto
     this.actionLogBufferPathGenerator = actionLogBufferPathGenerator;
   }
 
+  /**
+   * Sets the local output cache consulted before executing actions, or null to not use one. The
+   * cache may be shared with other workspaces.
+   */
+  void setOutputCache(@Nullable DiskOutputCache outputCache) {
+    this.outputCache = outputCache;
+  }
+
   void executionOver() {
     // This transitively holds a bunch of heavy objects, so it's important to clear it at the
     // end of a build.
@@ -695,7 +716,20 @@ public final class SkyframeActionExecutor implements ActionExecutionContextFacto
     }
 
     postEvent(new ActionStartedEvent(action, actionStartTime));
-    ResourceSet estimate = action.estimateResourceConsumption(executorEngine);
+    String outputCacheKey = getOutputCacheKey(action, context.getMetadataHandler());
+    if (outputCacheKey != null
+        && fetchFromOutputCache(action, outputCacheKey, context.getFileOutErr())) {
+      try {
+        completeAction(action, context.getMetadataHandler(), context.getFileOutErr(),
+            maybeDumpRecordedOutErr(action, context.getFileOutErr()));
+      } finally {
+        statusReporterRef.get().remove(action);
+        postEvent(new ActionCompletionEvent(actionStartTime, action));
+      }
+      return;
+    }
+    ResourceSet estimate =
+        resourceManager.correctEstimate(action, action.estimateResourceConsumption(executorEngine));
     ActionExecutionStatusReporter statusReporter = statusReporterRef.get();
     try {
       if (estimate == null || estimate == ResourceSet.ZERO) {
@@ -705,9 +739,18 @@ public final class SkyframeActionExecutor implements ActionExecutionContextFacto
         // resource manager when it knows what resources are needed.
         resourceManager.acquireResources(action, estimate);
       }
+      long executionStartTime = BlazeClock.nanoTime();
       boolean outputDumped = executeActionTask(action, context);
+      ActionHistory history = resourceManager.getActionHistory();
+      if (history != null) {
+        history.recordExecution(action, BlazeClock.nanoTime() - executionStartTime);
+      }
       completeAction(action, context.getMetadataHandler(),
           context.getFileOutErr(), outputDumped);
+      if (outputCacheKey != null) {
+        storeInOutputCache(action, context.getMetadataHandler(), outputCacheKey,
+            context.getFileOutErr());
+      }
     } finally {
       if (estimate != null) {
         resourceManager.releaseResources(action, estimate);
@@ -717,6 +760,73 @@ public final class SkyframeActionExecutor implements ActionExecutionContextFacto
     }
   }
 
+  /**
+   * Returns the key under which the outputs of {@code action} are stored in the local output
+   * cache: a fingerprint of the action key, the exec paths and digests of the inputs and the exec
+   * paths of the outputs. Returns null if there is no output cache or the outputs of the action
+   * cannot be cached, e.g. because it must always execute or some input has no digest.
+   */
+  @Nullable
+  private String getOutputCacheKey(Action action, MetadataHandler metadataHandler) {
+    if (outputCache == null || action.getActionType().isMiddleman()
+        || action.executeUnconditionally() || action.discoversInputs()
+        || action instanceof NotifyOnActionCacheHit) {
+      return null;
+    }
+    SortedMap<String, byte[]> inputDigests = new TreeMap<>();
+    for (Artifact input : action.getInputs()) {
+      Metadata metadata;
+      try {
+        metadata = metadataHandler.getMetadata(input);
+      } catch (IOException e) {
+        return null;
+      }
+      if (metadata == null || metadata.digest == null) {
+        return null;
+      }
+      inputDigests.put(input.getExecPathString(), metadata.digest);
+    }
+    Fingerprint fp = new Fingerprint();
+    fp.addString(DigestHashFunction.getDefault().name());
+    fp.addString(action.getKey());
+    fp.addInt(inputDigests.size());
+    for (Map.Entry<String, byte[]> input : inputDigests.entrySet()) {
+      fp.addString(input.getKey());
+      fp.addBytes(input.getValue());
+    }
+    for (Artifact output : action.getOutputs()) {
+      fp.addPath(output.getExecPath());
+    }
+    return fp.hexDigestAndReset();
+  }
+
+  private boolean fetchFromOutputCache(Action action, String key, FileOutErr outErr) {
+    profiler.startTask(ProfilerTask.ACTION_CHECK, action);
+    try {
+      return outputCache.fetch(key, executorEngine.getExecRoot(), outErr);
+    } catch (IOException e) {
+      LOG.log(Level.WARNING, "Failed to fetch outputs of " + action.prettyPrint()
+          + " from " + outputCache.getRoot() + ": " + e.getMessage(), e);
+      return false;
+    } finally {
+      profiler.completeTask(ProfilerTask.ACTION_CHECK);
+    }
+  }
+
+  private void storeInOutputCache(Action action, MetadataHandler metadataHandler, String key,
+      FileOutErr outErr) {
+    Map<PathFragment, byte[]> outputs = new LinkedHashMap<>();
+    try {
+      for (Artifact output : action.getOutputs()) {
+        outputs.put(output.getExecPath(), metadataHandler.getMetadata(output).digest);
+      }
+      outputCache.store(key, executorEngine.getExecRoot(), outputs, outErr);
+    } catch (IOException e) {
+      LOG.log(Level.WARNING, "Failed to store outputs of " + action.prettyPrint()
+          + " in " + outputCache.getRoot() + ": " + e.getMessage(), e);
+    }
+  }
+
   private ActionExecutionException processAndThrow(
       ActionExecutionException e, Action action, FileOutErr outErrBuffer)
       throws ActionExecutionException {
@@ -769,12 +879,7 @@ public final class SkyframeActionExecutor implements ActionExecutionContextFacto
       action.execute(actionExecutionContext);
 
       // Action terminated fine, now report the output.
-      // The .showOutput() method is not necessarily a quick check: in its
-      // current implementation it uses regular expression matching.
-      if (outErrBuffer.hasRecordedOutput()
-          && (action.showsOutputUnconditionally()
-          || reporter.showOutput(Label.print(action.getOwner().getLabel())))) {
-        dumpRecordedOutErr(action, outErrBuffer);
+      if (maybeDumpRecordedOutErr(action, outErrBuffer)) {
         return true;
       }
       // Defer reporting action success until outputs are checked
@@ -786,6 +891,21 @@ public final class SkyframeActionExecutor implements ActionExecutionContextFacto
     return false;
   }
 
+  /**
+   * Dumps what a successful action printed if it should be shown. Returns true if it was dumped.
+   */
+  private boolean maybeDumpRecordedOutErr(Action action, FileOutErr outErrBuffer) {
+    // The .showOutput() method is not necessarily a quick check: in its
+    // current implementation it uses regular expression matching.
+    if (outErrBuffer.hasRecordedOutput()
+        && (action.showsOutputUnconditionally()
+        || reporter.showOutput(Label.print(action.getOwner().getLabel())))) {
+      dumpRecordedOutErr(action, outErrBuffer);
+      return true;
+    }
+    return false;
+  }
+
   private void completeAction(Action action, MetadataHandler metadataHandler,
       FileOutErr fileOutErr, boolean outputAlreadyDumped) throws ActionExecutionException {
     try {
@@ -45,6 +45,7 @@ import com.google.devtools.build.lib.actions.Executor;
 import com.google.devtools.build.lib.actions.PackageRootResolutionException;
 import com.google.devtools.build.lib.actions.ResourceManager;
 import com.google.devtools.build.lib.actions.Root;
+import com.google.devtools.build.lib.actions.cache.DiskOutputCache;
 import com.google.devtools.build.lib.analysis.Aspect;
 import com.google.devtools.build.lib.analysis.AspectWithParameters;
 import com.google.devtools.build.lib.analysis.BlazeDirectories;
@@ -76,6 +77,7 @@ import com.google.devtools.build.lib.packages.NoSuchPackageException;
 import com.google.devtools.build.lib.packages.NoSuchThingException;
 import com.google.devtools.build.lib.packages.Package;
 import com.google.devtools.build.lib.packages.PackageFactory;
+import com.google.devtools.build.lib.packages.PackageFactory.AstAfterPreprocessing;
 import com.google.devtools.build.lib.packages.Preprocessor;
 import com.google.devtools.build.lib.packages.RuleClassProvider;
 import com.google.devtools.build.lib.packages.RuleVisibility;
@@ -90,6 +92,7 @@ import com.google.devtools.build.lib.skyframe.DirtinessCheckerUtils.FileDirtines
 import com.google.devtools.build.lib.skyframe.SkyframeActionExecutor.ActionCompletedReceiver;
 import com.google.devtools.build.lib.skyframe.SkyframeActionExecutor.ProgressSupplier;
 import com.google.devtools.build.lib.syntax.Label;
+import com.google.devtools.build.lib.syntax.PersistentASTCache;
 import com.google.devtools.build.lib.util.AbruptExitException;
 import com.google.devtools.build.lib.util.ExitCode;
 import com.google.devtools.build.lib.util.ResourceUsage;
@@ -107,6 +110,7 @@ import com.google.devtools.build.skyframe.CyclesReporter;
 import com.google.devtools.build.skyframe.Differencer;
 import com.google.devtools.build.skyframe.Differencer.DiffWithDelta.Delta;
 import com.google.devtools.build.skyframe.ErrorInfo;
+import com.google.devtools.build.skyframe.EvaluationPrioritizer;
 import com.google.devtools.build.skyframe.EvaluationProgressReceiver;
 import com.google.devtools.build.skyframe.EvaluationResult;
 import com.google.devtools.build.skyframe.ImmutableDiff;
@@ -131,6 +135,7 @@ import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReference;
@@ -146,7 +151,7 @@ import javax.annotation.Nullable;
  * for use during the build.
  */
 public abstract class SkyframeExecutor implements WalkableGraphFactory {
-  private final EvaluatorSupplier evaluatorSupplier;
+  private EvaluatorSupplier evaluatorSupplier;
   protected MemoizingEvaluator memoizingEvaluator;
   private final MemoizingEvaluator.EmittedEventState emittedEventState =
       new MemoizingEvaluator.EmittedEventState();
@@ -156,6 +161,11 @@ public abstract class SkyframeExecutor implements WalkableGraphFactory {
   private final BlazeDirectories directories;
   @Nullable
   private BatchStat batchStatter;
+  private final List<ModifiedFilesListener> modifiedFilesListeners =
+      new CopyOnWriteArrayList<>();
+
+  private boolean useForkJoinPool = false;
+  @Nullable private EvaluationPrioritizer evaluationPrioritizer = null;
 
   // TODO(bazel-team): Figure out how to handle value builders that block internally. Blocking
   // operations may need to be handled in another (bigger?) thread pool. Also, we should detect
@@ -176,6 +186,9 @@ public abstract class SkyframeExecutor implements WalkableGraphFactory {
   // [skyframe-loading]
   private final Cache<PackageIdentifier, Package.LegacyBuilder> packageFunctionCache =
       newPkgFunctionCache();
+  // Cache of parsed BUILD files, stored between reruns of the PackageFunction while their Skylark
+  // imports are being loaded, so that each BUILD file is only parsed once.
+  private final Cache<PackageIdentifier, AstAfterPreprocessing> astCache = newAstCache();
 
   private final AtomicInteger numPackagesLoaded = new AtomicInteger(0);
 
@@ -224,6 +237,8 @@ public abstract class SkyframeExecutor implements WalkableGraphFactory {
   private CompletionReceiver actionExecutionFunction;
   protected SkyframeProgressReceiver progressReceiver;
   private final AtomicReference<CyclesReporter> cyclesReporter = new AtomicReference<>();
+  // Syntax trees of BUILD and .bzl files kept in the output base, or null if disabled.
+  private final AtomicReference<PersistentASTCache> persistentAstCache = new AtomicReference<>();
 
   private final Set<Path> immutableDirectories;
 
@@ -312,7 +327,7 @@ public abstract class SkyframeExecutor implements WalkableGraphFactory {
     map.put(SkyFunctions.PACKAGE_LOOKUP, new PackageLookupFunction(deletedPackages));
     map.put(SkyFunctions.CONTAINING_PACKAGE_LOOKUP, new ContainingPackageLookupFunction());
     map.put(SkyFunctions.AST_FILE_LOOKUP, new ASTFileLookupFunction(
-        pkgLocator, packageManager, ruleClassProvider));
+        pkgLocator, packageManager, ruleClassProvider, persistentAstCache));
     map.put(SkyFunctions.SKYLARK_IMPORTS_LOOKUP, new SkylarkImportLookupFunction(
         ruleClassProvider, pkgFactory));
     map.put(SkyFunctions.GLOB, newGlobFunction());
@@ -324,7 +339,7 @@ public abstract class SkyframeExecutor implements WalkableGraphFactory {
     map.put(SkyFunctions.RECURSIVE_PKG, new RecursivePkgFunction());
     map.put(SkyFunctions.PACKAGE, new PackageFunction(
         reporter, pkgFactory, packageManager, showLoadingProgress, packageFunctionCache,
-        numPackagesLoaded));
+        astCache, persistentAstCache, numPackagesLoaded));
     map.put(SkyFunctions.TARGET_MARKER, new TargetMarkerFunction());
     map.put(SkyFunctions.TRANSITIVE_TARGET, new TransitiveTargetFunction(ruleClassProvider));
     map.put(SkyFunctions.TRANSITIVE_TRAVERSAL, new TransitiveTraversalFunction());
@@ -392,6 +407,32 @@ public abstract class SkyframeExecutor implements WalkableGraphFactory {
     this.batchStatter = batchStatter;
   }
 
+  /**
+   * Receives the source file changes that {@link DiffAwareness} reported under each package path
+   * entry, before they are used to invalidate the graph.
+   */
+  public interface ModifiedFilesListener {
+    /** The given files, relative to {@code pathEntry}, may have been modified. */
+    void filesModified(Path pathEntry, Iterable<PathFragment> modifiedFiles);
+
+    /** No diff information is available for {@code pathEntry}; anything below it may differ. */
+    void everythingModified(Path pathEntry);
+  }
+
+  public void addModifiedFilesListener(ModifiedFilesListener listener) {
+    modifiedFilesListeners.add(listener);
+  }
+
+  protected void notifyModifiedFilesListeners(Path pathEntry, ModifiedFileSet modifiedFileSet) {
+    for (ModifiedFilesListener listener : modifiedFilesListeners) {
+      if (modifiedFileSet.treatEverythingAsModified()) {
+        listener.everythingModified(pathEntry);
+      } else {
+        listener.filesModified(pathEntry, modifiedFileSet.modifiedSourceFiles());
+      }
+    }
+  }
+
   /**
    * Notify listeners about changed files, and release any associated memory afterwards.
    */
@@ -461,6 +502,8 @@ public abstract class SkyframeExecutor implements WalkableGraphFactory {
     memoizingEvaluator = evaluatorSupplier.create(
         skyFunctions, evaluatorDiffer(), progressReceiver, emittedEventState,
         hasIncrementalState());
+    memoizingEvaluator.setUseForkJoinPool(useForkJoinPool);
+    memoizingEvaluator.setEvaluationPrioritizer(evaluationPrioritizer);
     buildDriver = newBuildDriver();
   }
 
@@ -484,6 +527,17 @@ public abstract class SkyframeExecutor implements WalkableGraphFactory {
     reinjectConstantValuesLazily();
   }
 
+  /**
+   * Replaces the supplier of the evaluator, e.g. to keep the graph in a more compact form. If it
+   * changes, the evaluator is recreated as by {@link #resetEvaluator}.
+   */
+  public void setEvaluatorSupplier(EvaluatorSupplier evaluatorSupplier) {
+    if (evaluatorSupplier != this.evaluatorSupplier) {
+      this.evaluatorSupplier = evaluatorSupplier;
+      resetEvaluator();
+    }
+  }
+
   protected abstract Differencer evaluatorDiffer();
 
   protected abstract BuildDriver newBuildDriver();
@@ -593,6 +647,10 @@ public abstract class SkyframeExecutor implements WalkableGraphFactory {
     return CacheBuilder.newBuilder().build();
   }
 
+  protected Cache<PackageIdentifier, AstAfterPreprocessing> newAstCache() {
+    return CacheBuilder.newBuilder().build();
+  }
+
   /**
    * Injects the build info factory map that will be used when constructing build info
    * actions/artifacts. Unchanged across the life of the Blaze server, although it must be injected
@@ -859,6 +917,7 @@ public abstract class SkyframeExecutor implements WalkableGraphFactory {
 
     // If the PackageFunction was interrupted, there may be stale entries here.
     packageFunctionCache.invalidateAll();
+    astCache.invalidateAll();
     numPackagesLoaded.set(0);
 
     // Reset the stateful SkyframeCycleReporter, which contains cycles from last run.
@@ -922,6 +981,30 @@ public abstract class SkyframeExecutor implements WalkableGraphFactory {
     this.skyframeActionExecutor.setActionLogBufferPathGenerator(actionLogBufferPathGenerator);
   }
 
+  /**
+   * Sets the local output cache consulted before executing actions, or null to not use one.
+   */
+  public void setOutputCache(@Nullable DiskOutputCache outputCache) {
+    skyframeActionExecutor.setOutputCache(outputCache);
+  }
+
+  /**
+   * Sets the order in which actions that are ready to execute get an evaluator thread, or null to
+   * execute them in the order in which they became ready. Nodes other than actions are always
+   * evaluated first, as they are cheap and may make more actions ready.
+   */
+  public void setActionPrioritizer(@Nullable final ResourceManager.Prioritizer prioritizer) {
+    evaluationPrioritizer = prioritizer == null ? null : new EvaluationPrioritizer() {
+      @Override
+      public long getPriority(SkyKey key) {
+        return key.functionName() == SkyFunctions.ACTION_EXECUTION
+            ? prioritizer.getPriority((Action) key.argument())
+            : Long.MAX_VALUE;
+      }
+    };
+    memoizingEvaluator.setEvaluationPrioritizer(evaluationPrioritizer);
+  }
+
   @VisibleForTesting
   public void setConfigurationDataForTesting(BlazeDirectories directories,
       ConfigurationFactory configurationFactory) {
@@ -1542,6 +1625,7 @@ public abstract class SkyframeExecutor implements WalkableGraphFactory {
     /** Same as {@link PackageManager#partiallyClear}. */
     void partiallyClear() {
       packageFunctionCache.invalidateAll();
+      astCache.invalidateAll();
     }
   }
 
@@ -1585,6 +1669,19 @@ public abstract class SkyframeExecutor implements WalkableGraphFactory {
   @ThreadCompatible
   public abstract void updateLoadedPackageSet(Set<PackageIdentifier> loadedPackages);
 
+  /**
+   * Sets whether the syntax trees of BUILD and .bzl files are kept in the output base, where they
+   * outlive the server.
+   */
+  public void setPersistentAstCacheEnabled(boolean enabled) {
+    if (!enabled) {
+      persistentAstCache.set(null);
+    } else if (persistentAstCache.get() == null) {
+      persistentAstCache.set(
+          new PersistentASTCache(directories.getOutputBase().getChild("ast_cache")));
+    }
+  }
+
   public void sync(PackageCacheOptions packageCacheOptions, Path outputBase, Path workingDirectory,
       String defaultsPackageContents, UUID commandId) throws InterruptedException,
       AbruptExitException{
@@ -1595,6 +1692,9 @@ public abstract class SkyframeExecutor implements WalkableGraphFactory {
         packageCacheOptions.defaultVisibility, packageCacheOptions.showLoadingProgress,
         packageCacheOptions.globbingThreads, defaultsPackageContents, commandId);
     setDeletedPackages(ImmutableSet.copyOf(packageCacheOptions.deletedPackages));
+    useForkJoinPool = packageCacheOptions.skyframeForkJoinPool;
+    memoizingEvaluator.setUseForkJoinPool(useForkJoinPool);
+    setPersistentAstCacheEnabled(packageCacheOptions.persistentAstCache);
 
     incrementalBuildMonitor = new SkyframeIncrementalBuildMonitor();
     invalidateTransientErrors();
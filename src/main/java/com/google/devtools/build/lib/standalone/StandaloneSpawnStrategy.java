@@ -14,9 +14,11 @@
 package com.google.devtools.build.lib.standalone;
 
 import com.google.devtools.build.lib.actions.ActionExecutionContext;
+import com.google.devtools.build.lib.actions.ActionHistory;
 import com.google.devtools.build.lib.actions.ExecException;
 import com.google.devtools.build.lib.actions.ExecutionStrategy;
 import com.google.devtools.build.lib.actions.Executor;
+import com.google.devtools.build.lib.actions.ResourceManager;
 import com.google.devtools.build.lib.actions.Spawn;
 import com.google.devtools.build.lib.actions.SpawnActionContext;
 import com.google.devtools.build.lib.actions.UserExecException;
@@ -27,9 +29,12 @@ import com.google.devtools.build.lib.util.CommandFailureUtils;
 import com.google.devtools.build.lib.util.OS;
 import com.google.devtools.build.lib.util.OsUtils;
 import com.google.devtools.build.lib.util.io.FileOutErr;
+import com.google.devtools.build.lib.vfs.FileSystemUtils;
 import com.google.devtools.build.lib.vfs.Path;
 
 import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -72,6 +77,10 @@ public class StandaloneSpawnStrategy implements SpawnActionContext {
       }
     }
 
+    FileOutErr outErr = actionExecutionContext.getFileOutErr();
+    ActionHistory actionHistory = ResourceManager.instance().getActionHistory();
+    Path statsFile = null;
+
     // We must wrap the subprocess with process-wrapper to kill the process tree.
     // All actions therefore depend on the process-wrapper file. Since it's embedded,
     // we don't bother with declaring it as an input.
@@ -82,6 +91,12 @@ public class StandaloneSpawnStrategy implements SpawnActionContext {
       // Disable it for now to make the setup easier and to avoid further PATH hacks.
       // Ideally we should have a native implementation of process-wrapper for Windows.
       args.add(processWrapper.getPathString());
+      if (actionHistory != null && outErr.getErrorFile() != null) {
+        // The usage of the spawn is written next to its buffered output.
+        statsFile = outErr.getErrorFile().getParentDirectory().getChild(
+            outErr.getErrorFile().getBaseName() + ".stats");
+        args.add("--stats=" + statsFile.getPathString());
+      }
       args.add(Integer.toString(timeout));
       args.add("5"); /* kill delay: give some time to print stacktraces and whatnot. */
 
@@ -95,7 +110,6 @@ public class StandaloneSpawnStrategy implements SpawnActionContext {
     String cwd = executor.getExecRoot().getPathString();
     Command cmd = new Command(args.toArray(new String[]{}), spawn.getEnvironment(), new File(cwd));
 
-    FileOutErr outErr = actionExecutionContext.getFileOutErr();
     try {
       cmd.execute(
           /* stdin */ new byte[]{},
@@ -103,10 +117,38 @@ public class StandaloneSpawnStrategy implements SpawnActionContext {
           outErr.getOutputStream(),
           outErr.getErrorStream(),
           /*killSubprocessOnInterrupt*/ true);
+      if (statsFile != null) {
+        recordSpawnUsage(actionHistory, spawn, statsFile);
+      }
     } catch (CommandException e) {
       String message = CommandFailureUtils.describeCommandFailure(
           verboseFailures, spawn.getArguments(), spawn.getEnvironment(), cwd);
       throw new UserExecException(String.format("%s: %s", message, e));
+    } finally {
+      if (statsFile != null) {
+        try {
+          statsFile.delete();
+        } catch (IOException e) {
+          // Overwritten by the next spawn that uses the same output buffer.
+        }
+      }
+    }
+  }
+
+  /**
+   * Adds the CPU time and peak memory that process-wrapper wrote to {@code statsFile} to the
+   * history of the action that owns the spawn.
+   */
+  private static void recordSpawnUsage(ActionHistory actionHistory, Spawn spawn, Path statsFile) {
+    try {
+      String[] fields =
+          FileSystemUtils.readContent(statsFile, StandardCharsets.US_ASCII).trim().split(" ");
+      if (fields.length == 2) {
+        actionHistory.addSpawnUsage(spawn.getResourceOwner(), Long.parseLong(fields[0]),
+            Long.parseLong(fields[1]));
+      }
+    } catch (IOException | NumberFormatException e) {
+      // The usage is only advisory, so a spawn without it is recorded by its wall time alone.
     }
   }
 
@@ -71,6 +71,22 @@ public class BuildFileAST extends ASTNode {
     }
   }
 
+  /**
+   * Creates the syntax tree of a file from statements that were read back instead of parsed.
+   */
+  BuildFileAST(List<Statement> preludeStatements, List<Statement> statements,
+      List<Comment> comments, Location location, @Nullable String contentHashCode,
+      boolean containsErrors) {
+    this.stmts = ImmutableList.<Statement>builder()
+        .addAll(preludeStatements)
+        .addAll(statements)
+        .build();
+    this.comments = ImmutableList.copyOf(comments);
+    this.containsErrors = containsErrors;
+    this.contentHashCode = contentHashCode;
+    setLocation(location);
+  }
+
   private ImmutableSet<Label> fetchIncludes(List<Statement> stmts) {
     ImmutableSet.Builder<Label> result = new ImmutableSet.Builder<>();
     for (Statement stmt : stmts) {
@@ -262,11 +278,20 @@ public class BuildFileAST extends ASTNode {
       CachingPackageLocator locator, ValidationEnvironment validationEnvironment)
           throws IOException {
     ParserInputSource input = ParserInputSource.create(file);
+    return parseSkylarkFile(input, HashCode.fromBytes(file.getMD5Digest()).toString(),
+        eventHandler, locator, validationEnvironment);
+  }
+
+  /**
+   * Parse the specified Skylark file whose content has already been read, returning its AST.
+   */
+  static BuildFileAST parseSkylarkFile(ParserInputSource input, String contentHashCode,
+      EventHandler eventHandler, CachingPackageLocator locator,
+      ValidationEnvironment validationEnvironment) {
     Lexer lexer = new Lexer(input, eventHandler, false);
     Parser.ParseResult result =
         Parser.parseFileForSkylark(lexer, eventHandler, locator, validationEnvironment);
-    return new BuildFileAST(lexer, ImmutableList.<Statement>of(), result,
-        HashCode.fromBytes(file.getMD5Digest()).toString());
+    return new BuildFileAST(lexer, ImmutableList.<Statement>of(), result, contentHashCode);
   }
 
   /**
@@ -0,0 +1,257 @@
+// Copyright 2015 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.syntax;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.devtools.build.lib.concurrent.ThreadSafety.Immutable;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * The body of a {@link UserDefinedFunction}, compiled to a flat sequence of instructions.
+ *
+ * <p>Executing the syntax tree implements {@code return}, {@code break} and {@code continue} by
+ * throwing exceptions, which capture and unwind the deep Java stack of the evaluator on every
+ * call. The compiled body turns if, for, return, break and continue into jumps between
+ * instructions. Expressions and all other statements are still evaluated by the syntax tree.
+ *
+ * <p>The identifiers of the body are resolved by {@link LocalVariableResolver}, and the local
+ * variables of each call are stored in an array in the environment of the call.
+ */
+@Immutable
+final class CompiledFunctionBody {
+
+  // Executes statements[pc].
+  private static final int EXEC = 0;
+  // Returns the value of expressions[pc].
+  private static final int RETURN = 1;
+  // Continues at targets[pc].
+  private static final int JUMP = 2;
+  // Continues at targets[pc] if expressions[pc] is false.
+  private static final int JUMP_UNLESS = 3;
+  // Starts the for loop statements[pc], which is nested in loopDepths[pc] other loops.
+  private static final int FOR_START = 4;
+  // Assigns the next element of the for loop statements[pc], or finishes it and continues at
+  // targets[pc].
+  private static final int FOR_NEXT = 5;
+
+  private final int[] opcodes;
+  private final int[] targets;
+  private final int[] loopDepths;
+  private final Statement[] statements;
+  private final Expression[] expressions;
+  // The statement of the function body that contains each instruction, for error messages.
+  private final Statement[] bodyStatements;
+  private final int maxLoopDepth;
+  private final ImmutableMap<String, Integer> localSlots;
+
+  private CompiledFunctionBody(Compiler compiler, ImmutableMap<String, Integer> localSlots) {
+    int size = compiler.opcodes.size();
+    this.opcodes = new int[size];
+    this.targets = new int[size];
+    this.loopDepths = new int[size];
+    for (int i = 0; i < size; i++) {
+      opcodes[i] = compiler.opcodes.get(i);
+      targets[i] = compiler.targets.get(i);
+      loopDepths[i] = compiler.loopDepths.get(i);
+    }
+    this.statements = compiler.statements.toArray(new Statement[size]);
+    this.expressions = compiler.expressions.toArray(new Expression[size]);
+    this.bodyStatements = compiler.bodyStatements.toArray(new Statement[size]);
+    this.maxLoopDepth = compiler.maxLoopDepth;
+    this.localSlots = localSlots;
+  }
+
+  /**
+   * Compiles the statements of a function body and resolves its identifiers.
+   */
+  static CompiledFunctionBody compile(List<String> parameters, List<Statement> body) {
+    ImmutableMap<String, Integer> localSlots = LocalVariableResolver.resolve(parameters, body);
+    Compiler compiler = new Compiler();
+    for (Statement statement : body) {
+      compiler.bodyStatement = statement;
+      compiler.compile(statement, null);
+    }
+    return new CompiledFunctionBody(compiler, localSlots);
+  }
+
+  /**
+   * Returns the slots of the local variables, the parameters first.
+   */
+  ImmutableMap<String, Integer> getLocalSlots() {
+    return localSlots;
+  }
+
+  /**
+   * Executes the body in {@code env}, which contains the arguments, and returns the return value.
+   */
+  Object exec(Environment env) throws EvalException, InterruptedException {
+    LoopState[] loops = maxLoopDepth == 0 ? null : new LoopState[maxLoopDepth];
+    int pc = 0;
+    try {
+      while (pc < opcodes.length) {
+        switch (opcodes[pc]) {
+          case EXEC:
+            statements[pc].exec(env);
+            pc++;
+            break;
+          case RETURN:
+            return expressions[pc].eval(env);
+          case JUMP:
+            pc = targets[pc];
+            break;
+          case JUMP_UNLESS:
+            pc = EvalUtils.toBoolean(expressions[pc].eval(env)) ? pc + 1 : targets[pc];
+            break;
+          case FOR_START:
+            loops[loopDepths[pc]] = new LoopState(((ForStatement) statements[pc]).evalCollection(env));
+            pc++;
+            break;
+          case FOR_NEXT:
+            ForStatement loop = (ForStatement) statements[pc];
+            LoopState state = loops[loopDepths[pc]];
+            if (state.elements.hasNext()) {
+              loop.getVariable().assign(env, loop.getLocation(), state.elements.next());
+              state.iterations++;
+              pc++;
+            } else {
+              loop.checkNotModified(state.collection, state.iterations);
+              loops[loopDepths[pc]] = null;
+              pc = targets[pc];
+            }
+            break;
+          default:
+            throw new IllegalStateException("Unknown opcode " + opcodes[pc]);
+        }
+      }
+    } catch (EvalExceptionWithStackTrace ex) {
+      // We need this block since the next "catch" must only catch EvalExceptions that don't have a
+      // stack trace yet.
+      throw ex;
+    } catch (EvalException ex) {
+      Statement statement = bodyStatements[pc];
+      EvalExceptionWithStackTrace real = new EvalExceptionWithStackTrace(ex, statement.getLocation());
+      real.registerStatement(statement);
+      throw real;
+    }
+    return Runtime.NONE;
+  }
+
+  /**
+   * The iteration state of a running for loop.
+   */
+  private static final class LoopState {
+    private final Iterable<?> collection;
+    private final Iterator<?> elements;
+    private int iterations;
+
+    LoopState(Iterable<?> collection) {
+      this.collection = collection;
+      this.elements = ImmutableList.copyOf(collection).iterator();
+    }
+  }
+
+  /**
+   * The jumps of break and continue statements in the innermost for loop being compiled.
+   */
+  private static final class Loop {
+    private final int depth;
+    private final int next;
+    private final List<Integer> breaks = new ArrayList<>();
+
+    Loop(int depth, int next) {
+      this.depth = depth;
+      this.next = next;
+    }
+  }
+
+  private static final class Compiler {
+    private final List<Integer> opcodes = new ArrayList<>();
+    private final List<Integer> targets = new ArrayList<>();
+    private final List<Integer> loopDepths = new ArrayList<>();
+    private final List<Statement> statements = new ArrayList<>();
+    private final List<Expression> expressions = new ArrayList<>();
+    private final List<Statement> bodyStatements = new ArrayList<>();
+    private int maxLoopDepth;
+    private Statement bodyStatement;
+
+    private void compile(Statement statement, Loop loop) {
+      if (statement instanceof ReturnStatement) {
+        emit(RETURN, null, ((ReturnStatement) statement).getReturnExpression(), 0);
+      } else if (statement instanceof IfStatement) {
+        compileIf((IfStatement) statement, loop);
+      } else if (statement instanceof ForStatement) {
+        compileFor((ForStatement) statement, loop);
+      } else if (statement == FlowStatement.BREAK && loop != null) {
+        loop.breaks.add(emit(JUMP, null, null, 0));
+      } else if (statement == FlowStatement.CONTINUE && loop != null) {
+        setTarget(emit(JUMP, null, null, 0), loop.next);
+      } else {
+        emit(EXEC, statement, null, 0);
+      }
+    }
+
+    private void compileAll(List<Statement> block, Loop loop) {
+      for (Statement statement : block) {
+        compile(statement, loop);
+      }
+    }
+
+    private void compileIf(IfStatement statement, Loop loop) {
+      List<Integer> jumpsToEnd = new ArrayList<>();
+      for (IfStatement.ConditionalStatements branch : statement.getThenBlocks()) {
+        int test = emit(JUMP_UNLESS, null, branch.getCondition(), 0);
+        compileAll(branch.getStmts(), loop);
+        jumpsToEnd.add(emit(JUMP, null, null, 0));
+        setTarget(test, opcodes.size());
+      }
+      compileAll(statement.getElseBlock(), loop);
+      for (int jump : jumpsToEnd) {
+        setTarget(jump, opcodes.size());
+      }
+    }
+
+    private void compileFor(ForStatement statement, Loop outer) {
+      int depth = outer == null ? 0 : outer.depth + 1;
+      maxLoopDepth = Math.max(maxLoopDepth, depth + 1);
+      emit(FOR_START, statement, null, depth);
+      Loop loop = new Loop(depth, emit(FOR_NEXT, statement, null, depth));
+      compileAll(statement.block(), loop);
+      setTarget(emit(JUMP, null, null, 0), loop.next);
+      int end = opcodes.size();
+      setTarget(loop.next, end);
+      for (int jump : loop.breaks) {
+        setTarget(jump, end);
+      }
+    }
+
+    /** Appends an instruction and returns its index. */
+    private int emit(int opcode, Statement statement, Expression expression, int loopDepth) {
+      opcodes.add(opcode);
+      targets.add(-1);
+      loopDepths.add(loopDepth);
+      statements.add(statement);
+      expressions.add(expression);
+      bodyStatements.add(bodyStatement);
+      return opcodes.size() - 1;
+    }
+
+    private void setTarget(int instruction, int target) {
+      targets.set(instruction, target);
+    }
+  }
+}
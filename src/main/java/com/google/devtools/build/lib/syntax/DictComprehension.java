@@ -83,6 +83,6 @@ public class DictComprehension extends Expression {
 
   @Override
   public void accept(SyntaxTreeVisitor visitor) {
-    visitor.accept(this);
+    visitor.visit(this);
   }
 }
@@ -17,6 +17,7 @@ package com.google.devtools.build.lib.syntax;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Preconditions;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
 import com.google.devtools.build.lib.events.EventHandler;
 import com.google.devtools.build.lib.events.Location;
 import com.google.devtools.build.lib.vfs.PathFragment;
@@ -134,7 +135,8 @@ public class Environment {
   public Environment(Environment parent, Deque<StackTraceElement> stackTrace) {
     Preconditions.checkNotNull(parent);
     this.parent = parent;
-    this.importedExtensions = new HashMap<>();
+    // Extensions are only loaded in global environments.
+    this.importedExtensions = ImmutableMap.of();
     this.stackTrace = stackTrace;
   }
 
@@ -249,7 +251,7 @@ public class Environment {
       return env.keySet();
     } else {
       Set<String> vars = new HashSet<>();
-      vars.addAll(env.keySet());
+      vars.addAll(getDirectVariableNames());
       vars.addAll(parent.getVariableNames());
       return vars;
     }
@@ -58,8 +58,7 @@ public final class ForStatement extends Statement {
 
   @Override
   void exec(Environment env) throws EvalException, InterruptedException {
-    Object o = collection.eval(env);
-    Iterable<?> col = EvalUtils.toIterable(o, getLocation());
+    Iterable<?> col = evalCollection(env);
 
     int i = 0;
     for (Object it : ImmutableList.copyOf(col)) {
@@ -77,9 +76,23 @@ public final class ForStatement extends Statement {
 
       i++;
     }
-    
+
+    checkNotModified(col, i);
+  }
+
+  /**
+   * Evaluates the collection to iterate over.
+   */
+  Iterable<?> evalCollection(Environment env) throws EvalException, InterruptedException {
+    return EvalUtils.toIterable(collection.eval(env), getLocation());
+  }
+
+  /**
+   * Checks that the collection still has as many elements as the loop iterated over.
+   */
+  void checkNotModified(Iterable<?> col, int iterations) throws EvalException {
     // TODO(bazel-team): This should not happen if every collection is immutable.
-    if (i != EvalUtils.size(col)) {
+    if (iterations != EvalUtils.size(col)) {
       throw new EvalException(getLocation(),
           String.format("Cannot modify '%s' during during iteration.", collection.toString()));
     }
@@ -27,6 +27,9 @@ public class FunctionDefStatement extends Statement {
   private final Identifier ident;
   private final FunctionSignature.WithValues<Expression, Expression> args;
   private final ImmutableList<Statement> statements;
+  // Compiled on the first execution, that is after validation. A racy initialization compiles the
+  // body twice, which resolves the identifiers of the body to the same slots.
+  private volatile CompiledFunctionBody body;
 
   public FunctionDefStatement(Identifier ident,
       FunctionSignature.WithValues<Expression, Expression> args,
@@ -48,10 +51,15 @@ public class FunctionDefStatement extends Statement {
         defaultValues.add(expr.eval(env));
       }
     }
+    CompiledFunctionBody body = this.body;
+    if (body == null) {
+      body = CompiledFunctionBody.compile(args.getSignature().getNames(), statements);
+      this.body = body;
+    }
     env.update(ident.getName(), new UserDefinedFunction(
         ident, FunctionSignature.WithValues.<Object, SkylarkType>create(
             args.getSignature(), defaultValues, types),
-        statements, (SkylarkEnvironment) env));
+        statements, body, (SkylarkEnvironment) env));
   }
 
   @Override
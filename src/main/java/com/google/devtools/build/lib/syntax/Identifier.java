@@ -20,15 +20,30 @@ import javax.annotation.Nullable;
 // (1) intern the strings, so we can use == to compare, and have .equals use the assumption.
 // Then have Argument and Parameter use Identifier again instead of String as keys.
 // (2) Use Identifier, not String, as keys in the Environment, which will be cleaner.
-// (3) For performance, avoid doing HashMap lookups at runtime, and compile local variable access
-// into array reference with a constant index. Variable lookups are currently a speed bottleneck,
-// as previously measured in an experiment.
 /**
  *  Syntax node for an identifier.
  */
 public final class Identifier extends Expression {
 
+  /**
+   * Where the variable that an identifier in a function body refers to is stored. Identifiers
+   * outside of function bodies are not resolved and are looked up by name.
+   */
+  enum Scope {
+    /** A parameter or a variable assigned in the function, stored in a slot of the call. */
+    LOCAL,
+    /**
+     * A variable of the file that defines the function, or a builtin. Both live in the global
+     * environment and are looked up by name.
+     */
+    GLOBAL
+  }
+
   private final String name;
+  // Set by LocalVariableResolver before the function body that contains the identifier first
+  // executes.
+  @Nullable private Scope scope;
+  private int slot;
 
   public Identifier(String name) {
     this.name = name;
@@ -45,6 +60,27 @@ public final class Identifier extends Expression {
     return name.startsWith("_");
   }
 
+  @Nullable
+  Scope getScope() {
+    return scope;
+  }
+
+  /**
+   * Returns the slot of a {@link Scope#LOCAL} identifier in the environment of a function call.
+   */
+  int getSlot() {
+    return slot;
+  }
+
+  void resolveLocal(int slot) {
+    this.scope = Scope.LOCAL;
+    this.slot = slot;
+  }
+
+  void resolveGlobal() {
+    this.scope = Scope.GLOBAL;
+  }
+
   @Override
   public String toString() {
     return name;
@@ -67,6 +103,13 @@ public final class Identifier extends Expression {
   @Override
   Object eval(Environment env) throws EvalException {
     try {
+      if (scope == Scope.LOCAL) {
+        Object value = ((SkylarkEnvironment) env).getLocal(slot);
+        // A local variable that is not assigned yet may still be read as a global.
+        return value != null ? value : env.lookup(name);
+      } else if (scope == Scope.GLOBAL) {
+        return ((SkylarkEnvironment) env).lookupNonLocal(name);
+      }
       return env.lookup(name);
     } catch (Environment.NoSuchVariableException e) {
       throw createInvalidIdentifierException();
@@ -94,7 +94,11 @@ public class LValue implements Serializable {
                 ident.getName()));
       }
     }
-    env.update(ident.getName(), result);
+    if (ident.getScope() == Identifier.Scope.LOCAL) {
+      ((SkylarkEnvironment) env).setLocal(ident.getSlot(), result);
+    } else {
+      env.update(ident.getName(), result);
+    }
   }
 
   void validate(ValidationEnvironment env, Location loc) throws EvalException {
@@ -157,19 +157,27 @@ public final class Lexer {
   }
 
   Location createLocation(int start, int end) {
-    return new LexerLocation(locationInfo, start, end);
+    return new LexerLocation(locationInfo.lineNumberTable, start, end);
+  }
+
+  /**
+   * Returns the location that a lexer of the file described by {@code lineNumberTable} would
+   * create. Used for syntax trees that are read back instead of parsed.
+   */
+  static Location createLocation(LineNumberTable lineNumberTable, int start, int end) {
+    return new LexerLocation(lineNumberTable, start, end);
   }
 
   // Don't use an inner class as we don't want to close over the Lexer, only
-  // the LocationInfo.
+  // the line number table.
   @Immutable
   private static final class LexerLocation extends Location {
 
     private final LineNumberTable lineNumberTable;
 
-    LexerLocation(LocationInfo locationInfo, int start, int end) {
+    LexerLocation(LineNumberTable lineNumberTable, int start, int end) {
       super(start, end);
-      this.lineNumberTable = locationInfo.lineNumberTable;
+      this.lineNumberTable = lineNumberTable;
     }
 
     @Override
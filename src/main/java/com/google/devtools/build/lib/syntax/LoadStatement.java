@@ -55,6 +55,16 @@ public final class LoadStatement extends Statement {
     return importPath;
   }
 
+  /** Returns the path as written in the file, without the ".bzl" extension. */
+  String getPathString() {
+    return pathString;
+  }
+
+  /** Returns the symbols and the names under which they are defined in the loaded file. */
+  ImmutableMap<Identifier, String> getSymbolMap() {
+    return symbols;
+  }
+
   @Override
   public String toString() {
     return String.format("load(\"%s\", %s)", importPath, Joiner.on(", ").join(cachedSymbols));
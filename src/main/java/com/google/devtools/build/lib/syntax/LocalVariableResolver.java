@@ -0,0 +1,151 @@
+// Copyright 2015 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.syntax;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableMap;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Resolves the identifiers in the body of a function to local variables, which are stored in an
+ * array in the environment of each call, or to globals, which are looked up by name.
+ *
+ * <p>As in Python, a variable is local if it is a parameter of the function or if the function
+ * assigns to it anywhere in its body.
+ */
+final class LocalVariableResolver {
+
+  private LocalVariableResolver() {
+  }
+
+  /**
+   * Resolves the identifiers in {@code body} and returns the slots of the local variables. The
+   * parameters get the first slots, in order.
+   */
+  static ImmutableMap<String, Integer> resolve(List<String> parameters, List<Statement> body) {
+    Map<String, Integer> slots = new LinkedHashMap<>();
+    for (String parameter : parameters) {
+      Preconditions.checkArgument(slots.put(parameter, slots.size()) == null,
+          "duplicate parameter %s", parameter);
+    }
+    new AssignmentCollector(slots).visitAll(body);
+    new Resolver(slots).visitAll(body);
+    return ImmutableMap.copyOf(slots);
+  }
+
+  /**
+   * Adds the variables assigned by the visited statements to the slots.
+   */
+  private static final class AssignmentCollector extends SyntaxTreeVisitor {
+    private final Map<String, Integer> slots;
+
+    AssignmentCollector(Map<String, Integer> slots) {
+      this.slots = slots;
+    }
+
+    private void collect(LValue lvalue) {
+      collect(lvalue.getExpression());
+    }
+
+    private void collect(Expression lvalue) {
+      if (lvalue instanceof Identifier) {
+        String name = ((Identifier) lvalue).getName();
+        if (!slots.containsKey(name)) {
+          slots.put(name, slots.size());
+        }
+      } else if (lvalue instanceof ListLiteral) {
+        for (Expression element : ((ListLiteral) lvalue).getElements()) {
+          collect(element);
+        }
+      }
+    }
+
+    @Override
+    public void visit(AssignmentStatement node) {
+      collect(node.getLValue());
+      super.visit(node);
+    }
+
+    @Override
+    public void visit(ForStatement node) {
+      collect(node.getVariable());
+      super.visit(node);
+    }
+
+    @Override
+    public void visit(ListComprehension node) {
+      for (ListComprehension.Clause clause : node.getClauses()) {
+        if (clause.getLValue() != null) {
+          collect(clause.getLValue());
+        }
+      }
+      super.visit(node);
+    }
+
+    @Override
+    public void visit(DictComprehension node) {
+      collect(node.getLoopVar());
+      super.visit(node);
+    }
+
+    @Override
+    public void visit(FunctionDefStatement node) {
+      // Nested functions are rejected by the parser.
+    }
+  }
+
+  /**
+   * Resolves the visited identifiers that refer to variables.
+   */
+  private static final class Resolver extends SyntaxTreeVisitor {
+    private final Map<String, Integer> slots;
+
+    Resolver(Map<String, Integer> slots) {
+      this.slots = slots;
+    }
+
+    @Override
+    public void visit(Identifier node) {
+      Integer slot = slots.get(node.getName());
+      if (slot != null) {
+        node.resolveLocal(slot);
+      } else {
+        node.resolveGlobal();
+      }
+    }
+
+    @Override
+    public void visit(FuncallExpression node) {
+      if (node.getObject() != null) {
+        // The function is the name of a method, not a variable.
+        visit(node.getObject());
+      } else {
+        visit(node.getFunction());
+      }
+      visitAll(node.getArguments());
+    }
+
+    @Override
+    public void visit(DotExpression node) {
+      visit(node.getObj());
+    }
+
+    @Override
+    public void visit(FunctionDefStatement node) {
+    }
+  }
+}
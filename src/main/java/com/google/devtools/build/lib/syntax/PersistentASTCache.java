@@ -0,0 +1,793 @@
+// Copyright 2015 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.syntax;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+import com.google.devtools.build.lib.concurrent.ThreadSafety.ThreadSafe;
+import com.google.devtools.build.lib.events.Event;
+import com.google.devtools.build.lib.events.EventHandler;
+import com.google.devtools.build.lib.events.Location;
+import com.google.devtools.build.lib.events.StoredEventHandler;
+import com.google.devtools.build.lib.packages.CachingPackageLocator;
+import com.google.devtools.build.lib.syntax.DictionaryLiteral.DictionaryEntryLiteral;
+import com.google.devtools.build.lib.syntax.IfStatement.ConditionalStatements;
+import com.google.devtools.build.lib.util.Fingerprint;
+import com.google.devtools.build.lib.util.VarInt;
+import com.google.devtools.build.lib.vfs.FileSystemUtils;
+import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.build.lib.vfs.PathFragment;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.CharBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+import javax.annotation.Nullable;
+
+/**
+ * A cache of syntax trees in a directory of the output base, which lets a new server skip lexing
+ * and parsing the BUILD and .bzl files that did not change since an earlier server parsed them.
+ *
+ * <p>There is one entry per file and parsing mode. It records the digest of the content it was
+ * parsed from, and is only used for content with the same digest; a changed file replaces its
+ * entry. Only trees that are determined by the content of their file alone are stored: files whose
+ * parsing reported any event are parsed every time, so that the events are reported again, and so
+ * are BUILD files with an {@code include}, whose tree contains the included file.
+ *
+ * <p>Trees are stored in a compact encoding: a tag byte per node, offsets and counts as
+ * variable-length integers, and every distinct string once. Locations are recreated from the line
+ * number table of the content, which is read anyway to compute its digest. Entries end with a
+ * checksum, so that a corrupt entry is ignored instead of read back as a different tree.
+ */
+@ThreadSafe
+public final class PersistentASTCache {
+
+  private static final Logger LOG = Logger.getLogger(PersistentASTCache.class.getName());
+
+  // Must be changed whenever the parser or the encoding changes the trees that are read back.
+  private static final int VERSION = 1;
+
+  private static final int CHECKSUM_LENGTH = 16;
+
+  private enum Mode { BUILD, PYTHON, SKYLARK }
+
+  // Node tags.
+  private static final int IDENTIFIER = 1;
+  private static final int INTEGER_LITERAL = 2;
+  private static final int STRING_LITERAL = 3;
+  private static final int LIST_LITERAL = 4;
+  private static final int TUPLE_LITERAL = 5;
+  private static final int DICTIONARY_LITERAL = 6;
+  private static final int DOT_EXPRESSION = 7;
+  private static final int FUNCALL_EXPRESSION = 8;
+  private static final int BINARY_OPERATOR_EXPRESSION = 9;
+  private static final int NOT_EXPRESSION = 10;
+  private static final int CONDITIONAL_EXPRESSION = 11;
+  private static final int LIST_COMPREHENSION = 12;
+  private static final int DICT_COMPREHENSION = 13;
+  private static final int EXPRESSION_STATEMENT = 20;
+  private static final int ASSIGNMENT_STATEMENT = 21;
+  private static final int IF_STATEMENT = 22;
+  private static final int FOR_STATEMENT = 23;
+  private static final int RETURN_STATEMENT = 24;
+  private static final int BREAK_STATEMENT = 25;
+  private static final int CONTINUE_STATEMENT = 26;
+  private static final int FUNCTION_DEF_STATEMENT = 27;
+  private static final int LOAD_STATEMENT = 28;
+
+  // Argument kinds.
+  private static final int POSITIONAL = 0;
+  private static final int KEYWORD = 1;
+  private static final int STAR = 2;
+  private static final int STAR_STAR = 3;
+
+  private final Path directory;
+
+  public PersistentASTCache(Path directory) {
+    this.directory = directory;
+  }
+
+  /**
+   * Same as {@link BuildFileAST#parseBuildFile(ParserInputSource, List, EventHandler,
+   * CachingPackageLocator, boolean)}, but reads the tree back from the cache if it has it. Files
+   * are only cached when parsed with a locator.
+   */
+  public BuildFileAST parseBuildFile(ParserInputSource input, List<Statement> preludeStatements,
+      EventHandler eventHandler, @Nullable CachingPackageLocator locator, boolean parsePython) {
+    if (locator == null) {
+      // Includes are dropped without a locator, so the tree would not be the one stored.
+      return BuildFileAST.parseBuildFile(
+          input, preludeStatements, eventHandler, locator, parsePython);
+    }
+    Mode mode = parsePython ? Mode.PYTHON : Mode.BUILD;
+    byte[] digest = digest(input.getContent());
+    BuildFileAST ast = read(mode, input, digest, preludeStatements);
+    if (ast != null) {
+      logHit(input.getPath());
+      return ast;
+    }
+    StoredEventHandler events = new StoredEventHandler();
+    ast = BuildFileAST.parseBuildFile(input, preludeStatements, events, locator, parsePython);
+    events.replayOn(eventHandler);
+    if (events.isEmpty()) {
+      write(mode, input.getPath(), digest, ast, preludeStatements.size());
+    }
+    return ast;
+  }
+
+  /**
+   * Same as {@link BuildFileAST#parseSkylarkFile}, but reads the tree back from the cache if it
+   * has it.
+   */
+  public BuildFileAST parseSkylarkFile(Path file, EventHandler eventHandler,
+      @Nullable CachingPackageLocator locator, ValidationEnvironment validationEnvironment)
+      throws IOException {
+    ParserInputSource input = ParserInputSource.create(file);
+    byte[] digest = digest(input.getContent());
+    BuildFileAST ast = read(Mode.SKYLARK, input, digest, ImmutableList.<Statement>of());
+    if (ast != null) {
+      logHit(input.getPath());
+      // Validation depends on the environment, so it is done for every use of the tree, like the
+      // parser does.
+      try {
+        validationEnvironment.validateAst(ast.getStatements());
+      } catch (EvalException e) {
+        eventHandler.handle(Event.error(e.getLocation(), e.getMessage()));
+        ast = new BuildFileAST(ImmutableList.<Statement>of(), ast.getStatements(),
+            ast.getComments(), ast.getLocation(), ast.getContentHashCode(),
+            /*containsErrors=*/true);
+      }
+      return ast;
+    }
+    StoredEventHandler events = new StoredEventHandler();
+    ast = BuildFileAST.parseSkylarkFile(input, HashCode.fromBytes(file.getMD5Digest()).toString(),
+        events, locator, validationEnvironment);
+    events.replayOn(eventHandler);
+    if (events.isEmpty()) {
+      write(Mode.SKYLARK, input.getPath(), digest, ast, 0);
+    }
+    return ast;
+  }
+
+  private static void logHit(PathFragment path) {
+    // Logged messages are used as a testability hook.
+    LOG.fine("Read the syntax tree of " + path + " from the cache");
+  }
+
+  private static byte[] digest(char[] content) {
+    return Hashing.md5().newHasher().putUnencodedChars(CharBuffer.wrap(content)).hash().asBytes();
+  }
+
+  private static byte[] checksum(byte[] bytes, int length) {
+    return Hashing.md5().hashBytes(bytes, 0, length).asBytes();
+  }
+
+  private Path getEntry(Mode mode, PathFragment path) {
+    String name = new Fingerprint().addInt(mode.ordinal()).addPath(path).hexDigestAndReset();
+    // Spread the entries over subdirectories, to keep directories small.
+    return directory.getChild(name.substring(0, 2)).getChild(name.substring(2));
+  }
+
+  @Nullable
+  private BuildFileAST read(Mode mode, ParserInputSource input, byte[] digest,
+      List<Statement> preludeStatements) {
+    Path entry = getEntry(mode, input.getPath());
+    if (!entry.exists()) {
+      return null;
+    }
+    try {
+      byte[] bytes = FileSystemUtils.readContent(entry);
+      // The entry ends with a checksum of everything before it.
+      int length = bytes.length - CHECKSUM_LENGTH;
+      if (length < 0 || !Arrays.equals(checksum(bytes, length),
+          Arrays.copyOfRange(bytes, length, bytes.length))) {
+        throw new IOException("checksum mismatch");
+      }
+      DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes, 0, length));
+      if (in.readInt() != VERSION
+          || in.readUnsignedByte() != mode.ordinal()
+          || !in.readUTF().equals(input.getPath().getPathString())) {
+        return null;
+      }
+      byte[] entryDigest = new byte[digest.length];
+      in.readFully(entryDigest);
+      if (!Arrays.equals(entryDigest, digest)) {
+        return null;
+      }
+      BuildFileAST ast =
+          new TreeReader(in, LineNumberTable.create(input.getContent(), input.getPath()))
+              .readFile(input.getPath(), preludeStatements);
+      if (in.read() != -1) {
+        throw new IOException("trailing bytes");
+      }
+      return ast;
+    } catch (IOException | RuntimeException e) {
+      // A truncated or otherwise corrupt entry. It is replaced once the file has been parsed.
+      LOG.warning("Discarding unreadable syntax tree cache entry " + entry + ": " + e);
+      return null;
+    }
+  }
+
+  private void write(Mode mode, PathFragment path, byte[] digest, BuildFileAST ast,
+      int preludeSize) {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try {
+      DataOutputStream out = new DataOutputStream(bytes);
+      out.writeInt(VERSION);
+      out.writeByte(mode.ordinal());
+      out.writeUTF(path.getPathString());
+      out.write(digest);
+      new TreeWriter(out, path).writeFile(ast, preludeSize);
+      out.flush();
+      out.write(checksum(bytes.toByteArray(), bytes.size()));
+    } catch (IOException e) {
+      // The tree cannot be encoded, e.g. because it includes another file.
+      return;
+    }
+    Path entry = getEntry(mode, path);
+    // The entry only becomes visible once it is complete.
+    Path tmpEntry = entry.getParentDirectory().getChild(
+        entry.getBaseName() + "." + Thread.currentThread().getId() + ".tmp");
+    try {
+      FileSystemUtils.createDirectoryAndParents(entry.getParentDirectory());
+      FileSystemUtils.writeContent(tmpEntry, bytes.toByteArray());
+      tmpEntry.renameTo(entry);
+    } catch (IOException e) {
+      LOG.warning("Cannot write syntax tree cache entry " + entry + ": " + e.getMessage());
+    }
+  }
+
+  /**
+   * Encodes a syntax tree. Throws an IOException for trees that cannot be read back as they are.
+   */
+  private static final class TreeWriter {
+    private final DataOutputStream out;
+    private final PathFragment path;
+    private final Map<String, Integer> strings = new HashMap<>();
+
+    TreeWriter(DataOutputStream out, PathFragment path) {
+      this.out = out;
+      this.path = path;
+    }
+
+    void writeFile(BuildFileAST ast, int preludeSize) throws IOException {
+      List<Statement> statements = ast.getStatements();
+      writeStatements(statements.subList(preludeSize, statements.size()));
+      writeInt(ast.getComments().size());
+      for (Comment comment : ast.getComments()) {
+        writeLocation(comment);
+        writeString(comment.getValue());
+      }
+      writeBoolean(ast.getContentHashCode() != null);
+      if (ast.getContentHashCode() != null) {
+        writeString(ast.getContentHashCode());
+      }
+    }
+
+    private void writeInt(int value) throws IOException {
+      VarInt.putVarInt(value, out);
+    }
+
+    private void writeBoolean(boolean value) throws IOException {
+      out.writeBoolean(value);
+    }
+
+    private void writeString(String value) throws IOException {
+      Integer index = strings.get(value);
+      if (index != null) {
+        writeInt(index + 1);
+      } else {
+        strings.put(value, strings.size());
+        writeInt(0);
+        out.writeUTF(value);
+      }
+    }
+
+    private void writeLocation(ASTNode node) throws IOException {
+      Location location = node.getLocation();
+      if (location == null) {
+        writeInt(0);
+        return;
+      }
+      // Nodes from other files, e.g. included ones, cannot be located in this file.
+      if (!path.equals(location.getPath())) {
+        throw new IOException("node from " + location.getPath());
+      }
+      writeInt(location.getStartOffset() + 1);
+      writeInt(location.getEndOffset() - location.getStartOffset());
+    }
+
+    private void writeStatements(List<? extends Statement> statements) throws IOException {
+      writeInt(statements.size());
+      for (Statement statement : statements) {
+        writeStatement(statement);
+      }
+    }
+
+    private void writeExpressions(List<? extends Expression> expressions) throws IOException {
+      writeInt(expressions.size());
+      for (Expression expression : expressions) {
+        writeNullableExpression(expression);
+      }
+    }
+
+    private void writeNullableExpression(@Nullable Expression expression) throws IOException {
+      writeBoolean(expression != null);
+      if (expression != null) {
+        writeExpression(expression);
+      }
+    }
+
+    private void writeStatement(Statement statement) throws IOException {
+      if (statement instanceof ExpressionStatement) {
+        Expression expression = ((ExpressionStatement) statement).getExpression();
+        // The trace of an include.
+        if (expression instanceof FuncallExpression
+            && ((FuncallExpression) expression).getFunction().getName().equals("mocksubinclude")) {
+          throw new IOException("include");
+        }
+        out.writeByte(EXPRESSION_STATEMENT);
+        writeLocation(statement);
+        writeExpression(expression);
+      } else if (statement instanceof AssignmentStatement) {
+        AssignmentStatement assignment = (AssignmentStatement) statement;
+        out.writeByte(ASSIGNMENT_STATEMENT);
+        writeLocation(statement);
+        writeExpression(assignment.getLValue().getExpression());
+        writeExpression(assignment.getExpression());
+      } else if (statement instanceof IfStatement) {
+        IfStatement ifStatement = (IfStatement) statement;
+        out.writeByte(IF_STATEMENT);
+        writeLocation(statement);
+        writeInt(ifStatement.getThenBlocks().size());
+        for (ConditionalStatements block : ifStatement.getThenBlocks()) {
+          writeLocation(block);
+          writeExpression(block.getCondition());
+          writeStatements(block.getStmts());
+        }
+        writeStatements(ifStatement.getElseBlock());
+      } else if (statement instanceof ForStatement) {
+        ForStatement forStatement = (ForStatement) statement;
+        out.writeByte(FOR_STATEMENT);
+        writeLocation(statement);
+        writeExpression(forStatement.getVariable().getExpression());
+        writeExpression(forStatement.getCollection());
+        writeStatements(forStatement.block());
+      } else if (statement instanceof ReturnStatement) {
+        out.writeByte(RETURN_STATEMENT);
+        writeLocation(statement);
+        writeExpression(((ReturnStatement) statement).getReturnExpression());
+      } else if (statement == FlowStatement.BREAK || statement == FlowStatement.CONTINUE) {
+        out.writeByte(statement == FlowStatement.BREAK ? BREAK_STATEMENT : CONTINUE_STATEMENT);
+        writeLocation(statement);
+      } else if (statement instanceof FunctionDefStatement) {
+        FunctionDefStatement def = (FunctionDefStatement) statement;
+        out.writeByte(FUNCTION_DEF_STATEMENT);
+        writeLocation(statement);
+        writeExpression(def.getIdent());
+        writeSignature(def.getArgs());
+        writeStatements(def.getStatements());
+      } else if (statement instanceof LoadStatement) {
+        LoadStatement load = (LoadStatement) statement;
+        out.writeByte(LOAD_STATEMENT);
+        writeLocation(statement);
+        writeString(load.getPathString());
+        writeInt(load.getSymbolMap().size());
+        for (Map.Entry<Identifier, String> symbol : load.getSymbolMap().entrySet()) {
+          writeExpression(symbol.getKey());
+          writeString(symbol.getValue());
+        }
+      } else {
+        throw new IOException("cannot encode " + statement.getClass().getName());
+      }
+    }
+
+    private void writeSignature(FunctionSignature.WithValues<Expression, Expression> signature)
+        throws IOException {
+      FunctionSignature.Shape shape = signature.getSignature().getShape();
+      writeInt(shape.getMandatoryPositionals());
+      writeInt(shape.getOptionalPositionals());
+      writeInt(shape.getMandatoryNamedOnly());
+      writeInt(shape.getOptionalNamedOnly());
+      writeBoolean(shape.hasStarArg());
+      writeBoolean(shape.hasKwArg());
+      for (String name : signature.getSignature().getNames()) {
+        writeString(name);
+      }
+      writeBoolean(signature.getDefaultValues() != null);
+      if (signature.getDefaultValues() != null) {
+        writeExpressions(signature.getDefaultValues());
+      }
+      writeBoolean(signature.getTypes() != null);
+      if (signature.getTypes() != null) {
+        writeExpressions(signature.getTypes());
+      }
+    }
+
+    private void writeExpression(Expression expression) throws IOException {
+      if (expression instanceof Identifier) {
+        out.writeByte(IDENTIFIER);
+        writeLocation(expression);
+        writeString(((Identifier) expression).getName());
+      } else if (expression instanceof IntegerLiteral) {
+        out.writeByte(INTEGER_LITERAL);
+        writeLocation(expression);
+        out.writeInt(((IntegerLiteral) expression).getValue());
+      } else if (expression instanceof StringLiteral) {
+        StringLiteral literal = (StringLiteral) expression;
+        out.writeByte(STRING_LITERAL);
+        writeLocation(expression);
+        writeString(literal.getValue());
+        out.writeChar(literal.getQuoteChar());
+      } else if (expression instanceof ListLiteral) {
+        ListLiteral literal = (ListLiteral) expression;
+        out.writeByte(literal.isTuple() ? TUPLE_LITERAL : LIST_LITERAL);
+        writeLocation(expression);
+        writeExpressions(literal.getElements());
+      } else if (expression instanceof DictionaryLiteral) {
+        List<DictionaryEntryLiteral> entries = ((DictionaryLiteral) expression).getEntries();
+        out.writeByte(DICTIONARY_LITERAL);
+        writeLocation(expression);
+        writeInt(entries.size());
+        for (DictionaryEntryLiteral entry : entries) {
+          writeLocation(entry);
+          writeExpression(entry.getKey());
+          writeExpression(entry.getValue());
+        }
+      } else if (expression instanceof DotExpression) {
+        DotExpression dot = (DotExpression) expression;
+        out.writeByte(DOT_EXPRESSION);
+        writeLocation(expression);
+        writeExpression(dot.getObj());
+        writeExpression(dot.getField());
+      } else if (expression instanceof FuncallExpression) {
+        FuncallExpression call = (FuncallExpression) expression;
+        out.writeByte(FUNCALL_EXPRESSION);
+        writeLocation(expression);
+        writeNullableExpression(call.getObject());
+        writeExpression(call.getFunction());
+        writeInt(call.getArguments().size());
+        for (Argument.Passed argument : call.getArguments()) {
+          writeArgument(argument);
+        }
+      } else if (expression instanceof BinaryOperatorExpression) {
+        BinaryOperatorExpression binary = (BinaryOperatorExpression) expression;
+        out.writeByte(BINARY_OPERATOR_EXPRESSION);
+        writeLocation(expression);
+        writeInt(binary.getOperator().ordinal());
+        writeExpression(binary.getLhs());
+        writeExpression(binary.getRhs());
+      } else if (expression instanceof NotExpression) {
+        out.writeByte(NOT_EXPRESSION);
+        writeLocation(expression);
+        writeExpression(((NotExpression) expression).getExpression());
+      } else if (expression instanceof ConditionalExpression) {
+        ConditionalExpression conditional = (ConditionalExpression) expression;
+        out.writeByte(CONDITIONAL_EXPRESSION);
+        writeLocation(expression);
+        writeExpression(conditional.getThenCase());
+        writeExpression(conditional.getCondition());
+        writeNullableExpression(conditional.getElseCase());
+      } else if (expression instanceof ListComprehension) {
+        ListComprehension comprehension = (ListComprehension) expression;
+        out.writeByte(LIST_COMPREHENSION);
+        writeLocation(expression);
+        writeExpression(comprehension.getElementExpression());
+        writeInt(comprehension.getClauses().size());
+        for (ListComprehension.Clause clause : comprehension.getClauses()) {
+          // If clauses have no variables.
+          writeNullableExpression(
+              clause.getLValue() == null ? null : clause.getLValue().getExpression());
+          writeExpression(clause.getExpression());
+        }
+      } else if (expression instanceof DictComprehension) {
+        DictComprehension comprehension = (DictComprehension) expression;
+        out.writeByte(DICT_COMPREHENSION);
+        writeLocation(expression);
+        writeExpression(comprehension.getKeyExpression());
+        writeExpression(comprehension.getValueExpression());
+        writeExpression(comprehension.getLoopVar().getExpression());
+        writeExpression(comprehension.getListExpression());
+      } else {
+        throw new IOException("cannot encode " + expression.getClass().getName());
+      }
+    }
+
+    private void writeArgument(Argument.Passed argument) throws IOException {
+      if (argument.isKeyword()) {
+        out.writeByte(KEYWORD);
+        writeLocation(argument);
+        writeString(argument.getName());
+      } else {
+        out.writeByte(argument.isStar() ? STAR : argument.isStarStar() ? STAR_STAR : POSITIONAL);
+        writeLocation(argument);
+      }
+      writeExpression(argument.getValue());
+    }
+  }
+
+  /**
+   * Decodes a syntax tree written by {@link TreeWriter}.
+   */
+  private static final class TreeReader {
+    private final DataInputStream in;
+    private final LineNumberTable lineNumberTable;
+    private final List<String> strings = new ArrayList<>();
+
+    TreeReader(DataInputStream in, LineNumberTable lineNumberTable) {
+      this.in = in;
+      this.lineNumberTable = lineNumberTable;
+    }
+
+    BuildFileAST readFile(PathFragment path, List<Statement> preludeStatements)
+        throws IOException {
+      List<Statement> statements = readStatements();
+      int commentCount = readInt();
+      List<Comment> comments = new ArrayList<>(commentCount);
+      for (int i = 0; i < commentCount; i++) {
+        Location location = readLocation();
+        comments.add(ASTNode.setLocation(location, new Comment(readString())));
+      }
+      String contentHashCode = readBoolean() ? readString() : null;
+      // Same as for a parsed file.
+      Location location = statements.isEmpty()
+          ? Location.fromPathFragment(path)
+          : Lexer.createLocation(lineNumberTable,
+              statements.get(0).getLocation().getStartOffset(),
+              statements.get(statements.size() - 1).getLocation().getEndOffset());
+      return new BuildFileAST(preludeStatements, statements, comments, location, contentHashCode,
+          /*containsErrors=*/false);
+    }
+
+    private int readInt() throws IOException {
+      return VarInt.getVarInt(in);
+    }
+
+    private boolean readBoolean() throws IOException {
+      return in.readBoolean();
+    }
+
+    private String readString() throws IOException {
+      int index = readInt();
+      if (index > 0) {
+        return strings.get(index - 1);
+      }
+      String value = in.readUTF();
+      strings.add(value);
+      return value;
+    }
+
+    @Nullable
+    private Location readLocation() throws IOException {
+      int start = readInt() - 1;
+      if (start < 0) {
+        return null;
+      }
+      return Lexer.createLocation(lineNumberTable, start, start + readInt());
+    }
+
+    private List<Statement> readStatements() throws IOException {
+      int count = readInt();
+      List<Statement> statements = new ArrayList<>(count);
+      for (int i = 0; i < count; i++) {
+        statements.add(readStatement());
+      }
+      return statements;
+    }
+
+    private List<Expression> readExpressions() throws IOException {
+      int count = readInt();
+      List<Expression> expressions = new ArrayList<>(count);
+      for (int i = 0; i < count; i++) {
+        expressions.add(readNullableExpression());
+      }
+      return expressions;
+    }
+
+    @Nullable
+    private Expression readNullableExpression() throws IOException {
+      return readBoolean() ? readExpression() : null;
+    }
+
+    private Identifier readIdentifier() throws IOException {
+      Expression expression = readExpression();
+      if (!(expression instanceof Identifier)) {
+        throw new IOException("expected an identifier, got " + expression);
+      }
+      return (Identifier) expression;
+    }
+
+    private Statement readStatement() throws IOException {
+      int tag = in.readUnsignedByte();
+      Location location = readLocation();
+      Statement statement;
+      switch (tag) {
+        case EXPRESSION_STATEMENT:
+          statement = new ExpressionStatement(readExpression());
+          break;
+        case ASSIGNMENT_STATEMENT:
+          statement = new AssignmentStatement(readExpression(), readExpression());
+          break;
+        case IF_STATEMENT: {
+          int blockCount = readInt();
+          List<ConditionalStatements> thenBlocks = new ArrayList<>(blockCount);
+          for (int i = 0; i < blockCount; i++) {
+            Location blockLocation = readLocation();
+            thenBlocks.add(ASTNode.setLocation(blockLocation,
+                new ConditionalStatements(readExpression(), readStatements())));
+          }
+          statement = new IfStatement(thenBlocks, readStatements());
+          break;
+        }
+        case FOR_STATEMENT:
+          statement = new ForStatement(readExpression(), readExpression(), readStatements());
+          break;
+        case RETURN_STATEMENT:
+          statement = new ReturnStatement(readExpression());
+          break;
+        case BREAK_STATEMENT:
+          // Like the parser, which locates the shared instances at their last occurrence.
+          statement = FlowStatement.BREAK;
+          break;
+        case CONTINUE_STATEMENT:
+          statement = FlowStatement.CONTINUE;
+          break;
+        case FUNCTION_DEF_STATEMENT:
+          statement = new FunctionDefStatement(readIdentifier(), readSignature(), readStatements());
+          break;
+        case LOAD_STATEMENT: {
+          String path = readString();
+          int symbolCount = readInt();
+          Map<Identifier, String> symbols = new LinkedHashMap<>();
+          for (int i = 0; i < symbolCount; i++) {
+            symbols.put(readIdentifier(), readString());
+          }
+          statement = new LoadStatement(path, symbols);
+          break;
+        }
+        default:
+          throw new IOException("unknown statement tag " + tag);
+      }
+      return ASTNode.setLocation(location, statement);
+    }
+
+    private FunctionSignature.WithValues<Expression, Expression> readSignature()
+        throws IOException {
+      FunctionSignature.Shape shape = FunctionSignature.Shape.create(
+          readInt(), readInt(), readInt(), readInt(), readBoolean(), readBoolean());
+      List<String> names = new ArrayList<>(shape.getArguments());
+      for (int i = 0; i < shape.getArguments(); i++) {
+        names.add(readString());
+      }
+      List<Expression> defaultValues = readBoolean() ? readExpressions() : null;
+      List<Expression> types = readBoolean() ? readExpressions() : null;
+      return FunctionSignature.WithValues.create(
+          FunctionSignature.create(shape, FunctionSignature.names(names)), defaultValues, types);
+    }
+
+    private Expression readExpression() throws IOException {
+      int tag = in.readUnsignedByte();
+      Location location = readLocation();
+      Expression expression;
+      switch (tag) {
+        case IDENTIFIER:
+          expression = new Identifier(readString());
+          break;
+        case INTEGER_LITERAL:
+          expression = new IntegerLiteral(in.readInt());
+          break;
+        case STRING_LITERAL:
+          expression = new StringLiteral(readString(), in.readChar());
+          break;
+        case LIST_LITERAL:
+          expression = ListLiteral.makeList(readExpressions());
+          break;
+        case TUPLE_LITERAL:
+          expression = ListLiteral.makeTuple(readExpressions());
+          break;
+        case DICTIONARY_LITERAL: {
+          int entryCount = readInt();
+          List<DictionaryEntryLiteral> entries = new ArrayList<>(entryCount);
+          for (int i = 0; i < entryCount; i++) {
+            Location entryLocation = readLocation();
+            entries.add(ASTNode.setLocation(entryLocation,
+                new DictionaryEntryLiteral(readExpression(), readExpression())));
+          }
+          expression = new DictionaryLiteral(entries);
+          break;
+        }
+        case DOT_EXPRESSION:
+          expression = new DotExpression(readExpression(), readIdentifier());
+          break;
+        case FUNCALL_EXPRESSION: {
+          Expression object = readNullableExpression();
+          Identifier function = readIdentifier();
+          int argumentCount = readInt();
+          List<Argument.Passed> arguments = new ArrayList<>(argumentCount);
+          for (int i = 0; i < argumentCount; i++) {
+            arguments.add(readArgument());
+          }
+          expression = new FuncallExpression(object, function, arguments);
+          break;
+        }
+        case BINARY_OPERATOR_EXPRESSION:
+          expression = new BinaryOperatorExpression(
+              Operator.values()[readInt()], readExpression(), readExpression());
+          break;
+        case NOT_EXPRESSION:
+          expression = new NotExpression(readExpression());
+          break;
+        case CONDITIONAL_EXPRESSION:
+          expression = new ConditionalExpression(
+              readExpression(), readExpression(), readNullableExpression());
+          break;
+        case LIST_COMPREHENSION: {
+          ListComprehension comprehension = new ListComprehension(readExpression());
+          int clauseCount = readInt();
+          for (int i = 0; i < clauseCount; i++) {
+            Expression variables = readNullableExpression();
+            if (variables != null) {
+              comprehension.addFor(variables, readExpression());
+            } else {
+              comprehension.addIf(readExpression());
+            }
+          }
+          expression = comprehension;
+          break;
+        }
+        case DICT_COMPREHENSION:
+          expression = new DictComprehension(
+              readExpression(), readExpression(), readExpression(), readExpression());
+          break;
+        default:
+          throw new IOException("unknown expression tag " + tag);
+      }
+      return ASTNode.setLocation(location, expression);
+    }
+
+    private Argument.Passed readArgument() throws IOException {
+      int kind = in.readUnsignedByte();
+      Location location = readLocation();
+      Argument.Passed argument;
+      switch (kind) {
+        case POSITIONAL:
+          argument = new Argument.Positional(readExpression());
+          break;
+        case KEYWORD:
+          argument = new Argument.Keyword(readString(), readExpression());
+          break;
+        case STAR:
+          argument = new Argument.Star(readExpression());
+          break;
+        case STAR_STAR:
+          argument = new Argument.StarStar(readExpression());
+          break;
+        default:
+          throw new IOException("unknown argument kind " + kind);
+      }
+      return ASTNode.setLocation(location, argument);
+    }
+  }
+}
@@ -15,6 +15,7 @@ package com.google.devtools.build.lib.syntax;
 
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Iterables;
 import com.google.devtools.build.lib.events.Event;
 import com.google.devtools.build.lib.events.EventHandler;
@@ -38,9 +39,17 @@ public class SkylarkEnvironment extends Environment implements Serializable {
    * This set contains the variable names of all the successful lookups from the global
    * environment. This is necessary because if in a function definition something
    * reads a global variable after which a local variable with the same name is assigned an
-   * Exception needs to be thrown.
+   * Exception needs to be thrown. Created on the first such lookup.
    */
-  private final Set<String> readGlobalVariables = new HashSet<>();
+  @Nullable private Set<String> readGlobalVariables;
+
+  /**
+   * The slots of the local variables of the function that this environment executes, and their
+   * values. Null for global environments. Other variables of function calls, for example the
+   * propagating ones, are stored by name.
+   */
+  @Nullable private final ImmutableMap<String, Integer> localSlots;
+  @Nullable private final Object[] locals;
 
   @Nullable private String fileContentHashCode;
 
@@ -60,8 +69,8 @@ public class SkylarkEnvironment extends Environment implements Serializable {
     SkylarkEnvironment childEnv =
         // Always use the caller Environment's EventHandler. We cannot assume that the
         // definition Environment's EventHandler is still working properly.
-        new SkylarkEnvironment(
-            definitionEnv, callerEnv.getCopyOfStackTrace(), callerEnv.eventHandler);
+        new SkylarkEnvironment(definitionEnv, callerEnv.getCopyOfStackTrace(),
+            callerEnv.eventHandler, function.getBody().getLocalSlots());
     if (callerEnv.isLoadingPhase()) {
       childEnv.setLoadingPhase();
     }
@@ -78,10 +87,13 @@ public class SkylarkEnvironment extends Environment implements Serializable {
   }
 
   private SkylarkEnvironment(SkylarkEnvironment definitionEnv,
-      Deque<StackTraceElement> stackTrace, EventHandler eventHandler) {
+      Deque<StackTraceElement> stackTrace, EventHandler eventHandler,
+      ImmutableMap<String, Integer> localSlots) {
     super(definitionEnv.getGlobalEnvironment(), stackTrace);
     this.eventHandler = Preconditions.checkNotNull(eventHandler,
         "EventHandler cannot be null in an Environment which calls into Skylark");
+    this.localSlots = localSlots;
+    this.locals = new Object[localSlots.size()];
   }
 
   /**
@@ -92,6 +104,8 @@ public class SkylarkEnvironment extends Environment implements Serializable {
     super(stackTrace);
     this.eventHandler = eventHandler;
     this.fileContentHashCode = astFileContentHashCode;
+    this.localSlots = null;
+    this.locals = null;
   }
 
   public SkylarkEnvironment(EventHandler eventHandler, String astFileContentHashCode) {
@@ -106,6 +120,8 @@ public class SkylarkEnvironment extends Environment implements Serializable {
   public SkylarkEnvironment(SkylarkEnvironment globalEnv) {
     super(globalEnv);
     this.eventHandler = globalEnv.eventHandler;
+    this.localSlots = null;
+    this.locals = null;
   }
 
   /**
@@ -142,7 +158,7 @@ public class SkylarkEnvironment extends Environment implements Serializable {
    * Returns true if varname has been read as a global variable.
    */
   public boolean hasBeenReadGlobalVariable(String varname) {
-    return readGlobalVariables.contains(varname);
+    return readGlobalVariables != null && readGlobalVariables.contains(varname);
   }
 
   @Override
@@ -156,9 +172,12 @@ public class SkylarkEnvironment extends Environment implements Serializable {
    */
   @Override
   public Object lookup(String varname) throws NoSuchVariableException {
-    Object value = env.get(varname);
+    Object value = getLocal(varname);
     if (value == null) {
       if (parent != null && parent.hasVariable(varname)) {
+        if (readGlobalVariables == null) {
+          readGlobalVariables = new HashSet<>();
+        }
         readGlobalVariables.add(varname);
         return parent.lookup(varname);
       }
@@ -167,6 +186,69 @@ public class SkylarkEnvironment extends Environment implements Serializable {
     return value;
   }
 
+  /**
+   * Looks up a variable that the function executing in this environment does not assign, so it
+   * does not have to be recorded as a read global variable.
+   */
+  Object lookupNonLocal(String varname) throws NoSuchVariableException {
+    Object value = env.get(varname);
+    if (value == null) {
+      if (parent == null) {
+        throw new NoSuchVariableException(varname);
+      }
+      return parent.lookup(varname);
+    }
+    return value;
+  }
+
+  /**
+   * Returns the value of the local variable in the given slot, or null if it is not assigned.
+   */
+  Object getLocal(int slot) {
+    return locals[slot];
+  }
+
+  void setLocal(int slot, Object value) {
+    locals[slot] = value;
+  }
+
+  @Nullable
+  private Object getLocal(String varname) {
+    if (localSlots != null) {
+      Integer slot = localSlots.get(varname);
+      if (slot != null) {
+        return locals[slot];
+      }
+    }
+    return env.get(varname);
+  }
+
+  @Override
+  public Environment update(String varname, Object value) {
+    if (localSlots != null) {
+      Integer slot = localSlots.get(varname);
+      if (slot != null) {
+        locals[slot] = Preconditions.checkNotNull(value, "update(value == null)");
+        return this;
+      }
+    }
+    return super.update(varname, value);
+  }
+
+  @Override
+  public Set<String> getDirectVariableNames() {
+    if (localSlots == null) {
+      return super.getDirectVariableNames();
+    }
+    Set<String> names = new HashSet<>(env.keySet());
+    for (Entry<String, Integer> slot : localSlots.entrySet()) {
+      if (locals[slot.getValue()] != null) {
+        names.add(slot.getKey());
+      }
+    }
+    return names;
+  }
+
   /**
    * Like <code>lookup(String)</code>, but instead of throwing an exception in
    * the case where "varname" is not defined, "defaultValue" is returned instead.
@@ -181,7 +263,7 @@ public class SkylarkEnvironment extends Environment implements Serializable {
    * works only in the local Environment, it doesn't check the global Environment.
    */
   public Class<?> getVariableType(String varname) {
-    Object variable = env.get(varname);
+    Object variable = getLocal(varname);
     return variable != null ? EvalUtils.getSkylarkType(variable.getClass()) : null;
   }
 
@@ -51,6 +51,9 @@ public class SyntaxTreeVisitor {
   }
 
   public void visit(FuncallExpression node) {
+    if (node.getObject() != null) {
+      visit(node.getObject());
+    }
     visit(node.getFunction());
     visitAll(node.getArguments());
   }
@@ -68,7 +71,7 @@ public class SyntaxTreeVisitor {
     }
   }
 
-  public void accept(DictComprehension node) {
+  public void visit(DictComprehension node) {
     visit(node.getKeyExpression());
     visit(node.getValueExpression());
     visit(node.getLoopVar().getExpression());
@@ -98,6 +101,19 @@ public class SyntaxTreeVisitor {
     visit(node.getExpression());
   }
 
+  public void visit(ForStatement node) {
+    visit(node.getVariable().getExpression());
+    visit(node.getCollection());
+    visitAll(node.block());
+  }
+
+  public void visit(ReturnStatement node) {
+    visit(node.getReturnExpression());
+  }
+
+  public void visit(FlowStatement node) {
+  }
+
   public void visit(IfStatement node) {
     visitAll(node.getThenBlocks());
     visitAll(node.getElseBlock());
@@ -126,6 +142,11 @@ public class SyntaxTreeVisitor {
     visit(node.getValue());
   }
 
+  public void visit(DotExpression node) {
+    visit(node.getObj());
+    visit(node.getField());
+  }
+
   public void visit(NotExpression node) {
     visit(node.getExpression());
   }
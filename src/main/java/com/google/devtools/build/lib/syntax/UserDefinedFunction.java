@@ -24,14 +24,17 @@ import com.google.devtools.build.lib.profiler.ProfilerTask;
 public class UserDefinedFunction extends BaseFunction {
 
   private final ImmutableList<Statement> statements;
+  private final CompiledFunctionBody body;
   private final SkylarkEnvironment definitionEnv;
 
   protected UserDefinedFunction(Identifier function,
       FunctionSignature.WithValues<Object, SkylarkType> signature,
-      ImmutableList<Statement> statements, SkylarkEnvironment definitionEnv) {
+      ImmutableList<Statement> statements, CompiledFunctionBody body,
+      SkylarkEnvironment definitionEnv) {
     super(function.getName(), signature, function.getLocation());
 
     this.statements = statements;
+    this.body = body;
     this.definitionEnv = definitionEnv;
   }
 
@@ -43,39 +46,27 @@ public class UserDefinedFunction extends BaseFunction {
     return statements;
   }
 
+  CompiledFunctionBody getBody() {
+    return body;
+  }
+
   @Override
   public Object call(Object[] arguments, FuncallExpression ast, Environment env)
       throws EvalException, InterruptedException {
-    ImmutableList<String> names = signature.getSignature().getNames();
-
-    // Registering the functions's arguments as variables in the local Environment
-    int i = 0;
-    for (String name : names) {
-      env.update(name, arguments[i++]);
+    // Registering the functions's arguments as variables in the local Environment. The
+    // parameters have the first slots.
+    SkylarkEnvironment localEnv = (SkylarkEnvironment) env;
+    int parameters = signature.getSignature().getNames().size();
+    for (int i = 0; i < parameters; i++) {
+      localEnv.setLocal(i, arguments[i]);
     }
 
     long startTimeProfiler = Profiler.nanoTimeMaybe();
-    Statement lastStatement = null;
     try {
-      for (Statement stmt : statements) {
-        lastStatement = stmt;
-        stmt.exec(env);
-      }
-    } catch (ReturnStatement.ReturnException e) {
-      return e.getValue();
-    } catch (EvalExceptionWithStackTrace ex) {
-      // We need this block since the next "catch" must only catch EvalExceptions that don't have a
-      // stack trace yet.
-      throw ex;
-    } catch (EvalException ex) {
-      EvalExceptionWithStackTrace real =
-          new EvalExceptionWithStackTrace(ex, lastStatement.getLocation());
-      real.registerStatement(lastStatement);
-      throw real;
+      return body.exec(env);
     } finally {
       Profiler.instance().logSimpleTask(startTimeProfiler, ProfilerTask.SKYLARK_USER_FN, getName());
     }
-    return Runtime.NONE;
   }
 
   /**
@@ -203,6 +203,17 @@ public final class FilesystemUtils {
    */
   public static native ErrnoFileStatus errnoLstat(String path);
 
+  /**
+   * Native wrapper around POSIX stat(2) or lstat(2) for many files at once. Calls
+   * {@link #errnoStat} or {@link #errnoLstat} for each path, but crosses the JNI boundary only
+   * once.
+   *
+   * @param paths the files to stat.
+   * @param followSymlinks whether to use stat(2) rather than lstat(2).
+   * @return an ErrnoFileStatus instance for each path, in the same order.
+   */
+  public static native ErrnoFileStatus[] batchErrnoStat(String[] paths, boolean followSymlinks);
+
   /**
    * Native wrapper around POSIX utime(2) syscall.
    *
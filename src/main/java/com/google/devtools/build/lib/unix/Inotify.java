@@ -0,0 +1,174 @@
+// Copyright 2015 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.unix;
+
+import static java.nio.charset.StandardCharsets.ISO_8859_1;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.devtools.build.lib.UnixJniLoader;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * A Linux inotify(7) instance. Only available on Linux.
+ *
+ * <p>The instance is non-blocking: {@link #readEvents} returns the events queued so far. Like the
+ * rest of this package, paths are assumed to be Latin1-encoded.
+ */
+public final class Inotify implements Closeable {
+
+  static {
+    UnixJniLoader.loadJni();
+  }
+
+  // Event masks from <sys/inotify.h>.
+  public static final int IN_MODIFY = 0x00000002;
+  public static final int IN_ATTRIB = 0x00000004;
+  public static final int IN_MOVED_FROM = 0x00000040;
+  public static final int IN_MOVED_TO = 0x00000080;
+  public static final int IN_CREATE = 0x00000100;
+  public static final int IN_DELETE = 0x00000200;
+  public static final int IN_DELETE_SELF = 0x00000400;
+  public static final int IN_MOVE_SELF = 0x00000800;
+  public static final int IN_UNMOUNT = 0x00002000;
+  public static final int IN_Q_OVERFLOW = 0x00004000;
+  public static final int IN_IGNORED = 0x00008000;
+  public static final int IN_ONLYDIR = 0x01000000;
+  public static final int IN_DONT_FOLLOW = 0x02000000;
+  public static final int IN_EXCL_UNLINK = 0x04000000;
+  public static final int IN_ISDIR = 0x40000000;
+
+  // sizeof(struct inotify_event) without the name.
+  private static final int EVENT_HEADER_SIZE = 16;
+
+  /**
+   * An event read from inotify.
+   */
+  public static final class Event {
+    private final int wd;
+    private final int mask;
+    private final String name;
+
+    private Event(int wd, int mask, String name) {
+      this.wd = wd;
+      this.mask = mask;
+      this.name = name;
+    }
+
+    /** The watch descriptor the event belongs to, or -1 for {@link #IN_Q_OVERFLOW}. */
+    public int getWatchDescriptor() {
+      return wd;
+    }
+
+    public int getMask() {
+      return mask;
+    }
+
+    /** The name of the entry of the watched directory, or "" if the event is about itself. */
+    public String getName() {
+      return name;
+    }
+
+    @Override
+    public String toString() {
+      return "Event[wd=" + wd + ", mask=0x" + Integer.toHexString(mask) + ", name=" + name + "]";
+    }
+  }
+
+  private final int fd;
+  private final byte[] buffer = new byte[64 * 1024];
+  private boolean closed;
+
+  private Inotify(int fd) {
+    this.fd = fd;
+  }
+
+  /**
+   * Creates a new inotify instance.
+   *
+   * @throws IOException if inotify_init1(2) fails, e.g. because of the per-user instance limit
+   */
+  public static Inotify open() throws IOException {
+    return new Inotify(init());
+  }
+
+  /**
+   * Watches {@code path} for the events in {@code mask}, and returns the watch descriptor. Adding
+   * a watch for a path that is already watched returns the existing descriptor.
+   *
+   * @throws IOException if inotify_add_watch(2) fails, e.g. because of the per-user watch limit
+   *     (see /proc/sys/fs/inotify/max_user_watches)
+   */
+  public int addWatch(String path, int mask) throws IOException {
+    Preconditions.checkState(!closed);
+    return addWatch(fd, path.getBytes(ISO_8859_1), mask);
+  }
+
+  /**
+   * Stops watching the given watch descriptor. Does nothing if the kernel already removed it.
+   */
+  public void removeWatch(int wd) throws IOException {
+    Preconditions.checkState(!closed);
+    removeWatch(fd, wd);
+  }
+
+  /**
+   * Returns the events queued since the last call, in the order they happened, without blocking.
+   */
+  public ImmutableList<Event> readEvents() throws IOException {
+    Preconditions.checkState(!closed);
+    ImmutableList.Builder<Event> events = ImmutableList.builder();
+    int length;
+    while ((length = read(fd, buffer)) > 0) {
+      ByteBuffer bytes = ByteBuffer.wrap(buffer, 0, length).order(ByteOrder.nativeOrder());
+      while (bytes.remaining() >= EVENT_HEADER_SIZE) {
+        int wd = bytes.getInt();
+        int mask = bytes.getInt();
+        bytes.getInt();  // cookie
+        int nameLength = bytes.getInt();
+        int start = bytes.position();
+        // The name is padded with nuls to an alignment boundary.
+        int end = start;
+        while (end < start + nameLength && buffer[end] != 0) {
+          end++;
+        }
+        events.add(new Event(wd, mask, new String(buffer, start, end - start, ISO_8859_1)));
+        bytes.position(start + nameLength);
+      }
+    }
+    return events.build();
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (!closed) {
+      closed = true;
+      close(fd);
+    }
+  }
+
+  private static native int init() throws IOException;
+
+  private static native int addWatch(int fd, byte[] path, int mask) throws IOException;
+
+  private static native void removeWatch(int fd, int wd) throws IOException;
+
+  private static native int read(int fd, byte[] buffer) throws IOException;
+
+  private static native void close(int fd) throws IOException;
+}
@@ -0,0 +1,165 @@
+// Copyright 2015 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.vfs;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.io.ByteSource;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.devtools.common.options.EnumConverter;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * The function used to compute the content digests of files, as returned by
+ * {@link Path#getDigest}. It is chosen once per server with the {@code --digest_function}
+ * startup option; see {@link #setDefault}.
+ */
+public enum DigestHashFunction {
+  MD5(Hashing.md5()),
+  SHA1(Hashing.sha1()),
+  SHA256(Hashing.sha256()),
+
+  /**
+   * A fast, non-cryptographic digest for local-only caching. Files are split into chunks of
+   * {@link #TREE_CHUNK_SIZE} bytes, each chunk is hashed with 128-bit murmur3, and the digest is
+   * the murmur3 hash of the file size followed by the chunk hashes. Chunks of large files are
+   * hashed in parallel.
+   *
+   * <p>Not suitable when digests are shared with untrusted parties, since collisions can be
+   * constructed on purpose.
+   */
+  MURMUR3_TREE(Hashing.murmur3_128()) {
+    @Override
+    public byte[] digest(Path path) throws IOException {
+      ByteSource source = asByteSource(path);
+      long size = path.getFileSize();
+      int numChunks = (int) Math.max(1, (size + TREE_CHUNK_SIZE - 1) / TREE_CHUNK_SIZE);
+      List<byte[]> leaves = new ArrayList<>(numChunks);
+      if (numChunks <= 2) {
+        for (int i = 0; i < numChunks; i++) {
+          leaves.add(hashChunk(source, i));
+        }
+      } else {
+        List<Future<byte[]>> futures = new ArrayList<>(numChunks);
+        for (int i = 0; i < numChunks; i++) {
+          final int chunk = i;
+          futures.add(ChunkHashingPool.POOL.submit(new Callable<byte[]>() {
+            @Override
+            public byte[] call() throws IOException {
+              return hashChunk(source, chunk);
+            }
+          }));
+        }
+        try {
+          for (Future<byte[]> future : futures) {
+            leaves.add(future.get());
+          }
+        } catch (InterruptedException e) {
+          for (Future<byte[]> future : futures) {
+            future.cancel(true);
+          }
+          Thread.currentThread().interrupt();
+          throw new InterruptedIOException("Interrupted while digesting " + path);
+        } catch (ExecutionException e) {
+          Throwables.propagateIfPossible(e.getCause(), IOException.class);
+          throw new IllegalStateException(e.getCause());
+        }
+      }
+      Hasher root = getHashFunction().newHasher().putLong(size);
+      for (byte[] leaf : leaves) {
+        root.putBytes(leaf);
+      }
+      return root.hash().asBytes();
+    }
+
+    private byte[] hashChunk(ByteSource source, int chunk) throws IOException {
+      return source.slice((long) chunk * TREE_CHUNK_SIZE, TREE_CHUNK_SIZE)
+          .hash(getHashFunction()).asBytes();
+    }
+  };
+
+  /** The size of the chunks {@link #MURMUR3_TREE} splits files into. */
+  public static final int TREE_CHUNK_SIZE = 4 << 20;
+
+  private static volatile DigestHashFunction defaultFunction = MD5;
+
+  private final HashFunction hashFunction;
+
+  private DigestHashFunction(HashFunction hashFunction) {
+    this.hashFunction = hashFunction;
+  }
+
+  public HashFunction getHashFunction() {
+    return hashFunction;
+  }
+
+  /** Returns the length in bytes of the digests computed by this function. */
+  public int getDigestLength() {
+    return hashFunction.bits() / 8;
+  }
+
+  /** Computes the digest of the contents of the file denoted by {@code path}. */
+  public byte[] digest(Path path) throws IOException {
+    return asByteSource(path).hash(hashFunction).asBytes();
+  }
+
+  private static ByteSource asByteSource(final Path path) {
+    return new ByteSource() {
+      @Override
+      public InputStream openStream() throws IOException {
+        return path.getInputStream();
+      }
+    };
+  }
+
+  /** Returns the function used for file digests by this server. */
+  public static DigestHashFunction getDefault() {
+    return defaultFunction;
+  }
+
+  /**
+   * Sets the function used for file digests. Must be called before any digest is computed, since
+   * digests computed with different functions are not comparable.
+   */
+  public static void setDefault(DigestHashFunction function) {
+    defaultFunction = Preconditions.checkNotNull(function);
+  }
+
+  /** Converts the {@code --digest_function} option. */
+  public static class Converter extends EnumConverter<DigestHashFunction> {
+    public Converter() {
+      super(DigestHashFunction.class, "digest function");
+    }
+  }
+
+  /** Lazily created, so that servers that never digest large files do not start any threads. */
+  private static final class ChunkHashingPool {
+    static final ExecutorService POOL = Executors.newFixedThreadPool(
+        Runtime.getRuntime().availableProcessors(),
+        new ThreadFactoryBuilder().setNameFormat("digest-chunk-%d").setDaemon(true).build());
+  }
+}
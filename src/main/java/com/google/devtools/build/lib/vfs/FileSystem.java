@@ -255,6 +255,18 @@ public abstract class FileSystem {
     }.hash(Hashing.md5()).asBytes();
   }
 
+  /**
+   * Returns the digest of the file denoted by {@code path}, computed with {@code function}. See
+   * {@link Path#getDigest} for specification.
+   */
+  protected byte[] getDigest(Path path, DigestHashFunction function) throws IOException {
+    if (function == DigestHashFunction.MD5) {
+      // Subclasses may have an optimized implementation.
+      return getMD5Digest(path);
+    }
+    return function.digest(path);
+  }
+
   /**
    * Returns true if "path" denotes an existing symbolic link. See
    * {@link Path#isSymbolicLink} for specification.
@@ -253,8 +253,9 @@ public class FileSystemUtils {
   public static PathFragment replaceSegments(PathFragment path,
       String oldSegment, String newSegment, boolean replaceAll) {
     int count = path.segmentCount();
+    List<String> segments = path.getSegments();
     for (int i = 0; i < count; i++) {
-      if (path.getSegment(i).equals(oldSegment)) {
+      if (segments.get(i).equals(oldSegment)) {
         path = new PathFragment(path.subFragment(0, i),
                                 new PathFragment(newSegment),
                                 path.subFragment(i+1, count));
@@ -32,10 +32,14 @@ import java.io.Serializable;
 import java.lang.ref.Reference;
 import java.lang.ref.ReferenceQueue;
 import java.lang.ref.WeakReference;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
-import java.util.IdentityHashMap;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
 import java.util.Objects;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 /**
  * <p>Instances of this class represent pathnames, forming a tree
@@ -88,52 +92,117 @@ public class Path implements Comparable<Path>, Serializable {
       parent = referent.getParentDirectory();
       baseName = referent.getBaseName();
     }
+
+    /** Creates the tombstone, which never refers to a path. */
+    private PathWeakReferenceForCleanup() {
+      super(null);
+      parent = null;
+      baseName = null;
+    }
   }
 
+  /** Marks a slot of a {@link ChildTable} whose path was collected. */
+  private static final PathWeakReferenceForCleanup TOMBSTONE = new PathWeakReferenceForCleanup();
+
+  /**
+   * An open-addressing hash table of the children of a path, with linear probing.
+   *
+   * <p>Slots are only written while holding the {@link #childLock} of the parent, and a full
+   * table is replaced rather than resized, so that readers can probe it without locking: a reader
+   * that misses a concurrently added child takes the lock and looks again. Every child name is in
+   * at most one slot. Slots of collected children are replaced by the {@link #TOMBSTONE}, which
+   * keeps probe sequences intact; tombstones are dropped when the table is replaced.
+   *
+   * <p>Tables are never serialized: a path is serialized as its path string, and its children are
+   * created again on demand.
+   */
+  private static final class ChildTable extends AtomicReferenceArray<PathWeakReferenceForCleanup> {
+    private static final int MIN_CAPACITY = 2;
+
+    // Number of non-null slots, including tombstones, and number of tombstones.
+    int usedSlots;
+    int tombstones;
+
+    ChildTable(int capacity) {
+      super(capacity);
+    }
+
+    /** Returns a table for {@code children} children, which is at most two thirds full. */
+    static ChildTable forSize(int children) {
+      int capacity = MIN_CAPACITY;
+      while (capacity * 2 < children * 3) {
+        capacity *= 2;
+      }
+      return new ChildTable(capacity);
+    }
+  }
+
+  /** Batches of collected paths are removed from their parents with one lock per stripe. */
+  private static final int CLEANUP_BATCH_SIZE = 1024;
+
   private static final Thread PATH_CHILD_CACHE_CLEANUP_THREAD = new Thread("Path cache cleanup") {
     @Override
     public void run() {
+      List<PathWeakReferenceForCleanup> batch = new ArrayList<>();
       while (true) {
         try {
-          PathWeakReferenceForCleanup ref = (PathWeakReferenceForCleanup) REFERENCE_QUEUE.remove();
-          Path parent = ref.parent;
-          synchronized (parent) {
-            // It's possible that since this reference was enqueued for deletion, the Path was
-            // recreated with a new entry in the map. We definitely shouldn't delete that entry, so
-            // check to make sure they're the same.
-            Reference<Path> currentRef = ref.parent.children.get(ref.baseName);
-            if (currentRef == ref) {
-              ref.parent.children.remove(ref.baseName);
+          batch.add((PathWeakReferenceForCleanup) REFERENCE_QUEUE.remove());
+          Reference<? extends Path> ref;
+          while (batch.size() < CLEANUP_BATCH_SIZE && (ref = REFERENCE_QUEUE.poll()) != null) {
+            batch.add((PathWeakReferenceForCleanup) ref);
+          }
+          Collections.sort(batch, BY_PARENT_LOCK);
+          for (int i = 0; i < batch.size(); ) {
+            int lockIndex = batch.get(i).parent.childLockIndex();
+            synchronized (CHILD_LOCKS[lockIndex]) {
+              for (; i < batch.size() && batch.get(i).parent.childLockIndex() == lockIndex; i++) {
+                batch.get(i).parent.removeChildReference(batch.get(i));
+              }
             }
           }
         } catch (InterruptedException e) {
           // Ignored.
+        } finally {
+          batch.clear();
         }
       }
     }
   };
 
+  private static final Comparator<PathWeakReferenceForCleanup> BY_PARENT_LOCK =
+      new Comparator<PathWeakReferenceForCleanup>() {
+        @Override
+        public int compare(PathWeakReferenceForCleanup a, PathWeakReferenceForCleanup b) {
+          return Integer.compare(a.parent.childLockIndex(), b.parent.childLockIndex());
+        }
+      };
+
+  /**
+   * Locks that serialize changes to the children of paths. Each path uses the stripe its hash
+   * code selects, so that adding children to different directories rarely contends.
+   */
+  private static final Object[] CHILD_LOCKS = new Object[64];
+
   static {
+    for (int i = 0; i < CHILD_LOCKS.length; i++) {
+      CHILD_LOCKS[i] = new Object();
+    }
     PATH_CHILD_CACHE_CLEANUP_THREAD.setDaemon(true);
     PATH_CHILD_CACHE_CLEANUP_THREAD.start();
   }
 
   /**
-   * A mapping from a child file name to the {@link Path} representing it.
+   * A mapping from a child file name to the {@link Path} representing it, or null if no child
+   * has been created.
    *
-   * <p>File names must be a single path segment.  The strings must be
-   * canonical.  We use IdentityHashMap instead of HashMap for reasons of space
-   * efficiency: instances are smaller by a single word.  Also, since all path
-   * segments are interned, the universe of Paths holds a minimal number of
-   * references to strings.  (It's doubtful that there's any time gain from use
-   * of an IdentityHashMap, since the time saved by avoiding string equality
-   * tests during hash lookups is probably equal to the time spent eagerly
-   * interning strings, unless the collision rate is high.)
+   * <p>File names must be a single path segment.  The strings are interned when a child is
+   * created, so the universe of Paths holds a minimal number of references to strings. Lookups
+   * take no lock; see {@link ChildTable}.
    *
    * <p>The Paths are stored as weak references to ensure that a live
    * Path for a directory does not hold a strong reference to all of its
    * descendants, which would prevent collection of paths we never intend to
-   * use again.  Stale references in the map must be treated as absent.
+   * use again.  Stale references in the table must be treated as absent.
    *
    * <p>A Path may be recycled once there is no Path that refers to it or
    * to one of its descendants.  This means that any data stored in the
@@ -142,14 +211,14 @@ public class Path implements Comparable<Path>, Serializable {
    * source for that data in case the Path is recycled.
    *
    * <p>We intentionally avoid using the existing library classes for reasons of
-   * space efficiency: while ConcurrentHashMap would reduce our locking
-   * overhead, and ReferenceMap would simplify the code a little, both of those
-   * classes have much higher per-instance overheads than IdentityHashMap.
+   * space efficiency: ConcurrentHashMap and ReferenceMap have much higher
+   * per-instance overheads than a single array, and most Paths have at most
+   * two children.
    *
-   * <p>The Path object must be synchronized while children is being
-   * accessed.
+   * <p>The field and the slots of the table are only written while holding
+   * the {@link #childLock}.
    */
-  private volatile IdentityHashMap<String, Reference<Path>> children;
+  private transient volatile ChildTable children;
 
   /**
    * Create a path instance.  Should only be called by {@link #createChildPath}.
@@ -211,49 +280,145 @@ public class Path implements Comparable<Path>, Serializable {
     return new Path(fileSystem, childName, this);
   }
 
+  private int childLockIndex() {
+    return (hashCode ^ (hashCode >>> 16)) & (CHILD_LOCKS.length - 1);
+  }
+
+  private Object childLock() {
+    return CHILD_LOCKS[childLockIndex()];
+  }
+
+  private static int childHash(String childName) {
+    int hash = childName.hashCode() * 0x9E3779B9;
+    return hash ^ (hash >>> 16);
+  }
+
   /**
    * Returns the child path named name, or creates such a path (and caches it)
    * if it doesn't already exist.
    */
   private Path getCachedChildPath(String childName) {
-    // We get a canonical instance since 'children' is an IdentityHashMap.
-    childName = StringCanonicalizer.intern(childName);
-
-    // We use double double-checked locking so that we only hold the lock when we might need to
-    // mutate the 'children' variable or the map to which it refers.
-
-    // 'children' will never become null if it's already non-null, so we only need to worry about
-    // the case where it's currently null and we race with another thread executing
-    // getCachedChildPath(<doesn't matter>) trying to set 'children' to a non-null value.
-    if (children == null) {
-      synchronized (this) {
-        if (children == null) {
-          // 66% of Paths have size == 1, 80% <= 2
-          children = new IdentityHashMap<>(1);
+    int hash = childHash(childName);
+    ChildTable table = children;
+    if (table != null) {
+      int mask = table.length() - 1;
+      for (int i = hash & mask; ; i = (i + 1) & mask) {
+        PathWeakReferenceForCleanup ref = table.get(i);
+        if (ref == null) {
+          break;
+        }
+        if (childName.equals(ref.baseName)) {
+          // If the child was collected, it is recreated below.
+          Path child = ref.get();
+          if (child != null) {
+            return child;
+          }
+          break;
         }
       }
     }
-    Path child;
-    Reference<Path> childRef = children.get(childName);
-    // If child != null, the target of the childRef WeakReference won't concurrently get GC'd since,
-    // well, we have a reference to it!. So we only need to worry about the case where 'childName'
-    // is not already cached. There are two potential races here: (i) we race with another thread
-    // executing getCachedChildPath(someMissingChildName) and (ii) we race with
-    // PATH_CHILD_CACHE_CLEANUP_THREAD trying to remove an entry from the map for another child that
-    // was GC'd. In both cases there are concurrent modifications to the IdentityHashMap, so we use
-    // conservative synchronization.
-    if (childRef == null || (child = childRef.get()) == null) {
-      synchronized (this) {
-        childRef = children.get(childName);
-        if (childRef == null || (child = childRef.get()) == null) {
+    synchronized (childLock()) {
+      return getOrCreateChildPath(StringCanonicalizer.intern(childName), hash);
+    }
+  }
+
+  /**
+   * Returns the child path named name, creating it if it does not exist or was collected. Must be
+   * called while holding the {@link #childLock}.
+   */
+  private Path getOrCreateChildPath(String childName, int hash) {
+    ChildTable table = children;
+    if (table == null) {
+      // 66% of Paths have size == 1, 80% <= 2
+      table = ChildTable.forSize(1);
+      children = table;
+    }
+    int mask = table.length() - 1;
+    int freeSlot = -1;
+    int i = hash & mask;
+    for (PathWeakReferenceForCleanup ref; (ref = table.get(i)) != null; i = (i + 1) & mask) {
+      if (ref.baseName == childName) {
+        Path child = ref.get();
+        if (child == null) {
           child = createChildPath(childName);
-          children.put(childName, new PathWeakReferenceForCleanup(child, REFERENCE_QUEUE));
+          table.set(i, new PathWeakReferenceForCleanup(child, REFERENCE_QUEUE));
         }
+        return child;
+      }
+      if (ref == TOMBSTONE && freeSlot < 0) {
+        freeSlot = i;
       }
     }
+    Path child = createChildPath(childName);
+    PathWeakReferenceForCleanup childRef = new PathWeakReferenceForCleanup(child, REFERENCE_QUEUE);
+    if (freeSlot >= 0) {
+      table.tombstones--;
+      table.set(freeSlot, childRef);
+    } else if ((table.usedSlots + 1) * 3 > table.length() * 2) {
+      ChildTable newTable = copyLiveChildren(table, 1);
+      insert(newTable, childRef, hash);
+      children = newTable;
+    } else {
+      table.usedSlots++;
+      table.set(i, childRef);
+    }
     return child;
   }
 
+  /**
+   * Returns a new table with the children of {@code table} that were not collected, and room for
+   * {@code extraChildren} more.
+   */
+  private static ChildTable copyLiveChildren(ChildTable table, int extraChildren) {
+    List<PathWeakReferenceForCleanup> live = new ArrayList<>(table.usedSlots);
+    for (int i = 0; i < table.length(); i++) {
+      PathWeakReferenceForCleanup ref = table.get(i);
+      if (ref != null && ref.get() != null) {
+        live.add(ref);
+      }
+    }
+    ChildTable newTable = ChildTable.forSize(live.size() + extraChildren);
+    for (PathWeakReferenceForCleanup ref : live) {
+      insert(newTable, ref, childHash(ref.baseName));
+    }
+    return newTable;
+  }
+
+  /** Adds a child that is not in the table yet, which must have room for it. */
+  private static void insert(ChildTable table, PathWeakReferenceForCleanup ref, int hash) {
+    int mask = table.length() - 1;
+    int i = hash & mask;
+    while (table.get(i) != null) {
+      i = (i + 1) & mask;
+    }
+    table.usedSlots++;
+    table.set(i, ref);
+  }
+
+  /**
+   * Replaces the reference to a collected child by a tombstone, unless the child was recreated
+   * since. Must be called while holding the {@link #childLock}.
+   */
+  private void removeChildReference(PathWeakReferenceForCleanup childRef) {
+    ChildTable table = children;
+    if (table == null) {
+      return;
+    }
+    int mask = table.length() - 1;
+    int i = childHash(childRef.baseName) & mask;
+    for (PathWeakReferenceForCleanup ref; (ref = table.get(i)) != null; i = (i + 1) & mask) {
+      if (ref == childRef) {
+        table.set(i, TOMBSTONE);
+        table.tombstones++;
+        if (table.tombstones == table.usedSlots) {
+          // All children were collected.
+          children = null;
+        }
+        return;
+      }
+    }
+  }
+
   /**
    * Applies the specified function to each {@link Path} that is an existing direct
    * descendant of this one.  The Predicate is evaluated only for its
@@ -261,14 +426,16 @@ public class Path implements Comparable<Path>, Serializable {
    *
    * <p>This function exists to hide the "children" field, whose complex
    * synchronization and identity requirements are too unsafe to be exposed to
-   * subclasses.  For example, the "children" field must be synchronized for
-   * the duration of any iteration over it; it may be null; and references
-   * within it may be stale, and must be ignored.
-   */
-  protected synchronized void applyToChildren(Predicate<Path> function) {
-    if (children != null) {
-      for (Reference<Path> childRef : children.values()) {
-        Path child = childRef.get();
+   * subclasses.  For example, the "children" field may be null, and references
+   * within it may be stale, and must be ignored. Children that are created
+   * concurrently may or may not be visited.
+   */
+  protected void applyToChildren(Predicate<Path> function) {
+    ChildTable table = children;
+    if (table != null) {
+      for (int i = 0; i < table.length(); i++) {
+        PathWeakReferenceForCleanup childRef = table.get(i);
+        Path child = childRef == null ? null : childRef.get();
         if (child != null) {
           function.apply(child);
         }
@@ -611,10 +778,19 @@ public class Path implements Comparable<Path>, Serializable {
     if (!suffix.windowsVolume().isEmpty()) {
       result = result.getCanonicalPath(suffix.windowsVolume());
     }
-    for (String segment : suffix.segments()) {
-      result = result.getCanonicalPath(segment);
+    return appendSegments(result, suffix);
+  }
+
+  /**
+   * Resolves the segments of {@code suffix} one by one against {@code base}, starting from the
+   * first one. Walks the parents of {@code suffix} instead of copying its segments.
+   */
+  private static Path appendSegments(Path base, PathFragment suffix) {
+    if (suffix.segmentCount() == 0) {
+      return base;
     }
-    return result;
+    return appendSegments(base, suffix.getParentDirectory())
+        .getCanonicalPath(suffix.getBaseName());
   }
 
   /**
@@ -944,6 +1120,17 @@ public class Path implements Comparable<Path>, Serializable {
     return fileSystem.getMD5Digest(this);
   }
 
+  /**
+   * Returns the digest of the file denoted by the current path, following symbolic links,
+   * computed with {@link DigestHashFunction#getDefault}.
+   *
+   * @return a new array of {@link DigestHashFunction#getDigestLength} bytes
+   * @throws IOException if the digest could not be computed for any reason
+   */
+  public byte[] getDigest() throws IOException {
+    return fileSystem.getDigest(this, DigestHashFunction.getDefault());
+  }
+
   /**
    * Opens the file denoted by this path, following symbolic links, for reading,
    * and returns an input stream to it.
@@ -16,7 +16,10 @@ package com.google.devtools.build.lib.vfs;
 import com.google.common.base.Function;
 import com.google.common.base.Preconditions;
 import com.google.common.base.Predicate;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
 import com.google.common.collect.Iterables;
 import com.google.devtools.build.lib.concurrent.ThreadSafety.Immutable;
 import com.google.devtools.build.lib.concurrent.ThreadSafety.ThreadSafe;
@@ -27,12 +30,15 @@ import java.io.File;
 import java.io.InvalidObjectException;
 import java.io.ObjectInputStream;
 import java.io.Serializable;
-import java.util.Arrays;
 import java.util.Set;
 
+import javax.annotation.Nullable;
+
 /**
  * This class represents an immutable UNIX filesystem path, which may be absolute or relative. The
- * path is maintained as a simple ordered list of path segment strings.
+ * path is maintained as its last segment and a pointer to the fragment of its parent directory.
+ * Parent directories are interned, so all fragments under a directory share its segments, and
+ * fragments that are equal usually have the very same parent.
  *
  * <p>This class is independent from other VFS classes, especially anything requiring native code.
  * It is safe to use in places that need simple segmented string path functionality.
@@ -54,6 +60,15 @@ public final class PathFragment implements Comparable<PathFragment>, Serializabl
 
   public static final String ROOT_DIR = "/";
 
+  // Canonical instances of the parent directories of live fragments. Fragments with a drive letter
+  // are never interned, because equals() ignores the drive letter.
+  private static final Interner<PathFragment> PARENT_INTERNER = Interners.newWeakInterner();
+
+  private static final PathFragment RELATIVE_ROOT =
+      PARENT_INTERNER.intern(new PathFragment('\0', false, null, ""));
+  private static final PathFragment ABSOLUTE_ROOT =
+      PARENT_INTERNER.intern(new PathFragment('\0', true, null, ""));
+
   /** An empty path fragment. */
   public static final PathFragment EMPTY_FRAGMENT = new PathFragment("");
 
@@ -87,16 +102,21 @@ public final class PathFragment implements Comparable<PathFragment>, Serializabl
     for (int i = 0; i < segments.length; i++) {
       internedSegments[i] = StringCanonicalizer.intern(segments[i]);
     }
-    return new PathFragment(driveLetter, isAbsolute, segments);
+    return new PathFragment(driveLetter, isAbsolute, internedSegments);
   }
 
-  // We have 3 word-sized fields (segments, hashCode and path), and 2
-  // byte-sized ones, which fits in 16 bytes. Object sizes are rounded
-  // to 16 bytes.  Medium sized builds can easily hold millions of
-  // live PathFragments, so do not add further fields on a whim.
+  // We have 4 word-sized fields (parent, baseName, path and hashCode), the segment count and 2
+  // small ones, which fits in 40 bytes with compressed oops. Medium sized builds can easily hold
+  // millions of live PathFragments, so do not add further fields on a whim.
+
+  // The fragment of the parent directory, or null iff there are no segments. It is canonical,
+  // unless there is a drive letter.
+  private final PathFragment parent;
+
+  // The last segment, or "" iff there are no segments.
+  private final String baseName;
 
-  // The individual path components.
-  private final String[] segments;
+  private final int segmentCount;
 
   // True both for UNIX-style absolute paths ("/foo") and Windows-style ("C:/foo").
   private final boolean isAbsolute;
@@ -105,21 +125,24 @@ public final class PathFragment implements Comparable<PathFragment>, Serializabl
   // general, we create a lot of these objects, so space is at a premium.
   private final char driveLetter;
 
-  // hashCode and path are lazily initialized but semantically immutable.
-  private int hashCode;
+  // Computed from the hash code of the parent, so that interning and equality checks are cheap.
+  private final int hashCode;
+
+  // path is lazily initialized but semantically immutable.
   private String path;
 
   /**
    * Construct a PathFragment from a string, which is an absolute or relative UNIX or Windows path.
    */
   public PathFragment(String path) {
-    this.driveLetter = getWindowsDriveLetter(path);
-    if (driveLetter != '\0') {
-      path = path.substring(2);
-      // TODO(bazel-team): Decide what to do about non-absolute paths with a volume name, e.g. C:x.
-    }
-    this.isAbsolute = path.length() > 0 && isSeparator(path.charAt(0));
-    this.segments = segment(path, isAbsolute ? 1 : 0);
+    // TODO(bazel-team): Decide what to do about non-absolute paths with a volume name, e.g. C:x.
+    this(getWindowsDriveLetter(path), isAbsolutePath(path),
+        segment(path, getWindowsDriveLetter(path) != '\0' ? 2 : 0));
+  }
+
+  private static boolean isAbsolutePath(String path) {
+    int start = getWindowsDriveLetter(path) != '\0' ? 2 : 0;
+    return path.length() > start && isSeparator(path.charAt(start));
   }
 
   private static boolean isSeparator(char c) {
@@ -135,14 +158,30 @@ public final class PathFragment implements Comparable<PathFragment>, Serializabl
   }
 
   /**
-   * Constructs a PathFragment, taking ownership of segments. Package-private,
-   * because it does not perform a defensive clone of the segments array. Used
-   * here in PathFragment, and by Path.asFragment() and Path.relativeTo().
+   * Constructs a PathFragment from the given segments. Package-private, because the segments are
+   * not interned. Used here in PathFragment, and by Path.asFragment() and Path.relativeTo().
    */
   PathFragment(char driveLetter, boolean isAbsolute, String[] segments) {
+    this(driveLetter, isAbsolute,
+        segments.length == 0
+            ? null
+            : appendCanonical(root(driveLetter, isAbsolute), segments, 0, segments.length - 1),
+        segments.length == 0 ? "" : segments[segments.length - 1]);
+  }
+
+  private PathFragment(char driveLetter, boolean isAbsolute, @Nullable PathFragment parent,
+      String baseName) {
     this.driveLetter = driveLetter;
     this.isAbsolute = isAbsolute;
-    this.segments = segments;
+    this.parent = parent;
+    this.baseName = baseName;
+    if (parent == null) {
+      this.segmentCount = 0;
+      this.hashCode = isAbsolute ? 1 : 0;
+    } else {
+      this.segmentCount = parent.segmentCount + 1;
+      this.hashCode = parent.hashCode * 31 + baseName.hashCode();
+    }
   }
 
   /**
@@ -151,29 +190,71 @@ public final class PathFragment implements Comparable<PathFragment>, Serializabl
    */
   public PathFragment(PathFragment first, PathFragment second, PathFragment... more) {
     // TODO(bazel-team): The handling of absolute path fragments in this constructor is unexpected.
-    this.segments = new String[sumLengths(first, second, more)];
+    this(first.driveLetter, first.isAbsolute, concatSegments(first, second, more));
+  }
+
+  private static String[] concatSegments(PathFragment first, PathFragment second,
+      PathFragment[] more) {
+    int total = first.segmentCount + second.segmentCount;
+    for (PathFragment fragment : more) {
+      total += fragment.segmentCount;
+    }
+    String[] segments = new String[total];
     int offset = 0;
-    offset += addSegments(offset, first);
-    offset += addSegments(offset, second);
+    offset = first.copySegments(segments, offset);
+    offset = second.copySegments(segments, offset);
     for (PathFragment fragment : more) {
-      offset += addSegments(offset, fragment);
+      offset = fragment.copySegments(segments, offset);
     }
-    this.isAbsolute = first.isAbsolute;
-    this.driveLetter = first.driveLetter;
+    return segments;
   }
 
-  private int addSegments(int offset, PathFragment fragment) {
-    int count = fragment.segmentCount();
-    System.arraycopy(fragment.segments, 0, this.segments, offset, count);
-    return count;
+  /**
+   * Copies the segments into {@code array}, starting at {@code offset}, and returns the index after
+   * the last copied segment.
+   */
+  private int copySegments(String[] array, int offset) {
+    PathFragment current = this;
+    for (int i = offset + segmentCount - 1; i >= offset; i--) {
+      array[i] = current.baseName;
+      current = current.parent;
+    }
+    return offset + segmentCount;
   }
 
-  private static int sumLengths(PathFragment first, PathFragment second, PathFragment[] more) {
-    int total = first.segmentCount() + second.segmentCount();
-    for (PathFragment fragment : more) {
-      total += fragment.segmentCount();
+  /** Returns the fragment without segments that all fragments with the given kind extend. */
+  private static PathFragment root(char driveLetter, boolean isAbsolute) {
+    if (driveLetter != '\0') {
+      return new PathFragment(driveLetter, isAbsolute, null, "");
+    }
+    return isAbsolute ? ABSOLUTE_ROOT : RELATIVE_ROOT;
+  }
+
+  /**
+   * Returns the canonical fragment formed by appending {@code segments[begin..end)} to the
+   * canonical fragment {@code base}.
+   */
+  private static PathFragment appendCanonical(PathFragment base, String[] segments, int begin,
+      int end) {
+    PathFragment result = base;
+    for (int i = begin; i < end; i++) {
+      result = new PathFragment(base.driveLetter, base.isAbsolute, result, segments[i]).canonical();
+    }
+    return result;
+  }
+
+  /** Returns the canonical instance that is equal to this fragment. */
+  private PathFragment canonical() {
+    return driveLetter != '\0' ? this : PARENT_INTERNER.intern(this);
+  }
+
+  /** Returns the fragment of the first {@code count} segments. */
+  private PathFragment ancestor(int count) {
+    PathFragment result = this;
+    for (int i = segmentCount; i > count; i--) {
+      result = result.parent;
     }
-    return total;
+    return result;
   }
 
   /**
@@ -301,36 +382,36 @@ public final class PathFragment implements Comparable<PathFragment>, Serializabl
   }
 
   private String joinSegments(char separatorChar) {
-    if (segments.length == 0 && isAbsolute) {
-      return windowsVolume() + ROOT_DIR;
-    }
-
-    // Profile driven optimization:
-    // Preallocate a size determined by the number of segments, so that
-    // we do not have to expand the capacity of the StringBuilder.
-    // Heuristically, this estimate is right for about 99% of the time.
-    int estimateSize =
-        ((driveLetter != '\0') ? 2 : 0)
-        + ((segments.length == 0) ? 0 : (segments.length + 1) * 20);
-    StringBuilder result = new StringBuilder(estimateSize);
-    result.append(windowsVolume());
-    boolean initialSegment = true;
-    for (String segment : segments) {
-      if (!initialSegment || isAbsolute) {
-        result.append(separatorChar);
+    String volume = windowsVolume();
+    if (segmentCount == 0 && isAbsolute) {
+      return volume + ROOT_DIR;
+    }
+
+    // Fill the characters from the end, so that neither the segments nor a StringBuilder need to be
+    // materialized.
+    int length = volume.length() + (isAbsolute ? segmentCount : Math.max(0, segmentCount - 1));
+    for (PathFragment current = this; current.segmentCount > 0; current = current.parent) {
+      length += current.baseName.length();
+    }
+    char[] result = new char[length];
+    int end = length;
+    for (PathFragment current = this; current.segmentCount > 0; current = current.parent) {
+      end -= current.baseName.length();
+      current.baseName.getChars(0, current.baseName.length(), result, end);
+      if (end > volume.length()) {
+        result[--end] = separatorChar;
       }
-      initialSegment = false;
-      result.append(segment);
     }
-    return result.toString();
+    volume.getChars(0, volume.length(), result, 0);
+    return new String(result);
   }
 
   /**
    * Return true iff none of the segments are either "." or "..".
    */
   public boolean isNormalized() {
-    for (String segment : segments) {
-      if (segment.equals(".") || segment.equals("..")) {
+    for (PathFragment current = this; current.segmentCount > 0; current = current.parent) {
+      if (current.baseName.equals(".") || current.baseName.equals("..")) {
         return false;
       }
     }
@@ -343,6 +424,11 @@ public final class PathFragment implements Comparable<PathFragment>, Serializabl
    * start with "..").
    */
   public PathFragment normalize() {
+    if (isNormalized()) {
+      // Optimization, no new PathFragment needs to be created.
+      return this;
+    }
+    String[] segments = segments();
     String[] scratchSegments = new String[segments.length];
     int segmentCount = 0;
 
@@ -384,9 +470,16 @@ public final class PathFragment implements Comparable<PathFragment>, Serializabl
    * with no path normalization or I/O performed.
    */
   public PathFragment getRelative(PathFragment otherFragment) {
-    return otherFragment.isAbsolute()
-        ? otherFragment
-        : new PathFragment(this, otherFragment);
+    if (otherFragment.isAbsolute()) {
+      return otherFragment;
+    }
+    if (otherFragment.segmentCount == 0) {
+      return this;
+    }
+    String[] otherSegments = otherFragment.segments();
+    return new PathFragment(driveLetter, isAbsolute,
+        appendCanonical(canonical(), otherSegments, 0, otherSegments.length - 1),
+        otherFragment.baseName);
   }
 
   /**
@@ -414,17 +507,15 @@ public final class PathFragment implements Comparable<PathFragment>, Serializabl
    */
   public PathFragment getChild(String baseName) {
     FileSystemUtils.checkBaseName(baseName);
-    baseName = StringCanonicalizer.intern(baseName);
-    String[] newSegments = Arrays.copyOf(segments, segments.length + 1);
-    newSegments[newSegments.length - 1] = baseName;
-    return new PathFragment(driveLetter, isAbsolute, newSegments);
+    return new PathFragment(driveLetter, isAbsolute, canonical(),
+        StringCanonicalizer.intern(baseName));
   }
 
   /**
    * Returns the last segment of this path, or "" for the empty fragment.
    */
   public String getBaseName() {
-    return (segments.length == 0) ? "" : segments[segments.length - 1];
+    return baseName;
   }
 
   /**
@@ -438,24 +529,16 @@ public final class PathFragment implements Comparable<PathFragment>, Serializabl
    * returns <code>"bar/wiz"</code>.
    */
   public PathFragment relativeTo(PathFragment ancestorDirectory) {
-    String[] ancestorSegments = ancestorDirectory.segments();
-    int ancestorLength = ancestorSegments.length;
-
+    int ancestorLength = ancestorDirectory.segmentCount;
     if (isAbsolute != ancestorDirectory.isAbsolute()
-        || segments.length < ancestorLength) {
+        || segmentCount < ancestorLength
+        || !ancestor(ancestorLength).equals(ancestorDirectory)) {
       throw new IllegalArgumentException("PathFragment " + this
           + " is not beneath " + ancestorDirectory);
     }
 
-    for (int index = 0; index < ancestorLength; index++) {
-      if (!segments[index].equals(ancestorSegments[index])) {
-        throw new IllegalArgumentException("PathFragment " + this
-            + " is not beneath " + ancestorDirectory);
-      }
-    }
-
-    int length = segments.length - ancestorLength;
-    String[] resultSegments = subarray(segments, ancestorLength, length);
+    int length = segmentCount - ancestorLength;
+    String[] resultSegments = subarray(segments(), ancestorLength, length);
     return new PathFragment('\0', false, resultSegments);
   }
 
@@ -475,7 +558,7 @@ public final class PathFragment implements Comparable<PathFragment>, Serializabl
    * {@link #getRelative(String)}.
    */
   public PathFragment replaceName(String newName) {
-    return segments.length == 0 ? null : getParentDirectory().getRelative(newName);
+    return segmentCount == 0 ? null : getParentDirectory().getRelative(newName);
   }
 
   /**
@@ -485,7 +568,7 @@ public final class PathFragment implements Comparable<PathFragment>, Serializabl
    * <p>Note: This method DOES NOT normalize ".."  and "." path segments.
    */
   public PathFragment getParentDirectory() {
-    return segments.length == 0 ? null : subFragment(0, segments.length - 1);
+    return parent;
   }
 
   /**
@@ -498,16 +581,11 @@ public final class PathFragment implements Comparable<PathFragment>, Serializabl
    */
   public boolean startsWith(PathFragment prefix) {
     if (this.isAbsolute != prefix.isAbsolute ||
-        this.segments.length < prefix.segments.length ||
+        this.segmentCount < prefix.segmentCount ||
         this.driveLetter != prefix.driveLetter) {
       return false;
     }
-    for (int i = 0, len = prefix.segments.length; i < len; i++) {
-      if (!this.segments[i].equals(prefix.segments[i])) {
-        return false;
-      }
-    }
-    return true;
+    return ancestor(prefix.segmentCount).equals(prefix);
   }
 
   /**
@@ -519,14 +597,15 @@ public final class PathFragment implements Comparable<PathFragment>, Serializabl
    */
   public boolean endsWith(PathFragment suffix) {
     if ((suffix.isAbsolute && !suffix.equals(this)) ||
-        this.segments.length < suffix.segments.length) {
+        this.segmentCount < suffix.segmentCount) {
       return false;
     }
-    int offset = this.segments.length - suffix.segments.length;
-    for (int i = 0; i < suffix.segments.length; i++) {
-      if (!this.segments[offset + i].equals(suffix.segments[i])) {
+    PathFragment current = this;
+    for (PathFragment other = suffix; other.segmentCount > 0; other = other.parent) {
+      if (!current.baseName.equals(other.baseName)) {
         return false;
       }
+      current = current.parent;
     }
     return true;
   }
@@ -554,15 +633,17 @@ public final class PathFragment implements Comparable<PathFragment>, Serializabl
    *             <code>endIndex</code>.
    */
   public PathFragment subFragment(int beginIndex, int endIndex) {
-    int count = segments.length;
+    int count = segmentCount;
     if ((beginIndex < 0) || (beginIndex > endIndex) || (endIndex > count)) {
       throw new IndexOutOfBoundsException(String.format("path: %s, beginIndex: %d endIndex: %d",
           toString(), beginIndex, endIndex));
     }
-    boolean isAbsolute = (beginIndex == 0) && this.isAbsolute;
-    return ((beginIndex == 0) && (endIndex == count)) ? this :
-        new PathFragment(driveLetter, isAbsolute,
-            subarray(segments, beginIndex, endIndex - beginIndex));
+    if (beginIndex == 0) {
+      // A prefix is an ancestor, which shares all of our segments.
+      return ancestor(endIndex);
+    }
+    return new PathFragment(driveLetter, false,
+        subarray(segments(), beginIndex, endIndex - beginIndex));
   }
 
   /**
@@ -573,10 +654,11 @@ public final class PathFragment implements Comparable<PathFragment>, Serializabl
   }
 
   /**
-   * Returns the segments of this path fragment. This array should not be
-   * modified.
+   * Returns a new array of the segments of this path fragment.
    */
   String[] segments() {
+    String[] segments = new String[segmentCount];
+    copySegments(segments, 0);
     return segments;
   }
 
@@ -596,15 +678,29 @@ public final class PathFragment implements Comparable<PathFragment>, Serializabl
    * Returns the number of segments in this path.
    */
   public int segmentCount() {
-    return segments.length;
+    return segmentCount;
   }
 
   /**
    * Returns the specified segment of this path; index must be positive and
    * less than numSegments().
+   *
+   * <p>Takes time proportional to the distance of the segment from the end of the path, since
+   * segments are found by walking up the parents. Use {@link #getSegments} to look at many
+   * segments.
    */
   public String getSegment(int index) {
-    return segments[index];
+    if (index < 0 || index >= segmentCount) {
+      throw new ArrayIndexOutOfBoundsException(index);
+    }
+    return ancestor(index + 1).baseName;
+  }
+
+  /**
+   * Returns the segments of this path, in order.
+   */
+  public ImmutableList<String> getSegments() {
+    return ImmutableList.copyOf(segments());
   }
 
   /**
@@ -612,6 +708,7 @@ public final class PathFragment implements Comparable<PathFragment>, Serializabl
    * or {@link PathFragment#INVALID_SEGMENT} if none of the segments match.
    */
   public int getFirstSegment(Set<String> values) {
+    String[] segments = segments();
     for (int i = 0; i < segments.length; i++) {
       if (values.contains(segments[i])) {
         return i;
@@ -624,8 +721,8 @@ public final class PathFragment implements Comparable<PathFragment>, Serializabl
    * Returns true iff this path contains uplevel references "..".
    */
   public boolean containsUplevelReferences() {
-    for (String segment : segments) {
-      if (segment.equals("..")) {
+    for (PathFragment current = this; current.segmentCount > 0; current = current.parent) {
+      if (current.baseName.equals("..")) {
         return true;
       }
     }
@@ -638,7 +735,7 @@ public final class PathFragment implements Comparable<PathFragment>, Serializabl
    */
   public PathFragment toRelative() {
     Preconditions.checkArgument(isAbsolute);
-    return new PathFragment(driveLetter, false, segments);
+    return new PathFragment(driveLetter, false, segments());
   }
 
   /**
@@ -655,31 +752,7 @@ public final class PathFragment implements Comparable<PathFragment>, Serializabl
 
   @Override
   public int hashCode() {
-    // We use the hash code caching strategy employed by java.lang.String. There are three subtle
-    // things going on here:
-    //
-    // (1) We use a value of 0 to indicate that the hash code hasn't been computed and cached yet.
-    // Yes, this means that if the hash code is really 0 then we will "recompute" it each time. But
-    // this isn't a problem in practice since a hash code of 0 is rare.
-    //
-    // (2) Since we have no synchronization, multiple threads can race here thinking there are the
-    // first one to compute and cache the hash code.
-    //
-    // (3) Moreover, since 'hashCode' is non-volatile, the cached hash code value written from one
-    // thread may not be visible by another.
-    //
-    // All three of these issues are benign from a correctness perspective; in the end we have no
-    // overhead from synchronization, at the cost of potentially computing the hash code more than
-    // once.
-    int h = hashCode;
-    if (h == 0) {
-      h = isAbsolute ? 1 : 0;
-      for (String segment : segments) {
-        h = h * 31 + segment.hashCode();
-      }
-      hashCode = h;
-    }
-    return h;
+    return hashCode;
   }
 
   @Override
@@ -691,8 +764,20 @@ public final class PathFragment implements Comparable<PathFragment>, Serializabl
       return false;
     }
     PathFragment otherPath = (PathFragment) other;
-    return isAbsolute == otherPath.isAbsolute &&
-        Arrays.equals(otherPath.segments, segments);
+    if (hashCode != otherPath.hashCode || segmentCount != otherPath.segmentCount
+        || isAbsolute != otherPath.isAbsolute) {
+      return false;
+    }
+    // Parents are canonical, so this usually stops at the first parent.
+    PathFragment current = this;
+    while (current != otherPath && current.segmentCount > 0) {
+      if (!current.baseName.equals(otherPath.baseName)) {
+        return false;
+      }
+      current = current.parent;
+      otherPath = otherPath.parent;
+    }
+    return true;
   }
 
   /**
@@ -703,20 +788,22 @@ public final class PathFragment implements Comparable<PathFragment>, Serializabl
     if (isAbsolute != p2.isAbsolute) {
       return isAbsolute ? -1 : 1;
     }
-    PathFragment p1 = this;
-    String[] segments1 = p1.segments;
-    String[] segments2 = p2.segments;
-    int len1 = segments1.length;
-    int len2 = segments2.length;
+    int len1 = segmentCount;
+    int len2 = p2.segmentCount;
     int n = Math.min(len1, len2);
-    for (int i = 0; i < n; i++) {
-      String segment1 = segments1[i];
-      String segment2 = segments2[i];
-      if (!segment1.equals(segment2)) {
-       return segment1.compareTo(segment2);
+    // Compare the prefixes of equal length from their ends, remembering the difference that is
+    // closest to the beginning; the walk stops at the first common ancestor.
+    PathFragment prefix1 = this.ancestor(n);
+    PathFragment prefix2 = p2.ancestor(n);
+    int result = 0;
+    while (prefix1 != prefix2 && prefix1.segmentCount > 0) {
+      if (!prefix1.baseName.equals(prefix2.baseName)) {
+        result = prefix1.baseName.compareTo(prefix2.baseName);
       }
+      prefix1 = prefix1.parent;
+      prefix2 = prefix2.parent;
     }
-    return len1 - len2;
+    return result != 0 ? result : len1 - len2;
   }
 
   @Override
@@ -134,8 +134,10 @@ public abstract class ScopeEscapableFileSystem extends FileSystem {
    */
   protected int leadingParentReferences(PathFragment normalizedPath) {
     int leadingParentReferences = 0;
-    for (int i = 0; i < normalizedPath.segmentCount() &&
-        normalizedPath.getSegment(i).equals(".."); i++) {
+    for (String segment : normalizedPath.getSegments()) {
+      if (!segment.equals("..")) {
+        break;
+      }
       leadingParentReferences++;
     }
     return leadingParentReferences;
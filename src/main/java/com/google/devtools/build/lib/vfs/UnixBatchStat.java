@@ -0,0 +1,127 @@
+// Copyright 2015 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.vfs;
+
+import com.google.common.base.Throwables;
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.devtools.build.lib.concurrent.ThreadSafety.ThreadSafe;
+import com.google.devtools.build.lib.profiler.Profiler;
+import com.google.devtools.build.lib.profiler.ProfilerTask;
+import com.google.devtools.build.lib.unix.ErrnoFileStatus;
+import com.google.devtools.build.lib.unix.FilesystemUtils;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * A {@link BatchStat} for {@link UnixFileSystem} that stats many files per JNI call.
+ *
+ * <p>The paths are split into chunks of {@link #CHUNK_SIZE}; each chunk is stat-ed by a single
+ * native call on a thread pool shared by all instances, so that a large batch uses several cores
+ * without paying a JNI crossing per file. Digests are never included; callers compute them when
+ * they need them. Files that cannot be stat-ed are reported as null, which makes callers stat them
+ * again through the file system and get the proper exception.
+ */
+@ThreadSafe
+public final class UnixBatchStat implements BatchStat {
+
+  private static final int CHUNK_SIZE = 1024;
+
+  /** Holder for the thread pool, so that it is only created if a batch needs more than one. */
+  private static final class Pool {
+    private static final ExecutorService EXECUTOR = Executors.newFixedThreadPool(
+        Runtime.getRuntime().availableProcessors(),
+        new ThreadFactoryBuilder().setNameFormat("batch-stat %d").setDaemon(true).build());
+  }
+
+  private final Path execRoot;
+
+  /**
+   * Creates a batch statter for paths relative to {@code execRoot}, which must be on a
+   * {@link UnixFileSystem}.
+   */
+  public UnixBatchStat(Path execRoot) {
+    this.execRoot = execRoot;
+  }
+
+  @Override
+  public List<FileStatusWithDigest> batchStat(boolean includeDigest, boolean includeLinks,
+      Iterable<PathFragment> paths) throws IOException, InterruptedException {
+    List<PathFragment> pathList = ImmutableList.copyOf(paths);
+    String[] names = new String[pathList.size()];
+    for (int i = 0; i < names.length; i++) {
+      names[i] = execRoot.getRelative(pathList.get(i)).getPathString();
+    }
+    // When symlinks are included, report them rather than their targets, like lstat(2).
+    boolean followSymlinks = !includeLinks;
+
+    List<FileStatusWithDigest> result = new ArrayList<>(names.length);
+    if (names.length <= CHUNK_SIZE) {
+      addAll(result, stat(names, followSymlinks));
+      return result;
+    }
+
+    List<Future<ErrnoFileStatus[]>> chunks = new ArrayList<>();
+    try {
+      for (int start = 0; start < names.length; start += CHUNK_SIZE) {
+        final String[] chunk =
+            Arrays.copyOfRange(names, start, Math.min(start + CHUNK_SIZE, names.length));
+        final boolean follow = followSymlinks;
+        chunks.add(Pool.EXECUTOR.submit(new Callable<ErrnoFileStatus[]>() {
+          @Override
+          public ErrnoFileStatus[] call() {
+            return stat(chunk, follow);
+          }
+        }));
+      }
+      for (Future<ErrnoFileStatus[]> chunk : chunks) {
+        addAll(result, chunk.get());
+      }
+    } catch (ExecutionException e) {
+      Throwables.propagateIfPossible(e.getCause());
+      throw new IOException("Batch stat failed", e.getCause());
+    } finally {
+      for (Future<ErrnoFileStatus[]> chunk : chunks) {
+        chunk.cancel(true);
+      }
+    }
+    return result;
+  }
+
+  private static ErrnoFileStatus[] stat(String[] names, boolean followSymlinks) {
+    long startTime = Profiler.nanoTimeMaybe();
+    try {
+      return FilesystemUtils.batchErrnoStat(names, followSymlinks);
+    } finally {
+      Profiler.instance().logSimpleTask(startTime, ProfilerTask.VFS_STAT,
+          names.length + " files");
+    }
+  }
+
+  private static void addAll(List<FileStatusWithDigest> result, ErrnoFileStatus[] statuses) {
+    for (ErrnoFileStatus status : statuses) {
+      result.add(status.hasError()
+          ? null
+          : FileStatusWithDigestAdapter.adapt(new UnixFileSystem.UnixFileStatus(status)));
+    }
+  }
+}
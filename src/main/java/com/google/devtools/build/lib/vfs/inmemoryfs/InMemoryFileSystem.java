@@ -336,8 +336,9 @@ public class InMemoryFileSystem extends ScopeEscapableFileSystem {
         if (traversals > MAX_TRAVERSALS) {
           throw Error.ELOOP.exception(path);
         }
-        for (int ii = linkTarget.segmentCount() - 1; ii >= 0; --ii) {
-          stack.push(linkTarget.getSegment(ii)); // Note this may include ".." segments.
+        List<String> linkSegments = linkTarget.getSegments();
+        for (int ii = linkSegments.size() - 1; ii >= 0; --ii) {
+          stack.push(linkSegments.get(ii)); // Note this may include ".." segments.
         }
       } else {
         inode = child;
@@ -372,8 +373,9 @@ public class InMemoryFileSystem extends ScopeEscapableFileSystem {
           ? scopeRoot.subFragment(0, baseDepth)
           : scopeRoot.subFragment(0, 0);
       // Now add in everything that comes after the ".." sequence.
-      for (int i = leadingParentRefs; i < linkTarget.segmentCount(); i++) {
-        escapingPath = escapingPath.getRelative(linkTarget.getSegment(i));
+      List<String> linkSegments = linkTarget.getSegments();
+      for (int i = leadingParentRefs; i < linkSegments.size(); i++) {
+        escapingPath = escapingPath.getRelative(linkSegments.get(i));
       }
     }
 
@@ -0,0 +1,143 @@
+// Copyright 2015 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.worker;
+
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.devtools.build.lib.worker.WorkerProtocol.WorkRequest;
+import com.google.devtools.build.lib.worker.WorkerProtocol.WorkResponse;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * A worker process that works on several requests at the same time.
+ *
+ * <p>Each request carries an id, and the worker answers requests in any order, tagging each
+ * response with the id of its request. A reader thread hands the responses to the threads that are
+ * waiting for them. If the process exits, all waiting threads fail and the worker is dead.
+ */
+@ThreadSafe
+final class MultiplexWorker {
+  private final Worker worker;
+  private final WorkerKey key;
+  private final Map<Integer, SettableFuture<WorkResponse>> pendingResponses = new HashMap<>();
+  private int nextRequestId = 1;
+  private boolean dead;
+
+  // The number of requests that the pool has assigned to this worker, and whether the pool has
+  // removed it and will stop it once no requests are assigned. Guarded by the pool.
+  int assignedRequests;
+  boolean retired;
+
+  private MultiplexWorker(Worker worker, WorkerKey key) {
+    this.worker = worker;
+    this.key = key;
+  }
+
+  static MultiplexWorker create(WorkerKey key) throws IOException {
+    final MultiplexWorker multiplexWorker = new MultiplexWorker(Worker.create(key), key);
+    Thread reader = new Thread("multiplex-worker-reader") {
+      @Override
+      public void run() {
+        multiplexWorker.readResponses();
+      }
+    };
+    reader.setDaemon(true);
+    reader.start();
+    return multiplexWorker;
+  }
+
+  /**
+   * Sends the request to the worker and waits for the response, for at most
+   * {@code timeoutMillis} unless that is 0.
+   *
+   * @throws IOException if the request cannot be sent, the worker exits before answering it or
+   *     the response does not arrive in time
+   */
+  WorkResponse execute(WorkRequest request, long timeoutMillis)
+      throws IOException, InterruptedException {
+    SettableFuture<WorkResponse> response = SettableFuture.create();
+    int requestId;
+    synchronized (this) {
+      if (dead) {
+        throw new IOException("Worker process for " + key + " has exited");
+      }
+      requestId = nextRequestId++;
+      pendingResponses.put(requestId, response);
+    }
+    try {
+      OutputStream out = worker.getOutputStream();
+      synchronized (out) {
+        request.toBuilder().setRequestId(requestId).build().writeDelimitedTo(out);
+        out.flush();
+      }
+      return timeoutMillis > 0
+          ? response.get(timeoutMillis, TimeUnit.MILLISECONDS)
+          : response.get();
+    } catch (ExecutionException e) {
+      throw new IOException(e.getCause().getMessage(), e.getCause());
+    } catch (TimeoutException e) {
+      throw new IOException("Worker process for " + key + " did not answer within "
+          + timeoutMillis + " ms", e);
+    } finally {
+      synchronized (this) {
+        // The response to an interrupted or timed out request is dropped when it arrives.
+        pendingResponses.remove(requestId);
+      }
+    }
+  }
+
+  private void readResponses() {
+    IOException failure = null;
+    try {
+      WorkResponse response;
+      while ((response = WorkResponse.parseDelimitedFrom(worker.getInputStream())) != null) {
+        SettableFuture<WorkResponse> pending;
+        synchronized (this) {
+          pending = pendingResponses.remove(response.getRequestId());
+        }
+        if (pending != null) {
+          pending.set(response);
+        }
+      }
+    } catch (IOException e) {
+      failure = e;
+    }
+    IOException exited = new IOException("Worker process for " + key + " exited "
+        + (failure == null ? "before answering all requests" : "with: " + failure.getMessage()),
+        failure);
+    synchronized (this) {
+      dead = true;
+      for (SettableFuture<WorkResponse> pending : pendingResponses.values()) {
+        pending.setException(exited);
+      }
+      pendingResponses.clear();
+    }
+  }
+
+  synchronized boolean isAlive() {
+    return !dead && worker.isAlive();
+  }
+
+  void destroy() {
+    worker.destroy();
+  }
+}
@@ -0,0 +1,147 @@
+// Copyright 2015 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.worker;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.ListMultimap;
+import com.google.devtools.build.lib.worker.WorkerProtocol.WorkRequest;
+import com.google.devtools.build.lib.worker.WorkerProtocol.WorkResponse;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * A pool of {@link MultiplexWorker}s that spreads concurrent requests over as few processes as
+ * possible.
+ *
+ * <p>A request goes to the live worker of its key with the fewest requests in flight. A new worker
+ * is only started when every worker already has the maximum number of requests in flight, so that
+ * all requests share the heap and the warmed-up JIT of a few processes.
+ */
+@ThreadSafe
+final class MultiplexWorkerPool {
+  private final ListMultimap<WorkerKey, MultiplexWorker> workers = ArrayListMultimap.create();
+  private int maxInstancesPerKey = 1;
+  private int maxRequestsPerInstance = 1;
+  private long requestTimeoutMillis = 0;
+
+  /**
+   * Sets the limits on the number of processes per key and concurrent requests per process, and
+   * how long to wait for a response; 0 waits until the worker answers or exits. If the limits
+   * change, the processes started under the old ones are stopped as soon as they are idle.
+   */
+  synchronized void setLimits(int maxInstancesPerKey, int maxRequestsPerInstance,
+      long requestTimeout, TimeUnit unit) {
+    Preconditions.checkArgument(maxInstancesPerKey > 0 && maxRequestsPerInstance > 0);
+    Preconditions.checkArgument(requestTimeout >= 0);
+    if (maxInstancesPerKey != this.maxInstancesPerKey
+        || maxRequestsPerInstance != this.maxRequestsPerInstance) {
+      retireAll();
+    }
+    this.maxInstancesPerKey = maxInstancesPerKey;
+    this.maxRequestsPerInstance = maxRequestsPerInstance;
+    this.requestTimeoutMillis = unit.toMillis(requestTimeout);
+    notifyAll();
+  }
+
+  /**
+   * Stops all worker processes; the requests that they are working on fail. Called when the server
+   * shuts down.
+   */
+  synchronized void destroyAll() {
+    for (MultiplexWorker worker : workers.values()) {
+      worker.destroy();
+    }
+    workers.clear();
+    notifyAll();
+  }
+
+  /**
+   * Executes the request on a worker for {@code key}, waiting until one can take the request.
+   */
+  WorkResponse execute(WorkerKey key, WorkRequest request)
+      throws IOException, InterruptedException {
+    long timeoutMillis;
+    synchronized (this) {
+      timeoutMillis = requestTimeoutMillis;
+    }
+    MultiplexWorker worker = assign(key);
+    try {
+      return worker.execute(request, timeoutMillis);
+    } finally {
+      release(worker);
+    }
+  }
+
+  /** Removes all workers from the pool, stopping the idle ones now and the others when released. */
+  private void retireAll() {
+    for (MultiplexWorker worker : workers.values()) {
+      worker.retired = true;
+      if (worker.assignedRequests == 0) {
+        worker.destroy();
+      }
+    }
+    workers.clear();
+  }
+
+  private synchronized MultiplexWorker assign(WorkerKey key)
+      throws IOException, InterruptedException {
+    while (true) {
+      MultiplexWorker leastBusy = null;
+      for (Iterator<MultiplexWorker> it = workers.get(key).iterator(); it.hasNext(); ) {
+        MultiplexWorker worker = it.next();
+        if (!worker.isAlive()) {
+          // Requests still assigned to a dead worker fail on their own.
+          it.remove();
+          worker.destroy();
+        } else if (worker.assignedRequests < maxRequestsPerInstance
+            && (leastBusy == null || worker.assignedRequests < leastBusy.assignedRequests)) {
+          leastBusy = worker;
+        }
+      }
+      if (leastBusy == null && workers.get(key).size() < maxInstancesPerKey) {
+        leastBusy = MultiplexWorker.create(key);
+        workers.put(key, leastBusy);
+      }
+      if (leastBusy != null) {
+        leastBusy.assignedRequests++;
+        return leastBusy;
+      }
+      wait();
+    }
+  }
+
+  /** Returns the number of requests assigned to the live workers of {@code key}. */
+  @VisibleForTesting
+  synchronized int getAssignedRequests(WorkerKey key) {
+    int assigned = 0;
+    for (MultiplexWorker worker : workers.get(key)) {
+      assigned += worker.assignedRequests;
+    }
+    return assigned;
+  }
+
+  private synchronized void release(MultiplexWorker worker) {
+    worker.assignedRequests--;
+    if (worker.retired && worker.assignedRequests == 0) {
+      worker.destroy();
+    }
+    notifyAll();
+  }
+}
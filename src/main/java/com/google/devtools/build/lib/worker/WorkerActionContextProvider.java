@@ -25,10 +25,10 @@ import com.google.devtools.build.lib.buildtool.BuildRequest;
 final class WorkerActionContextProvider extends ActionContextProvider {
   private final ImmutableList<ActionContext> strategies;
 
-  public WorkerActionContextProvider(
-      BuildRequest buildRequest, WorkerPool workers, EventBus eventBus) {
-    this.strategies =
-        ImmutableList.<ActionContext>of(new WorkerSpawnStrategy(buildRequest, workers, eventBus));
+  public WorkerActionContextProvider(BuildRequest buildRequest, WorkerPool workers,
+      MultiplexWorkerPool multiplexWorkers, EventBus eventBus) {
+    this.strategies = ImmutableList.<ActionContext>of(
+        new WorkerSpawnStrategy(buildRequest, workers, multiplexWorkers, eventBus));
   }
 
   @Override
@@ -30,6 +30,7 @@ import org.apache.commons.pool2.impl.GenericKeyedObjectPoolConfig;
  */
 public class WorkerModule extends BlazeModule {
   private final WorkerPool workers;
+  private final MultiplexWorkerPool multiplexWorkers = new MultiplexWorkerPool();
 
   private BuildRequest buildRequest;
   private BlazeRuntime blazeRuntime;
@@ -43,7 +44,8 @@ public class WorkerModule extends BlazeModule {
   @Override
   public Iterable<ActionContextProvider> getActionContextProviders() {
     return ImmutableList.<ActionContextProvider>of(
-        new WorkerActionContextProvider(buildRequest, workers, blazeRuntime.getEventBus()));
+        new WorkerActionContextProvider(
+            buildRequest, workers, multiplexWorkers, blazeRuntime.getEventBus()));
   }
 
   @Override
@@ -68,4 +70,9 @@ public class WorkerModule extends BlazeModule {
   public void afterCommand() {
     buildRequest = null;
   }
+
+  @Override
+  public void blazeShutdown() {
+    multiplexWorkers.destroyAll();
+  }
 }
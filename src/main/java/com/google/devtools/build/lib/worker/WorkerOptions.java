@@ -30,6 +30,29 @@ public class WorkerOptions extends OptionsBase {
           + "launched if you use the 'worker' strategy.")
   public int workerMaxInstances;
 
+  @Option(name = "experimental_worker_multiplex",
+      defaultValue = "false",
+      category = "strategy",
+      help = "If true, each worker process works on up to --worker_max_multiplex_requests "
+          + "requests at the same time, and more processes, up to --worker_max_instances, are only "
+          + "launched when all of them are busy. The workers must support multiplexed requests, "
+          + "like the persistent Java compiler does.")
+  public boolean workerMultiplex;
+
+  @Option(name = "worker_max_multiplex_requests",
+      defaultValue = "16",
+      category = "strategy",
+      help = "How many requests a worker process works on at the same time if "
+          + "--experimental_worker_multiplex is enabled.")
+  public int workerMaxMultiplexRequests;
+
+  @Option(name = "worker_multiplex_request_timeout",
+      defaultValue = "0",
+      category = "strategy",
+      help = "How many seconds to wait for the response to a multiplexed request before failing "
+          + "the action. 0 means to wait until the worker process answers or exits.")
+  public int workerMultiplexRequestTimeout;
+
   @Option(name = "experimental_persistent_javac",
       defaultValue = "null",
       category = "undocumented",
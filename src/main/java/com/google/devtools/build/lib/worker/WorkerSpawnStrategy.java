@@ -33,6 +33,7 @@ import com.google.devtools.build.lib.worker.WorkerProtocol.WorkRequest;
 import com.google.devtools.build.lib.worker.WorkerProtocol.WorkResponse;
 import com.google.devtools.common.options.OptionsClassProvider;
 
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
@@ -42,16 +43,22 @@ import java.util.concurrent.atomic.AtomicBoolean;
 @ExecutionStrategy(name = { "worker" }, contextType = SpawnActionContext.class)
 final class WorkerSpawnStrategy implements SpawnActionContext {
   private final WorkerPool workers;
+  private final MultiplexWorkerPool multiplexWorkers;
+  private final boolean multiplex;
   private final IncrementalHeuristic incrementalHeuristic;
 
-  public WorkerSpawnStrategy(
-      OptionsClassProvider optionsProvider, WorkerPool workers, EventBus eventBus) {
+  public WorkerSpawnStrategy(OptionsClassProvider optionsProvider, WorkerPool workers,
+      MultiplexWorkerPool multiplexWorkers, EventBus eventBus) {
     Preconditions.checkNotNull(optionsProvider);
     WorkerOptions options = optionsProvider.getOptions(WorkerOptions.class);
     workers.setMaxTotalPerKey(options.workerMaxInstances);
     workers.setMaxIdlePerKey(options.workerMaxInstances);
     workers.setMinIdlePerKey(options.workerMaxInstances);
+    multiplexWorkers.setLimits(options.workerMaxInstances, options.workerMaxMultiplexRequests,
+        options.workerMultiplexRequestTimeout, TimeUnit.SECONDS);
     this.workers = workers;
+    this.multiplexWorkers = multiplexWorkers;
+    this.multiplex = options.workerMultiplex;
     this.incrementalHeuristic = new IncrementalHeuristic(options.workerMaxChangedFiles);
     eventBus.register(incrementalHeuristic);
   }
@@ -89,42 +96,50 @@ final class WorkerSpawnStrategy implements SpawnActionContext {
     Path workDir = actionExecutionContext.getExecutor().getExecRoot();
     WorkerKey key = new WorkerKey(args, env, workDir);
 
+    WorkRequest request = WorkRequest.newBuilder().addArguments(paramFile).build();
     try {
-      Worker worker = workers.borrowObject(key);
-      try {
-        WorkRequest.newBuilder()
-            .addArguments(paramFile)
-            .build()
-            .writeDelimitedTo(worker.getOutputStream());
-        worker.getOutputStream().flush();
-
-        WorkResponse response = WorkResponse.parseDelimitedFrom(worker.getInputStream());
-
-        if (response == null) {
-          throw new UserExecException(
-              "Worker process did not return a correct WorkResponse. This is probably caused by a "
-                  + "bug in the worker, writing unexpected other data to stdout.");
-        }
-
-        String trimmedOutput = response.getOutput().trim();
-        if (!trimmedOutput.isEmpty()) {
-          outErr.getErrorStream().write(trimmedOutput.getBytes());
-        }
-
-        if (response.getExitCode() != 0) {
-          throw new UserExecException(
-              String.format("Worker process failed with exit code: %d.", response.getExitCode()));
-        }
-      } finally {
-        if (worker != null) {
-          workers.returnObject(key, worker);
-        }
+      WorkResponse response = multiplex
+          ? multiplexWorkers.execute(key, request)
+          : execInWorker(key, request);
+
+      String trimmedOutput = response.getOutput().trim();
+      if (!trimmedOutput.isEmpty()) {
+        outErr.getErrorStream().write(trimmedOutput.getBytes());
+      }
+
+      if (response.getExitCode() != 0) {
+        throw new UserExecException(
+            String.format("Worker process failed with exit code: %d.", response.getExitCode()));
       }
+    } catch (InterruptedException e) {
+      throw e;
     } catch (Exception e) {
       throw new UserExecException(e.getMessage(), e);
     }
   }
 
+  /**
+   * Sends the request to a worker that works on one request at a time and waits for the response.
+   */
+  private WorkResponse execInWorker(WorkerKey key, WorkRequest request) throws Exception {
+    Worker worker = workers.borrowObject(key);
+    try {
+      request.writeDelimitedTo(worker.getOutputStream());
+      worker.getOutputStream().flush();
+
+      WorkResponse response = WorkResponse.parseDelimitedFrom(worker.getInputStream());
+
+      if (response == null) {
+        throw new UserExecException(
+            "Worker process did not return a correct WorkResponse. This is probably caused by a "
+                + "bug in the worker, writing unexpected other data to stdout.");
+      }
+      return response;
+    } finally {
+      workers.returnObject(key, worker);
+    }
+  }
+
   @Override
   public String strategyLocality(String mnemonic, boolean remotable) {
     return "worker";
@@ -0,0 +1,61 @@
+// Copyright 2015 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.skyframe;
+
+import com.google.devtools.build.skyframe.CompactInMemoryNodeEntry.InternedSkyKeyList;
+import com.google.devtools.build.skyframe.InMemoryNodeEntry.InMemoryReverseDepsUtil;
+
+import java.util.List;
+
+/**
+ * An {@link InMemoryGraph} whose nodes store their edges as interned int ids. See
+ * {@link CompactInMemoryNodeEntry}. Pass it to
+ * {@link InMemoryMemoizingEvaluator#InMemoryMemoizingEvaluator(java.util.Map, Differencer,
+ * EvaluationProgressReceiver, MemoizingEvaluator.EmittedEventState, InMemoryGraph)} to opt in.
+ */
+public class CompactInMemoryGraph extends InMemoryGraph {
+
+  /** The keys of the ids on this graph's edges. */
+  final SkyKeyInterner interner = new SkyKeyInterner();
+
+  final ReverseDepsUtil<InMemoryNodeEntry> reverseDepsUtil = new InMemoryReverseDepsUtil() {
+    @Override
+    List<SkyKey> newReverseDepsList(int expectedSize) {
+      return new InternedSkyKeyList(CompactInMemoryGraph.this, expectedSize);
+    }
+  };
+
+  public CompactInMemoryGraph() {
+    super(/*keepEdges=*/true);
+  }
+
+  /**
+   * Returns the id of {@code key}. Every key on an edge has a node, which stores the id of the
+   * key, so interning needs no map of its own. A key whose node was deleted, which can only still
+   * be on edges that are about to be removed, gets a new id.
+   */
+  int intern(SkyKey key) {
+    CompactInMemoryNodeEntry entry = (CompactInMemoryNodeEntry) nodeMap.get(key);
+    if (entry == null) {
+      return interner.add(key);
+    }
+    int id = entry.id;
+    return id >= 0 ? id : interner.assign(entry, key);
+  }
+
+  @Override
+  protected NodeEntry newNodeEntry() {
+    return new CompactInMemoryNodeEntry(this);
+  }
+}
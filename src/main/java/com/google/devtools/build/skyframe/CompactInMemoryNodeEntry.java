@@ -0,0 +1,185 @@
+// Copyright 2015 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.skyframe;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Iterables;
+import com.google.devtools.build.lib.util.GroupedList;
+import com.google.devtools.build.lib.util.GroupedList.GroupedListHelper;
+import com.google.devtools.build.lib.util.VarInt;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.RandomAccess;
+
+/**
+ * An {@link InMemoryNodeEntry} that stores its edges as ids from the {@link SkyKeyInterner} of its
+ * {@link CompactInMemoryGraph} instead of {@link SkyKey} references. The node also stores the id
+ * of its own key.
+ *
+ * <p>The direct deps of a done node are encoded into a single byte array: the number of groups,
+ * then for each group its size followed by the zig-zag encoded differences between consecutive
+ * ids, all as varints. Deps requested together tend to have been created together, so most
+ * differences fit into one or two bytes. Reverse deps change during evaluation and invalidation,
+ * so they are kept as a growable int array rather than a varint stream.
+ *
+ * <p>Decoding the direct deps allocates, so this representation trades some CPU on graph
+ * traversal for a smaller heap.
+ */
+public class CompactInMemoryNodeEntry extends InMemoryNodeEntry {
+
+  private static final byte[] NO_DEPS = new byte[] {0};
+
+  private final CompactInMemoryGraph graph;
+
+  // The id of this node's key, or -1 until it is first needed for an edge. Only assigned by
+  // SkyKeyInterner#assign.
+  volatile int id = -1;
+
+  CompactInMemoryNodeEntry(CompactInMemoryGraph graph) {
+    this.graph = graph;
+  }
+
+  @Override
+  protected InMemoryNodeEntry newCopy() {
+    CompactInMemoryNodeEntry copy = new CompactInMemoryNodeEntry(graph);
+    // A copy stands in for this node, so it keeps the id of the key.
+    copy.id = id;
+    return copy;
+  }
+
+  @Override
+  protected ReverseDepsUtil<InMemoryNodeEntry> getReverseDepsUtil() {
+    return graph.reverseDepsUtil;
+  }
+
+  @Override
+  protected Object compressDirectDeps(GroupedList<SkyKey> directDeps) {
+    return encode(graph, directDeps);
+  }
+
+  @Override
+  protected GroupedList<SkyKey> decompressDirectDeps(Object compressed) {
+    return decode(graph, (byte[]) compressed);
+  }
+
+  static byte[] encode(CompactInMemoryGraph graph, GroupedList<SkyKey> directDeps) {
+    if (directDeps.isEmpty()) {
+      return NO_DEPS;
+    }
+    int[] groupSizes = new int[Iterables.size(directDeps)];
+    int[] ids = new int[directDeps.size()];
+    int numGroups = 0;
+    int numIds = 0;
+    for (Iterable<SkyKey> group : directDeps) {
+      int groupStart = numIds;
+      for (SkyKey dep : group) {
+        ids[numIds++] = graph.intern(dep);
+      }
+      groupSizes[numGroups++] = numIds - groupStart;
+    }
+    byte[] buffer = new byte[VarInt.MAX_VARINT_SIZE * (1 + numGroups + numIds)];
+    int offset = VarInt.putVarInt(numGroups, buffer, 0);
+    int previous = 0;
+    int next = 0;
+    for (int groupSize : groupSizes) {
+      offset = VarInt.putVarInt(groupSize, buffer, offset);
+      for (int j = 0; j < groupSize; j++) {
+        int id = ids[next++];
+        offset = VarInt.putVarInt(zigZag(id - previous), buffer, offset);
+        previous = id;
+      }
+    }
+    return Arrays.copyOf(buffer, offset);
+  }
+
+  static GroupedList<SkyKey> decode(CompactInMemoryGraph graph, byte[] encoded) {
+    int[] value = new int[1];
+    int offset = VarInt.getVarInt(encoded, 0, value);
+    int numGroups = value[0];
+    int previous = 0;
+    GroupedListHelper<SkyKey> helper = new GroupedListHelper<>();
+    for (int i = 0; i < numGroups; i++) {
+      offset = VarInt.getVarInt(encoded, offset, value);
+      int groupSize = value[0];
+      if (groupSize > 1) {
+        helper.startGroup();
+      }
+      for (int j = 0; j < groupSize; j++) {
+        offset = VarInt.getVarInt(encoded, offset, value);
+        previous += unZigZag(value[0]);
+        helper.add(graph.interner.get(previous));
+      }
+      if (groupSize > 1) {
+        helper.endGroup();
+      }
+    }
+    Preconditions.checkState(offset == encoded.length, "%s %s", offset, encoded.length);
+    GroupedList<SkyKey> result = new GroupedList<>();
+    result.append(helper);
+    return result;
+  }
+
+  private static int zigZag(int n) {
+    return (n << 1) ^ (n >> 31);
+  }
+
+  private static int unZigZag(int n) {
+    return (n >>> 1) ^ -(n & 1);
+  }
+
+  /** A list of {@link SkyKey}s backed by an array of interned ids. */
+  static final class InternedSkyKeyList extends AbstractList<SkyKey> implements RandomAccess {
+    private final CompactInMemoryGraph graph;
+    private int[] ids;
+    private int size = 0;
+
+    InternedSkyKeyList(CompactInMemoryGraph graph, int expectedSize) {
+      this.graph = graph;
+      this.ids = new int[Math.max(expectedSize, 2)];
+    }
+
+    @Override
+    public SkyKey get(int index) {
+      Preconditions.checkElementIndex(index, size);
+      return graph.interner.get(ids[index]);
+    }
+
+    @Override
+    public int size() {
+      return size;
+    }
+
+    @Override
+    public void add(int index, SkyKey key) {
+      Preconditions.checkPositionIndex(index, size);
+      if (size == ids.length) {
+        ids = Arrays.copyOf(ids, size + (size >> 1) + 1);
+      }
+      System.arraycopy(ids, index, ids, index + 1, size - index);
+      ids[index] = graph.intern(key);
+      size++;
+      modCount++;
+    }
+
+    @Override
+    public SkyKey remove(int index) {
+      SkyKey removed = get(index);
+      System.arraycopy(ids, index + 1, ids, index, size - index - 1);
+      size--;
+      modCount++;
+      return removed;
+    }
+  }
+}
@@ -0,0 +1,28 @@
+// Copyright 2015 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.skyframe;
+
+import com.google.devtools.build.lib.concurrent.ThreadSafety.ThreadSafe;
+
+/**
+ * Orders the evaluations that an evaluator has scheduled but has no thread for yet.
+ */
+@ThreadSafe
+public interface EvaluationPrioritizer {
+  /**
+   * Returns the priority of evaluating the node. Scheduled nodes with higher priorities are
+   * evaluated first. Called once each time the node is scheduled, which should be cheap.
+   */
+  long getPriority(SkyKey key);
+}
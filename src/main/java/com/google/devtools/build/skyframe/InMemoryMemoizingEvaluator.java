@@ -77,6 +77,9 @@ public final class InMemoryMemoizingEvaluator implements MemoizingEvaluator {
 
   private final AtomicBoolean evaluating = new AtomicBoolean(false);
 
+  private boolean useForkJoinPool = false;
+  @Nullable private EvaluationPrioritizer prioritizer = null;
+
   public InMemoryMemoizingEvaluator(
       Map<? extends SkyFunctionName, ? extends SkyFunction> skyFunctions, Differencer differencer) {
     this(skyFunctions, differencer, null);
@@ -92,12 +95,25 @@ public final class InMemoryMemoizingEvaluator implements MemoizingEvaluator {
       Map<? extends SkyFunctionName, ? extends SkyFunction> skyFunctions, Differencer differencer,
       @Nullable EvaluationProgressReceiver invalidationReceiver,
       EmittedEventState emittedEventState, boolean keepEdges) {
+    this(skyFunctions, differencer, invalidationReceiver, emittedEventState,
+        new InMemoryGraph(keepEdges));
+  }
+
+  /**
+   * Creates an evaluator that starts from the nodes already present in {@code graph}, for instance
+   * a {@link PersistentInMemoryGraph} restored from a previous server's snapshot. The first
+   * evaluation must still use version 0.
+   */
+  public InMemoryMemoizingEvaluator(
+      Map<? extends SkyFunctionName, ? extends SkyFunction> skyFunctions, Differencer differencer,
+      @Nullable EvaluationProgressReceiver invalidationReceiver,
+      EmittedEventState emittedEventState, InMemoryGraph graph) {
     this.skyFunctions = ImmutableMap.copyOf(skyFunctions);
     this.differencer = Preconditions.checkNotNull(differencer);
     this.progressReceiver = invalidationReceiver;
-    this.graph = new InMemoryGraph(keepEdges);
+    this.graph = Preconditions.checkNotNull(graph);
     this.emittedEventState = emittedEventState;
-    this.keepEdges = keepEdges;
+    this.keepEdges = graph.keepsEdges();
   }
 
   private void invalidate(Iterable<SkyKey> diff) {
@@ -132,6 +148,16 @@ public final class InMemoryMemoizingEvaluator implements MemoizingEvaluator {
         }));
   }
 
+  @Override
+  public void setUseForkJoinPool(boolean useForkJoinPool) {
+    this.useForkJoinPool = useForkJoinPool;
+  }
+
+  @Override
+  public void setEvaluationPrioritizer(@Nullable EvaluationPrioritizer prioritizer) {
+    this.prioritizer = prioritizer;
+  }
+
   @Override
   public <T extends SkyValue> EvaluationResult<T> evaluate(Iterable<SkyKey> roots, Version version,
           boolean keepGoing, int numThreads, EventHandler eventHandler)
@@ -159,7 +185,7 @@ public final class InMemoryMemoizingEvaluator implements MemoizingEvaluator {
 
       ParallelEvaluator evaluator = new ParallelEvaluator(graph, intVersion,
           skyFunctions, eventHandler, emittedEventState, DEFAULT_STORED_EVENT_FILTER, keepGoing,
-          numThreads, progressReceiver, dirtyKeyTracker);
+          numThreads, useForkJoinPool, prioritizer, progressReceiver, dirtyKeyTracker);
       EvaluationResult<T> result = evaluator.eval(roots);
       return EvaluationResult.<T>builder()
           .mergeFrom(result)
@@ -335,4 +361,19 @@ public final class InMemoryMemoizingEvaluator implements MemoizingEvaluator {
           emittedEventState, keepEdges);
     }
   };
+
+  /**
+   * Supplies evaluators that keep their nodes in a {@link CompactInMemoryGraph}, unless edges are
+   * not kept at all.
+   */
+  public static final EvaluatorSupplier COMPACT_SUPPLIER = new EvaluatorSupplier() {
+    @Override
+    public MemoizingEvaluator create(
+        Map<? extends SkyFunctionName, ? extends SkyFunction> skyFunctions, Differencer differencer,
+        @Nullable EvaluationProgressReceiver invalidationReceiver,
+        EmittedEventState emittedEventState, boolean keepEdges) {
+      return new InMemoryMemoizingEvaluator(skyFunctions, differencer, invalidationReceiver,
+          emittedEventState, keepEdges ? new CompactInMemoryGraph() : new InMemoryGraph(false));
+    }
+  };
 }
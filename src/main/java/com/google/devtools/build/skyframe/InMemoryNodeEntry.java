@@ -94,7 +94,10 @@ public class InMemoryNodeEntry implements NodeEntry {
   private List<SkyKey> reverseDepsToRemove = null;
 
   protected static final ReverseDepsUtil<InMemoryNodeEntry> REVERSE_DEPS_UTIL =
-      new ReverseDepsUtil<InMemoryNodeEntry>() {
+      new InMemoryReverseDepsUtil();
+
+  /** Stores the reverse deps of an {@link InMemoryNodeEntry} in its own fields. */
+  protected static class InMemoryReverseDepsUtil extends ReverseDepsUtil<InMemoryNodeEntry> {
     @Override
     void setReverseDepsObject(InMemoryNodeEntry container, Object object) {
       container.reverseDeps = object;
@@ -124,7 +127,7 @@ public class InMemoryNodeEntry implements NodeEntry {
     List<SkyKey> getReverseDepsToRemove(InMemoryNodeEntry container) {
       return container.reverseDepsToRemove;
     }
-  };
+  }
 
   /**
    * The transient state of this entry, after it has been created but before it is done. It allows
@@ -144,6 +147,25 @@ public class InMemoryNodeEntry implements NodeEntry {
     return true;
   }
 
+  /** Returns the helper used to manipulate the reverse deps of this entry. */
+  protected ReverseDepsUtil<InMemoryNodeEntry> getReverseDepsUtil() {
+    return REVERSE_DEPS_UTIL;
+  }
+
+  /**
+   * Converts the direct deps of a node that just finished building into the form in which they are
+   * kept while the node is done. Subclasses may override this together with
+   * {@link #decompressDirectDeps} to use a more compact encoding.
+   */
+  protected Object compressDirectDeps(GroupedList<SkyKey> directDeps) {
+    return directDeps.compress();
+  }
+
+  /** Inverse of {@link #compressDirectDeps}. */
+  protected GroupedList<SkyKey> decompressDirectDeps(Object compressed) {
+    return GroupedList.create(compressed);
+  }
+
   @Override
   public synchronized boolean isDone() {
     return buildingState == null;
@@ -177,7 +199,7 @@ public class InMemoryNodeEntry implements NodeEntry {
   public synchronized Iterable<SkyKey> getDirectDeps() {
     assertKeepEdges();
     Preconditions.checkState(isDone(), "no deps until done. ValueEntry: %s", this);
-    return GroupedList.<SkyKey>create(directDeps).toSet();
+    return decompressDirectDeps(directDeps).toSet();
   }
 
   /**
@@ -187,7 +209,7 @@ public class InMemoryNodeEntry implements NodeEntry {
   public synchronized Iterable<Iterable<SkyKey>> getGroupedDirectDeps() {
     assertKeepEdges();
     Preconditions.checkState(isDone(), "no deps until done. ValueEntry: %s", this);
-    return GroupedList.<SkyKey>create(directDeps);
+    return decompressDirectDeps(directDeps);
   }
 
   @Override
@@ -200,9 +222,9 @@ public class InMemoryNodeEntry implements NodeEntry {
   private synchronized Set<SkyKey> setStateFinishedAndReturnReverseDeps() {
     // Get reverse deps that need to be signaled.
     ImmutableSet<SkyKey> reverseDepsToSignal = buildingState.getReverseDepsToSignal();
-    REVERSE_DEPS_UTIL.consolidateReverseDepsRemovals(this);
-    REVERSE_DEPS_UTIL.addReverseDeps(this, reverseDepsToSignal);
-    this.directDeps = buildingState.getFinishedDirectDeps().compress();
+    getReverseDepsUtil().consolidateReverseDepsRemovals(this);
+    getReverseDepsUtil().addReverseDeps(this, reverseDepsToSignal);
+    this.directDeps = compressDirectDeps(buildingState.getFinishedDirectDeps());
 
     // Set state of entry to done.
     buildingState = null;
@@ -245,12 +267,12 @@ public class InMemoryNodeEntry implements NodeEntry {
   public synchronized DependencyState addReverseDepAndCheckIfDone(SkyKey reverseDep) {
     if (reverseDep != null) {
       if (keepEdges()) {
-        REVERSE_DEPS_UTIL.consolidateReverseDepsRemovals(this);
-        REVERSE_DEPS_UTIL.maybeCheckReverseDepNotPresent(this, reverseDep);
+        getReverseDepsUtil().consolidateReverseDepsRemovals(this);
+        getReverseDepsUtil().maybeCheckReverseDepNotPresent(this, reverseDep);
       }
       if (isDone()) {
         if (keepEdges()) {
-          REVERSE_DEPS_UTIL.addReverseDeps(this, ImmutableList.of(reverseDep));
+          getReverseDepsUtil().addReverseDeps(this, ImmutableList.of(reverseDep));
         }
       } else {
         // Parent should never register itself twice in the same build.
@@ -269,7 +291,7 @@ public class InMemoryNodeEntry implements NodeEntry {
     if (!keepEdges()) {
       return;
     }
-    REVERSE_DEPS_UTIL.removeReverseDep(this, reverseDep);
+    getReverseDepsUtil().removeReverseDep(this, reverseDep);
     if (!isDone()) {
       // This is currently unnecessary -- the only time we remove a reverse dep that was added this
       // build is during the clean following a build failure. In that case, this node that is not
@@ -284,7 +306,7 @@ public class InMemoryNodeEntry implements NodeEntry {
     Preconditions.checkState(isDone() || buildingState.getReverseDepsToSignal().isEmpty(),
         "Reverse deps should only be queried before the build has begun "
             + "or after the node is done %s", this);
-    return REVERSE_DEPS_UTIL.getReverseDeps(this);
+    return getReverseDepsUtil().getReverseDeps(this);
   }
 
   @Override
@@ -318,7 +340,7 @@ public class InMemoryNodeEntry implements NodeEntry {
   public synchronized Iterable<SkyKey> markDirty(boolean isChanged) {
     assertKeepEdges();
     if (isDone()) {
-      GroupedList<SkyKey> lastDirectDeps = GroupedList.create(directDeps);
+      GroupedList<SkyKey> lastDirectDeps = decompressDirectDeps(directDeps);
       buildingState = BuildingState.newDirtyState(isChanged, lastDirectDeps, value);
       value = null;
       directDeps = null;
@@ -408,11 +430,16 @@ public class InMemoryNodeEntry implements NodeEntry {
     return MoreObjects.toStringHelper(this)
         .add("value", value)
         .add("version", version)
-        .add("directDeps", directDeps == null ? null : GroupedList.create(directDeps))
-        .add("reverseDeps", REVERSE_DEPS_UTIL.toString(this))
+        .add("directDeps", directDeps == null ? null : decompressDirectDeps(directDeps))
+        .add("reverseDeps", getReverseDepsUtil().toString(this))
         .add("buildingState", buildingState).toString();
   }
 
+  /** Creates the empty entry that {@link #cloneNodeEntry} fills in. */
+  protected InMemoryNodeEntry newCopy() {
+    return new InMemoryNodeEntry();
+  }
+
   /**
    * Do not use except in custom evaluator implementations! Added only temporarily.
    *
@@ -421,11 +448,28 @@ public class InMemoryNodeEntry implements NodeEntry {
   public synchronized InMemoryNodeEntry cloneNodeEntry() {
     // As this is temporary, for now let's limit to done nodes.
     Preconditions.checkState(isDone(), "Only done nodes can be copied: %s", this);
-    InMemoryNodeEntry nodeEntry = new InMemoryNodeEntry();
+    InMemoryNodeEntry nodeEntry = newCopy();
     nodeEntry.value = value;
     nodeEntry.version = this.version;
-    REVERSE_DEPS_UTIL.addReverseDeps(nodeEntry, REVERSE_DEPS_UTIL.getReverseDeps(this));
-    nodeEntry.directDeps = directDeps;
+    nodeEntry.getReverseDepsUtil().addReverseDeps(
+        nodeEntry, getReverseDepsUtil().getReverseDeps(this));
+    nodeEntry.directDeps = nodeEntry.compressDirectDeps(decompressDirectDeps(directDeps));
+    nodeEntry.buildingState = null;
+    return nodeEntry;
+  }
+
+  /**
+   * Creates a done node entry with the given value, version and edges. Only for graph
+   * implementations that restore previously evaluated nodes, such as
+   * {@link PersistentInMemoryGraph}.
+   */
+  static InMemoryNodeEntry createDone(SkyValue value, Version version,
+      GroupedList<SkyKey> directDeps, Collection<SkyKey> reverseDeps) {
+    InMemoryNodeEntry nodeEntry = new InMemoryNodeEntry();
+    nodeEntry.value = Preconditions.checkNotNull(value);
+    nodeEntry.version = Preconditions.checkNotNull(version);
+    nodeEntry.getReverseDepsUtil().addReverseDeps(nodeEntry, reverseDeps);
+    nodeEntry.directDeps = nodeEntry.compressDirectDeps(directDeps);
     nodeEntry.buildingState = null;
     return nodeEntry;
   }
@@ -53,6 +53,19 @@ public interface MemoizingEvaluator {
       EventHandler reporter)
           throws InterruptedException;
 
+  /**
+   * Sets whether subsequent {@link #evaluate} calls schedule evaluations on a work-stealing
+   * {@link java.util.concurrent.ForkJoinPool} rather than on a thread pool with a single queue.
+   */
+  void setUseForkJoinPool(boolean useForkJoinPool);
+
+  /**
+   * Sets the order in which subsequent {@link #evaluate} calls start scheduled evaluations, or
+   * null to start them in the order in which they were scheduled. Has no effect on a
+   * {@link java.util.concurrent.ForkJoinPool}.
+   */
+  void setEvaluationPrioritizer(@Nullable EvaluationPrioritizer prioritizer);
+
   /**
    * Ensures that after the next completed {@link #evaluate} call the current values of any value
    * matching this predicate (and all values that transitively depend on them) will be removed from
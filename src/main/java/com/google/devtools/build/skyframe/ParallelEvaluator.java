@@ -61,6 +61,7 @@ import java.util.Set;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 
@@ -128,6 +129,8 @@ public final class ParallelEvaluator implements Evaluator {
   private final NestedSetVisitor<TaggedEvents> replayingNestedSetEventVisitor;
   private final boolean keepGoing;
   private final int threadCount;
+  private final boolean useForkJoinPool;
+  @Nullable private final EvaluationPrioritizer prioritizer;
   @Nullable private final EvaluationProgressReceiver progressReceiver;
   private final DirtyKeyTracker dirtyKeyTracker;
   private final Predicate<Event> storedEventFilter;
@@ -141,12 +144,34 @@ public final class ParallelEvaluator implements Evaluator {
       Predicate<Event> storedEventFilter, boolean keepGoing, int threadCount,
       @Nullable EvaluationProgressReceiver progressReceiver,
       DirtyKeyTracker dirtyKeyTracker) {
+    this(graph, graphVersion, skyFunctions, reporter, emittedEventState, storedEventFilter,
+        keepGoing, threadCount, /*useForkJoinPool=*/false, /*prioritizer=*/null, progressReceiver,
+        dirtyKeyTracker);
+  }
+
+  /**
+   * Creates an evaluator. If {@code useForkJoinPool} is true, nodes are evaluated on a
+   * work-stealing {@link java.util.concurrent.ForkJoinPool}, in which the evaluations a node
+   * schedules are queued on the thread that evaluated it, instead of on a single queue shared by
+   * all threads. Otherwise, if a {@code prioritizer} is given, the shared queue is ordered by it.
+   */
+  public ParallelEvaluator(ProcessableGraph graph, Version graphVersion,
+      ImmutableMap<? extends SkyFunctionName, ? extends SkyFunction> skyFunctions,
+      final EventHandler reporter,
+      EmittedEventState emittedEventState,
+      Predicate<Event> storedEventFilter, boolean keepGoing, int threadCount,
+      boolean useForkJoinPool,
+      @Nullable EvaluationPrioritizer prioritizer,
+      @Nullable EvaluationProgressReceiver progressReceiver,
+      DirtyKeyTracker dirtyKeyTracker) {
     this.graph = graph;
     this.skyFunctions = skyFunctions;
     this.graphVersion = graphVersion;
     this.reporter = Preconditions.checkNotNull(reporter);
     this.keepGoing = keepGoing;
     this.threadCount = threadCount;
+    this.useForkJoinPool = useForkJoinPool;
+    this.prioritizer = prioritizer;
     this.progressReceiver = progressReceiver;
     this.dirtyKeyTracker = Preconditions.checkNotNull(dirtyKeyTracker);
     this.replayingNestedSetEventVisitor =
@@ -518,7 +543,15 @@ public final class ParallelEvaluator implements Evaluator {
           1, TimeUnit.SECONDS,
           /*failFastOnException*/true,
           /*failFastOnInterrupt*/true,
-          "skyframe-evaluator");
+          "skyframe-evaluator",
+          prioritizer == null ? EXECUTOR_FACTORY : PRIORITY_EXECUTOR_FACTORY);
+    }
+
+    private ValueVisitor(ForkJoinPool pool) {
+      super(pool,
+          /*shutdownOnCompletion*/true,
+          /*failFastOnException*/true,
+          /*failFastOnInterrupt*/true);
     }
 
     @Override
@@ -573,7 +606,7 @@ public final class ParallelEvaluator implements Evaluator {
   /**
    * An action that evaluates a value.
    */
-  private class Evaluate implements Runnable {
+  private class Evaluate implements AbstractQueueVisitor.PrioritizedRunnable {
     private final ValueVisitor visitor;
     /** The name of the value to be evaluated. */
     private final SkyKey skyKey;
@@ -583,6 +616,11 @@ public final class ParallelEvaluator implements Evaluator {
       this.skyKey = skyKey;
     }
 
+    @Override
+    public long getPriority() {
+      return prioritizer == null ? 0 : prioritizer.getPriority(skyKey);
+    }
+
     private void enqueueChild(SkyKey skyKey, NodeEntry entry, SkyKey child) {
       Preconditions.checkState(!entry.isDone(), "%s %s", skyKey, entry);
 
@@ -991,7 +1029,9 @@ public final class ParallelEvaluator implements Evaluator {
 
     Profiler.instance().startTask(ProfilerTask.SKYFRAME_EVAL, skyKeySet);
     try {
-      return eval(skyKeySet, new ValueVisitor(threadCount));
+      return eval(skyKeySet, useForkJoinPool
+          ? new ValueVisitor(ExecutorUtil.newNamedForkJoinPool(threadCount, "skyframe-evaluator"))
+          : new ValueVisitor(threadCount));
     } finally {
       Profiler.instance().completeTask(ProfilerTask.SKYFRAME_EVAL);
     }
@@ -0,0 +1,293 @@
+// Copyright 2015 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.skyframe;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.devtools.build.lib.util.GroupedList;
+import com.google.devtools.build.lib.util.GroupedList.GroupedListHelper;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * An {@link InMemoryGraph} that can be snapshotted to a stream and restored from it, so that a new
+ * server can resume incremental evaluation instead of starting from an empty graph.
+ *
+ * <p>Only done, error-free nodes whose keys and values can actually be serialized are written, and
+ * only if all of their direct dependencies are written too. Reverse deps pointing at nodes that
+ * were not written are dropped. The resulting graph is therefore a consistent, dependency-closed
+ * subgraph of the original one.
+ *
+ * <p>Restored nodes are rehydrated lazily: the keys are read eagerly, but the serialized node
+ * contents are kept as bytes until the node is first requested. All restored nodes get
+ * {@link MinimalVersion#INSTANCE} as their version, so they compare as unchanged against each other
+ * and as older than anything evaluated after the restart, whatever version numbering the new
+ * evaluator uses. Together with the restored edges this keeps change pruning working: a restored
+ * node that is re-evaluated to an equal value keeps its version, so its restored parents are not
+ * re-evaluated.
+ */
+public class PersistentInMemoryGraph extends InMemoryGraph {
+
+  private static final int FORMAT_VERSION = 1;
+
+  /** Serialized node contents that have not been rehydrated yet. */
+  private final ConcurrentMap<SkyKey, byte[]> pendingNodes = Maps.newConcurrentMap();
+
+  public PersistentInMemoryGraph() {
+    super(/*keepEdges=*/true);
+  }
+
+  /**
+   * Reads a snapshot previously written by {@link #save} into an empty graph. Node contents are
+   * not deserialized until they are requested.
+   */
+  public static PersistentInMemoryGraph load(InputStream in) throws IOException {
+    PersistentInMemoryGraph graph = new PersistentInMemoryGraph();
+    ObjectInputStream objectIn = new ObjectInputStream(in);
+    try {
+      int formatVersion = objectIn.readInt();
+      if (formatVersion != FORMAT_VERSION) {
+        throw new IOException("Unsupported graph snapshot version: " + formatVersion);
+      }
+      int size = objectIn.readInt();
+      for (int i = 0; i < size; i++) {
+        SkyKey key = (SkyKey) objectIn.readObject();
+        byte[] bytes = (byte[]) objectIn.readObject();
+        graph.pendingNodes.put(key, bytes);
+      }
+    } catch (ClassNotFoundException | ClassCastException e) {
+      throw new IOException("Corrupt graph snapshot", e);
+    }
+    return graph;
+  }
+
+  /**
+   * Writes all persistable nodes of this graph to {@code out}. Must not be called in parallel with
+   * an evaluation or invalidation.
+   *
+   * @return the number of nodes written
+   */
+  public int save(OutputStream out) throws IOException {
+    Map<SkyKey, NodeEntry> nodes = getAllValues();
+    Map<SkyKey, byte[]> serializedValues = Maps.newHashMapWithExpectedSize(nodes.size());
+    for (Map.Entry<SkyKey, NodeEntry> entry : nodes.entrySet()) {
+      byte[] serializedValue = maybeSerializeValue(entry.getKey(), entry.getValue());
+      if (serializedValue != null) {
+        serializedValues.put(entry.getKey(), serializedValue);
+      }
+    }
+    Set<SkyKey> persisted = closeOverDeps(nodes, serializedValues.keySet());
+
+    ObjectOutputStream objectOut = new ObjectOutputStream(out);
+    objectOut.writeInt(FORMAT_VERSION);
+    objectOut.writeInt(persisted.size());
+    for (SkyKey key : persisted) {
+      NodeEntry entry = nodes.get(key);
+      List<List<SkyKey>> directDeps = new ArrayList<>();
+      for (Iterable<SkyKey> group : ((InMemoryNodeEntry) entry).getGroupedDirectDeps()) {
+        directDeps.add(Lists.newArrayList(group));
+      }
+      List<SkyKey> reverseDeps = new ArrayList<>();
+      for (SkyKey reverseDep : entry.getReverseDeps()) {
+        if (persisted.contains(reverseDep)) {
+          reverseDeps.add(reverseDep);
+        }
+      }
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      ObjectOutputStream nodeOut = new ObjectOutputStream(bytes);
+      nodeOut.writeObject(serializedValues.get(key));
+      nodeOut.writeObject(directDeps);
+      nodeOut.writeObject(reverseDeps);
+      nodeOut.close();
+      objectOut.writeObject(key);
+      objectOut.writeObject(bytes.toByteArray());
+    }
+    objectOut.flush();
+    return persisted.size();
+  }
+
+  /**
+   * Returns the serialized value of the given node, or null if the node cannot be persisted on
+   * its own.
+   */
+  private static byte[] maybeSerializeValue(SkyKey key, NodeEntry entry) {
+    if (!(entry instanceof InMemoryNodeEntry) || !entry.isDone() || entry.getErrorInfo() != null
+        || !(key.argument() instanceof Serializable)) {
+      return null;
+    }
+    SkyValue value = entry.getValueMaybeWithMetadata();
+    try {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      ObjectOutputStream out = new ObjectOutputStream(bytes);
+      out.writeObject(key);
+      out.writeObject(value);
+      out.close();
+      return bytes.toByteArray();
+    } catch (IOException e) {
+      // Some field of the key or value is not serializable. Skip the node.
+      return null;
+    }
+  }
+
+  /**
+   * Removes from {@code candidates} every node that transitively depends on a node that is not a
+   * candidate, and returns the remaining set.
+   */
+  private static Set<SkyKey> closeOverDeps(Map<SkyKey, NodeEntry> nodes, Set<SkyKey> candidates) {
+    Set<SkyKey> persisted = Sets.newLinkedHashSet(candidates);
+    List<SkyKey> toRemove = new ArrayList<>();
+    for (SkyKey key : persisted) {
+      for (SkyKey dep : nodes.get(key).getDirectDeps()) {
+        if (!persisted.contains(dep)) {
+          toRemove.add(key);
+          break;
+        }
+      }
+    }
+    while (!toRemove.isEmpty()) {
+      SkyKey key = toRemove.remove(toRemove.size() - 1);
+      if (persisted.remove(key)) {
+        Iterables.addAll(toRemove, nodes.get(key).getReverseDeps());
+      }
+    }
+    return persisted;
+  }
+
+  private NodeEntry rehydrate(SkyKey key) {
+    byte[] bytes = pendingNodes.get(key);
+    if (bytes == null) {
+      return nodeMap.get(key);
+    }
+    synchronized (bytes) {
+      if (pendingNodes.get(key) != bytes) {
+        // Another thread rehydrated or removed the node while we were waiting.
+        return nodeMap.get(key);
+      }
+      NodeEntry entry = deserialize(key, bytes);
+      nodeMap.put(key, entry);
+      pendingNodes.remove(key);
+      return entry;
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  private static NodeEntry deserialize(SkyKey key, byte[] bytes) {
+    try {
+      ObjectInputStream nodeIn = new ObjectInputStream(new ByteArrayInputStream(bytes));
+      byte[] serializedValue = (byte[]) nodeIn.readObject();
+      List<List<SkyKey>> directDeps = (List<List<SkyKey>>) nodeIn.readObject();
+      List<SkyKey> reverseDeps = (List<SkyKey>) nodeIn.readObject();
+      ObjectInputStream valueIn =
+          new ObjectInputStream(new ByteArrayInputStream(serializedValue));
+      Preconditions.checkState(key.equals(valueIn.readObject()), key);
+      SkyValue value = (SkyValue) valueIn.readObject();
+
+      GroupedListHelper<SkyKey> helper = new GroupedListHelper<>();
+      for (List<SkyKey> group : directDeps) {
+        if (group.size() == 1) {
+          helper.add(group.get(0));
+        } else {
+          helper.startGroup();
+          for (SkyKey dep : group) {
+            helper.add(dep);
+          }
+          helper.endGroup();
+        }
+      }
+      GroupedList<SkyKey> groupedDirectDeps = new GroupedList<>();
+      groupedDirectDeps.append(helper);
+      return InMemoryNodeEntry.createDone(value, MinimalVersion.INSTANCE, groupedDirectDeps,
+          reverseDeps);
+    } catch (IOException | ClassNotFoundException e) {
+      // The snapshot was validated when it was loaded, so this indicates a class incompatibility.
+      throw new IllegalStateException("Cannot rehydrate " + key, e);
+    }
+  }
+
+  private void rehydrateAll() {
+    for (SkyKey key : ImmutableList.copyOf(pendingNodes.keySet())) {
+      rehydrate(key);
+    }
+  }
+
+  @Override
+  public void remove(SkyKey skyKey) {
+    byte[] bytes = pendingNodes.get(skyKey);
+    if (bytes != null) {
+      synchronized (bytes) {
+        pendingNodes.remove(skyKey);
+      }
+    }
+    super.remove(skyKey);
+  }
+
+  @Override
+  public NodeEntry get(SkyKey skyKey) {
+    NodeEntry entry = nodeMap.get(skyKey);
+    return entry != null ? entry : rehydrate(skyKey);
+  }
+
+  @Override
+  public NodeEntry createIfAbsent(SkyKey key) {
+    NodeEntry entry = get(key);
+    return entry != null ? entry : super.createIfAbsent(key);
+  }
+
+  @Override
+  Map<SkyKey, SkyValue> getValues() {
+    rehydrateAll();
+    return super.getValues();
+  }
+
+  @Override
+  Map<SkyKey, SkyValue> getDoneValues() {
+    rehydrateAll();
+    return super.getDoneValues();
+  }
+
+  @Override
+  Map<SkyKey, NodeEntry> getAllValues() {
+    rehydrateAll();
+    return super.getAllValues();
+  }
+
+  @Override
+  protected ConcurrentMap<SkyKey, NodeEntry> getNodeMap() {
+    rehydrateAll();
+    return super.getNodeMap();
+  }
+
+  /** Returns the number of restored nodes that have not been requested yet. */
+  @VisibleForTesting
+  int getPendingNodeCountForTesting() {
+    return pendingNodes.size();
+  }
+}
@@ -54,6 +54,14 @@ public abstract class ReverseDepsUtil<T> {
 
   abstract List<SkyKey> getReverseDepsToRemove(T container);
 
+  /**
+   * Creates the mutable list used to store two or more reverse deps. Implementations may override
+   * this to use a more compact list representation.
+   */
+  List<SkyKey> newReverseDepsList(int expectedSize) {
+    return Lists.newArrayListWithExpectedSize(expectedSize);
+  }
+
   /**
    * We check that the reverse dependency is not already present. We only do that if reverseDeps is
    * small, so that it does not impact performance.
@@ -95,9 +103,11 @@ public abstract class ReverseDepsUtil<T> {
     if (newSize == 1) {
       overwriteReverseDepsWithObject(container, Iterables.getOnlyElement(newReverseDeps));
     } else if (reverseDepsSize == 0) {
-      overwriteReverseDepsList(container, Lists.newArrayList(newReverseDeps));
+      List<SkyKey> newList = newReverseDepsList(newSize);
+      newList.addAll(newReverseDeps);
+      overwriteReverseDepsList(container, newList);
     } else if (reverseDepsSize == 1) {
-      List<SkyKey> newList = Lists.newArrayListWithExpectedSize(newSize);
+      List<SkyKey> newList = newReverseDepsList(newSize);
       newList.add((SkyKey) reverseDeps);
       newList.addAll(newReverseDeps);
       overwriteReverseDepsList(container, newList);
@@ -171,8 +181,8 @@ public abstract class ReverseDepsUtil<T> {
 
     @SuppressWarnings("unchecked")
     List<SkyKey> reverseDepsAsList = (List<SkyKey>) reverseDeps;
-    List<SkyKey> newReverseDeps = Lists
-        .newArrayListWithExpectedSize(Math.max(0, reverseDepsAsList.size() - expectedRemovals));
+    List<SkyKey> newReverseDeps =
+        newReverseDepsList(Math.max(0, reverseDepsAsList.size() - expectedRemovals));
 
     for (SkyKey reverseDep : reverseDepsAsList) {
       if (!toRemove.contains(reverseDep)) {
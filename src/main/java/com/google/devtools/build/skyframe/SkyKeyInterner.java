@@ -0,0 +1,71 @@
+// Copyright 2015 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.skyframe;
+
+import com.google.common.base.Preconditions;
+import com.google.devtools.build.lib.concurrent.ThreadSafety.ThreadSafe;
+
+import java.util.Arrays;
+
+/**
+ * Assigns dense, non-negative int ids to {@link SkyKey}s, so that graph edges can be stored as
+ * ints instead of object references. Ids are never reused: once a key has been assigned an id it
+ * stays reachable for the lifetime of the interner, even if its node is deleted from the graph.
+ * Each {@link CompactInMemoryGraph} owns an interner, so the keys are released with the graph.
+ *
+ * <p>The interner only maps ids to keys, with a plain array read. The id of a key is stored in
+ * the key's node, so the graph's node map also serves to look up ids; see
+ * {@link CompactInMemoryGraph#intern}.
+ */
+@ThreadSafe
+final class SkyKeyInterner {
+
+  // Written only while holding the lock on this object. The element for an id is always written
+  // before the id is published, so a reader who obtained an id from a node (or from an edge list
+  // written after interning) sees the key.
+  private volatile SkyKey[] keys = new SkyKey[1024];
+  private int size = 0;
+
+  /** Assigns a new id to {@code key}. */
+  synchronized int add(SkyKey key) {
+    SkyKey[] current = keys;
+    if (size == current.length) {
+      current = Arrays.copyOf(current, current.length * 2);
+    }
+    current[size] = Preconditions.checkNotNull(key);
+    keys = current;
+    return size++;
+  }
+
+  /**
+   * Returns the id of {@code key}, whose node is {@code entry}, assigning a new one if the node
+   * does not have one yet. Never takes the lock of a node, so it may be called while holding one.
+   */
+  synchronized int assign(CompactInMemoryNodeEntry entry, SkyKey key) {
+    if (entry.id < 0) {
+      entry.id = add(key);
+    }
+    return entry.id;
+  }
+
+  /** Returns the key previously assigned {@code id}. */
+  SkyKey get(int id) {
+    return keys[id];
+  }
+
+  /** Returns the number of ids assigned so far. */
+  synchronized int size() {
+    return size;
+  }
+}
@@ -454,6 +454,40 @@ Java_com_google_devtools_build_lib_unix_FilesystemUtils_errnoLstat(JNIEnv *env,
   return ::StatCommon(env, path, portable_lstat, false);
 }
 
+/*
+ * Class:     com.google.devtools.build.lib.unix.FilesystemUtils
+ * Method:    batchErrnoStat
+ * Signature: ([Ljava/lang/String;Z)[Lcom/google/devtools/build/lib/unix/ErrnoFileStatus;
+ */
+extern "C" JNIEXPORT jobjectArray JNICALL
+Java_com_google_devtools_build_lib_unix_FilesystemUtils_batchErrnoStat(JNIEnv *env,
+                                                           jclass clazz,
+                                                           jobjectArray paths,
+                                                           jboolean follow_symlinks) {
+  jclass errno_file_status_class =
+      env->FindClass("com/google/devtools/build/lib/unix/ErrnoFileStatus");
+  CHECK(errno_file_status_class != NULL);
+  jsize count = env->GetArrayLength(paths);
+  jobjectArray result = env->NewObjectArray(count, errno_file_status_class, NULL);
+  if (result == NULL) {
+    return NULL;
+  }
+  for (jsize i = 0; i < count; i++) {
+    jstring path = static_cast<jstring>(env->GetObjectArrayElement(paths, i));
+    jobject status = ::StatCommon(env, path,
+                                  follow_symlinks ? portable_stat : portable_lstat,
+                                  false);
+    env->DeleteLocalRef(path);
+    if (status == NULL) {
+      return NULL;  // exception pending
+    }
+    env->SetObjectArrayElement(result, i, status);
+    // Keep the number of local references bounded for large batches.
+    env->DeleteLocalRef(status);
+  }
+  return result;
+}
+
 /*
  * Class:     com.google.devtools.build.lib.unix.FilesystemUtils
  * Method:    utime
@@ -14,10 +14,13 @@
 
 #include "src/main/native/unix_jni.h"
 
+#include <errno.h>
 #include <string.h>
 #include <stdlib.h>
+#include <sys/inotify.h>
 #include <sys/stat.h>
 #include <sys/xattr.h>
+#include <unistd.h>
 
 #include <string>
 
@@ -73,3 +76,79 @@ ssize_t portable_lgetxattr(const char *path, const char *name, void *value,
                            size_t size) {
   return ::lgetxattr(path, name, value, size);
 }
+
+////////////////////////////////////////////////////////////////////////
+// inotify(7) support, used by InotifyDiffAwareness.
+
+extern "C" JNIEXPORT jint JNICALL
+Java_com_google_devtools_build_lib_unix_Inotify_init(JNIEnv *env, jclass clazz) {
+  int fd = ::inotify_init1(IN_NONBLOCK | IN_CLOEXEC);
+  if (fd == -1) {
+    ::PostException(env, errno, "inotify_init1");
+  }
+  return fd;
+}
+
+// The path is passed as Latin1-encoded bytes, without a terminating nul.
+extern "C" JNIEXPORT jint JNICALL
+Java_com_google_devtools_build_lib_unix_Inotify_addWatch(JNIEnv *env,
+                                                         jclass clazz,
+                                                         jint fd,
+                                                         jbyteArray path,
+                                                         jint mask) {
+  jsize len = env->GetArrayLength(path);
+  std::string path_chars(len, '\0');
+  env->GetByteArrayRegion(path, 0, len,
+                          reinterpret_cast<jbyte *>(&path_chars[0]));
+  int wd = ::inotify_add_watch(fd, path_chars.c_str(), mask);
+  if (wd == -1) {
+    ::PostFileException(env, errno, path_chars.c_str());
+  }
+  return wd;
+}
+
+extern "C" JNIEXPORT void JNICALL
+Java_com_google_devtools_build_lib_unix_Inotify_removeWatch(JNIEnv *env,
+                                                            jclass clazz,
+                                                            jint fd,
+                                                            jint wd) {
+  // EINVAL means that the kernel already removed the watch, e.g. because the
+  // directory was deleted.
+  if (::inotify_rm_watch(fd, wd) == -1 && errno != EINVAL) {
+    ::PostException(env, errno, "inotify_rm_watch");
+  }
+}
+
+// Reads as many queued events as fit into buf, and returns the number of
+// bytes read, or 0 if no event is queued.
+extern "C" JNIEXPORT jint JNICALL
+Java_com_google_devtools_build_lib_unix_Inotify_read(JNIEnv *env,
+                                                     jclass clazz,
+                                                     jint fd,
+                                                     jbyteArray buf) {
+  jsize len = env->GetArrayLength(buf);
+  std::string events(len, '\0');
+  ssize_t n;
+  do {
+    n = ::read(fd, &events[0], len);
+  } while (n == -1 && errno == EINTR);
+  if (n == -1) {
+    if (errno == EAGAIN) {
+      return 0;
+    }
+    ::PostException(env, errno, "read from inotify");
+    return -1;
+  }
+  env->SetByteArrayRegion(buf, 0, n,
+                          reinterpret_cast<const jbyte *>(events.data()));
+  return n;
+}
+
+extern "C" JNIEXPORT void JNICALL
+Java_com_google_devtools_build_lib_unix_Inotify_close(JNIEnv *env,
+                                                      jclass clazz,
+                                                      jint fd) {
+  if (::close(fd) == -1) {
+    ::PostException(env, errno, "close inotify");
+  }
+}
@@ -21,6 +21,10 @@
 // unless process-wrapper receives a signal. ie, on SIGTERM this program will
 // die with raise(SIGTERM) even if the child process handles SIGTERM with
 // exit(0).
+//
+// If the first argument is --stats=<file>, the CPU time and the peak resident
+// memory of the subprocess are written to <file> once it has exited, as
+// "<cpu-millis> <max-rss-kb>\n".
 
 #define _GNU_SOURCE
 
@@ -30,6 +34,7 @@
 #include <stdio.h>
 #include <stdlib.h>
 #include <string.h>
+#include <sys/resource.h>
 #include <sys/types.h>
 #include <sys/stat.h>
 #include <unistd.h>
@@ -42,9 +47,11 @@ extern char **environ;
 static double global_kill_delay;
 static int global_child_pid;
 static volatile sig_atomic_t global_signal;
+static const char *global_stats_path;
 
 // Options parsing result.
 struct Options {
+  const char *stats_path;
   double timeout_secs;
   double kill_delay_secs;
   const char *stdout_path;
@@ -57,7 +64,8 @@ struct Options {
 // string for the error message to print.
 static void Usage(char *const *argv) {
   fprintf(stderr,
-          "Usage: %s <timeout-secs> <kill-delay-secs> <stdout-redirect> "
+          "Usage: %s [--stats=<file>] <timeout-secs> <kill-delay-secs> "
+          "<stdout-redirect> "
           "<stderr-redirect> <command> [args] ...\n",
           argv[0]);
   exit(EXIT_FAILURE);
@@ -66,11 +74,17 @@ static void Usage(char *const *argv) {
 // Parse the command line flags and return the result in an Options structure
 // passed as argument.
 static void ParseCommandLine(int argc, char *const *argv, struct Options *opt) {
-  if (argc <= 5) {
-    Usage(argv);
+  char *const *program = argv;
+  argv++;
+  argc--;
+  if (argc > 0 && strncmp(*argv, "--stats=", 8) == 0) {
+    opt->stats_path = *argv++ + 8;
+    argc--;
+  }
+  if (argc <= 4) {
+    Usage(program);
   }
 
-  argv++;
   if (sscanf(*argv++, "%lf", &opt->timeout_secs) != 1) {
     DIE("timeout_secs is not a real number.\n");
   }
@@ -102,6 +116,31 @@ void OnSignal(int sig) {
   }
 }
 
+// Write the resource usage of the reaped subprocesses to the stats file, if one
+// was requested. Failures are ignored, as the statistics are only advisory.
+static void WriteStats() {
+  if (global_stats_path == NULL) {
+    return;
+  }
+  struct rusage usage;
+  if (getrusage(RUSAGE_CHILDREN, &usage) < 0) {
+    return;
+  }
+  long cpu_millis = (usage.ru_utime.tv_sec + usage.ru_stime.tv_sec) * 1000L +
+                    (usage.ru_utime.tv_usec + usage.ru_stime.tv_usec) / 1000L;
+#ifdef __APPLE__
+  // OSX reports the peak resident memory in bytes rather than kilobytes.
+  long max_rss_kb = usage.ru_maxrss / 1024;
+#else
+  long max_rss_kb = usage.ru_maxrss;
+#endif
+  FILE *stats = fopen(global_stats_path, "w");
+  if (stats != NULL) {
+    fprintf(stats, "%ld %ld\n", cpu_millis, max_rss_kb);
+    fclose(stats);
+  }
+}
+
 // Run the command specified by the argv array and kill it after timeout
 // seconds.
 static void SpawnCommand(char *const *argv, double timeout_secs) {
@@ -132,6 +171,7 @@ static void SpawnCommand(char *const *argv, double timeout_secs) {
     // The child is done for, but may have grandchildren that we still have to
     // kill.
     kill(-global_child_pid, SIGKILL);
+    WriteStats();
 
     if (global_signal > 0) {
       // Don't trust the exit code if we got a timeout or signal.
@@ -153,6 +193,7 @@ int main(int argc, char *argv[]) {
 
   ParseCommandLine(argc, argv, &opt);
   global_kill_delay = opt.kill_delay_secs;
+  global_stats_path = opt.stats_path;
 
   SwitchToEuid();
   SwitchToEgid();
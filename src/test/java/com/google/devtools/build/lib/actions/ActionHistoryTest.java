@@ -0,0 +1,124 @@
+// Copyright 2015 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.actions;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import com.google.devtools.build.lib.actions.util.ActionsTestUtil.NullAction;
+import com.google.devtools.build.lib.testutil.Scratch;
+import com.google.devtools.build.lib.vfs.Path;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests for {@link ActionHistory}.
+ */
+@RunWith(JUnit4.class)
+public class ActionHistoryTest {
+
+  private final Scratch scratch = new Scratch();
+  private Path directory;
+  private Action action;
+  private Action otherAction;
+
+  @Before
+  public void setUp() throws Exception {
+    directory = scratch.dir("/output_base").getChild("action_history");
+    Root root = Root.asDerivedRoot(scratch.dir("/exec"), scratch.dir("/exec/out"));
+    action = new NullAction(new Artifact(scratch.resolve("/exec/out/a.o"), root));
+    otherAction = new NullAction(new Artifact(scratch.resolve("/exec/out/b.o"), root));
+  }
+
+  private static long seconds(double seconds) {
+    return (long) (seconds * TimeUnit.SECONDS.toNanos(1));
+  }
+
+  @Test
+  public void measurementsSurviveSaveAndLoad() throws Exception {
+    ActionHistory history = new ActionHistory(directory);
+    history.addSpawnUsage(action, 1500, 200 * 1024);
+    history.addSpawnUsage(action, 500, 100 * 1024);
+    history.recordExecution(action, seconds(4));
+    history.recordExecution(otherAction, seconds(1));
+    history.save();
+
+    ActionHistory loaded = new ActionHistory(directory);
+    ActionHistory.Measurement measurement = loaded.get(action);
+    assertEquals(4000, measurement.getWallMillis());
+    assertEquals(2000, measurement.getCpuMillis());
+    assertEquals(200, measurement.getMemoryMb());
+    // Without spawn usage, only the wall time is known.
+    assertEquals(-1, loaded.get(otherAction).getCpuMillis());
+  }
+
+  @Test
+  public void estimatesAreReplacedByMeasurements() throws Exception {
+    ActionHistory history = new ActionHistory(directory);
+    ResourceSet estimate = ResourceSet.create(/*memoryMb=*/500, /*cpuUsage=*/1.0,
+        /*ioUsage=*/0.2, /*localTestCount=*/0);
+    assertSame(estimate, history.correctEstimate(action, estimate));
+
+    history.addSpawnUsage(action, 1000, 50 * 1024);
+    history.recordExecution(action, seconds(4));
+    ResourceSet corrected = history.correctEstimate(action, estimate);
+    assertEquals(0.25, corrected.getCpuUsage(), 0.001);
+    assertEquals(50, corrected.getMemoryMb(), 0.001);
+    assertEquals(0.2, corrected.getIoUsage(), 0.001);
+
+    // Only the wall time is known, so the estimate is kept.
+    history.recordExecution(otherAction, seconds(1));
+    assertEquals(1.0, history.correctEstimate(otherAction, estimate).getCpuUsage(), 0.001);
+    assertSame(ResourceSet.ZERO, history.correctEstimate(action, ResourceSet.ZERO));
+    assertNull(history.correctEstimate(action, null));
+  }
+
+  @Test
+  public void muchSlowerExecutionsAreRegressions() throws Exception {
+    ActionHistory history = new ActionHistory(directory);
+    history.recordExecution(action, seconds(2));
+    history.recordExecution(otherAction, seconds(0.1));
+    assertTrue(history.getRegressions().isEmpty());
+
+    history.startBuild();
+    history.recordExecution(action, seconds(5));
+    // Too short to matter, although it takes ten times longer.
+    history.recordExecution(otherAction, seconds(1));
+    assertEquals(1, history.getRegressions().size());
+    ActionHistory.Regression regression = history.getRegressions().get(0);
+    assertEquals("Null " + action.getPrimaryOutput().getExecPathString(), regression.getKey());
+    assertEquals(2000, regression.getPreviousMillis());
+    assertEquals(5000, regression.getCurrentMillis());
+
+    history.startBuild();
+    assertTrue(history.getRegressions().isEmpty());
+  }
+
+  @Test
+  public void clearDiscardsSavedMeasurements() throws Exception {
+    ActionHistory history = new ActionHistory(directory);
+    history.recordExecution(action, seconds(1));
+    history.save();
+    history.clear();
+    assertNull(history.get(action));
+    assertNull(new ActionHistory(directory).get(action));
+  }
+}
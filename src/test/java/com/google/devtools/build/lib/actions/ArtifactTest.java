@@ -28,6 +28,8 @@ import com.google.common.collect.Lists;
 import com.google.devtools.build.lib.actions.Action.MiddlemanType;
 import com.google.devtools.build.lib.actions.util.ActionsTestUtil;
 import com.google.devtools.build.lib.actions.util.LabelArtifactOwner;
+import com.google.devtools.build.lib.collect.nestedset.NestedSetBuilder;
+import com.google.devtools.build.lib.collect.nestedset.Order;
 import com.google.devtools.build.lib.rules.cpp.CppFileTypes;
 import com.google.devtools.build.lib.rules.java.JavaSemantics;
 import com.google.devtools.build.lib.syntax.Label;
@@ -172,6 +174,17 @@ public class ArtifactTest {
     assertSameContents(ImmutableList.of("bar1.h", "bar2.h"), paths);
   }
 
+  @Test
+  public void testJoinExecPaths() throws Exception {
+    MutableActionGraph actionGraph = new MapBasedActionGraph();
+    List<Artifact> artifacts = getFooBarArtifacts(actionGraph, false);
+    assertEquals("bar1.h:bar2.h", Artifact.joinExecPaths(":", artifacts));
+    assertEquals("bar1.h:bar2.h", Artifact.joinExecPaths(":",
+        NestedSetBuilder.wrap(Order.STABLE_ORDER, artifacts)));
+    assertEquals("bar1.h:bar2.h", Artifact.joinExecPaths(":",
+        NestedSetBuilder.<Artifact>stableOrder().addAll(artifacts).build()));
+  }
+
   @Test
   public void testAddExpandedExecPathStrings() throws Exception {
     List<String> paths = new ArrayList<>();
@@ -15,15 +15,20 @@ package com.google.devtools.build.lib.actions;
 
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 
 import com.google.common.collect.ImmutableList;
 import com.google.devtools.build.lib.analysis.actions.CustomCommandLine;
 import com.google.devtools.build.lib.analysis.actions.CustomCommandLine.CustomArgv;
 import com.google.devtools.build.lib.analysis.actions.CustomCommandLine.CustomMultiArgv;
+import com.google.devtools.build.lib.analysis.actions.CommandLine;
+import com.google.devtools.build.lib.collect.nestedset.NestedSet;
 import com.google.devtools.build.lib.collect.nestedset.NestedSetBuilder;
+import com.google.devtools.build.lib.collect.nestedset.Order;
 import com.google.devtools.build.lib.syntax.Label;
 import com.google.devtools.build.lib.syntax.Label.SyntaxException;
 import com.google.devtools.build.lib.testutil.Scratch;
+import com.google.devtools.build.lib.util.Fingerprint;
 
 import org.junit.Before;
 import org.junit.Test;
@@ -158,4 +163,43 @@ public class CustomCommandLineTest {
         .build();
     assertEquals(ImmutableList.of(), cl.arguments());
   }
+
+  @Test
+  public void testFingerprintOfNestedSetArgs() {
+    NestedSet<Artifact> inner = NestedSetBuilder.create(Order.STABLE_ORDER, artifact1);
+    NestedSet<Artifact> set = NestedSetBuilder.<Artifact>stableOrder()
+        .add(artifact2).addTransitive(inner).build();
+    NestedSet<Artifact> equalSet = NestedSetBuilder.<Artifact>stableOrder()
+        .add(artifact2).addTransitive(NestedSetBuilder.create(Order.STABLE_ORDER, artifact1))
+        .build();
+    NestedSet<Artifact> otherOrder = NestedSetBuilder.<Artifact>linkOrder()
+        .add(artifact2).addTransitive(inner).build();
+
+    assertEquals(fingerprint(execPathsCommandLine(set)), fingerprint(execPathsCommandLine(set)));
+    assertEquals(fingerprint(execPathsCommandLine(set)),
+        fingerprint(execPathsCommandLine(equalSet)));
+    assertFalse(fingerprint(execPathsCommandLine(set))
+        .equals(fingerprint(execPathsCommandLine(otherOrder))));
+    assertFalse(fingerprint(execPathsCommandLine(set))
+        .equals(fingerprint(execPathsCommandLine(inner))));
+    assertFalse(fingerprint(execPathsCommandLine(set)).equals(fingerprint(
+        CustomCommandLine.builder().addBeforeEachExecPath("-f", set).build())));
+    assertFalse(fingerprint(execPathsCommandLine(set)).equals(fingerprint(
+        CustomCommandLine.builder().addJoinExecPaths("--path", ":", set).build())));
+    assertFalse(fingerprint(CustomCommandLine.builder().addJoinExecPaths("--path", ":", set)
+        .build()).equals(fingerprint(
+            CustomCommandLine.builder().addJoinExecPaths("--path", ",", set).build())));
+    assertEquals(ImmutableList.of("--path", "dir/file1.txt", "dir/file2.txt"),
+        execPathsCommandLine(set).arguments());
+  }
+
+  private static CommandLine execPathsCommandLine(NestedSet<Artifact> artifacts) {
+    return CustomCommandLine.builder().addExecPaths("--path", artifacts).build();
+  }
+
+  private static String fingerprint(CommandLine commandLine) {
+    Fingerprint fingerprint = new Fingerprint();
+    commandLine.addToFingerprint(fingerprint);
+    return fingerprint.hexDigestAndReset();
+  }
 }
@@ -18,6 +18,7 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.eventbus.EventBus;
 import com.google.devtools.build.lib.testutil.TestThread;
@@ -323,6 +324,98 @@ public class ResourceManagerTest {
     assertFalse(rm.inUse());
   }
 
+  @Test
+  public void testWaitingThreadsAreServedByPriority() throws Exception {
+    final ActionMetadata lowPriorityOwner = new ResourceOwnerStub();
+    final ActionMetadata highPriorityOwner = new ResourceOwnerStub();
+    final ImmutableMap<ActionMetadata, Long> priorities =
+        ImmutableMap.of(lowPriorityOwner, 1L, highPriorityOwner, 2L);
+    rm.setPrioritizer(new ResourceManager.Prioritizer() {
+      @Override
+      public long getPriority(ActionMetadata owner) {
+        return priorities.get(owner);
+      }
+    });
+    TestThread lowPriorityThread = new TestThread() {
+      @Override public void runTest() throws Exception {
+        rm.acquireResources(lowPriorityOwner, ResourceSet.create(0, 1.0, 0, 0));
+        validate(3);
+        rm.releaseResources(lowPriorityOwner, ResourceSet.create(0, 1.0, 0, 0));
+      }
+    };
+    TestThread highPriorityThread = new TestThread() {
+      @Override public void runTest() throws Exception {
+        rm.acquireResources(highPriorityOwner, ResourceSet.create(0, 1.0, 0, 0));
+        validate(2);
+        rm.releaseResources(highPriorityOwner, ResourceSet.create(0, 1.0, 0, 0));
+      }
+    };
+    acquire(0, 1.0, 0, 0);
+    validate(1);
+    // The low priority thread asks first.
+    lowPriorityThread.start();
+    while (rm.getWaitCount() < 1) {
+      Thread.yield();
+    }
+    highPriorityThread.start();
+    while (rm.getWaitCount() < 2) {
+      Thread.yield();
+    }
+    release(0, 1.0, 0, 0);
+    lowPriorityThread.join();
+    highPriorityThread.join();
+    assertFalse(rm.inUse());
+  }
+
+  @Test
+  public void testMeasuredLoadCorrectsEstimates() throws Exception {
+    FakeLocalHostLoad load = new FakeLocalHostLoad(/*busyCpus=*/0.1, /*freeMemoryMb=*/10000);
+    rm.setLocalHostLoad(load);
+
+    // Given CPU is fully allocated,
+    acquire(0, 1.0, 0, 0);
+    // When the allocation has not been measured yet,
+    // Then no more CPU is available:
+    assertFalse(acquireNonblocking(0, 0.5, 0, 0));
+
+    // When the host turns out to be mostly idle,
+    // Then CPU can be overallocated as long as the measured load leaves room:
+    load.sample = new LocalHostLoad.Sample(0.2, 10000);
+    assertTrue(acquireNonblocking(0, 0.5, 0, 0));
+    assertTrue(acquireNonblocking(0, 0.5, 0, 0));
+    assertFalse(acquireNonblocking(0, 0.5, 0, 0));
+    release(0, 2.0, 0, 0);
+
+    // Given RAM is partially allocated,
+    acquire(500, 0, 0, 0);
+    // When the host has less memory free than requested,
+    // Then the request fails even though the estimates leave room for it:
+    load.sample = new LocalHostLoad.Sample(0.2, 100);
+    assertFalse(acquireNonblocking(200, 0, 0, 0));
+    load.sample = new LocalHostLoad.Sample(0.2, 300);
+    assertTrue(acquireNonblocking(200, 0, 0, 0));
+    // When RAM was allocated since the host was measured,
+    // Then it counts as used even though the sample does not show it yet:
+    assertFalse(acquireNonblocking(200, 0, 0, 0));
+    load.sample = new LocalHostLoad.Sample(0.2, 300);
+    assertTrue(acquireNonblocking(200, 0, 0, 0));
+    release(900, 0, 0, 0);
+    assertFalse(rm.inUse());
+  }
+
+  private static class FakeLocalHostLoad extends LocalHostLoad {
+    private volatile Sample sample;
+
+    FakeLocalHostLoad(double busyCpus, double freeMemoryMb) {
+      this.sample = new Sample(busyCpus, freeMemoryMb);
+    }
+
+    @Override
+    public Sample sample() {
+      return sample;
+    }
+  }
+
   private static class ResourceOwnerStub implements ActionMetadata {
 
     @Override
@@ -0,0 +1,316 @@
+// Copyright 2015 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.actions.benchmark;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.devtools.build.lib.actions.ActionMetadata;
+import com.google.devtools.build.lib.actions.ActionOwner;
+import com.google.devtools.build.lib.actions.Artifact;
+import com.google.devtools.build.lib.actions.Executor;
+import com.google.devtools.build.lib.actions.LocalHostLoad;
+import com.google.devtools.build.lib.actions.ResourceManager;
+import com.google.devtools.build.lib.actions.ResourceSet;
+import com.google.devtools.build.lib.actions.RunfilesSupplier;
+import com.google.devtools.common.options.OptionsParser;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Simulates the local execution of a build to compare the scheduling policies of the
+ * {@link ResourceManager}: serving blocked actions in request order, as it did originally,
+ * serving them by the length of the critical path behind them, and correcting the declared
+ * resources of actions with the measured load of the host.
+ *
+ * <p>The simulated build consists of a chain of dependent actions, which is its critical path,
+ * and many independent actions that become ready at once and compete with the chain for CPU.
+ * Actions sleep instead of computing, and declare more CPU than they use. An action that starts
+ * while the CPU it uses, together with that of the running actions, exceeds the CPUs of the host
+ * runs proportionally longer, and the simulated host load reports that CPU usage.
+ *
+ * <pre>
+ * bazel run //src/test/java:resource_manager_benchmark -- --cpus=8 --jobs=200
+ * </pre>
+ */
+public final class ResourceManagerBenchmark {
+
+  private final ResourceManagerBenchmarkOptions options;
+
+  private ResourceManagerBenchmark(ResourceManagerBenchmarkOptions options) {
+    this.options = options;
+  }
+
+  public static void main(String[] args) throws InterruptedException {
+    OptionsParser parser = OptionsParser.newOptionsParser(ResourceManagerBenchmarkOptions.class);
+    parser.parseAndExitUponError(args);
+    ResourceManagerBenchmarkOptions options =
+        parser.getOptions(ResourceManagerBenchmarkOptions.class);
+    Preconditions.checkArgument(options.cpus > 0 && options.jobs > 0 && options.chainLength > 0,
+        "--cpus, --jobs and --chain_length must be positive");
+
+    ResourceManagerBenchmark benchmark = new ResourceManagerBenchmark(options);
+    System.out.printf("Host: %d CPUs, %d jobs; chain of %d x %dms, %d x %dms independent actions; "
+        + "%.2f CPU declared, %.2f used per action%n",
+        options.cpus, options.jobs, options.chainLength, options.chainActionMs,
+        options.wideActions, options.wideActionMs, options.declaredCpu, options.actualCpu);
+    benchmark.run("request order", false, false);
+    benchmark.run("critical path", true, false);
+    benchmark.run("measured load", false, true);
+    benchmark.run("critical path, measured load", true, true);
+  }
+
+  private void run(String scenario, boolean prioritize, boolean measureLoad)
+      throws InterruptedException {
+    long totalMs = 0;
+    double totalUtilization = 0;
+    for (int i = 0; i < options.iterations; i++) {
+      Build build = new Build(prioritize, measureLoad);
+      totalMs += build.execute();
+      totalUtilization += build.cpuUtilization();
+    }
+    System.out.printf("%-30s %6d ms, %3.0f%% CPU utilization%n", scenario,
+        totalMs / options.iterations, 100 * totalUtilization / options.iterations);
+  }
+
+  /** A simulated action. */
+  private static final class SimulatedAction extends ActionMetadataStub {
+    private final String name;
+    private final long durationNanos;
+    private final List<SimulatedAction> dependents = new ArrayList<>();
+    private final AtomicInteger pendingDeps = new AtomicInteger();
+    // The longest chain of completed actions behind this one.
+    private volatile long criticalPathNanos;
+
+    SimulatedAction(String name, long durationMs) {
+      this.name = name;
+      this.durationNanos = TimeUnit.MILLISECONDS.toNanos(durationMs);
+    }
+
+    void dependsOn(SimulatedAction dep) {
+      dep.dependents.add(this);
+      pendingDeps.incrementAndGet();
+    }
+
+    @Override
+    public String prettyPrint() {
+      return name;
+    }
+  }
+
+  /** The CPU usage of the running simulated actions, as it would be measured on the host. */
+  private final class SimulatedHostLoad extends LocalHostLoad {
+    private double usedCpu;
+    private long sampleTimeNanos;
+    private Sample sample = new Sample(0, Double.NaN);
+
+    /** Starts running an action and returns the factor by which it runs slower than alone. */
+    synchronized double start() {
+      usedCpu += options.actualCpu;
+      return Math.max(1.0, usedCpu / options.cpus);
+    }
+
+    synchronized void finish() {
+      usedCpu -= options.actualCpu;
+    }
+
+    @Override
+    public synchronized Sample sample() {
+      long now = System.nanoTime();
+      if (now - sampleTimeNanos >= TimeUnit.MILLISECONDS.toNanos(options.sampleIntervalMs)) {
+        sampleTimeNanos = now;
+        sample = new Sample(Math.min(usedCpu, options.cpus), Double.NaN);
+      }
+      return sample;
+    }
+  }
+
+  /** One execution of the simulated build. */
+  private final class Build {
+    private final ResourceManager resourceManager = ResourceManager.instanceForTestingOnly();
+    private final ResourceSet resources = ResourceSet.create(0, options.declaredCpu, 0, 0);
+    private final SimulatedHostLoad hostLoad = new SimulatedHostLoad();
+    private final ExecutorService executor = Executors.newFixedThreadPool(options.jobs);
+    private final List<SimulatedAction> actions = new ArrayList<>();
+    private final CountDownLatch done;
+    private long elapsedNanos;
+
+    Build(boolean prioritize, boolean measureLoad) {
+      resourceManager.setAvailableResources(
+          ResourceSet.create(Double.MAX_VALUE, options.cpus, 1.0, Integer.MAX_VALUE));
+      if (prioritize) {
+        resourceManager.setPrioritizer(new ResourceManager.Prioritizer() {
+          @Override
+          public long getPriority(ActionMetadata owner) {
+            return ((SimulatedAction) owner).criticalPathNanos;
+          }
+        });
+      }
+      if (measureLoad) {
+        resourceManager.setLocalHostLoad(hostLoad);
+      }
+      SimulatedAction previous = null;
+      for (int i = 0; i < options.chainLength; i++) {
+        SimulatedAction action = new SimulatedAction("chain" + i, options.chainActionMs);
+        if (previous != null) {
+          action.dependsOn(previous);
+        }
+        actions.add(action);
+        previous = action;
+      }
+      for (int i = 0; i < options.wideActions; i++) {
+        actions.add(new SimulatedAction("wide" + i, options.wideActionMs));
+      }
+      done = new CountDownLatch(actions.size());
+    }
+
+    /** Executes the build and returns its wall time in milliseconds. */
+    long execute() throws InterruptedException {
+      long start = System.nanoTime();
+      for (SimulatedAction action : ImmutableList.copyOf(actions)) {
+        if (action.pendingDeps.get() == 0) {
+          submit(action);
+        }
+      }
+      done.await();
+      elapsedNanos = System.nanoTime() - start;
+      executor.shutdown();
+      return TimeUnit.NANOSECONDS.toMillis(elapsedNanos);
+    }
+
+    /** Returns the share of the CPU of the host that the actions used. */
+    double cpuUtilization() {
+      long workNanos = 0;
+      for (SimulatedAction action : actions) {
+        workNanos += action.durationNanos;
+      }
+      return options.actualCpu * workNanos / ((double) elapsedNanos * options.cpus);
+    }
+
+    private void submit(final SimulatedAction action) {
+      executor.execute(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            resourceManager.acquireResources(action, resources);
+            try {
+              double slowdown = hostLoad.start();
+              TimeUnit.NANOSECONDS.sleep((long) (action.durationNanos * slowdown));
+              hostLoad.finish();
+            } finally {
+              resourceManager.releaseResources(action, resources);
+            }
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+          }
+          long criticalPathNanos = action.criticalPathNanos + action.durationNanos;
+          for (SimulatedAction dependent : action.dependents) {
+            if (dependent.criticalPathNanos < criticalPathNanos) {
+              dependent.criticalPathNanos = criticalPathNanos;
+            }
+            if (dependent.pendingDeps.decrementAndGet() == 0) {
+              submit(dependent);
+            }
+          }
+          done.countDown();
+        }
+      });
+    }
+  }
+
+  /** Implements the parts of {@link ActionMetadata} the resource manager does not use. */
+  private abstract static class ActionMetadataStub implements ActionMetadata {
+    @Override
+    public String getProgressMessage() {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public ActionOwner getOwner() {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public String getMnemonic() {
+      return "Simulated";
+    }
+
+    @Override
+    public String describeStrategy(Executor executor) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public boolean inputsKnown() {
+      return true;
+    }
+
+    @Override
+    public boolean discoversInputs() {
+      return false;
+    }
+
+    @Override
+    public Iterable<Artifact> getInputs() {
+      return ImmutableList.of();
+    }
+
+    @Override
+    public RunfilesSupplier getRunfilesSupplier() {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public ImmutableSet<Artifact> getOutputs() {
+      return ImmutableSet.of();
+    }
+
+    @Override
+    public ImmutableSet<Artifact> getMandatoryOutputs() {
+      return ImmutableSet.of();
+    }
+
+    @Override
+    public Artifact getPrimaryInput() {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public Artifact getPrimaryOutput() {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public Iterable<Artifact> getMandatoryInputs() {
+      return ImmutableList.of();
+    }
+
+    @Override
+    public String getKey() {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public String describeKey() {
+      throw new UnsupportedOperationException();
+    }
+  }
+}
@@ -0,0 +1,95 @@
+// Copyright 2015 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.actions.benchmark;
+
+import com.google.devtools.common.options.Option;
+import com.google.devtools.common.options.OptionsBase;
+
+/**
+ * Command-line options for the resource manager benchmark.
+ */
+public class ResourceManagerBenchmarkOptions extends OptionsBase {
+
+  @Option(
+      name = "cpus",
+      help = "Number of CPUs of the simulated host.",
+      defaultValue = "8"
+  )
+  public int cpus;
+
+  @Option(
+      name = "jobs",
+      help = "Number of threads that execute actions, as --jobs. Only actions that have a thread "
+          + "wait in the resource manager, so its policy matters only if this exceeds the "
+          + "number of actions the host can run at once.",
+      defaultValue = "200"
+  )
+  public int jobs;
+
+  @Option(
+      name = "chain_length",
+      help = "Number of actions in the chain of dependent actions, which is the critical path.",
+      defaultValue = "20"
+  )
+  public int chainLength;
+
+  @Option(
+      name = "chain_action_ms",
+      help = "Duration of each action of the chain on an idle host, in milliseconds.",
+      defaultValue = "100"
+  )
+  public int chainActionMs;
+
+  @Option(
+      name = "wide_actions",
+      help = "Number of independent actions that compete with the chain for resources.",
+      defaultValue = "400"
+  )
+  public int wideActions;
+
+  @Option(
+      name = "wide_action_ms",
+      help = "Duration of each independent action on an idle host, in milliseconds.",
+      defaultValue = "50"
+  )
+  public int wideActionMs;
+
+  @Option(
+      name = "declared_cpu",
+      help = "CPU each action declares in its resource set.",
+      defaultValue = "1.0"
+  )
+  public double declaredCpu;
+
+  @Option(
+      name = "actual_cpu",
+      help = "CPU each action actually uses while it runs.",
+      defaultValue = "0.4"
+  )
+  public double actualCpu;
+
+  @Option(
+      name = "sample_interval_ms",
+      help = "How often the simulated host load is measured, in milliseconds.",
+      defaultValue = "20"
+  )
+  public int sampleIntervalMs;
+
+  @Option(
+      name = "iterations",
+      help = "Measured iterations per scenario.",
+      defaultValue = "3"
+  )
+  public int iterations;
+}
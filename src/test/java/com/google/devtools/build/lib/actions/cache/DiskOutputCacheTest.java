@@ -0,0 +1,272 @@
+// Copyright 2015 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.actions.cache;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.google.devtools.build.lib.testutil.TestUtils;
+import com.google.devtools.build.lib.util.Clock;
+import com.google.devtools.build.lib.util.io.FileOutErr;
+import com.google.devtools.build.lib.vfs.FileSystemUtils;
+import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.build.lib.vfs.PathFragment;
+import com.google.devtools.build.lib.vfs.util.FileSystems;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+/**
+ * Tests for {@link DiskOutputCache}. These use a real file system since the cache hard-links
+ * files through java.nio.
+ */
+@RunWith(JUnit4.class)
+public class DiskOutputCacheTest {
+
+  private static class ManualClock implements Clock {
+    private long currentTime = System.currentTimeMillis();
+
+    @Override public long currentTimeMillis() {
+      return currentTime;
+    }
+
+    @Override public long nanoTime() {
+      return 0;
+    }
+  }
+
+  private static final PathFragment OUT_A = new PathFragment("bazel-out/bin/a.out");
+  private static final PathFragment OUT_B = new PathFragment("bazel-out/bin/b.out");
+
+  private final ManualClock clock = new ManualClock();
+  private final List<Runnable> trims = new ArrayList<>();
+  private Path tmp;
+  private Path execRoot;
+  private Path otherExecRoot;
+
+  @Before
+  public void setUp() throws Exception {
+    tmp = FileSystems.initDefaultAsJavaIo().getPath(TestUtils.tmpDir())
+        .getRelative("disk_output_cache");
+    FileSystemUtils.deleteTree(tmp);
+    execRoot = tmp.getRelative("workspace1/execroot");
+    otherExecRoot = tmp.getRelative("workspace2/execroot");
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    FileSystemUtils.deleteTree(tmp);
+  }
+
+  private DiskOutputCache newCache(long maxSizeBytes, boolean useHardLinks) throws Exception {
+    return new DiskOutputCache(tmp.getRelative("cache"), maxSizeBytes, useHardLinks, clock,
+        new Executor() {
+          @Override
+          public void execute(Runnable command) {
+            trims.add(command);
+          }
+        });
+  }
+
+  private FileOutErr outErr(Path root) {
+    return new FileOutErr(root.getRelative("stdout"), root.getRelative("stderr"));
+  }
+
+  private void store(DiskOutputCache cache, String key, PathFragment execPath) throws Exception {
+    cache.store(key, execRoot, outputs(execPath), outErr(execRoot));
+  }
+
+  private boolean fetch(DiskOutputCache cache, String key, Path root) throws Exception {
+    return cache.fetch(key, root, outErr(root));
+  }
+
+  private Path writeOutput(Path root, PathFragment execPath, String content) throws Exception {
+    Path path = root.getRelative(execPath);
+    FileSystemUtils.createDirectoryAndParents(path.getParentDirectory());
+    FileSystemUtils.writeContent(path, UTF_8, content);
+    return path;
+  }
+
+  private static Map<PathFragment, byte[]> outputs(PathFragment execPath) {
+    return Collections.singletonMap(execPath, (byte[]) null);
+  }
+
+  private static String read(Path path) throws Exception {
+    return new String(FileSystemUtils.readContent(path), UTF_8);
+  }
+
+  @Test
+  public void testFetchMissingKey() throws Exception {
+    assertFalse(fetch(newCache(1 << 20, true), "key", otherExecRoot));
+  }
+
+  @Test
+  public void testStoreAndFetchInOtherExecRoot() throws Exception {
+    DiskOutputCache cache = newCache(1 << 20, true);
+    writeOutput(execRoot, OUT_A, "contents of a").setExecutable(true);
+    store(cache, "key", OUT_A);
+
+    FileSystemUtils.createDirectoryAndParents(
+        otherExecRoot.getRelative(OUT_A).getParentDirectory());
+    assertTrue(fetch(cache, "key", otherExecRoot));
+    Path fetched = otherExecRoot.getRelative(OUT_A);
+    assertEquals("contents of a", read(fetched));
+    assertTrue(fetched.isExecutable());
+  }
+
+  @Test
+  public void testStoreAndFetchByCopying() throws Exception {
+    DiskOutputCache cache = newCache(1 << 20, false);
+    writeOutput(execRoot, OUT_A, "contents of a");
+    store(cache, "key", OUT_A);
+
+    FileSystemUtils.createDirectoryAndParents(
+        otherExecRoot.getRelative(OUT_A).getParentDirectory());
+    assertTrue(fetch(cache, "key", otherExecRoot));
+    // Changing the copy must not affect the cached contents.
+    FileSystemUtils.writeContent(otherExecRoot.getRelative(OUT_A), UTF_8, "changed");
+    FileSystemUtils.writeContent(execRoot.getRelative(OUT_A), UTF_8, "changed");
+    assertTrue(fetch(cache, "key", execRoot));
+    assertEquals("contents of a", read(execRoot.getRelative(OUT_A)));
+  }
+
+  @Test
+  public void testEditedLinkIsNotServed() throws Exception {
+    DiskOutputCache cache = newCache(1 << 20, true);
+    writeOutput(execRoot, OUT_A, "contents of a");
+    store(cache, "key", OUT_A);
+    FileSystemUtils.createDirectoryAndParents(
+        otherExecRoot.getRelative(OUT_A).getParentDirectory());
+    assertTrue(fetch(cache, "key", otherExecRoot));
+
+    // Editing a linked output in place also changes the file in the cache.
+    Path linked = otherExecRoot.getRelative(OUT_A);
+    linked.setWritable(true);
+    FileSystemUtils.writeContent(linked, UTF_8, "changed");
+    assertFalse(fetch(cache, "key", execRoot));
+    assertFalse(execRoot.getRelative(OUT_A).exists());
+
+    // Storing the output again repairs the entry.
+    writeOutput(execRoot, OUT_A, "contents of a");
+    store(cache, "key", OUT_A);
+    assertTrue(fetch(cache, "key", otherExecRoot));
+    assertEquals("contents of a", read(otherExecRoot.getRelative(OUT_A)));
+  }
+
+  @Test
+  public void testTrimDeletesLeastRecentlyUsedEntries() throws Exception {
+    DiskOutputCache cache = newCache(15, true);
+    writeOutput(execRoot, OUT_A, "aaaaaaaaaa");
+    writeOutput(execRoot, OUT_B, "bbbbbbbbbb");
+    store(cache, "keyA", OUT_A);
+    store(cache, "keyB", OUT_B);
+
+    clock.currentTime += 60 * 1000L;
+    assertTrue(fetch(cache, "keyA", execRoot));
+    clock.currentTime += 60 * 60 * 1000L;
+    cache.trim();
+
+    assertTrue(fetch(cache, "keyA", execRoot));
+    assertFalse(fetch(cache, "keyB", execRoot));
+  }
+
+  @Test
+  public void testTrimKeepsRecentEntries() throws Exception {
+    DiskOutputCache cache = newCache(15, true);
+    writeOutput(execRoot, OUT_A, "aaaaaaaaaa");
+    writeOutput(execRoot, OUT_B, "bbbbbbbbbb");
+    store(cache, "keyA", OUT_A);
+    store(cache, "keyB", OUT_B);
+    cache.trim();
+
+    assertTrue(fetch(cache, "keyA", execRoot));
+    assertTrue(fetch(cache, "keyB", execRoot));
+  }
+
+  @Test
+  public void testStoreCopiesLiveOutputs() throws Exception {
+    DiskOutputCache cache = newCache(1 << 20, true);
+    Path output = writeOutput(execRoot, OUT_A, "contents of a");
+    store(cache, "key", OUT_A);
+
+    // Writing the output in place must not change what the cache holds.
+    FileSystemUtils.writeContent(output, UTF_8, "changed");
+    FileSystemUtils.createDirectoryAndParents(
+        otherExecRoot.getRelative(OUT_A).getParentDirectory());
+    assertTrue(fetch(cache, "key", otherExecRoot));
+    assertEquals("contents of a", read(otherExecRoot.getRelative(OUT_A)));
+  }
+
+  @Test
+  public void testFetchDoesNotChangeTheModeOfSharedFiles() throws Exception {
+    DiskOutputCache cache = newCache(1 << 20, true);
+    writeOutput(execRoot, OUT_A, "same contents").setExecutable(true);
+    writeOutput(execRoot, OUT_B, "same contents").setExecutable(false);
+    store(cache, "keyA", OUT_A);
+    store(cache, "keyB", OUT_B);
+
+    FileSystemUtils.createDirectoryAndParents(
+        otherExecRoot.getRelative(OUT_A).getParentDirectory());
+    assertTrue(fetch(cache, "keyA", otherExecRoot));
+    assertTrue(fetch(cache, "keyB", otherExecRoot));
+    assertTrue(otherExecRoot.getRelative(OUT_A).isExecutable());
+    assertFalse(otherExecRoot.getRelative(OUT_B).isExecutable());
+  }
+
+  @Test
+  public void testFetchReplaysOutput() throws Exception {
+    DiskOutputCache cache = newCache(1 << 20, true);
+    writeOutput(execRoot, OUT_A, "contents of a");
+    FileOutErr outErr = outErr(execRoot);
+    outErr.printOut("to stdout");
+    outErr.printErr("to stderr");
+    cache.store("key", execRoot, outputs(OUT_A), outErr);
+
+    FileSystemUtils.createDirectoryAndParents(
+        otherExecRoot.getRelative(OUT_A).getParentDirectory());
+    FileOutErr replayed = outErr(otherExecRoot);
+    assertTrue(cache.fetch("key", otherExecRoot, replayed));
+    assertEquals("to stdout", replayed.outAsLatin1());
+    assertEquals("to stderr", replayed.errAsLatin1());
+  }
+
+  @Test
+  public void testStoreTrimsInTheBackground() throws Exception {
+    DiskOutputCache cache = newCache(15, true);
+    writeOutput(execRoot, OUT_A, "aaaaaaaaaa");
+    writeOutput(execRoot, OUT_B, "bbbbbbbbbb");
+    store(cache, "keyA", OUT_A);
+    assertEquals(1, trims.size());
+    // Only one trim is scheduled at a time.
+    store(cache, "keyB", OUT_B);
+    assertEquals(1, trims.size());
+
+    clock.currentTime += 60 * 60 * 1000L;
+    assertTrue(fetch(cache, "keyB", execRoot));
+    trims.remove(0).run();
+    assertFalse(fetch(cache, "keyA", execRoot));
+    assertTrue(fetch(cache, "keyB", execRoot));
+  }
+}
@@ -0,0 +1,259 @@
+// Copyright 2015 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.actions.cache;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import com.google.devtools.build.lib.testutil.TestUtils;
+import com.google.devtools.build.lib.vfs.FileSystemUtils;
+import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.build.lib.vfs.PathFragment;
+import com.google.devtools.build.lib.vfs.util.FileSystems;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Tests for {@link MappedActionCache}. These use a real file system since the cache is memory
+ * mapped.
+ */
+@RunWith(JUnit4.class)
+public class MappedActionCacheTest {
+
+  // Small chunks so that the tests exercise records at chunk boundaries.
+  private static final int CHUNK_SIZE = 4096;
+
+  private Path cacheRoot;
+  private MappedActionCache cache;
+
+  @Before
+  public void setUp() throws Exception {
+    cacheRoot = FileSystems.initDefaultAsJavaIo().getPath(TestUtils.tmpDir())
+        .getRelative("mapped_action_cache");
+    FileSystemUtils.deleteTree(cacheRoot);
+    FileSystemUtils.createDirectoryAndParents(cacheRoot);
+    cache = newCache();
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    FileSystemUtils.deleteTree(cacheRoot);
+  }
+
+  private MappedActionCache newCache() throws Exception {
+    return new MappedActionCache(cacheRoot, CHUNK_SIZE, /*minGarbageToCompact=*/0);
+  }
+
+  @Test
+  public void testGetInvalidKey() {
+    assertNull(cache.get("key"));
+  }
+
+  @Test
+  public void testPutAndGet() {
+    ActionCache.Entry entry = putKey("key", cache);
+    assertEquals(entry.toString(), cache.get("key").toString());
+  }
+
+  @Test
+  public void testPutOverwritesAndRemove() {
+    putKey("key", cache);
+    ActionCache.Entry second = putKey("key", cache, "other/file");
+    assertEquals(second.toString(), cache.get("key").toString());
+    cache.remove("key");
+    assertNull(cache.get("key"));
+  }
+
+  @Test
+  public void testReopen() throws Exception {
+    List<String> expected = new ArrayList<>();
+    for (int i = 0; i < 20000; i++) {
+      expected.add(putKey(Integer.toString(i), cache, "out/" + i).toString());
+    }
+    cache.remove("7");
+    cache.save();
+
+    MappedActionCache reopened = newCache();
+    for (int i = 0; i < 20000; i++) {
+      if (i == 7) {
+        assertNull(reopened.get("7"));
+      } else {
+        assertEquals(expected.get(i), reopened.get(Integer.toString(i)).toString());
+      }
+    }
+    // New records must not overwrite the old ones.
+    putKey("new", reopened);
+    assertEquals(expected.get(19999), reopened.get("19999").toString());
+  }
+
+  @Test
+  public void testCompaction() throws Exception {
+    for (int round = 0; round < 5; round++) {
+      for (int i = 0; i < 300; i++) {
+        putKey(Integer.toString(i), cache, "round" + round);
+      }
+    }
+    long sizeBefore = cache.save();
+    cache.compact();
+    assertThat(cache.save()).isLessThan(sizeBefore);
+    for (int i = 0; i < 300; i++) {
+      assertEquals(expectedEntry(Integer.toString(i), "round4").toString(),
+          cache.get(Integer.toString(i)).toString());
+    }
+
+    MappedActionCache reopened = newCache();
+    assertEquals(expectedEntry("42", "round4").toString(), reopened.get("42").toString());
+    putKey("42", reopened, "after");
+    reopened.compact();
+    assertEquals(expectedEntry("42", "after").toString(), reopened.get("42").toString());
+  }
+
+  @Test
+  public void testConcurrentPutAndGet() throws Exception {
+    ExecutorService executor = Executors.newFixedThreadPool(8);
+    List<Future<Void>> futures = new ArrayList<>();
+    for (int t = 0; t < 8; t++) {
+      final int thread = t;
+      futures.add(executor.submit(new Callable<Void>() {
+        @Override
+        public Void call() {
+          for (int i = 0; i < 3000; i++) {
+            String key = thread + "/" + i;
+            putKey(key, cache, key);
+            assertNotNull(cache.get(key));
+          }
+          return null;
+        }
+      }));
+    }
+    for (Future<Void> future : futures) {
+      future.get();
+    }
+    executor.shutdown();
+    for (int t = 0; t < 8; t++) {
+      for (int i = 0; i < 3000; i++) {
+        String key = t + "/" + i;
+        assertEquals(expectedEntry(key, key).toString(), cache.get(key).toString());
+      }
+    }
+  }
+
+  @Test
+  public void testCompactionDuringPutAndRemove() throws Exception {
+    for (int i = 0; i < 3000; i++) {
+      putKey("old/" + i, cache, "old");
+    }
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    List<Future<Void>> futures = new ArrayList<>();
+    for (int t = 0; t < 4; t++) {
+      final int thread = t;
+      futures.add(executor.submit(new Callable<Void>() {
+        @Override
+        public Void call() {
+          for (int i = 0; i < 3000; i++) {
+            String key = thread + "/" + i;
+            putKey(key, cache, "first");
+            if (i % 3 == 0) {
+              cache.remove(key);
+            } else if (i % 3 == 1) {
+              putKey(key, cache, "second");
+            }
+            if (i % 4 == thread) {
+              // Every old entry is removed by exactly one thread.
+              cache.remove("old/" + i);
+            }
+          }
+          return null;
+        }
+      }));
+    }
+    executor.shutdown();
+    while (!executor.isTerminated()) {
+      cache.compact();
+    }
+    for (Future<Void> future : futures) {
+      future.get();
+    }
+    cache.compact();
+    cache.save();
+    for (MappedActionCache current : new MappedActionCache[] {cache, newCache()}) {
+      for (int t = 0; t < 4; t++) {
+        for (int i = 0; i < 3000; i++) {
+          String key = t + "/" + i;
+          if (i % 3 == 0) {
+            assertNull(current.get(key));
+          } else {
+            assertEquals(expectedEntry(key, i % 3 == 1 ? "second" : "first").toString(),
+                current.get(key).toString());
+          }
+        }
+      }
+      for (int i = 0; i < 3000; i++) {
+        assertNull(current.get("old/" + i));
+      }
+    }
+  }
+
+  @Test
+  public void testCorruptRecord() throws Exception {
+    putKey("key", cache, "out");
+    for (int i = 0; i < 500; i++) {
+      putKey(Integer.toString(i), cache, "out/" + i);
+    }
+    cache.save();
+    // Make the first record claim to extend past the end of its chunk.
+    try (RandomAccessFile log =
+        new RandomAccessFile(MappedActionCache.logFile(cacheRoot).getPathFile(), "rw")) {
+      log.seek(16);
+      log.writeInt(CHUNK_SIZE);
+    }
+
+    MappedActionCache reopened = newCache();
+    assertSame(MappedActionCache.CORRUPTED, reopened.get("key"));
+    assertEquals(expectedEntry("42", "out/42").toString(), reopened.get("42").toString());
+    reopened.compact();
+    assertNull(reopened.get("key"));
+    assertEquals(expectedEntry("42", "out/42").toString(), reopened.get("42").toString());
+  }
+
+  private static ActionCache.Entry expectedEntry(String key, String... files) {
+    ActionCache.Entry entry = new ActionCache.Entry(key);
+    for (String file : files) {
+      entry.addFile(new PathFragment(file), Metadata.CONSTANT_METADATA);
+    }
+    entry.getFileDigest();
+    return entry;
+  }
+
+  private static ActionCache.Entry putKey(String key, ActionCache ac, String... files) {
+    ActionCache.Entry entry = expectedEntry(key, files);
+    ac.put(key, entry);
+    return entry;
+  }
+}
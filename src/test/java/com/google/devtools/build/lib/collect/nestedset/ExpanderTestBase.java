@@ -25,6 +25,7 @@ import junit.framework.TestCase;
 
 import org.junit.Test;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
@@ -253,6 +254,18 @@ public abstract class ExpanderTestBase extends TestCase  {
     assertEquals(expected, Lists.newArrayList(set.toCollection()));
     assertEquals(expected, Lists.newArrayList(set.toList()));
     assertEquals(expected, Lists.newArrayList(set.toSet()));
+    assertEquals(expected, visitElements(set));
+  }
+
+  private static List<String> visitElements(NestedSet<String> set) {
+    final List<String> elements = new ArrayList<>();
+    set.forEachElement(new NestedSetVisitor.Receiver<String>() {
+      @Override
+      public void accept(String element) {
+        elements.add(element);
+      }
+    });
+    return elements;
   }
 
   protected final void assertCollectionsEqual(
@@ -0,0 +1,76 @@
+// Copyright 2015 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.collect.nestedset;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+
+import com.google.common.base.Function;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.Arrays;
+
+/**
+ * Tests for {@link NestedSetFingerprintCache}.
+ */
+@RunWith(JUnit4.class)
+public class NestedSetFingerprintCacheTest {
+
+  private final NestedSetFingerprintCache<String> cache =
+      new NestedSetFingerprintCache<>(new Function<String, String>() {
+        @Override
+        public String apply(String input) {
+          return input.startsWith("skip") ? null : input;
+        }
+      });
+
+  private static NestedSet<String> set(Order order, String direct, NestedSet<String> transitive) {
+    return new NestedSetBuilder<String>(order).add(direct).addTransitive(transitive).build();
+  }
+
+  @Test
+  public void equalStructuresHaveEqualDigests() {
+    NestedSet<String> set = set(Order.STABLE_ORDER, "a", NestedSetBuilder.create(
+        Order.STABLE_ORDER, "b", "c"));
+    NestedSet<String> equalSet = set(Order.STABLE_ORDER, "a", NestedSetBuilder.create(
+        Order.STABLE_ORDER, "b", "c"));
+    assertArrayEquals(cache.fingerprint(set), cache.fingerprint(equalSet));
+    // Digests of sets with transitive sets are memoized.
+    assertSame(cache.fingerprint(set), cache.fingerprint(set));
+  }
+
+  @Test
+  public void differentStructuresHaveDifferentDigests() {
+    NestedSet<String> bc = NestedSetBuilder.create(Order.STABLE_ORDER, "b", "c");
+    byte[] digest = cache.fingerprint(set(Order.STABLE_ORDER, "a", bc));
+    assertFalse(Arrays.equals(digest, cache.fingerprint(set(Order.LINK_ORDER, "a", bc))));
+    assertFalse(Arrays.equals(digest, cache.fingerprint(set(Order.STABLE_ORDER, "b", bc))));
+    assertFalse(Arrays.equals(digest, cache.fingerprint(set(Order.STABLE_ORDER, "a",
+        NestedSetBuilder.create(Order.STABLE_ORDER, "c", "b")))));
+    // Equal expansions, different structures.
+    assertFalse(Arrays.equals(digest, cache.fingerprint(
+        NestedSetBuilder.create(Order.STABLE_ORDER, "b", "c", "a"))));
+  }
+
+  @Test
+  public void unmappedElementsAreLeftOut() {
+    assertArrayEquals(
+        cache.fingerprint(NestedSetBuilder.create(Order.STABLE_ORDER, "a", "b")),
+        cache.fingerprint(NestedSetBuilder.create(Order.STABLE_ORDER, "a", "skip", "b")));
+  }
+}
@@ -16,6 +16,7 @@ package com.google.devtools.build.lib.collect.nestedset;
 import static com.google.common.truth.Truth.assertThat;
 
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Lists;
 import com.google.common.testing.EqualsTester;
 
@@ -25,7 +26,9 @@ import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 
 /**
  * Tests for {@link com.google.devtools.build.lib.collect.nestedset.NestedSet}.
@@ -227,6 +230,84 @@ public class NestedSetImplTest extends TestCase {
     }
   }
 
+  @Test
+  public void interning() {
+    NestedSetBuilder.setInterning(true);
+    try {
+      NestedSet<String> b = nestedSetBuilder("b").build();
+      NestedSet<String> c = nestedSetBuilder("c").build();
+      assertSame(b, nestedSetBuilder("b").build());
+
+      NestedSet<String> abc = nestedSetBuilder("a").addTransitive(b).addTransitive(c).build();
+      assertSame(abc, nestedSetBuilder("a").addTransitive(b).addTransitive(c).build());
+      assertNotSame(abc, nestedSetBuilder("a").addTransitive(c).addTransitive(b).build());
+      assertNotSame(abc, new NestedSetBuilder<String>(Order.LINK_ORDER)
+          .add("a").addTransitive(b).addTransitive(c).build());
+      // Transitive sets are compared by identity, which is content for interned sets.
+      assertSame(abc, nestedSetBuilder("a").addTransitive(nestedSetBuilder("b").build())
+          .addTransitive(c).build());
+      assertEquals(ImmutableList.of("b", "c", "a"), abc.toList());
+    } finally {
+      NestedSetBuilder.setInterning(false);
+    }
+    assertNotSame(nestedSetBuilder("b").build(), nestedSetBuilder("b").build());
+  }
+
+  @Test
+  public void expansionCache() {
+    NestedSetBuilder<Integer> builder = NestedSetBuilder.linkOrder();
+    for (int i = 0; i < NestedSetExpansionCache.MIN_CACHED_SIZE; i++) {
+      builder.add(i);
+    }
+    NestedSet<Integer> large = builder.addTransitive(NestedSetBuilder.create(
+        Order.LINK_ORDER, NestedSetExpansionCache.MIN_CACHED_SIZE)).build();
+    NestedSet<Integer> small = createNestedSet(Order.LINK_ORDER, 2, 2, Order.LINK_ORDER);
+    assertNotSame(large.toList(), large.toList());
+
+    NestedSetBuilder.setExpansionCacheSize(1000);
+    try {
+      List<Integer> expansion = large.toList();
+      assertSame(expansion, large.toList());
+      assertEquals(NestedSetExpansionCache.MIN_CACHED_SIZE + 1, expansion.size());
+      final List<Integer> visited = new ArrayList<>();
+      large.forEachElement(new NestedSetVisitor.Receiver<Integer>() {
+        @Override
+        public void accept(Integer element) {
+          visited.add(element);
+        }
+      });
+      assertEquals(expansion, visited);
+      assertEquals(ImmutableSet.copyOf(expansion), large.toSet());
+      // Small expansions are cheap to recompute and are not cached.
+      assertNotSame(small.toList(), small.toList());
+    } finally {
+      NestedSetBuilder.setExpansionCacheSize(0);
+    }
+    assertNotSame(large.toList(), large.toList());
+  }
+
+  @Test
+  public void forEachElementDoesNotHoldTheLock() {
+    final NestedSet<Integer> set =
+        createNestedSet(Order.STABLE_ORDER, 3, 2, Order.STABLE_ORDER);
+    assertTrue(set instanceof MemoizedUniquefierNestedSet);
+    final List<Integer> visited = new ArrayList<>();
+    NestedSetVisitor.Receiver<Integer> receiver = new NestedSetVisitor.Receiver<Integer>() {
+      @Override
+      public void accept(Integer element) {
+        assertFalse(Thread.holdsLock(set));
+        visited.add(element);
+      }
+    };
+    // The first expansion records the memo, the second one replays it.
+    set.forEachElement(receiver);
+    List<Integer> first = ImmutableList.copyOf(visited);
+    visited.clear();
+    set.forEachElement(receiver);
+    assertEquals(first, visited);
+    assertEquals(set.toList(), first);
+  }
+
   private NestedSet<Integer> createNestedSet(Order order, int numDirects, int numTransitives,
       Order transitiveOrder) {
     NestedSetBuilder<Integer> builder = new NestedSetBuilder<>(order);
@@ -0,0 +1,223 @@
+// Copyright 2015 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.collect.nestedset.benchmark;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.devtools.build.lib.collect.nestedset.NestedSet;
+import com.google.devtools.build.lib.collect.nestedset.NestedSetBuilder;
+import com.google.devtools.build.lib.collect.nestedset.NestedSetVisitor;
+import com.google.devtools.common.options.OptionsParser;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Measures the memory retained by the nested sets of a synthesized dependency graph, and the
+ * time it takes to build and expand them, with and without interning of nested sets and caching
+ * of their expansions. Sets are expanded both into lists and by visiting their elements.
+ *
+ * <p>The graph consists of layers of targets. Each target depends on a few targets of the layer
+ * below, chosen from a limited number of patterns, so that many targets have the same
+ * dependencies, as is common for deep C++ and Java trees. Each target builds the set of its
+ * transitive files and the set of its dependencies' files plus some toolchain files; the latter
+ * is equal for targets with the same dependencies.
+ *
+ * <p>Run it with a fixed heap size so that results are comparable between runs:
+ *
+ * <pre>
+ * bazel run //src/test/java:nestedset_benchmark --jvm_flags="-Xms4g -Xmx4g" -- --targets=100000
+ * </pre>
+ */
+public final class NestedSetBenchmark {
+
+  private final NestedSetBenchmarkOptions options;
+  private final ImmutableList<String> toolchain;
+
+  private NestedSetBenchmark(NestedSetBenchmarkOptions options) {
+    this.options = options;
+    ImmutableList.Builder<String> toolchain = ImmutableList.builder();
+    for (int i = 0; i < options.toolchainFiles; i++) {
+      toolchain.add("toolchain/lib" + i + ".a");
+    }
+    this.toolchain = toolchain.build();
+  }
+
+  public static void main(String[] args) {
+    OptionsParser parser = OptionsParser.newOptionsParser(NestedSetBenchmarkOptions.class);
+    parser.parseAndExitUponError(args);
+    NestedSetBenchmarkOptions options = parser.getOptions(NestedSetBenchmarkOptions.class);
+    Preconditions.checkArgument(options.targets >= options.width && options.width > 0,
+        "--targets must be at least --width");
+    Preconditions.checkArgument(options.deps <= options.width, "--deps must be at most --width");
+
+    NestedSetBenchmark benchmark = new NestedSetBenchmark(options);
+    System.out.printf("Graph: %d targets, %d per layer, %d deps each, %d patterns per layer%n",
+        options.targets, options.width, options.deps, options.depPatterns);
+    benchmark.run(false, 0);
+    benchmark.run(true, 0);
+    if (options.expansionCacheSize > 0) {
+      benchmark.run(true, options.expansionCacheSize);
+    }
+    NestedSetBuilder.setInterning(false);
+    NestedSetBuilder.setExpansionCacheSize(0);
+  }
+
+  /** The nested sets a synthesized target builds. */
+  private static final class Target {
+    final NestedSet<String> files;
+    final NestedSet<String> depsClasspath;
+
+    Target(NestedSet<String> files, NestedSet<String> depsClasspath) {
+      this.files = files;
+      this.depsClasspath = depsClasspath;
+    }
+  }
+
+  private List<Target> buildGraph() {
+    Random random = new Random(0);
+    List<Target> previous = null;
+    List<Target> targets = new ArrayList<>(options.targets);
+    for (int layer = 0; layer < options.targets / options.width; layer++) {
+      int[][] patterns = new int[options.depPatterns][];
+      for (int p = 0; p < patterns.length; p++) {
+        patterns[p] = pickDeps(random);
+      }
+      List<Target> current = new ArrayList<>(options.width);
+      for (int i = 0; i < options.width; i++) {
+        NestedSetBuilder<String> files = NestedSetBuilder.stableOrder();
+        files.add(layer + "/" + i + ".o");
+        NestedSetBuilder<String> depsClasspath = NestedSetBuilder.stableOrder();
+        depsClasspath.addAll(toolchain);
+        if (previous != null) {
+          for (int dep : patterns[i % patterns.length]) {
+            files.addTransitive(previous.get(dep).files);
+            depsClasspath.addTransitive(previous.get(dep).files);
+          }
+        }
+        current.add(new Target(files.build(), depsClasspath.build()));
+      }
+      targets.addAll(current);
+      previous = current;
+    }
+    return targets;
+  }
+
+  private int[] pickDeps(Random random) {
+    int[] deps = new int[options.deps];
+    for (int i = 0; i < deps.length; i++) {
+      deps[i] = random.nextInt(options.width);
+    }
+    return deps;
+  }
+
+  private void run(boolean interning, long expansionCacheSize) {
+    String mode = (interning ? "interning" : "no interning")
+        + (expansionCacheSize > 0 ? " + cache" : "");
+    NestedSetBuilder.setInterning(interning);
+    NestedSetBuilder.setExpansionCacheSize(expansionCacheSize);
+    long before = usedMemory();
+    List<Target> graph = buildGraph();
+    long after = usedMemory();
+    System.out.printf("%-40s %.1f MB retained, %d bytes/target%n", mode + ", memory:",
+        (after - before) / 1e6, (after - before) / graph.size());
+
+    Stats build = new Stats(mode + ", build");
+    Stats expand = new Stats(mode + ", expand");
+    Stats visit = new Stats(mode + ", visit");
+    ElementCounter counter = new ElementCounter();
+    for (int i = 0; i < options.warmupIterations + options.iterations; i++) {
+      boolean measured = i >= options.warmupIterations;
+      // Drops the sets of the previous iteration, whose expansions are memoized, from the
+      // interner and the expansion cache.
+      NestedSetBuilder.setInterning(interning);
+      NestedSetBuilder.setExpansionCacheSize(expansionCacheSize);
+      long start = System.nanoTime();
+      List<Target> targets = buildGraph();
+      build.add(measured, System.nanoTime() - start, targets.size());
+
+      List<Target> top = targets.subList(
+          targets.size() - Math.min(options.expansions, targets.size()), targets.size());
+      start = System.nanoTime();
+      long elements = 0;
+      for (Target target : top) {
+        elements += target.files.toCollection().size();
+        elements += target.depsClasspath.toCollection().size();
+      }
+      expand.add(measured, System.nanoTime() - start, elements);
+
+      start = System.nanoTime();
+      counter.count = 0;
+      for (Target target : top) {
+        target.files.forEachElement(counter);
+        target.depsClasspath.forEachElement(counter);
+      }
+      visit.add(measured, System.nanoTime() - start, counter.count);
+    }
+    build.print("targets");
+    expand.print("elements");
+    visit.print("elements");
+  }
+
+  private static final class ElementCounter implements NestedSetVisitor.Receiver<String> {
+    long count;
+
+    @Override
+    public void accept(String element) {
+      count++;
+    }
+  }
+
+  private static long usedMemory() {
+    Runtime runtime = Runtime.getRuntime();
+    long used = Long.MAX_VALUE;
+    // A single collection is not guaranteed to free everything that is unreachable.
+    for (int i = 0; i < 5; i++) {
+      System.gc();
+      used = Math.min(used, runtime.totalMemory() - runtime.freeMemory());
+    }
+    return used;
+  }
+
+  /** Wall times of the measured iterations of a scenario. */
+  private final class Stats {
+    private final String name;
+    private final long[] nanos = new long[options.iterations];
+    private int count;
+    private long items;
+
+    Stats(String name) {
+      this.name = name;
+    }
+
+    void add(boolean measured, long elapsedNanos, long itemCount) {
+      if (measured) {
+        nanos[count++] = elapsedNanos;
+        items = itemCount;
+      }
+    }
+
+    void print(String itemName) {
+      if (count == 0) {
+        return;
+      }
+      long[] sorted = Arrays.copyOf(nanos, count);
+      Arrays.sort(sorted);
+      System.out.printf("%-40s min %8.2f ms, median %8.2f ms, %d %s%n", name + ":",
+          sorted[0] / 1e6, sorted[count / 2] / 1e6, items, itemName);
+    }
+  }
+}
@@ -0,0 +1,90 @@
+// Copyright 2015 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.collect.nestedset.benchmark;
+
+import com.google.devtools.common.options.Option;
+import com.google.devtools.common.options.OptionsBase;
+
+/**
+ * Command-line options for the nested set benchmark.
+ */
+public class NestedSetBenchmarkOptions extends OptionsBase {
+
+  @Option(
+      name = "targets",
+      help = "Number of targets in the synthesized dependency graph.",
+      defaultValue = "100000"
+  )
+  public int targets;
+
+  @Option(
+      name = "width",
+      help = "Number of targets per layer. Each target depends on --deps targets of the layer "
+          + "below.",
+      defaultValue = "1000"
+  )
+  public int width;
+
+  @Option(
+      name = "deps",
+      help = "Number of direct dependencies per target.",
+      defaultValue = "3"
+  )
+  public int deps;
+
+  @Option(
+      name = "dep_patterns",
+      help = "Number of distinct sets of dependencies targets of a layer choose from. Targets with "
+          + "the same dependencies build equal nested sets.",
+      defaultValue = "50"
+  )
+  public int depPatterns;
+
+  @Option(
+      name = "toolchain_files",
+      help = "Number of files every target adds to its link inputs, as a toolchain would.",
+      defaultValue = "20"
+  )
+  public int toolchainFiles;
+
+  @Option(
+      name = "expansions",
+      help = "Number of targets of the top layer whose nested sets are expanded per iteration of "
+          + "the expansion measurement.",
+      defaultValue = "200"
+  )
+  public int expansions;
+
+  @Option(
+      name = "expansion_cache_size",
+      help = "Maximum number of elements in the cached expansions of the scenario that caches "
+          + "them. 0 skips that scenario.",
+      defaultValue = "10000000"
+  )
+  public long expansionCacheSize;
+
+  @Option(
+      name = "warmup_iterations",
+      help = "Iterations to run before measuring, so that the JIT compiler settles.",
+      defaultValue = "3"
+  )
+  public int warmupIterations;
+
+  @Option(
+      name = "iterations",
+      help = "Measured iterations.",
+      defaultValue = "5"
+  )
+  public int iterations;
+}
@@ -0,0 +1,206 @@
+// Copyright 2015 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.packages.benchmark;
+
+import com.google.common.base.Joiner;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.devtools.build.lib.analysis.ConfiguredRuleClassProvider;
+import com.google.devtools.build.lib.cmdline.PackageIdentifier;
+import com.google.devtools.build.lib.events.Event;
+import com.google.devtools.build.lib.events.EventKind;
+import com.google.devtools.build.lib.events.StoredEventHandler;
+import com.google.devtools.build.lib.packages.CachingPackageLocator;
+import com.google.devtools.build.lib.packages.ConstantRuleVisibility;
+import com.google.devtools.build.lib.packages.ExternalPackage;
+import com.google.devtools.build.lib.packages.Package;
+import com.google.devtools.build.lib.packages.PackageFactory;
+import com.google.devtools.build.lib.packages.Preprocessor;
+import com.google.devtools.build.lib.syntax.BuildFileAST;
+import com.google.devtools.build.lib.syntax.Label;
+import com.google.devtools.build.lib.syntax.ParserInputSource;
+import com.google.devtools.build.lib.syntax.SkylarkEnvironment;
+import com.google.devtools.build.lib.syntax.Statement;
+import com.google.devtools.build.lib.testutil.TestRuleClassProvider;
+import com.google.devtools.build.lib.vfs.FileSystemUtils;
+import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.build.lib.vfs.PathFragment;
+import com.google.devtools.build.lib.vfs.inmemoryfs.InMemoryFileSystem;
+import com.google.devtools.common.options.OptionsParser;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Measures the loading phase of packages whose BUILD files consist of calls to Skylark macros,
+ * which loop, build strings, lists and dicts and call helper functions before they instantiate
+ * native rules. Evaluating the macros dominates; lexing and parsing are included, but the BUILD
+ * files are short.
+ *
+ * <pre>
+ * bazel run //src/test/java:loading_benchmark -- --packages=500
+ * </pre>
+ */
+public final class LoadingBenchmark {
+
+  private static final PathFragment MACROS = new PathFragment("/macros/defs.bzl");
+
+  private static final String MACROS_CONTENT = Joiner.on('\n').join(
+      "def _names(name, suffixes):",
+      "  return [name + '_' + suffix for suffix in suffixes]",
+      "",
+      "def _merge(base, extra):",
+      "  result = {}",
+      "  for key in base:",
+      "    result[key] = base[key]",
+      "  for key in extra:",
+      "    result[key] = extra[key]",
+      "  return result",
+      "",
+      "def _command(name, srcs, flags):",
+      "  parts = []",
+      "  for flag in flags:",
+      "    if flag.startswith('-D'):",
+      "      parts += ['--define=' + flag[2:]]",
+      "    else:",
+      "      parts += [flag]",
+      "  return 'cat %s > $@ && echo %s %s' % (' '.join(srcs), ' '.join(parts), name)",
+      "",
+      "def _variant_flags(variant, flags):",
+      "  result = list(flags)",
+      "  if variant == 'opt':",
+      "    result += ['-O2', '-DNDEBUG']",
+      "  elif variant == 'dbg':",
+      "    result += ['-g']",
+      "  return result + ['-DVARIANT=' + variant]",
+      "",
+      "def component(name, srcs, deps = [], flags = [], variants = ['opt', 'dbg', 'fastbuild']):",
+      "  options = _merge({'visibility': ['//visibility:public']}, {'tags': ['component']})",
+      "  for variant in variants:",
+      "    native.genrule(",
+      "        name = name + '_' + variant,",
+      "        srcs = srcs,",
+      "        outs = [name + '_' + variant + '.out'],",
+      "        cmd = _command(name, srcs, _variant_flags(variant, flags)),",
+      "        visibility = options['visibility'],",
+      "        tags = options['tags'],",
+      "    )",
+      "  native.filegroup(name = name, srcs = _names(name, variants) + deps)",
+      "");
+
+  private final LoadingBenchmarkOptions options;
+  private final ConfiguredRuleClassProvider ruleClassProvider =
+      TestRuleClassProvider.getRuleClassProvider();
+  private final PackageFactory packageFactory = new PackageFactory(ruleClassProvider);
+  private final Path workspace = new InMemoryFileSystem().getPath("/workspace");
+  private final List<Path> buildFiles = new ArrayList<>();
+  private final CachingPackageLocator locator = new CachingPackageLocator() {
+    @Override
+    public Path getBuildFileForPackage(PackageIdentifier packageId) {
+      return workspace.getRelative(packageId.getPackageFragment()).getChild("BUILD");
+    }
+  };
+
+  private LoadingBenchmark(LoadingBenchmarkOptions options) throws IOException {
+    this.options = options;
+    FileSystemUtils.writeIsoLatin1(workspace.getRelative(MACROS.relativeTo("/")), MACROS_CONTENT);
+    for (int p = 0; p < options.packages; p++) {
+      StringBuilder content = new StringBuilder("load('/macros/defs', 'component')\n");
+      for (int c = 0; c < options.macroCalls; c++) {
+        content.append(String.format("component(name = 'c%d', srcs = ['a%d.txt', 'b%d.txt'], "
+            + "deps = [':c%d'], flags = ['-DINDEX=%d', '-Wall'])\n", c, c, c, Math.max(0, c - 1),
+            c));
+      }
+      Path buildFile = workspace.getRelative("pkg" + p + "/BUILD");
+      FileSystemUtils.createDirectoryAndParents(buildFile.getParentDirectory());
+      FileSystemUtils.writeIsoLatin1(buildFile, content.toString());
+      buildFiles.add(buildFile);
+    }
+  }
+
+  public static void main(String[] args) throws Exception {
+    OptionsParser parser = OptionsParser.newOptionsParser(LoadingBenchmarkOptions.class);
+    parser.parseAndExitUponError(args);
+    LoadingBenchmarkOptions options = parser.getOptions(LoadingBenchmarkOptions.class);
+    Preconditions.checkArgument(options.packages > 0 && options.macroCalls > 0
+        && options.iterations > 0, "All options must be positive");
+
+    LoadingBenchmark benchmark = new LoadingBenchmark(options);
+    // Warm up the JIT.
+    benchmark.loadAll();
+    long best = Long.MAX_VALUE;
+    int targets = 0;
+    for (int i = 0; i < options.iterations; i++) {
+      long start = System.nanoTime();
+      targets = benchmark.loadAll();
+      best = Math.min(best, System.nanoTime() - start);
+    }
+    System.out.printf("%d packages with %d macro calls each, %d targets: %d ms, %.1f us per "
+        + "macro call%n", options.packages, options.macroCalls, targets, best / 1000000,
+        best / 1e3 / (options.packages * options.macroCalls));
+  }
+
+  /** Loads all packages and returns the number of targets in them. */
+  private int loadAll() throws Exception {
+    Map<PathFragment, SkylarkEnvironment> imports = ImmutableMap.of(MACROS, loadMacros());
+    int targets = 0;
+    for (Path buildFile : buildFiles) {
+      targets += loadPackage(buildFile, imports).getTargets().size();
+    }
+    return targets;
+  }
+
+  private SkylarkEnvironment loadMacros() throws Exception {
+    StoredEventHandler eventHandler = new StoredEventHandler();
+    BuildFileAST ast = BuildFileAST.parseSkylarkFile(
+        workspace.getRelative(MACROS.relativeTo("/")), eventHandler, locator,
+        ruleClassProvider.getSkylarkValidationEnvironment().clone());
+    SkylarkEnvironment env = ruleClassProvider.createSkylarkRuleClassEnvironment(
+        eventHandler, ast.getContentHashCode());
+    env.update("native", packageFactory.getNativeModule());
+    ast.exec(env, eventHandler);
+    checkNoErrors(MACROS.getPathString(), eventHandler.getEvents());
+    return env;
+  }
+
+  private Package loadPackage(Path buildFile, Map<PathFragment, SkylarkEnvironment> imports)
+      throws Exception {
+    Path directory = buildFile.getParentDirectory();
+    PackageIdentifier packageId =
+        PackageIdentifier.createInDefaultRepo(directory.relativeTo(workspace));
+    Package pkg = packageFactory.createPackageFromPreprocessingResult(
+        new ExternalPackage.Builder(workspace.getRelative("WORKSPACE")).build(),
+        packageId,
+        buildFile,
+        Preprocessor.Result.noPreprocessing(ParserInputSource.create(buildFile)),
+        ImmutableList.<Event>of(),
+        ImmutableList.<Statement>of(),
+        imports,
+        ImmutableList.<Label>of(),
+        locator,
+        ConstantRuleVisibility.PUBLIC,
+        packageFactory.createLegacyGlobber(directory, packageId, locator)).build();
+    checkNoErrors(buildFile.getPathString(), pkg.getEvents());
+    return pkg;
+  }
+
+  private static void checkNoErrors(String file, Iterable<Event> events) {
+    for (Event event : events) {
+      Preconditions.checkState(event.getKind() != EventKind.ERROR, "%s: %s", file, event);
+    }
+  }
+}
@@ -0,0 +1,44 @@
+// Copyright 2015 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.packages.benchmark;
+
+import com.google.devtools.common.options.Option;
+import com.google.devtools.common.options.OptionsBase;
+
+/**
+ * Command-line options for the loading benchmark.
+ */
+public class LoadingBenchmarkOptions extends OptionsBase {
+
+  @Option(
+      name = "packages",
+      help = "Number of BUILD files to load.",
+      defaultValue = "200"
+  )
+  public int packages;
+
+  @Option(
+      name = "macro_calls",
+      help = "Number of macro calls in each BUILD file.",
+      defaultValue = "20"
+  )
+  public int macroCalls;
+
+  @Option(
+      name = "iterations",
+      help = "Measured iterations; the fastest one is reported.",
+      defaultValue = "5"
+  )
+  public int iterations;
+}
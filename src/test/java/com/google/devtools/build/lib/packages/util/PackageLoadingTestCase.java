@@ -70,27 +70,30 @@ public abstract class PackageLoadingTestCase extends FoundationTestCase {
     super.setUp();
 
     ruleClassProvider = TestRuleClassProvider.getRuleClassProvider();
-    skyframeExecutor =
-        SequencedSkyframeExecutor.create(
-            reporter,
-            new PackageFactory(ruleClassProvider, getEnvironmentExtensions()),
-            new TimestampGranularityMonitor(BlazeClock.instance()),
-            new BlazeDirectories(outputBase, outputBase, rootDirectory),
-            null, /* workspaceStatusActionFactory */
-            ruleClassProvider.getBuildInfoFactories(),
-            ImmutableSet.<Path>of(),
-            ImmutableList.<DiffAwareness.Factory>of(),
-            Predicates.<PathFragment>alwaysFalse(),
-            Preprocessor.Factory.Supplier.NullSupplier.INSTANCE,
-            ImmutableMap.<SkyFunctionName, SkyFunction>of(),
-            ImmutableList.<PrecomputedValue.Injected>of(),
-            ImmutableList.<SkyValueDirtinessChecker>of());
+    skyframeExecutor = createSkyframeExecutor();
     skyframeExecutor.preparePackageLoading(
         new PathPackageLocator(rootDirectory), ConstantRuleVisibility.PUBLIC, true, 7, "",
         UUID.randomUUID());
     setUpSkyframe(parsePackageCacheOptions());
   }
 
+  private SkyframeExecutor createSkyframeExecutor() {
+    return SequencedSkyframeExecutor.create(
+        reporter,
+        new PackageFactory(ruleClassProvider, getEnvironmentExtensions()),
+        new TimestampGranularityMonitor(BlazeClock.instance()),
+        new BlazeDirectories(outputBase, outputBase, rootDirectory),
+        null, /* workspaceStatusActionFactory */
+        ruleClassProvider.getBuildInfoFactories(),
+        ImmutableSet.<Path>of(),
+        ImmutableList.<DiffAwareness.Factory>of(),
+        Predicates.<PathFragment>alwaysFalse(),
+        Preprocessor.Factory.Supplier.NullSupplier.INSTANCE,
+        ImmutableMap.<SkyFunctionName, SkyFunction>of(),
+        ImmutableList.<PrecomputedValue.Injected>of(),
+        ImmutableList.<SkyValueDirtinessChecker>of());
+  }
+
   protected Iterable<EnvironmentExtension> getEnvironmentExtensions() {
     return ImmutableList.<EnvironmentExtension>of();
   }
@@ -103,6 +106,7 @@ public abstract class PackageLoadingTestCase extends FoundationTestCase {
         7, ruleClassProvider.getDefaultsPackageContent(),
         UUID.randomUUID());
     skyframeExecutor.setDeletedPackages(ImmutableSet.copyOf(packageCacheOptions.deletedPackages));
+    skyframeExecutor.setPersistentAstCacheEnabled(packageCacheOptions.persistentAstCache);
   }
 
   private PackageCacheOptions parsePackageCacheOptions(String... options) throws Exception {
@@ -116,6 +120,15 @@ public abstract class PackageLoadingTestCase extends FoundationTestCase {
     setUpSkyframe(parsePackageCacheOptions(options));
   }
 
+  /**
+   * Replaces the Skyframe executor by a new one with the given options, which only shares the
+   * file system and the output base with the old one, as after a server restart.
+   */
+  protected void restartSkyframeExecutor(String... options) throws Exception {
+    skyframeExecutor = createSkyframeExecutor();
+    setUpSkyframe(parsePackageCacheOptions(options));
+  }
+
   protected Target getTarget(String label)
       throws NoSuchPackageException, NoSuchTargetException,
              Label.SyntaxException, InterruptedException {
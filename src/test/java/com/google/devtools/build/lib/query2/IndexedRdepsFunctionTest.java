@@ -0,0 +1,138 @@
+// Copyright 2015 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.query2;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.devtools.build.lib.packages.Target;
+import com.google.devtools.build.lib.packages.util.PackageLoadingTestCase;
+import com.google.devtools.build.lib.pkgcache.PackageManager;
+import com.google.devtools.build.lib.pkgcache.PathPackageLocator;
+import com.google.devtools.build.lib.query2.engine.QueryEnvironment.QueryFunction;
+import com.google.devtools.build.lib.query2.engine.QueryEnvironment.Setting;
+import com.google.devtools.build.lib.query2.engine.QueryExpression;
+import com.google.devtools.build.lib.testutil.ManualClock;
+import com.google.devtools.build.lib.vfs.FileSystem;
+import com.google.devtools.build.lib.vfs.PathFragment;
+import com.google.devtools.build.lib.vfs.inmemoryfs.InMemoryFileSystem;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Tests that {@link IndexedRdepsFunction} agrees with the built-in "rdeps", both when it records
+ * a universe and when it answers from the index.
+ */
+public class IndexedRdepsFunctionTest extends PackageLoadingTestCase {
+
+  private final ManualClock clock = new ManualClock();
+  private PathPackageLocator locator;
+  private RdepsIndex index;
+
+  @Override
+  protected FileSystem createFileSystem() {
+    return new InMemoryFileSystem(clock);
+  }
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    scratch.file("a/BUILD", "filegroup(name = 'a', srcs = ['a.txt'])");
+    scratch.file("a/a.txt");
+    scratch.file("b/BUILD", "filegroup(name = 'b', srcs = ['//a'])");
+    scratch.file("c/BUILD", "filegroup(name = 'c', srcs = ['//b'])");
+    scratch.file("c/sub/BUILD", "filegroup(name = 'sub', srcs = ['//a:a.txt'])");
+    locator = getPackageManager().getPackagePath();
+    index = new RdepsIndex(outputBase.getChild("query_index"));
+  }
+
+  private Set<String> query(String query, Iterable<QueryFunction> functions) throws Exception {
+    PackageManager packageManager = getPackageManager();
+    AbstractBlazeQueryEnvironment<Target> env = AbstractBlazeQueryEnvironment.newQueryEnvironment(
+        packageManager.newTransitiveLoader(), getSkyframeExecutor(), packageManager,
+        packageManager.getTargetPatternEvaluator(), /*keepGoing=*/false,
+        /*orderedResults=*/false, ImmutableList.<String>of(), /*loadingPhaseThreads=*/1,
+        /*queryThreads=*/1, reporter, ImmutableSet.<Setting>of(), functions, locator);
+    Set<String> labels = new TreeSet<>();
+    for (Target target : env.evaluateQuery(QueryExpression.parse(query, env)).getResultSet()) {
+      labels.add(target.getLabel().toString());
+    }
+    return labels;
+  }
+
+  /**
+   * Runs the query with and without the index, twice with the index so that the second run can
+   * answer from it, and checks that all runs agree.
+   */
+  private void assertAgrees(String universe, String query) throws Exception {
+    List<QueryFunction> indexed =
+        ImmutableList.<QueryFunction>of(new IndexedRdepsFunction(index, locator));
+    Set<String> expected = query(query, ImmutableList.<QueryFunction>of());
+    assertEquals(expected, query(query, indexed));
+    assertTrue(index.isCurrent(RdepsIndex.universeKey(universe, 0, locator)));
+    assertEquals(expected, query(query, indexed));
+  }
+
+  private void filesModified(String... paths) throws Exception {
+    List<PathFragment> fragments = new ArrayList<>();
+    for (String path : paths) {
+      fragments.add(new PathFragment(path));
+    }
+    index.filesModified(rootDirectory, fragments);
+    invalidatePackages();
+  }
+
+  public void testAgreesWithBuiltinRdeps() throws Exception {
+    assertAgrees("//...", "rdeps(//..., //a)");
+    assertAgrees("//...", "rdeps(//..., //a:a.txt)");
+    assertAgrees("//...", "rdeps(//..., //a:a.txt, 1)");
+    assertAgrees("//c/...", "rdeps(//c/..., //a)");
+    assertAgrees("//c/...", "rdeps(//c/..., //a:a.txt, 0)");
+  }
+
+  public void testAgreesAfterBuildFileEdit() throws Exception {
+    assertAgrees("//...", "rdeps(//..., //a)");
+    clock.advanceMillis(1000);
+    scratch.overwriteFile("c/BUILD", "filegroup(name = 'c', srcs = ['//a'])");
+    filesModified("c/BUILD");
+    assertAgrees("//...", "rdeps(//..., //a, 1)");
+  }
+
+  public void testAgreesAfterPackageIsAdded() throws Exception {
+    assertAgrees("//...", "rdeps(//..., //a)");
+    clock.advanceMillis(1000);
+    scratch.file("d/BUILD", "filegroup(name = 'd', srcs = ['//c'])");
+    filesModified("d", "d/BUILD");
+    assertAgrees("//...", "rdeps(//..., //a)");
+  }
+
+  public void testAgreesAfterPackageIsRemoved() throws Exception {
+    assertAgrees("//c/...", "rdeps(//c/..., //a)");
+    clock.advanceMillis(1000);
+    scratch.deleteFile("c/sub/BUILD");
+    filesModified("c/sub/BUILD");
+    assertAgrees("//c/...", "rdeps(//c/..., //a)");
+  }
+
+  public void testIndexSurvivesRestart() throws Exception {
+    assertAgrees("//...", "rdeps(//..., //b)");
+    index = new RdepsIndex(outputBase.getChild("query_index"));
+    assertTrue(index.isCurrent(RdepsIndex.universeKey("//...", 0, locator)));
+    assertEquals(query("rdeps(//..., //a)", ImmutableList.<QueryFunction>of()),
+        query("rdeps(//..., //a)",
+            ImmutableList.<QueryFunction>of(new IndexedRdepsFunction(index, locator))));
+  }
+}
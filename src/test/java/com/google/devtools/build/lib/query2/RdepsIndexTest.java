@@ -0,0 +1,183 @@
+// Copyright 2015 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.query2;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.collect.ImmutableList;
+import com.google.devtools.build.lib.packages.Target;
+import com.google.devtools.build.lib.packages.util.PackageLoadingTestCase;
+import com.google.devtools.build.lib.pkgcache.PathPackageLocator;
+import com.google.devtools.build.lib.testutil.ManualClock;
+import com.google.devtools.build.lib.vfs.FileSystem;
+import com.google.devtools.build.lib.vfs.FileSystemUtils;
+import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.build.lib.vfs.PathFragment;
+import com.google.devtools.build.lib.vfs.inmemoryfs.InMemoryFileSystem;
+
+import java.io.DataOutputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Tests for {@link RdepsIndex}.
+ */
+public class RdepsIndexTest extends PackageLoadingTestCase {
+
+  private final ManualClock clock = new ManualClock();
+  private Path indexDirectory;
+  private PathPackageLocator locator;
+  private String universeKey;
+  private RdepsIndex index;
+
+  @Override
+  protected FileSystem createFileSystem() {
+    // Stamps are change times, so every edit has to happen at a new time.
+    return new InMemoryFileSystem(clock);
+  }
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    scratch.file("a/BUILD", "filegroup(name = 'a', srcs = ['a.txt'])");
+    scratch.file("a/a.txt");
+    scratch.file("b/BUILD", "filegroup(name = 'b', srcs = ['//a'])");
+    scratch.file("c/BUILD", "filegroup(name = 'c', srcs = ['//b'])");
+    indexDirectory = outputBase.getChild("query_index");
+    locator = new PathPackageLocator(rootDirectory);
+    universeKey = RdepsIndex.universeKey("//...", 0, locator);
+    index = new RdepsIndex(indexDirectory);
+    index.recordUniverse(universeKey, PathFragment.EMPTY_FRAGMENT, locator,
+        targetsOf("a", "b", "c"));
+  }
+
+  private List<Target> targetsOf(String... packages) throws Exception {
+    List<Target> targets = new ArrayList<>();
+    for (String pkg : packages) {
+      targets.addAll(getTarget("//" + pkg + ":BUILD").getPackage().getTargets());
+    }
+    return targets;
+  }
+
+  private Set<String> rdepsOfA() {
+    return index.getReverseDeps(universeKey, ImmutableList.of("//a:a"), Integer.MAX_VALUE, 0);
+  }
+
+  private void edit(String path, String... lines) throws Exception {
+    clock.advanceMillis(1000);
+    scratch.overwriteFile(path, lines);
+  }
+
+  private void filesModified(String... paths) {
+    List<PathFragment> fragments = new ArrayList<>();
+    for (String path : paths) {
+      fragments.add(new PathFragment(path));
+    }
+    index.filesModified(rootDirectory, fragments);
+  }
+
+  public void testReverseDeps() throws Exception {
+    assertTrue(index.isCurrent(universeKey));
+    assertThat(rdepsOfA()).containsExactly("//a:a", "//b:b", "//c:c");
+    assertThat(index.getReverseDeps(universeKey, ImmutableList.of("//a:a.txt"), 1, 0))
+        .containsExactly("//a:a.txt", "//a:a");
+    assertNull(index.getReverseDeps(
+        RdepsIndex.universeKey("//b/...", 0, locator), ImmutableList.of("//a:a"), 1, 0));
+  }
+
+  public void testSaveAndLoadRoundTrip() throws Exception {
+    Set<String> expected = rdepsOfA();
+    index.save();
+    index = new RdepsIndex(indexDirectory);
+    assertTrue(index.isCurrent(universeKey));
+    assertEquals(expected, rdepsOfA());
+  }
+
+  public void testFilesChangedWhileTheServerWasDownAreNoticedOnLoad() throws Exception {
+    index.save();
+    edit("a/BUILD", "filegroup(name = 'a', srcs = ['a.txt', 'more.txt'])");
+    index = new RdepsIndex(indexDirectory);
+    assertFalse(index.isCurrent(universeKey));
+  }
+
+  public void testCorruptIndexIsDiscarded() throws Exception {
+    index.save();
+    Path packagesFile = indexDirectory.getChild("packages");
+    byte[] contents = FileSystemUtils.readContent(packagesFile);
+    FileSystemUtils.writeContent(packagesFile, Arrays.copyOf(contents, contents.length / 2));
+    index = new RdepsIndex(indexDirectory);
+    assertFalse(index.isCurrent(universeKey));
+
+    FileSystemUtils.writeContentAsLatin1(packagesFile, "not an index");
+    index = new RdepsIndex(indexDirectory);
+    assertFalse(index.isCurrent(universeKey));
+  }
+
+  public void testIndexOfAnotherVersionIsDiscarded() throws Exception {
+    index.save();
+    Path packagesFile = indexDirectory.getChild("packages");
+    byte[] contents = FileSystemUtils.readContent(packagesFile);
+    try (OutputStream out = packagesFile.getOutputStream()) {
+      DataOutputStream data = new DataOutputStream(out);
+      // The header of a PersistentMap is a magic number followed by the version.
+      data.writeLong(0x20071105);
+      data.writeLong(0x7f);
+      data.write(contents, 16, contents.length - 16);
+      data.flush();
+    }
+    index = new RdepsIndex(indexDirectory);
+    assertFalse(index.isCurrent(universeKey));
+  }
+
+  public void testBuildFileEditInvalidatesItsPackage() throws Exception {
+    edit("a/BUILD", "filegroup(name = 'a', srcs = ['a.txt', 'more.txt'])");
+    // Checked entries are trusted until a change is reported.
+    assertTrue(index.isCurrent(universeKey));
+    filesModified("a/BUILD");
+    assertFalse(index.isCurrent(universeKey));
+    assertNull(rdepsOfA());
+  }
+
+  public void testRegularFileEditKeepsTheIndexCurrent() throws Exception {
+    clock.advanceMillis(1000);
+    // Written in place: replacing the file would change its directory, which globs may read.
+    FileSystemUtils.writeContentAsLatin1(scratch.resolve("a/a.txt"), "new contents");
+    filesModified("a/a.txt");
+    assertTrue(index.isCurrent(universeKey));
+    assertThat(rdepsOfA()).containsExactly("//a:a", "//b:b", "//c:c");
+  }
+
+  public void testAddedPackageInvalidatesTheUniverse() throws Exception {
+    clock.advanceMillis(1000);
+    scratch.file("d/BUILD", "filegroup(name = 'd', srcs = ['//a'])");
+    filesModified("d", "d/BUILD");
+    assertFalse(index.isCurrent(universeKey));
+  }
+
+  public void testRemovedPackageInvalidatesTheUniverse() throws Exception {
+    clock.advanceMillis(1000);
+    scratch.deleteFile("c/BUILD");
+    filesModified("c/BUILD");
+    assertFalse(index.isCurrent(universeKey));
+  }
+
+  public void testEverythingModifiedRechecksAllStamps() throws Exception {
+    edit("b/BUILD", "filegroup(name = 'b')");
+    index.everythingModified(rootDirectory);
+    assertFalse(index.isCurrent(universeKey));
+  }
+}
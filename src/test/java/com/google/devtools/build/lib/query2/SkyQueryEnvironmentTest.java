@@ -0,0 +1,140 @@
+// Copyright 2015 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.query2;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.devtools.build.lib.packages.Target;
+import com.google.devtools.build.lib.packages.util.PackageLoadingTestCase;
+import com.google.devtools.build.lib.pkgcache.PackageManager;
+import com.google.devtools.build.lib.query2.engine.Callback;
+import com.google.devtools.build.lib.query2.engine.QueryEnvironment.QueryFunction;
+import com.google.devtools.build.lib.query2.engine.QueryEnvironment.Setting;
+import com.google.devtools.build.lib.query2.engine.QueryExpression;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Tests for {@link SkyQueryEnvironment}: queries that look up the deps of more targets than fit
+ * in one batch give the same result with one query thread as with several, and can be
+ * interrupted.
+ */
+public class SkyQueryEnvironmentTest extends PackageLoadingTestCase {
+
+  // More than the batch size of SkyQueryEnvironment, so that a level has several batches.
+  private static final int WIDTH = 2500;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    scratch.file("a/BUILD", "filegroup(name = 'a', srcs = ['a.txt'])");
+    List<String> lines = new ArrayList<>();
+    StringBuilder all = new StringBuilder("filegroup(name = 'all', srcs = [");
+    for (int i = 0; i < WIDTH; i++) {
+      lines.add("filegroup(name = 't" + i + "', srcs = ['f" + i + ".txt'"
+          + (i % 7 == 0 ? ", '//a'" : "") + (i > 0 ? ", ':t" + (i / 2) + "'" : "") + "])");
+      all.append("':t").append(i).append("', ");
+    }
+    lines.add(all.append("])").toString());
+    scratch.file("wide/BUILD", lines.toArray(new String[0]));
+  }
+
+  private SkyQueryEnvironment newEnvironment(int queryThreads) {
+    PackageManager packageManager = getPackageManager();
+    AbstractBlazeQueryEnvironment<Target> env = AbstractBlazeQueryEnvironment.newQueryEnvironment(
+        packageManager.newTransitiveLoader(), getSkyframeExecutor(), packageManager,
+        packageManager.getTargetPatternEvaluator(), /*keepGoing=*/false,
+        /*orderedResults=*/false, ImmutableList.of("//..."), /*loadingPhaseThreads=*/1,
+        queryThreads, reporter, ImmutableSet.<Setting>of(), ImmutableList.<QueryFunction>of(),
+        packageManager.getPackagePath());
+    return (SkyQueryEnvironment) env;
+  }
+
+  private Set<String> query(String query, int queryThreads) throws Exception {
+    SkyQueryEnvironment env = newEnvironment(queryThreads);
+    Set<String> labels = new TreeSet<>();
+    for (Target target : env.evaluateQuery(QueryExpression.parse(query, env)).getResultSet()) {
+      labels.add(target.getLabel().toString());
+    }
+    return labels;
+  }
+
+  private void assertSameWithParallelism(String query, int expectedSize) throws Exception {
+    Set<String> serial = query(query, 1);
+    assertEquals(query, expectedSize, serial.size());
+    assertEquals(query, serial, query(query, 4));
+  }
+
+  public void testDepsAgree() throws Exception {
+    // All t<i>, their files, //a and its file, and the root.
+    assertSameWithParallelism("deps(//wide:all)", 2 * WIDTH + 3);
+    assertSameWithParallelism("deps(//wide:all, 1)", WIDTH + 1);
+  }
+
+  public void testRdepsAgree() throws Exception {
+    // Every t<i> depends on t0, which depends on //a.
+    assertSameWithParallelism("rdeps(//..., //a:a.txt)", WIDTH + 3);
+    // Every t<i> but t0 depends on t1, and so does the root.
+    assertSameWithParallelism("rdeps(//..., //wide:t1)", WIDTH);
+    assertSameWithParallelism("rdeps(//..., //a, 1)", WIDTH / 7 + 2);
+  }
+
+  public void testSomepathAgrees() throws Exception {
+    Set<String> path = query("somepath(//wide:all, //a:a.txt)", 1);
+    assertTrue(path.toString(), path.contains("//wide:all"));
+    assertTrue(path.toString(), path.contains("//a:a"));
+    assertTrue(path.toString(), path.contains("//a:a.txt"));
+    // Breadth-first search finds a shortest path, whose length does not depend on the threads.
+    assertEquals(4, path.size());
+    assertEquals(4, query("somepath(//wide:all, //a:a.txt)", 4).size());
+    // t2499, t1249, t624, ..., t2, t1, t0 and f0.txt.
+    assertSameWithParallelism("somepath(//wide:t2499, //wide:f0.txt)", 14);
+  }
+
+  public void testInterruption() throws Exception {
+    SkyQueryEnvironment env = newEnvironment(4);
+    try {
+      env.evaluateQuery(QueryExpression.parse("deps(//wide:all)", env), new Callback<Target>() {
+        @Override
+        public void process(Iterable<Target> partialResult) {
+          // The next level of the search has several batches, which are waited for.
+          Thread.currentThread().interrupt();
+        }
+      });
+      fail();
+    } catch (InterruptedException expected) {
+    } finally {
+      Thread.interrupted();
+    }
+    // The query threads are stopped.
+    for (int i = 0; i < 100 && queryThreadsAlive(); i++) {
+      Thread.sleep(100);
+    }
+    assertFalse(queryThreadsAlive());
+    // Later queries are not affected.
+    assertEquals(WIDTH + 1, query("deps(//wide:all, 1)", 4).size());
+  }
+
+  private static boolean queryThreadsAlive() {
+    for (Thread thread : Thread.getAllStackTraces().keySet()) {
+      if (thread.getName().startsWith("SkyQueryEnvironment ") && thread.isAlive()) {
+        return true;
+      }
+    }
+    return false;
+  }
+}
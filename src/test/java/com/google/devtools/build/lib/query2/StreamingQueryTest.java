@@ -0,0 +1,192 @@
+// Copyright 2015 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.query2;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Iterables;
+import com.google.devtools.build.lib.packages.Target;
+import com.google.devtools.build.lib.packages.util.PackageLoadingTestCase;
+import com.google.devtools.build.lib.pkgcache.PackageManager;
+import com.google.devtools.build.lib.query2.engine.Callback;
+import com.google.devtools.build.lib.query2.engine.QueryEnvironment.QueryFunction;
+import com.google.devtools.build.lib.query2.engine.QueryEnvironment.Setting;
+import com.google.devtools.build.lib.query2.engine.QueryExpression;
+import com.google.devtools.build.lib.query2.output.AspectResolver;
+import com.google.devtools.build.lib.query2.output.OutputFormatter;
+import com.google.devtools.build.lib.query2.output.OutputFormatter.StreamedFormatter;
+import com.google.devtools.build.lib.query2.output.OutputFormatterCallback;
+import com.google.devtools.build.lib.query2.output.QueryOptions;
+import com.google.devtools.build.lib.query2.proto.proto2api.Build;
+import com.google.devtools.common.options.Options;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Tests that streamed query evaluation, where expressions pass their result to a
+ * {@link Callback} in batches, agrees with evaluation to a set, and that no target is passed
+ * twice.
+ */
+public class StreamingQueryTest extends PackageLoadingTestCase {
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    scratch.file("a/BUILD",
+        "filegroup(name = 'a', srcs = ['a.txt'])",
+        "filegroup(name = 'a2', srcs = ['a.txt', ':a'])");
+    scratch.file("b/BUILD", "filegroup(name = 'b', srcs = ['//a', '//a:a2'])");
+    scratch.file("c/BUILD", "filegroup(name = 'c', srcs = ['//b', '//a:a.txt'])");
+    scratch.file("c/sub/BUILD", "filegroup(name = 'sub', srcs = ['//a:a2', '//c'])");
+  }
+
+  private AbstractBlazeQueryEnvironment<Target> newEnvironment() {
+    PackageManager packageManager = getPackageManager();
+    return AbstractBlazeQueryEnvironment.newQueryEnvironment(
+        packageManager.newTransitiveLoader(), getSkyframeExecutor(), packageManager,
+        packageManager.getTargetPatternEvaluator(), /*keepGoing=*/false,
+        /*orderedResults=*/false, ImmutableList.<String>of(), /*loadingPhaseThreads=*/1,
+        /*queryThreads=*/1, reporter, ImmutableSet.<Setting>of(),
+        ImmutableList.<QueryFunction>of(), getPackageManager().getPackagePath());
+  }
+
+  private Set<Target> evalToSet(String query) throws Exception {
+    AbstractBlazeQueryEnvironment<Target> env = newEnvironment();
+    return env.evaluateQuery(QueryExpression.parse(query, env)).getResultSet();
+  }
+
+  private List<List<Target>> evalToBatches(String query) throws Exception {
+    AbstractBlazeQueryEnvironment<Target> env = newEnvironment();
+    final List<List<Target>> batches = new ArrayList<>();
+    assertTrue(env.evaluateQuery(QueryExpression.parse(query, env), new Callback<Target>() {
+      @Override
+      public void process(Iterable<Target> partialResult) {
+        batches.add(ImmutableList.copyOf(partialResult));
+      }
+    }));
+    return batches;
+  }
+
+  /**
+   * Checks that the streamed result of {@code query} is the set result, without duplicates across
+   * batches, and returns the number of batches.
+   */
+  private int assertStreamsSetResult(String query) throws Exception {
+    List<List<Target>> batches = evalToBatches(query);
+    Set<Target> streamed = new HashSet<>();
+    for (List<Target> batch : batches) {
+      for (Target target : batch) {
+        assertTrue(query + " passed " + target + " twice", streamed.add(target));
+      }
+    }
+    assertEquals(query, evalToSet(query), streamed);
+    return batches.size();
+  }
+
+  public void testDeps() throws Exception {
+    // One batch per level of the search.
+    assertEquals(3, assertStreamsSetResult("deps(//c)"));
+    assertEquals(2, assertStreamsSetResult("deps(//c, 1)"));
+    assertStreamsSetResult("deps(//c/sub)");
+    assertStreamsSetResult("deps(//a:a2 + //c)");
+  }
+
+  public void testUnion() throws Exception {
+    assertStreamsSetResult("//a + //b + deps(//b)");
+    assertStreamsSetResult("deps(//b) union deps(//c/sub)");
+    assertStreamsSetResult("deps(//c) + deps(//c/sub) + //a:a.txt");
+    assertStreamsSetResult("(//a + deps(//b)) + (deps(//a:a2) + //c)");
+  }
+
+  public void testFilters() throws Exception {
+    assertStreamsSetResult("filter('a', deps(//c/sub))");
+    assertStreamsSetResult("filter('a', deps(//b) + deps(//c))");
+    assertStreamsSetResult("kind(filegroup, deps(//c/sub))");
+    assertStreamsSetResult("kind('source file', deps(//c) union deps(//c/sub))");
+    assertStreamsSetResult("attr(srcs, '//a:a.txt', deps(//c/sub))");
+  }
+
+  public void testNonStreamingOperands() throws Exception {
+    assertStreamsSetResult("deps(//c/sub) except deps(//b)");
+    assertStreamsSetResult("deps(//c) ^ deps(//c/sub) + //a");
+    assertStreamsSetResult("somepath(//c/sub, //a:a.txt) + deps(//b, 1)");
+  }
+
+  /** Writes the result of {@code query} streamed through {@code formatter}'s callback. */
+  private byte[] streamedOutput(String query, StreamedFormatter formatter) throws Exception {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    PrintStream out = new PrintStream(bytes);
+    OutputFormatterCallback<Target> callback = formatter.createStreamCallback(
+        Options.getDefaults(QueryOptions.class), out, aspectResolver());
+    for (List<Target> batch : evalToBatches(query)) {
+      callback.process(batch);
+    }
+    callback.close();
+    out.flush();
+    return bytes.toByteArray();
+  }
+
+  /** Writes the set result of {@code query} with {@code formatter}'s unordered output. */
+  private byte[] unorderedOutput(String query, StreamedFormatter formatter) throws Exception {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    PrintStream out = new PrintStream(bytes);
+    formatter.outputUnordered(Options.getDefaults(QueryOptions.class), evalToSet(query), out,
+        aspectResolver());
+    out.flush();
+    return bytes.toByteArray();
+  }
+
+  private AspectResolver aspectResolver() {
+    return AspectResolver.Mode.OFF.createResolver(getPackageManager(), reporter);
+  }
+
+  private static StreamedFormatter formatter(String name) {
+    return (StreamedFormatter) OutputFormatter.getFormatter(
+        OutputFormatter.getDefaultFormatters(), name);
+  }
+
+  private static List<String> sortedLines(byte[] output) {
+    List<String> lines = new ArrayList<>(Arrays.asList(new String(output).split("\n")));
+    Collections.sort(lines);
+    return lines;
+  }
+
+  public void testLineOutputFormatters() throws Exception {
+    String query = "deps(//c) + deps(//c/sub)";
+    for (String name : ImmutableList.of("label", "label_kind", "package")) {
+      StreamedFormatter formatter = formatter(name);
+      List<String> streamed = sortedLines(streamedOutput(query, formatter));
+      assertEquals(name, sortedLines(unorderedOutput(query, formatter)), streamed);
+      assertEquals(name, new HashSet<>(streamed).size(), streamed.size());
+    }
+  }
+
+  public void testProtoOutputFormatter() throws Exception {
+    String query = "deps(//c) + deps(//c/sub)";
+    List<Build.Target> streamed = Build.QueryResult.parseFrom(
+        streamedOutput(query, formatter("proto"))).getTargetList();
+    List<Build.Target> unordered = Build.QueryResult.parseFrom(
+        unorderedOutput(query, formatter("proto"))).getTargetList();
+    assertEquals(ImmutableSet.copyOf(unordered), ImmutableSet.copyOf(streamed));
+    assertEquals(ImmutableSet.copyOf(streamed).size(), streamed.size());
+    assertEquals(Iterables.size(evalToSet(query)), streamed.size());
+  }
+}
@@ -0,0 +1,219 @@
+// Copyright 2015 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.remote;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.io.BaseEncoding;
+import com.google.devtools.build.lib.remote.RemoteProtocol.ExecuteRequest;
+import com.google.devtools.build.lib.remote.RemoteProtocol.ExecuteResponse;
+import com.google.devtools.build.lib.remote.RemoteProtocol.FileEntry;
+import com.google.devtools.build.lib.testutil.TestUtils;
+import com.google.devtools.build.lib.vfs.DigestHashFunction;
+import com.google.devtools.build.lib.vfs.FileSystemUtils;
+import com.google.devtools.build.lib.vfs.JavaIoFileSystem;
+import com.google.devtools.build.lib.vfs.Path;
+import com.google.protobuf.ByteString;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.util.Random;
+
+/**
+ * Tests for the remote execution protocol, as implemented by {@link RemoteClient} and
+ * {@link LocalRemoteServer}.
+ */
+@RunWith(JUnit4.class)
+public class LocalRemoteServerTest {
+
+  private Path tmp;
+  private LocalRemoteServer server;
+  private RemoteClient client;
+
+  @Before
+  public void setUp() throws Exception {
+    tmp = new JavaIoFileSystem().getPath(TestUtils.tmpDir()).getRelative("local_remote_server");
+    FileSystemUtils.deleteTree(tmp);
+    FileSystemUtils.createDirectoryAndParents(tmp);
+    server = new LocalRemoteServer(tmp.getRelative("server"), 0);
+    server.start();
+    client = RemoteClient.connect(server.getAddress(), 60000);
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    client.close();
+    server.close();
+    FileSystemUtils.deleteTree(tmp);
+  }
+
+  private Path writeFile(String name, byte[] contents) throws IOException {
+    Path path = tmp.getRelative(name);
+    FileSystemUtils.writeContent(path, contents);
+    return path;
+  }
+
+  private static ByteString digest(Path path) throws IOException {
+    return ByteString.copyFrom(DigestHashFunction.getDefault().digest(path));
+  }
+
+  private ByteString upload(Path path) throws IOException {
+    ByteString digest = digest(path);
+    assertEquals(ImmutableList.of(digest), client.findMissing(ImmutableList.of(digest)));
+    client.upload(digest, DigestHashFunction.getDefault(), path);
+    assertTrue(client.findMissing(ImmutableList.of(digest)).isEmpty());
+    return digest;
+  }
+
+  @Test
+  public void blobsLargerThanAChunkAreSentInChunks() throws Exception {
+    byte[] contents = new byte[RemoteClient.CHUNK_SIZE * 5 / 2];
+    new Random(0).nextBytes(contents);
+    ByteString digest = upload(writeFile("large", contents));
+
+    Path downloaded = tmp.getRelative("downloaded");
+    client.download(digest, DigestHashFunction.getDefault(), downloaded);
+    assertArrayEquals(contents, FileSystemUtils.readContent(downloaded));
+  }
+
+  @Test
+  public void emptyBlob() throws Exception {
+    ByteString digest = upload(writeFile("empty", new byte[0]));
+
+    Path downloaded = tmp.getRelative("downloaded");
+    client.download(digest, DigestHashFunction.getDefault(), downloaded);
+    assertEquals(0, downloaded.getFileSize());
+  }
+
+  @Test
+  public void downloadOfMissingBlobFails() throws Exception {
+    try {
+      client.download(ByteString.copyFromUtf8("missing"), DigestHashFunction.getDefault(),
+          tmp.getRelative("downloaded"));
+      fail();
+    } catch (IOException e) {
+      assertTrue(e.getMessage(), e.getMessage().contains("No blob"));
+    }
+    // The connection can still be used.
+    assertEquals(1, client.findMissing(ImmutableList.of(ByteString.copyFromUtf8("x"))).size());
+  }
+
+  @Test
+  public void uploadThatDoesNotMatchItsDigestIsRejected() throws Exception {
+    ByteString digest = digest(writeFile("claimed", "claimed".getBytes()));
+    try {
+      client.upload(digest, DigestHashFunction.getDefault(),
+          writeFile("actual", "actual".getBytes()));
+      fail();
+    } catch (IOException e) {
+      assertTrue(e.getMessage(), e.getMessage().contains("does not match its digest"));
+    }
+    assertEquals(ImmutableList.of(digest), client.findMissing(ImmutableList.of(digest)));
+  }
+
+  @Test
+  public void downloadThatDoesNotMatchItsDigestFails() throws Exception {
+    ByteString digest = upload(writeFile("input", "hello".getBytes()));
+    FileSystemUtils.writeContent(
+        server.getRoot().getRelative("cas").getChild(
+            BaseEncoding.base16().lowerCase().encode(digest.toByteArray())),
+        "corrupted".getBytes());
+    Path downloaded = tmp.getRelative("downloaded");
+    try {
+      client.download(digest, DigestHashFunction.getDefault(), downloaded);
+      fail();
+    } catch (IOException e) {
+      assertTrue(e.getMessage(), e.getMessage().contains("does not match its digest"));
+    }
+    assertFalse(downloaded.exists());
+  }
+
+  @Test
+  public void unresponsiveServerTimesOut() throws Exception {
+    try (ServerSocket silent = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+        RemoteClient timingOut = RemoteClient.connect(
+            silent.getInetAddress().getHostAddress() + ":" + silent.getLocalPort(), 100)) {
+      timingOut.findMissing(ImmutableList.of(ByteString.copyFromUtf8("x")));
+      fail();
+    } catch (IOException e) {
+      assertTrue(e.getMessage(), e.getMessage().contains("timed out"));
+    }
+  }
+
+  @Test
+  public void executeReturnsOutputsAndCachesResults() throws Exception {
+    ByteString input = upload(writeFile("input", "hello".getBytes()));
+    ExecuteRequest request = ExecuteRequest.newBuilder()
+        .addArguments("/bin/sh")
+        .addArguments("-c")
+        .addArguments("cat in/file > out/file && echo done")
+        .addInputs(FileEntry.newBuilder().setPath("in/file").setDigest(input))
+        .addOutputPaths("out/file")
+        .setDigestFunction(DigestHashFunction.getDefault().name())
+        .setAcceptCached(true)
+        .build();
+
+    ExecuteResponse response = client.execute(request);
+    assertEquals(0, response.getExitCode());
+    assertEquals("done\n", response.getStdout().toStringUtf8());
+    assertFalse(response.getCached());
+    assertEquals(1, response.getOutputsCount());
+    assertEquals("out/file", response.getOutputs(0).getPath());
+    Path output = tmp.getRelative("output");
+    client.download(response.getOutputs(0).getDigest(), DigestHashFunction.getDefault(), output);
+    assertEquals("hello", new String(FileSystemUtils.readContent(output)));
+
+    assertTrue(client.execute(request).getCached());
+  }
+
+  @Test
+  public void executeRejectsPathsOutsideTheExecRoot() throws Exception {
+    ByteString input = upload(writeFile("input", "hello".getBytes()));
+    for (String path : ImmutableList.of("../escape", "/tmp/escape", "a/../../escape")) {
+      ExecuteRequest request = ExecuteRequest.newBuilder()
+          .addArguments("/bin/true")
+          .addInputs(FileEntry.newBuilder().setPath(path).setDigest(input))
+          .setDigestFunction(DigestHashFunction.getDefault().name())
+          .build();
+      try {
+        client.execute(request);
+        fail(path);
+      } catch (IOException e) {
+        assertTrue(e.getMessage(), e.getMessage().contains("not a relative path"));
+      }
+    }
+  }
+
+  @Test
+  public void closeDisconnectsClients() throws Exception {
+    server.close();
+    try {
+      client.findMissing(ImmutableList.of(ByteString.copyFromUtf8("x")));
+      fail();
+    } catch (IOException expected) {
+    }
+  }
+}
@@ -0,0 +1,110 @@
+// Copyright 2015 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.remote;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.google.common.collect.ImmutableList;
+import com.google.devtools.build.lib.actions.ActionInput;
+import com.google.devtools.build.lib.actions.ActionInputHelper;
+import com.google.devtools.build.lib.remote.RemoteProtocol.ExecuteResponse;
+import com.google.devtools.build.lib.remote.RemoteProtocol.FileEntry;
+import com.google.devtools.build.lib.testutil.TestUtils;
+import com.google.devtools.build.lib.vfs.DigestHashFunction;
+import com.google.devtools.build.lib.vfs.FileSystemUtils;
+import com.google.devtools.build.lib.vfs.JavaIoFileSystem;
+import com.google.devtools.build.lib.vfs.Path;
+import com.google.protobuf.ByteString;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Tests for {@link RemoteSpawnStrategy}.
+ */
+@RunWith(JUnit4.class)
+public class RemoteSpawnStrategyTest {
+
+  private static final List<ActionInput> OUTPUTS =
+      ImmutableList.of(ActionInputHelper.fromPath("bazel-out/bin/a.out"));
+
+  private Path tmp;
+  private Path execRoot;
+  private LocalRemoteServer server;
+  private RemoteClient client;
+  private ByteString digest;
+
+  @Before
+  public void setUp() throws Exception {
+    tmp = new JavaIoFileSystem().getPath(TestUtils.tmpDir()).getRelative("remote_spawn_strategy");
+    FileSystemUtils.deleteTree(tmp);
+    execRoot = tmp.getRelative("workspace/execroot");
+    FileSystemUtils.createDirectoryAndParents(execRoot);
+    server = new LocalRemoteServer(tmp.getRelative("server"), 0);
+    server.start();
+    client = RemoteClient.connect(server.getAddress(), 60000);
+
+    Path blob = tmp.getRelative("blob");
+    FileSystemUtils.writeContent(blob, "contents".getBytes());
+    digest = ByteString.copyFrom(DigestHashFunction.getDefault().digest(blob));
+    client.upload(digest, DigestHashFunction.getDefault(), blob);
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    client.close();
+    server.close();
+    FileSystemUtils.deleteTree(tmp);
+  }
+
+  private ExecuteResponse responseWithOutput(String path) {
+    return ExecuteResponse.newBuilder()
+        .addOutputs(FileEntry.newBuilder().setPath(path).setDigest(digest).setExecutable(true))
+        .build();
+  }
+
+  @Test
+  public void downloadsDeclaredOutputs() throws Exception {
+    RemoteSpawnStrategy.downloadOutputs(client, DigestHashFunction.getDefault(),
+        responseWithOutput("bazel-out/bin/a.out"), OUTPUTS, execRoot);
+    Path output = execRoot.getRelative("bazel-out/bin/a.out");
+    assertEquals("contents", new String(FileSystemUtils.readContent(output)));
+    assertTrue(output.isExecutable());
+  }
+
+  @Test
+  public void rejectsOutputsThatWereNotDeclared() throws Exception {
+    for (String path : ImmutableList.of(
+        "bazel-out/bin/b.out", "../escape", "bazel-out/bin/../../../escape", "/tmp/escape")) {
+      try {
+        RemoteSpawnStrategy.downloadOutputs(client, DigestHashFunction.getDefault(),
+            responseWithOutput(path), OUTPUTS, execRoot);
+        fail(path);
+      } catch (IOException e) {
+        assertTrue(e.getMessage(), e.getMessage().contains("not an output of the command"));
+      }
+    }
+    assertFalse(tmp.getRelative("workspace/escape").exists());
+    assertFalse(execRoot.getRelative("bazel-out").exists());
+  }
+}
@@ -0,0 +1,204 @@
+// Copyright 2015 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.skyframe;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import com.google.common.collect.ImmutableList;
+import com.google.devtools.build.lib.events.EventCollector;
+import com.google.devtools.build.lib.events.EventKind;
+import com.google.devtools.build.lib.events.Reporter;
+import com.google.devtools.build.lib.testutil.TestUtils;
+import com.google.devtools.build.lib.util.OS;
+import com.google.devtools.build.lib.vfs.FileSystemUtils;
+import com.google.devtools.build.lib.vfs.ModifiedFileSet;
+import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.build.lib.vfs.PathFragment;
+import com.google.devtools.build.lib.vfs.UnixFileSystem;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tests for {@link InotifyDiffAwareness}, through the {@link DiffAwarenessManager} that uses it.
+ */
+@RunWith(JUnit4.class)
+public class InotifyDiffAwarenessTest {
+
+  private Path root;
+  private final EventCollector events = new EventCollector(EventKind.ERRORS_AND_WARNINGS);
+  private DiffAwarenessManager manager;
+
+  @Before
+  public void setUp() throws Exception {
+    assumeTrue(OS.getCurrent() == OS.LINUX);
+    root = new UnixFileSystem().getPath(new File(TestUtils.tmpDir()).getCanonicalPath())
+        .getRelative("inotify_diff_awareness");
+    FileSystemUtils.deleteTree(root);
+    FileSystemUtils.createDirectoryAndParents(root);
+    manager = new DiffAwarenessManager(
+        ImmutableList.of(new InotifyDiffAwareness.Factory(ImmutableList.<String>of())),
+        new Reporter(events));
+    // The first diff only registers the directories.
+    assertTrue(diff().treatEverythingAsModified());
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    if (manager != null) {
+      manager.reset();
+    }
+  }
+
+  private ModifiedFileSet diff() {
+    DiffAwarenessManager.ProcessableModifiedFileSet diff = manager.getDiff(root);
+    diff.markProcessed();
+    return diff.getModifiedFileSet();
+  }
+
+  private List<String> modifiedFiles() {
+    ModifiedFileSet diff = diff();
+    assertFalse(diff.treatEverythingAsModified());
+    List<String> paths = new ArrayList<>();
+    for (PathFragment path : diff.modifiedSourceFiles()) {
+      paths.add(path.getPathString());
+    }
+    return paths;
+  }
+
+  private void write(String path, String contents) throws IOException {
+    FileSystemUtils.writeContentAsLatin1(root.getRelative(path), contents);
+  }
+
+  private void mkdirs(String path) throws IOException {
+    FileSystemUtils.createDirectoryAndParents(root.getRelative(path));
+  }
+
+  @Test
+  public void noChanges() throws Exception {
+    assertThat(modifiedFiles()).isEmpty();
+  }
+
+  @Test
+  public void eventsAreReplayedIntoTheModifiedFileSet() throws Exception {
+    write("modified", "old");
+    write("deleted", "old");
+    mkdirs("dir");
+    write("dir/modified", "old");
+    assertThat(modifiedFiles()).containsExactly("modified", "deleted", "dir", "dir/modified");
+
+    write("modified", "new");
+    root.getRelative("deleted").delete();
+    write("created", "new");
+    write("dir/modified", "new");
+    write("transient", "gone");
+    root.getRelative("transient").delete();
+    assertThat(modifiedFiles())
+        .containsExactly("modified", "deleted", "created", "dir/modified", "transient");
+    assertThat(modifiedFiles()).isEmpty();
+  }
+
+  @Test
+  public void newDirectoriesAreRegistered() throws Exception {
+    mkdirs("new/sub");
+    write("new/sub/file", "contents");
+    // The contents of the new directory were never watched, so they are reported by traversal.
+    assertThat(modifiedFiles()).containsExactly("new", "new/sub", "new/sub/file");
+
+    write("new/sub/other", "contents");
+    assertThat(modifiedFiles()).containsExactly("new/sub/other");
+  }
+
+  @Test
+  public void movedDirectoriesAreRegisteredUnderTheirNewName() throws Exception {
+    mkdirs("old/sub");
+    write("old/sub/file", "contents");
+    assertThat(modifiedFiles()).containsExactly("old", "old/sub", "old/sub/file");
+
+    root.getRelative("old").renameTo(root.getRelative("moved"));
+    assertThat(modifiedFiles())
+        .containsExactly("old", "old/sub", "moved", "moved/sub", "moved/sub/file");
+
+    write("moved/sub/file", "changed");
+    assertThat(modifiedFiles()).containsExactly("moved/sub/file");
+  }
+
+  @Test
+  public void siblingsOfMovedDirectoriesStayWatched() throws Exception {
+    mkdirs("dir/sub");
+    mkdirs("dir-2/sub");
+    mkdirs("dir0");
+    assertThat(modifiedFiles()).containsExactly("dir", "dir/sub", "dir-2", "dir-2/sub", "dir0");
+
+    root.getRelative("dir").renameTo(root.getRelative("moved"));
+    assertThat(modifiedFiles()).containsExactly("dir", "dir/sub", "moved", "moved/sub");
+
+    write("dir-2/sub/file", "contents");
+    write("dir0/file", "contents");
+    assertThat(modifiedFiles()).containsExactly("dir-2/sub/file", "dir0/file");
+  }
+
+  @Test
+  public void deletedDirectoriesAreUnregistered() throws Exception {
+    mkdirs("dir/sub");
+    write("dir/sub/file", "contents");
+    assertThat(modifiedFiles()).containsExactly("dir", "dir/sub", "dir/sub/file");
+
+    FileSystemUtils.deleteTree(root.getRelative("dir"));
+    assertThat(modifiedFiles()).containsExactly("dir", "dir/sub", "dir/sub/file");
+
+    // A directory created under the same name is watched afresh.
+    mkdirs("dir/sub");
+    assertThat(modifiedFiles()).containsExactly("dir", "dir/sub");
+    write("dir/sub/file", "contents");
+    assertThat(modifiedFiles()).containsExactly("dir/sub/file");
+    assertThat(events).isEmpty();
+  }
+
+  @Test
+  public void queueOverflowFallsBackToCheckingEverything() throws Exception {
+    int maxQueuedEvents = Integer.parseInt(new String(FileSystemUtils.readContentAsLatin1(
+        new UnixFileSystem().getPath("/proc/sys/fs/inotify/max_queued_events"))).trim());
+    assumeTrue(maxQueuedEvents <= 1 << 20);
+    // Consecutive identical events are coalesced, so alternate between two files.
+    try (OutputStream a = root.getRelative("a").getOutputStream();
+        OutputStream b = root.getRelative("b").getOutputStream()) {
+      for (int i = 0; i <= maxQueuedEvents / 2; i++) {
+        a.write('a');
+        a.flush();
+        b.write('b');
+        b.flush();
+      }
+    }
+    assertTrue(diff().treatEverythingAsModified());
+    assertThat(events).isNotEmpty();
+
+    // The next diff starts over with a fresh watcher.
+    assertTrue(diff().treatEverythingAsModified());
+    write("a", "changed");
+    assertThat(modifiedFiles()).containsExactly("a");
+  }
+}
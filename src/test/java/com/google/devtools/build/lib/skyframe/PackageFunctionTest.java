@@ -0,0 +1,126 @@
+// Copyright 2015 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.skyframe;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.collect.ImmutableList;
+import com.google.devtools.build.lib.packages.PackageFactory;
+import com.google.devtools.build.lib.packages.Target;
+import com.google.devtools.build.lib.packages.util.PackageLoadingTestCase;
+import com.google.devtools.build.lib.syntax.PersistentASTCache;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+
+/**
+ * Tests for how {@link PackageFunction} parses BUILD files.
+ */
+public class PackageFunctionTest extends PackageLoadingTestCase {
+
+  private final List<String> messages = Collections.synchronizedList(new ArrayList<String>());
+  private final Handler messageCollector = new Handler() {
+    @Override
+    public void publish(LogRecord record) {
+      messages.add(record.getMessage());
+    }
+
+    @Override
+    public void flush() {}
+
+    @Override
+    public void close() {}
+  };
+  private final List<Logger> loggers = ImmutableList.of(
+      Logger.getLogger(PackageFactory.class.getName()),
+      Logger.getLogger(PersistentASTCache.class.getName()));
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    for (Logger logger : loggers) {
+      logger.addHandler(messageCollector);
+      logger.setLevel(Level.FINE);
+    }
+    scratch.file("pkg/macros.bzl",
+        "def macro(name):",
+        "  native.filegroup(name = name, srcs = [name + '.txt'])");
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    for (Logger logger : loggers) {
+      logger.removeHandler(messageCollector);
+      logger.setLevel(null);
+    }
+    super.tearDown();
+  }
+
+  private int count(String message) {
+    return Collections.frequency(messages, message);
+  }
+
+  public void testBuildFileWithSkylarkImportsIsParsedOnce() throws Exception {
+    scratch.file("pkg/BUILD",
+        "load('/pkg/macros', 'macro')",
+        "macro(name = 'a')");
+    assertEquals("a", getTarget("//pkg:a").getName());
+    // The first evaluation of the package only discovers the import; the tree parsed then is
+    // reused once the import is loaded.
+    assertEquals(1, count("Starting to parse pkg"));
+  }
+
+  public void testImportsOfIncludedFilesAreDiscovered() throws Exception {
+    scratch.file("inc/BUILD");
+    scratch.file("inc/defs",
+        "load('/pkg/macros', 'macro')",
+        "macro(name = 'included')");
+    scratch.file("pkg/BUILD",
+        "include('//inc:defs')",
+        "macro(name = 'a')");
+    assertEquals("included", getTarget("//pkg:included").getName());
+    assertEquals("a", getTarget("//pkg:a").getName());
+    assertEquals(1, count("Starting to parse pkg"));
+  }
+
+  public void testPersistentAstCacheSurvivesRestart() throws Exception {
+    setPackageCacheOptions("--experimental_persistent_ast_cache");
+    scratch.file("pkg/BUILD",
+        "load('/pkg/macros', 'macro')",
+        "macro(name = 'a')",
+        "macro(name = 'b')");
+    List<String> expected = targetsOf("//pkg:a");
+    assertThat(messages).doesNotContain(
+        "Read the syntax tree of /workspace/pkg/BUILD from the cache");
+
+    restartSkyframeExecutor("--experimental_persistent_ast_cache");
+    messages.clear();
+    assertEquals(expected, targetsOf("//pkg:a"));
+    assertEquals(1, count("Read the syntax tree of /workspace/pkg/BUILD from the cache"));
+    assertEquals(1, count("Read the syntax tree of /workspace/pkg/macros.bzl from the cache"));
+  }
+
+  private List<String> targetsOf(String label) throws Exception {
+    List<String> targets = new ArrayList<>();
+    for (Target target : getTarget(label).getPackage().getTargets()) {
+      targets.add(target.toString());
+    }
+    return targets;
+  }
+}
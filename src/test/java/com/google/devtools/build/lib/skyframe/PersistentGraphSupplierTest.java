@@ -0,0 +1,267 @@
+// Copyright 2015 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.skyframe;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.devtools.build.lib.events.NullEventHandler;
+import com.google.devtools.build.lib.pkgcache.PathPackageLocator;
+import com.google.devtools.build.lib.skyframe.DirtinessCheckerUtils.MissingDiffDirtinessChecker;
+import com.google.devtools.build.lib.testutil.ManualClock;
+import com.google.devtools.build.lib.util.io.TimestampGranularityMonitor;
+import com.google.devtools.build.lib.vfs.FileSystemUtils;
+import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.build.lib.vfs.PathFragment;
+import com.google.devtools.build.lib.vfs.RootedPath;
+import com.google.devtools.build.lib.vfs.inmemoryfs.InMemoryFileSystem;
+import com.google.devtools.build.skyframe.Differencer;
+import com.google.devtools.build.skyframe.EvaluationResult;
+import com.google.devtools.build.skyframe.IntVersion;
+import com.google.devtools.build.skyframe.MemoizingEvaluator;
+import com.google.devtools.build.skyframe.MemoizingEvaluator.EmittedEventState;
+import com.google.devtools.build.skyframe.RecordingDifferencer;
+import com.google.devtools.build.skyframe.SkyFunction;
+import com.google.devtools.build.skyframe.SkyFunctionName;
+import com.google.devtools.build.skyframe.SkyKey;
+import com.google.devtools.build.skyframe.SkyValue;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Tests for {@link PersistentGraphSupplier}: a graph saved by one server is restored by the next,
+ * and files that changed in between are invalidated like on any server start.
+ */
+@RunWith(JUnit4.class)
+public class PersistentGraphSupplierTest {
+
+  private static final SkyFunctionName CONTENTS = SkyFunctionName.create("CONTENTS");
+  private static final SkyFunctionName UPPER_CASE = SkyFunctionName.create("UPPER_CASE");
+
+  private static final class ContentsValue implements SkyValue {
+    private final String contents;
+
+    ContentsValue(String contents) {
+      this.contents = contents;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      return obj instanceof ContentsValue && ((ContentsValue) obj).contents.equals(contents);
+    }
+
+    @Override
+    public int hashCode() {
+      return contents.hashCode();
+    }
+  }
+
+  private final ManualClock clock = new ManualClock();
+  private final TimestampGranularityMonitor tsgm = new TimestampGranularityMonitor(clock);
+  private final List<SkyKey> computed = new ArrayList<>();
+
+  private final SkyFunction contentsFunction = new SkyFunction() {
+    @Override
+    public SkyValue compute(SkyKey skyKey, Environment env) throws InterruptedException {
+      RootedPath rootedPath = (RootedPath) skyKey.argument();
+      if (env.getValue(FileStateValue.key(rootedPath)) == null) {
+        return null;
+      }
+      computed.add(skyKey);
+      try {
+        return new ContentsValue(
+            new String(FileSystemUtils.readContentAsLatin1(rootedPath.asPath())));
+      } catch (IOException e) {
+        throw new IllegalStateException(e);
+      }
+    }
+
+    @Override
+    public String extractTag(SkyKey skyKey) {
+      return null;
+    }
+  };
+
+  private final SkyFunction upperCaseFunction = new SkyFunction() {
+    @Override
+    public SkyValue compute(SkyKey skyKey, Environment env) throws InterruptedException {
+      ContentsValue contents = (ContentsValue) env.getValue(
+          new SkyKey(CONTENTS, skyKey.argument()));
+      if (contents == null) {
+        return null;
+      }
+      computed.add(skyKey);
+      return new ContentsValue(contents.contents.toUpperCase());
+    }
+
+    @Override
+    public String extractTag(SkyKey skyKey) {
+      return null;
+    }
+  };
+
+  private Path root;
+  private Path snapshotFile;
+  private PersistentGraphSupplier supplier;
+  private RecordingDifferencer differencer;
+  private MemoizingEvaluator evaluator;
+  private long version;
+
+  @Before
+  public void setUp() throws Exception {
+    InMemoryFileSystem fs = new InMemoryFileSystem(clock);
+    Path.setFileSystemForSerialization(fs);
+    root = fs.getPath("/workspace");
+    root.createDirectory();
+    Path outputBase = fs.getPath("/output_base");
+    outputBase.createDirectory();
+    snapshotFile = outputBase.getChild("skyframe_graph");
+    supplier = new PersistentGraphSupplier(snapshotFile);
+    startServer();
+  }
+
+  private void startServer() {
+    differencer = new RecordingDifferencer();
+    ExternalFilesHelper externalFilesHelper = new ExternalFilesHelper(
+        new AtomicReference<>(new PathPackageLocator(root)));
+    evaluator = supplier.create(
+        ImmutableMap.of(
+            SkyFunctions.FILE_STATE, new FileStateFunction(tsgm, externalFilesHelper),
+            CONTENTS, contentsFunction,
+            UPPER_CASE, upperCaseFunction),
+        differencer, null, new EmittedEventState(), /*keepEdges=*/true);
+    version = 0;
+  }
+
+  private void restart() throws Exception {
+    assertThat(supplier.save()).isGreaterThan(0);
+    supplier = new PersistentGraphSupplier(snapshotFile);
+    startServer();
+    computed.clear();
+  }
+
+  private SkyKey contents(String name) {
+    return new SkyKey(CONTENTS, RootedPath.toRootedPath(root, new PathFragment(name)));
+  }
+
+  private SkyKey upperCase(String name) {
+    return new SkyKey(UPPER_CASE, RootedPath.toRootedPath(root, new PathFragment(name)));
+  }
+
+  private void writeFile(String name, String contents) throws IOException {
+    clock.advanceMillis(1000);
+    FileSystemUtils.writeContentAsLatin1(root.getRelative(name), contents);
+  }
+
+  private String eval(SkyKey key) throws InterruptedException {
+    EvaluationResult<ContentsValue> result = evaluator.evaluate(ImmutableList.of(key),
+        new IntVersion(version++), /*keepGoing=*/false, 2, NullEventHandler.INSTANCE);
+    assertFalse(result.hasError());
+    return result.get(key).contents;
+  }
+
+  /** Checks the restored file system nodes against the disk, as a new server does. */
+  private void invalidateChangedFiles() throws InterruptedException {
+    Differencer.Diff diff = new FilesystemValueChecker(evaluator, tsgm, null)
+        .getDirtyKeys(new MissingDiffDirtinessChecker(ImmutableSet.of(root)));
+    differencer.invalidate(diff.changedKeysWithoutNewValues());
+    differencer.inject(diff.changedKeysWithNewValues());
+  }
+
+  @Test
+  public void restoredGraphIsReused() throws Exception {
+    writeFile("a", "a");
+    assertEquals("a", eval(contents("a")));
+
+    restart();
+    invalidateChangedFiles();
+    assertEquals("a", eval(contents("a")));
+    assertThat(computed).isEmpty();
+  }
+
+  @Test
+  public void filesChangedWhileTheServerWasDownAreInvalidated() throws Exception {
+    writeFile("a", "a");
+    writeFile("b", "b");
+    assertEquals("a", eval(contents("a")));
+    assertEquals("b", eval(contents("b")));
+
+    restart();
+    writeFile("a", "changed");
+    invalidateChangedFiles();
+    assertEquals("changed", eval(contents("a")));
+    assertEquals("b", eval(contents("b")));
+    assertThat(computed).containsExactly(contents("a"));
+  }
+
+  @Test
+  public void restoredNodesSupportChangePruning() throws Exception {
+    writeFile("a", "a");
+    assertEquals("A", eval(upperCase("a")));
+
+    restart();
+    // A new modification time with the same contents: the file is read again, but its
+    // dependents are not re-evaluated since the restored edges and versions show that nothing
+    // they read changed.
+    writeFile("a", "a");
+    invalidateChangedFiles();
+    assertEquals("A", eval(upperCase("a")));
+    assertThat(computed).containsExactly(contents("a"));
+
+    writeFile("a", "b");
+    invalidateChangedFiles();
+    assertEquals("B", eval(upperCase("a")));
+    assertThat(computed).containsExactly(contents("a"), contents("a"), upperCase("a"));
+  }
+
+  @Test
+  public void snapshotIsReadOnlyOnce() throws Exception {
+    writeFile("a", "a");
+    eval(contents("a"));
+    assertThat(supplier.save()).isGreaterThan(0);
+    assertTrue(snapshotFile.exists());
+
+    supplier = new PersistentGraphSupplier(snapshotFile);
+    startServer();
+    assertFalse(snapshotFile.exists());
+    assertThat(evaluator.getValues()).isNotEmpty();
+    // An evaluator recreated by the same server, e.g. after a clean, starts empty.
+    startServer();
+    assertThat(evaluator.getValues()).isEmpty();
+  }
+
+  @Test
+  public void unreadableSnapshotIsDiscarded() throws Exception {
+    FileSystemUtils.writeContentAsLatin1(snapshotFile, "not a snapshot");
+    supplier = new PersistentGraphSupplier(snapshotFile);
+    startServer();
+    assertFalse(snapshotFile.exists());
+    assertThat(evaluator.getValues()).isEmpty();
+    writeFile("a", "a");
+    assertEquals("a", eval(contents("a")));
+  }
+}
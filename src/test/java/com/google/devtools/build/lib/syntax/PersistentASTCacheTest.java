@@ -0,0 +1,238 @@
+// Copyright 2015 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.syntax;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Iterables;
+import com.google.devtools.build.lib.cmdline.PackageIdentifier;
+import com.google.devtools.build.lib.events.EventKind;
+import com.google.devtools.build.lib.events.util.EventCollectionApparatus;
+import com.google.devtools.build.lib.packages.CachingPackageLocator;
+import com.google.devtools.build.lib.testutil.Scratch;
+import com.google.devtools.build.lib.vfs.FileSystemUtils;
+import com.google.devtools.build.lib.vfs.Path;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+
+/**
+ * Tests for {@link PersistentASTCache}.
+ */
+@RunWith(JUnit4.class)
+public class PersistentASTCacheTest {
+
+  private final Scratch scratch = new Scratch();
+  private final EventCollectionApparatus events =
+      new EventCollectionApparatus(EventKind.ALL_EVENTS);
+  private final CachingPackageLocator locator = new CachingPackageLocator() {
+    @Override
+    public Path getBuildFileForPackage(PackageIdentifier packageName) {
+      return scratch.resolve(packageName.getPackageFragment()).getRelative("BUILD");
+    }
+  };
+
+  private final Logger logger = Logger.getLogger(PersistentASTCache.class.getName());
+  private final Handler hitCounter = new Handler() {
+    @Override
+    public void publish(LogRecord record) {
+      if (record.getMessage().startsWith("Read the syntax tree of ")) {
+        hits++;
+      }
+    }
+
+    @Override
+    public void flush() {}
+
+    @Override
+    public void close() {}
+  };
+  private int hits;
+
+  private Path cacheDirectory;
+  private PersistentASTCache cache;
+
+  @Before
+  public void setUp() throws Exception {
+    logger.addHandler(hitCounter);
+    logger.setLevel(Level.FINE);
+    cacheDirectory = scratch.dir("/output_base/ast_cache");
+    cache = new PersistentASTCache(cacheDirectory);
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    logger.removeHandler(hitCounter);
+    logger.setLevel(null);
+  }
+
+  private BuildFileAST parseBuildFile(Path file) throws Exception {
+    return cache.parseBuildFile(ParserInputSource.create(file),
+        ImmutableList.<Statement>of(), events.reporter(), locator, false);
+  }
+
+  private BuildFileAST parseSkylarkFile(Path file, String... builtins) throws Exception {
+    return cache.parseSkylarkFile(file, events.reporter(), locator,
+        new ValidationEnvironment(ImmutableSet.<String>builder()
+            .add("False", "True", "None").add(builtins).build()));
+  }
+
+  /** Describes every node of the tree with its location, in visiting order. */
+  private static List<String> describe(BuildFileAST ast) {
+    final List<String> nodes = new ArrayList<>();
+    new SyntaxTreeVisitor() {
+      @Override
+      public void visit(ASTNode node) {
+        nodes.add(node.getClass().getSimpleName() + " " + node + " @ " + node.getLocation()
+            + " " + node.getLocation().getStartLineAndColumn()
+            + " " + node.getLocation().getEndLineAndColumn());
+        super.visit(node);
+      }
+    }.visit(ast);
+    return nodes;
+  }
+
+  private Path onlyEntry() throws Exception {
+    Path subdirectory = Iterables.getOnlyElement(cacheDirectory.getDirectoryEntries());
+    return Iterables.getOnlyElement(subdirectory.getDirectoryEntries());
+  }
+
+  @Test
+  public void testBuildFileRoundTrip() throws Exception {
+    Path file = scratch.file("/pkg/BUILD",
+        "# A comment.",
+        "load('/pkg/defs', 'macro', alias = 'other')",
+        "x = [1, 2, 'a' + \"b\"] + list((3, 4))",
+        "d = {'k': x[0], 'l': not x}",
+        "y = [i * 2 for i in x if i > 1]",
+        "z = {k: v for k, v in d.items()}",
+        "macro(name = 'a', srcs = glob(['*.txt']), deps = d.values())",
+        "w = 'a' if x else 'b'",
+        "s = 'a'.format(-1)",
+        "'%s' % x",
+        "alias(name = 'b')  # Another comment.");
+    BuildFileAST parsed = parseBuildFile(file);
+    assertEquals(0, hits);
+
+    BuildFileAST cached = parseBuildFile(file);
+    assertEquals(1, hits);
+    assertEquals(describe(parsed), describe(cached));
+    assertEquals(parsed.getLocation().toString(), cached.getLocation().toString());
+    assertEquals(parsed.getImports().toString(), cached.getImports().toString());
+    assertEquals(parsed.getComments().toString(), cached.getComments().toString());
+  }
+
+  @Test
+  public void testSkylarkFileRoundTrip() throws Exception {
+    Path file = scratch.file("/pkg/defs.bzl",
+        "def macro(name, srcs = [], *args, deps = None, **kwargs):",
+        "  for src in srcs:",
+        "    if not src:",
+        "      continue",
+        "    elif src == name:",
+        "      break",
+        "    else:",
+        "      pass",
+        "  return struct(name = name, srcs = srcs)");
+    BuildFileAST parsed = parseSkylarkFile(file, "struct");
+    BuildFileAST cached = parseSkylarkFile(file, "struct");
+    assertEquals(1, hits);
+    assertEquals(describe(parsed), describe(cached));
+    assertEquals(parsed.getContentHashCode(), cached.getContentHashCode());
+  }
+
+  @Test
+  public void testCacheSurvivesRestart() throws Exception {
+    Path file = scratch.file("/pkg/BUILD", "filegroup(name = 'a', srcs = ['a.txt'])");
+    List<String> expected = describe(parseBuildFile(file));
+    cache = new PersistentASTCache(cacheDirectory);
+    assertEquals(expected, describe(parseBuildFile(file)));
+    assertEquals(1, hits);
+  }
+
+  @Test
+  public void testChangedFileIsParsedAgain() throws Exception {
+    Path file = scratch.file("/pkg/BUILD", "filegroup(name = 'a')");
+    parseBuildFile(file);
+    scratch.overwriteFile("/pkg/BUILD", "filegroup(name = 'b')");
+    assertThat(describe(parseBuildFile(file)).toString()).contains("'b'");
+    assertEquals(0, hits);
+    // The new content replaces the old entry.
+    parseBuildFile(file);
+    assertEquals(1, hits);
+  }
+
+  @Test
+  public void testFilesWithEventsAreNotCached() throws Exception {
+    events.setFailFast(false);
+    Path file = scratch.file("/pkg/BUILD", "filegroup(name = 'a'");
+    parseBuildFile(file);
+    assertThat(cacheDirectory.getDirectoryEntries()).isEmpty();
+    events.collector().clear();
+    // The error is reported every time.
+    parseBuildFile(file);
+    assertThat(events.collector()).isNotEmpty();
+  }
+
+  @Test
+  public void testIncludesAreNotCached() throws Exception {
+    scratch.file("/inc/BUILD");
+    scratch.file("/inc/defs", "x = 1");
+    Path file = scratch.file("/pkg/BUILD", "include('//inc:defs')", "y = x");
+    parseBuildFile(file);
+    assertThat(cacheDirectory.getDirectoryEntries()).isEmpty();
+  }
+
+  @Test
+  public void testCorruptEntryIsDiscarded() throws Exception {
+    Path file = scratch.file("/pkg/BUILD", "filegroup(name = 'a', srcs = ['a.txt'])");
+    List<String> expected = describe(parseBuildFile(file));
+    Path entry = onlyEntry();
+    byte[] content = FileSystemUtils.readContent(entry);
+    content[content.length - 4] = (byte) 0xff;
+    FileSystemUtils.writeContent(entry, content);
+    assertEquals(expected, describe(parseBuildFile(file)));
+    assertEquals(0, hits);
+
+    FileSystemUtils.writeContentAsLatin1(entry, "not a syntax tree");
+    assertEquals(expected, describe(parseBuildFile(file)));
+    assertEquals(0, hits);
+  }
+
+  @Test
+  public void testCachedSkylarkFileIsValidatedAgain() throws Exception {
+    events.setFailFast(false);
+    Path file = scratch.file("/pkg/defs.bzl", "x = native_rule");
+    assertFalse(parseSkylarkFile(file, "native_rule").containsErrors());
+    assertThat(events.collector()).isEmpty();
+    assertTrue(parseSkylarkFile(file).containsErrors());
+    assertEquals(1, hits);
+    events.assertContainsEvent("name 'native_rule' is not defined");
+  }
+}
@@ -421,6 +421,49 @@ public class SkylarkEvaluationTest extends EvaluationTest {
         .containsExactly(outerExpected, firstExpected, secondExpected).inOrder();
   }
 
+  @SuppressWarnings("unchecked")
+  @Test
+  public void testReturnFromNestedLoopsAndBranches() throws Exception {
+    eval("def find(n):",
+        "  for i in range(0, 5):",
+        "    for j in range(0, 5):",
+        "      if i * j == n:",
+        "        return [i, j]",
+        "      elif j > i:",
+        "        break",
+        "      else:",
+        "        continue",
+        "  return 'none'",
+        "x = find(6)",
+        "y = find(7)");
+    assertThat((Iterable<Object>) lookup("x")).containsExactly(2, 3).inOrder();
+    assertThat(lookup("y")).isEqualTo("none");
+  }
+
+  @SuppressWarnings("unchecked")
+  @Test
+  public void testLocalAndGlobalVariablesInFunction() throws Exception {
+    eval("g = 10",
+        "def foo(a):",
+        "  b, c = a, g",
+        "  return [x + b + c for x in [1, 2]]",
+        "x = foo(1)",
+        "y = foo(2)");
+    assertThat((Iterable<Object>) lookup("x")).containsExactly(12, 13).inOrder();
+    assertThat((Iterable<Object>) lookup("y")).containsExactly(13, 14).inOrder();
+  }
+
+  @Test
+  public void testLocalVariablesAreNotKeptBetweenCalls() throws Exception {
+    checkEvalErrorContains("name 'v' is not defined",
+        "def foo(first):",
+        "  if first:",
+        "    v = 1",
+        "  return v",
+        "x = foo(True)",
+        "y = foo(False)");
+  }
+
   @Test
   public void testForLoopBreakError() throws Exception {
     flowStatementInsideFunction("break");
@@ -0,0 +1,113 @@
+// Copyright 2015 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.unix;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import com.google.devtools.build.lib.testutil.TestUtils;
+import com.google.devtools.build.lib.util.OS;
+import com.google.devtools.build.lib.vfs.FileSystem;
+import com.google.devtools.build.lib.vfs.FileSystemUtils;
+import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.build.lib.vfs.UnixFileSystem;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.File;
+import java.util.List;
+
+/**
+ * Tests for {@link Inotify}.
+ */
+@RunWith(JUnit4.class)
+public class InotifyTest {
+  private Path dir;
+  private Inotify inotify;
+
+  @Before
+  public void setUp() throws Exception {
+    assumeTrue(OS.getCurrent() == OS.LINUX);
+    FileSystem testFS = new UnixFileSystem();
+    dir = testFS.getPath(new File(TestUtils.tmpDir()).getCanonicalPath()).getRelative("inotify");
+    FileSystemUtils.deleteTree(dir);
+    FileSystemUtils.createDirectoryAndParents(dir);
+    inotify = Inotify.open();
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    if (inotify != null) {
+      inotify.close();
+    }
+  }
+
+  private int watch(Path path) throws Exception {
+    return inotify.addWatch(path.getPathString(),
+        Inotify.IN_CREATE | Inotify.IN_DELETE | Inotify.IN_MODIFY);
+  }
+
+  @Test
+  public void testNoEvents() throws Exception {
+    watch(dir);
+    assertTrue(inotify.readEvents().isEmpty());
+  }
+
+  @Test
+  public void testEventsAreReportedInOrder() throws Exception {
+    int wd = watch(dir);
+    Path file = dir.getRelative("file");
+    FileSystemUtils.writeContentAsLatin1(file, "contents");
+    file.delete();
+
+    List<Inotify.Event> events = inotify.readEvents();
+    assertEquals(3, events.size());
+    assertEquals(Inotify.IN_CREATE, events.get(0).getMask());
+    assertEquals(Inotify.IN_MODIFY, events.get(1).getMask());
+    assertEquals(Inotify.IN_DELETE, events.get(2).getMask());
+    for (Inotify.Event event : events) {
+      assertEquals(wd, event.getWatchDescriptor());
+      assertEquals("file", event.getName());
+    }
+    assertTrue(inotify.readEvents().isEmpty());
+  }
+
+  @Test
+  public void testDirectoryEventsHaveIsDirFlag() throws Exception {
+    watch(dir);
+    dir.getRelative("subdir").createDirectory();
+
+    List<Inotify.Event> events = inotify.readEvents();
+    assertEquals(1, events.size());
+    assertEquals(Inotify.IN_CREATE | Inotify.IN_ISDIR, events.get(0).getMask());
+    assertEquals("subdir", events.get(0).getName());
+  }
+
+  @Test
+  public void testRemovedWatchReportsNoEvents() throws Exception {
+    int wd = watch(dir);
+    inotify.removeWatch(wd);
+    List<Inotify.Event> events = inotify.readEvents();
+    assertEquals(1, events.size());
+    assertEquals(Inotify.IN_IGNORED, events.get(0).getMask());
+
+    FileSystemUtils.writeContentAsLatin1(dir.getRelative("file"), "contents");
+    assertTrue(inotify.readEvents().isEmpty());
+  }
+}
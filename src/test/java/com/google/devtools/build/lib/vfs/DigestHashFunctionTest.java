@@ -0,0 +1,99 @@
+// Copyright 2015 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.vfs;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.devtools.build.lib.testutil.ManualClock;
+import com.google.devtools.build.lib.vfs.inmemoryfs.InMemoryFileSystem;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Tests for {@link DigestHashFunction}.
+ */
+@RunWith(JUnit4.class)
+public class DigestHashFunctionTest {
+
+  private FileSystem fileSystem;
+
+  @Before
+  public void setUp() throws Exception {
+    fileSystem = new InMemoryFileSystem(new ManualClock());
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    DigestHashFunction.setDefault(DigestHashFunction.MD5);
+  }
+
+  private Path writeFile(String name, byte[] content) throws Exception {
+    Path path = fileSystem.getPath("/" + name);
+    FileSystemUtils.writeContent(path, content);
+    return path;
+  }
+
+  @Test
+  public void testGetDigestUsesDefault() throws Exception {
+    byte[] content = "hello".getBytes("UTF-8");
+    Path path = writeFile("file", content);
+    assertArrayEquals(path.getMD5Digest(), path.getDigest());
+
+    DigestHashFunction.setDefault(DigestHashFunction.SHA256);
+    assertArrayEquals(Hashing.sha256().hashBytes(content).asBytes(), path.getDigest());
+    assertEquals(32, DigestHashFunction.getDefault().getDigestLength());
+  }
+
+  @Test
+  public void testTreeDigest() throws Exception {
+    DigestHashFunction function = DigestHashFunction.MURMUR3_TREE;
+    // Large enough to be hashed in parallel, with a partial last chunk.
+    byte[] content = new byte[3 * DigestHashFunction.TREE_CHUNK_SIZE + 12345];
+    new Random(42).nextBytes(content);
+    Path path = writeFile("large", content);
+
+    Hasher expected = Hashing.murmur3_128().newHasher().putLong(content.length);
+    for (int start = 0; start < content.length; start += DigestHashFunction.TREE_CHUNK_SIZE) {
+      int end = Math.min(content.length, start + DigestHashFunction.TREE_CHUNK_SIZE);
+      expected.putBytes(
+          Hashing.murmur3_128().hashBytes(Arrays.copyOfRange(content, start, end)).asBytes());
+    }
+    assertArrayEquals(expected.hash().asBytes(), function.digest(path));
+
+    content[content.length - 1]++;
+    Path changed = writeFile("changed", content);
+    assertFalse(Arrays.equals(function.digest(path), function.digest(changed)));
+  }
+
+  @Test
+  public void testTreeDigestOfEmptyFile() throws Exception {
+    Path path = writeFile("empty", new byte[0]);
+    byte[] expected = Hashing.murmur3_128().newHasher()
+        .putLong(0)
+        .putBytes(Hashing.murmur3_128().hashBytes(new byte[0]).asBytes())
+        .hash().asBytes();
+    assertArrayEquals(expected, DigestHashFunction.MURMUR3_TREE.digest(path));
+  }
+}
@@ -17,6 +17,7 @@ import static com.google.common.truth.Truth.assertThat;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
@@ -226,6 +227,25 @@ public class PathFragmentTest {
     assertEquals(fooBarAbs,
                  new PathFragment("/foo/bar/..").getParentDirectory());
   }
+
+  @Test
+  public void testFragmentsShareTheirParentDirectories() {
+    PathFragment a = new PathFragment("bazel-out/bin/pkg/a.o");
+    PathFragment b = new PathFragment("bazel-out/bin/pkg/b.o");
+    assertSame(a.getParentDirectory(), b.getParentDirectory());
+    assertSame(a.getParentDirectory(),
+        new PathFragment("bazel-out/bin/pkg").getChild("c.o").getParentDirectory());
+    assertSame(a.getParentDirectory().getParentDirectory(),
+        new PathFragment("bazel-out/bin").getRelative("x/y").getParentDirectory()
+            .getParentDirectory());
+    assertSame(a.getParentDirectory(), a.subFragment(0, 3));
+
+    // Absolute and relative fragments do not share anything.
+    PathFragment absolute = new PathFragment("/bazel-out/bin/pkg/a.o");
+    assertFalse(absolute.getParentDirectory().equals(a.getParentDirectory()));
+    assertEquals(a, absolute.toRelative());
+    assertEquals(a.hashCode(), absolute.toRelative().hashCode());
+  }
   
   @Test
   public void testSegmentsCount() {
@@ -252,6 +272,19 @@ public class PathFragmentTest {
     assertEquals("foo", new PathFragment("/foo/").getSegment(0));
     assertEquals("foo", new PathFragment("foo").getSegment(0));
     assertEquals("foo", new PathFragment("/foo").getSegment(0));
+    try {
+      new PathFragment("foo/bar").getSegment(2);
+      fail();
+    } catch (IndexOutOfBoundsException e) { /* Expected. */ }
+  }
+
+  @Test
+  public void testGetSegments() {
+    assertEquals(ImmutableList.of("foo", "bar"), new PathFragment("foo/bar").getSegments());
+    assertEquals(ImmutableList.of("foo", "bar"), new PathFragment("/foo/bar").getSegments());
+    assertEquals(ImmutableList.of("..", "foo"), new PathFragment("../foo").getSegments());
+    assertEquals(ImmutableList.of(), new PathFragment("/").getSegments());
+    assertEquals(ImmutableList.of(), PathFragment.EMPTY_FRAGMENT.getSegments());
   }
 
   @Test
@@ -20,6 +20,7 @@ import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
+import com.google.common.base.Predicate;
 import com.google.common.collect.Lists;
 import com.google.common.testing.EqualsTester;
 import com.google.common.testing.GcFinalization;
@@ -36,8 +37,14 @@ import java.io.ByteArrayOutputStream;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.lang.ref.WeakReference;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * A test for {@link Path}.
@@ -258,6 +265,78 @@ public class PathTest {
     assertEquals(childHashCode1, childHashCode2);
   }
 
+  @Test
+  public void testChildrenOfLargeDirectoriesAreInterned() {
+    Path parent = filesystem.getPath("/large");
+    List<Path> children = new ArrayList<>();
+    for (int i = 0; i < 1000; i++) {
+      children.add(parent.getChild("child" + i));
+    }
+    for (int i = 0; i < 1000; i++) {
+      assertSame(children.get(i), parent.getChild("child" + i));
+      assertSame(children.get(i), root.getRelative("large/child" + i));
+    }
+    final List<Path> visited = new ArrayList<>();
+    parent.applyToChildren(new Predicate<Path>() {
+      @Override
+      public boolean apply(Path child) {
+        visited.add(child);
+        return true;
+      }
+    });
+    assertThat(visited).containsExactlyElementsIn(children);
+  }
+
+  @Test
+  public void testCollectedChildrenAreRecreated() {
+    Path parent = filesystem.getPath("/a");
+    Path kept = parent.getChild("kept");
+    List<WeakReference<Path>> collected = new ArrayList<>();
+    for (int i = 0; i < 100; i++) {
+      collected.add(new WeakReference<>(parent.getChild("collected" + i)));
+    }
+    for (WeakReference<Path> childRef : collected) {
+      GcFinalization.awaitClear(childRef);
+    }
+    for (int i = 0; i < 100; i++) {
+      assertEquals("/a/collected" + i, parent.getChild("collected" + i).getPathString());
+    }
+    assertSame(kept, parent.getChild("kept"));
+  }
+
+  @Test
+  public void testConcurrentlyCreatedChildrenAreInterned() throws Exception {
+    final Path parent = filesystem.getPath("/concurrent");
+    final int threads = 8;
+    final CyclicBarrier barrier = new CyclicBarrier(threads);
+    List<Future<List<Path>>> results = new ArrayList<>();
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    try {
+      for (int t = 0; t < threads; t++) {
+        results.add(executor.submit(new Callable<List<Path>>() {
+          @Override
+          public List<Path> call() throws Exception {
+            barrier.await();
+            List<Path> children = new ArrayList<>();
+            for (int i = 0; i < 1000; i++) {
+              children.add(parent.getChild("child" + i));
+            }
+            return children;
+          }
+        }));
+      }
+      List<Path> expected = results.get(0).get();
+      for (Future<List<Path>> result : results) {
+        List<Path> children = result.get();
+        for (int i = 0; i < 1000; i++) {
+          assertSame(expected.get(i), children.get(i));
+        }
+      }
+    } finally {
+      executor.shutdown();
+    }
+  }
+
   @Test
   public void testSerialization() throws Exception {
     FileSystem oldFileSystem = Path.getFileSystemForSerialization();
@@ -0,0 +1,101 @@
+// Copyright 2015 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.vfs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.google.common.collect.ImmutableList;
+import com.google.devtools.build.lib.testutil.TestUtils;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tests for {@link UnixBatchStat}.
+ */
+@RunWith(JUnit4.class)
+public class UnixBatchStatTest {
+  private Path execRoot;
+  private UnixBatchStat batchStat;
+
+  @Before
+  public void setUp() throws Exception {
+    FileSystem testFS = new UnixFileSystem();
+    execRoot = testFS.getPath(new File(TestUtils.tmpDir()).getCanonicalPath())
+        .getRelative("batchstat");
+    FileSystemUtils.deleteTree(execRoot);
+    FileSystemUtils.createDirectoryAndParents(execRoot);
+    batchStat = new UnixBatchStat(execRoot);
+  }
+
+  @Test
+  public void testStatusesAreInInputOrder() throws Exception {
+    FileSystemUtils.writeContentAsLatin1(execRoot.getRelative("file"), "contents");
+    execRoot.getRelative("dir").createDirectory();
+
+    List<FileStatusWithDigest> stats = batchStat.batchStat(/*includeDigest=*/true,
+        /*includeLinks=*/true, ImmutableList.of(new PathFragment("dir"),
+            new PathFragment("missing"), new PathFragment("file")));
+    assertEquals(3, stats.size());
+    assertTrue(stats.get(0).isDirectory());
+    assertNull(stats.get(1));
+    assertTrue(stats.get(2).isFile());
+    assertEquals(8, stats.get(2).getSize());
+    assertNull(stats.get(2).getDigest());
+  }
+
+  @Test
+  public void testIncludeLinks() throws Exception {
+    FileSystemUtils.writeContentAsLatin1(execRoot.getRelative("file"), "contents");
+    execRoot.getRelative("link").createSymbolicLink(new PathFragment("file"));
+    List<PathFragment> paths = ImmutableList.of(new PathFragment("link"));
+
+    FileStatusWithDigest stat = batchStat.batchStat(false, /*includeLinks=*/true, paths).get(0);
+    assertTrue(stat.isSymbolicLink());
+    stat = batchStat.batchStat(false, /*includeLinks=*/false, paths).get(0);
+    assertFalse(stat.isSymbolicLink());
+    assertTrue(stat.isFile());
+  }
+
+  @Test
+  public void testLargeBatchIsSplitIntoChunks() throws Exception {
+    List<PathFragment> paths = new ArrayList<>();
+    for (int i = 0; i < 2500; i++) {
+      PathFragment path = new PathFragment("file" + i);
+      if (i % 2 == 0) {
+        FileSystemUtils.writeContentAsLatin1(execRoot.getRelative(path), "" + i);
+      }
+      paths.add(path);
+    }
+
+    List<FileStatusWithDigest> stats = batchStat.batchStat(false, true, paths);
+    assertEquals(paths.size(), stats.size());
+    for (int i = 0; i < paths.size(); i++) {
+      if (i % 2 == 0) {
+        assertEquals(("" + i).length(), stats.get(i).getSize());
+      } else {
+        assertNull(stats.get(i));
+      }
+    }
+  }
+}
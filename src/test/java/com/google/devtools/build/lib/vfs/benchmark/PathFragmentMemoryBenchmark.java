@@ -0,0 +1,76 @@
+// Copyright 2015 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.vfs.benchmark;
+
+import com.google.common.base.Preconditions;
+import com.google.devtools.build.lib.vfs.PathFragment;
+import com.google.devtools.common.options.OptionsParser;
+
+/**
+ * Measures the heap retained by the {@link PathFragment}s of the output files of a large
+ * workspace, which all live under a few {@code bazel-out/<configuration>/bin} directories and
+ * share long prefixes.
+ *
+ * <pre>
+ * bazel run //src/test/java:path_fragment_memory_benchmark -- --packages=5000
+ * </pre>
+ */
+public final class PathFragmentMemoryBenchmark {
+
+  public static void main(String[] args) {
+    OptionsParser parser = OptionsParser.newOptionsParser(PathFragmentMemoryBenchmarkOptions.class);
+    parser.parseAndExitUponError(args);
+    PathFragmentMemoryBenchmarkOptions options =
+        parser.getOptions(PathFragmentMemoryBenchmarkOptions.class);
+    Preconditions.checkArgument(options.configurations > 0 && options.packages > 0
+        && options.packageDepth > 0 && options.filesPerPackage > 0,
+        "All options must be positive");
+
+    int count = options.configurations * options.packages * options.filesPerPackage;
+    // Allocate the array up front, so that it is not part of the measurement.
+    PathFragment[] fragments = new PathFragment[count];
+    long before = usedHeap();
+    long startTime = System.nanoTime();
+    int index = 0;
+    for (int c = 0; c < options.configurations; c++) {
+      for (int p = 0; p < options.packages; p++) {
+        StringBuilder packageName = new StringBuilder("bazel-out/config" + c + "/bin");
+        for (int d = 0; d < options.packageDepth; d++) {
+          // Packages share their leading directories, like in a real source tree.
+          packageName.append("/dir").append(p % (d * 10 + 10));
+        }
+        packageName.append("/pkg").append(p);
+        for (int f = 0; f < options.filesPerPackage; f++) {
+          fragments[index++] = new PathFragment(packageName + "/file" + f + ".o");
+        }
+      }
+    }
+    long elapsed = System.nanoTime() - startTime;
+    long used = usedHeap() - before;
+
+    System.out.printf("%d path fragments: %.1f MB retained, %.1f bytes per fragment, "
+        + "%.0f ns per construction%n", count, used / 1e6, (double) used / count,
+        (double) elapsed / count);
+    // Keeps the fragments reachable until the measurement is done.
+    System.out.println("Last fragment: " + fragments[count - 1]);
+  }
+
+  private static long usedHeap() {
+    Runtime runtime = Runtime.getRuntime();
+    for (int i = 0; i < 5; i++) {
+      System.gc();
+    }
+    return runtime.totalMemory() - runtime.freeMemory();
+  }
+}
@@ -0,0 +1,51 @@
+// Copyright 2015 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.vfs.benchmark;
+
+import com.google.devtools.common.options.Option;
+import com.google.devtools.common.options.OptionsBase;
+
+/**
+ * Command-line options for the path fragment memory benchmark.
+ */
+public class PathFragmentMemoryBenchmarkOptions extends OptionsBase {
+
+  @Option(
+      name = "configurations",
+      help = "Number of output directories under bazel-out/, like k8-fastbuild.",
+      defaultValue = "2"
+  )
+  public int configurations;
+
+  @Option(
+      name = "packages",
+      help = "Number of packages per configuration.",
+      defaultValue = "2000"
+  )
+  public int packages;
+
+  @Option(
+      name = "package_depth",
+      help = "Number of directories in the name of each package.",
+      defaultValue = "4"
+  )
+  public int packageDepth;
+
+  @Option(
+      name = "files_per_package",
+      help = "Number of output files per package.",
+      defaultValue = "200"
+  )
+  public int filesPerPackage;
+}
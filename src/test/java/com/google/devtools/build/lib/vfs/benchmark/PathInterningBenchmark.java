@@ -0,0 +1,141 @@
+// Copyright 2015 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.vfs.benchmark;
+
+import com.google.common.base.Preconditions;
+import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.build.lib.vfs.PathFragment;
+import com.google.devtools.build.lib.vfs.inmemoryfs.InMemoryFileSystem;
+import com.google.devtools.common.options.OptionsParser;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Measures how {@link Path#getChild} and {@link Path#getRelative} scale with the number of
+ * threads when all threads look up children of the same few directories, as parallel globbing and
+ * stat-ing do for the workspace root, {@code external/} and {@code bazel-out/}.
+ *
+ * <p>The existing children are kept reachable, so that most lookups find an interned path. A
+ * small fraction of lookups creates a new path, which is not kept and is later collected.
+ *
+ * <pre>
+ * bazel run //src/test/java:path_interning_benchmark -- --max_threads=64
+ * </pre>
+ */
+public final class PathInterningBenchmark {
+
+  private final PathInterningBenchmarkOptions options;
+  private final Path root;
+  private final Path[] hotDirectories;
+  private final String[] childNames;
+  private final PathFragment[] relativePaths;
+  // Keeps the existing children reachable, so that they stay interned.
+  private final List<Path> existingChildren = new ArrayList<>();
+
+  private PathInterningBenchmark(PathInterningBenchmarkOptions options) {
+    this.options = options;
+    this.root = new InMemoryFileSystem().getRootDirectory();
+    this.hotDirectories = new Path[options.hotDirectories];
+    this.childNames = new String[options.children];
+    this.relativePaths = new PathFragment[options.hotDirectories * options.children];
+    for (int i = 0; i < options.children; i++) {
+      childNames[i] = "child" + i;
+    }
+    for (int d = 0; d < options.hotDirectories; d++) {
+      hotDirectories[d] = root.getChild("hot" + d);
+      for (int i = 0; i < options.children; i++) {
+        existingChildren.add(hotDirectories[d].getChild(childNames[i]));
+        relativePaths[d * options.children + i] = new PathFragment("hot" + d + "/" + childNames[i]);
+      }
+    }
+  }
+
+  public static void main(String[] args) throws InterruptedException {
+    OptionsParser parser = OptionsParser.newOptionsParser(PathInterningBenchmarkOptions.class);
+    parser.parseAndExitUponError(args);
+    PathInterningBenchmarkOptions options = parser.getOptions(PathInterningBenchmarkOptions.class);
+    Preconditions.checkArgument(options.maxThreads > 0 && options.hotDirectories > 0
+        && options.children > 0 && options.operations > 0,
+        "--max_threads, --hot_directories, --children and --operations must be positive");
+
+    PathInterningBenchmark benchmark = new PathInterningBenchmark(options);
+    System.out.printf("%d hot directories with %d children, %d lookups per run, %d%% new paths, "
+        + "%d CPUs%n", options.hotDirectories, options.children, options.operations,
+        options.newPathPercent, Runtime.getRuntime().availableProcessors());
+    // Warm up the JIT.
+    benchmark.run(Math.min(4, options.maxThreads));
+    double singleThreaded = 0;
+    for (int threads = 1; threads <= options.maxThreads; threads *= 2) {
+      double best = 0;
+      for (int i = 0; i < options.iterations; i++) {
+        best = Math.max(best, benchmark.run(threads));
+      }
+      if (threads == 1) {
+        singleThreaded = best;
+      }
+      System.out.printf("%3d threads: %8.2f M lookups/s (%.2fx)%n",
+          threads, best / 1e6, best / singleThreaded);
+    }
+  }
+
+  /** Returns the number of lookups per second with the given number of threads. */
+  private double run(int threads) throws InterruptedException {
+    final int operationsPerThread = options.operations / threads;
+    final CountDownLatch start = new CountDownLatch(1);
+    List<Thread> workers = new ArrayList<>();
+    for (int t = 0; t < threads; t++) {
+      final int threadIndex = t;
+      Thread worker = new Thread() {
+        @Override
+        public void run() {
+          lookUp(threadIndex, operationsPerThread, start);
+        }
+      };
+      worker.start();
+      workers.add(worker);
+    }
+    long startTime = System.nanoTime();
+    start.countDown();
+    for (Thread worker : workers) {
+      worker.join();
+    }
+    long elapsed = System.nanoTime() - startTime;
+    return (double) operationsPerThread * threads * 1e9 / elapsed;
+  }
+
+  private void lookUp(int threadIndex, int operations, CountDownLatch start) {
+    Random random = new Random(threadIndex);
+    int newPaths = 0;
+    try {
+      start.await();
+    } catch (InterruptedException e) {
+      return;
+    }
+    for (int i = 0; i < operations; i++) {
+      int choice = random.nextInt(100);
+      if (choice < options.newPathPercent) {
+        hotDirectories[random.nextInt(hotDirectories.length)]
+            .getChild("new" + threadIndex + "_" + newPaths++);
+      } else if (choice % 2 == 0) {
+        hotDirectories[random.nextInt(hotDirectories.length)]
+            .getChild(childNames[random.nextInt(childNames.length)]);
+      } else {
+        root.getRelative(relativePaths[random.nextInt(relativePaths.length)]);
+      }
+    }
+  }
+}
@@ -0,0 +1,66 @@
+// Copyright 2015 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.vfs.benchmark;
+
+import com.google.devtools.common.options.Option;
+import com.google.devtools.common.options.OptionsBase;
+
+/**
+ * Command-line options for the path interning benchmark.
+ */
+public class PathInterningBenchmarkOptions extends OptionsBase {
+
+  @Option(
+      name = "max_threads",
+      help = "The benchmark runs with 1, 2, 4, ... threads up to this many.",
+      defaultValue = "64"
+  )
+  public int maxThreads;
+
+  @Option(
+      name = "hot_directories",
+      help = "Number of directories that all threads look up children of, like the workspace "
+          + "root, external/ and bazel-out/.",
+      defaultValue = "4"
+  )
+  public int hotDirectories;
+
+  @Option(
+      name = "children",
+      help = "Number of existing children of each hot directory.",
+      defaultValue = "2000"
+  )
+  public int children;
+
+  @Option(
+      name = "new_path_percent",
+      help = "Percentage of lookups that create a path that does not exist yet.",
+      defaultValue = "1"
+  )
+  public int newPathPercent;
+
+  @Option(
+      name = "operations",
+      help = "Total number of lookups per run, divided among the threads.",
+      defaultValue = "4000000"
+  )
+  public int operations;
+
+  @Option(
+      name = "iterations",
+      help = "Measured iterations per thread count; the fastest one is reported.",
+      defaultValue = "3"
+  )
+  public int iterations;
+}
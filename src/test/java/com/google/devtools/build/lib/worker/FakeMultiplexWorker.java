@@ -0,0 +1,74 @@
+// Copyright 2015 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.worker;
+
+import com.google.devtools.build.lib.worker.WorkerProtocol.WorkRequest;
+import com.google.devtools.build.lib.worker.WorkerProtocol.WorkResponse;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * A worker process for tests that works on multiplexed requests concurrently.
+ *
+ * <p>The arguments of a request say what to do: "sleep" followed by a number of milliseconds
+ * answers after that time, "hang" never answers and "exit" makes the process exit without
+ * answering any request. The output of each response is the name of the process, which contains
+ * its pid.
+ */
+public final class FakeMultiplexWorker {
+
+  public static void main(String[] args) throws IOException {
+    final PrintStream out = System.out;
+    final String processName = ManagementFactory.getRuntimeMXBean().getName();
+    ExecutorService executor = Executors.newCachedThreadPool();
+    WorkRequest request;
+    while ((request = WorkRequest.parseDelimitedFrom(System.in)) != null) {
+      final WorkRequest current = request;
+      List<String> arguments = current.getArgumentsList();
+      if (arguments.contains("exit")) {
+        System.exit(1);
+      }
+      if (arguments.contains("hang")) {
+        continue;
+      }
+      final long sleepMillis = arguments.contains("sleep")
+          ? Long.parseLong(arguments.get(arguments.indexOf("sleep") + 1))
+          : 0;
+      executor.execute(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            Thread.sleep(sleepMillis);
+            synchronized (out) {
+              WorkResponse.newBuilder()
+                  .setRequestId(current.getRequestId())
+                  .setOutput(processName)
+                  .build()
+                  .writeDelimitedTo(out);
+              out.flush();
+            }
+          } catch (InterruptedException | IOException e) {
+            e.printStackTrace();
+          }
+        }
+      });
+    }
+    System.exit(0);
+  }
+}
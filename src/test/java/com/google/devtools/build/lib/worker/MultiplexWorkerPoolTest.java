@@ -0,0 +1,186 @@
+// Copyright 2015 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.worker;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.google.common.base.Joiner;
+import com.google.common.base.Splitter;
+import com.google.common.collect.HashMultiset;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Multiset;
+import com.google.devtools.build.lib.testutil.TestUtils;
+import com.google.devtools.build.lib.vfs.JavaIoFileSystem;
+import com.google.devtools.build.lib.worker.WorkerProtocol.WorkRequest;
+import com.google.devtools.build.lib.worker.WorkerProtocol.WorkResponse;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests for {@link MultiplexWorkerPool}, with {@link FakeMultiplexWorker} processes.
+ */
+@RunWith(JUnit4.class)
+public class MultiplexWorkerPoolTest {
+
+  private MultiplexWorkerPool pool;
+  private WorkerKey key;
+  private ExecutorService executor;
+
+  @Before
+  public void setUp() throws Exception {
+    String java = System.getProperty("java.home") + File.separator + "bin" + File.separator
+        + "java";
+    // The worker runs in another directory, so the class path must not be relative.
+    List<String> classPath = new ArrayList<>();
+    for (String entry : Splitter.on(File.pathSeparatorChar).omitEmptyStrings()
+        .split(System.getProperty("java.class.path"))) {
+      classPath.add(new File(entry).getAbsolutePath());
+    }
+    key = new WorkerKey(
+        ImmutableList.of(java, "-cp", Joiner.on(File.pathSeparatorChar).join(classPath),
+            FakeMultiplexWorker.class.getName()),
+        ImmutableMap.<String, String>of(),
+        new JavaIoFileSystem().getPath(TestUtils.tmpDir()));
+    pool = new MultiplexWorkerPool();
+    executor = Executors.newCachedThreadPool();
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    pool.destroyAll();
+    executor.shutdownNow();
+  }
+
+  private Future<WorkResponse> submit(String... arguments) {
+    final WorkRequest request = WorkRequest.newBuilder()
+        .addAllArguments(ImmutableList.copyOf(arguments))
+        .build();
+    return executor.submit(new Callable<WorkResponse>() {
+      @Override
+      public WorkResponse call() throws Exception {
+        return pool.execute(key, request);
+      }
+    });
+  }
+
+  /** Submits a request and waits until the pool has assigned it to a worker. */
+  private Future<WorkResponse> submitAndAwaitAssignment(String... arguments)
+      throws InterruptedException {
+    int assigned = pool.getAssignedRequests(key);
+    Future<WorkResponse> response = submit(arguments);
+    while (pool.getAssignedRequests(key) <= assigned) {
+      Thread.sleep(10);
+    }
+    return response;
+  }
+
+  private static void assertFailsWithIOException(Future<WorkResponse> response)
+      throws InterruptedException {
+    try {
+      response.get();
+      fail();
+    } catch (ExecutionException e) {
+      assertTrue(e.getCause() instanceof IOException);
+    }
+  }
+
+  @Test
+  public void responsesMayArriveOutOfOrder() throws Exception {
+    pool.setLimits(1, 2, 0, TimeUnit.SECONDS);
+    Future<WorkResponse> slow = submitAndAwaitAssignment("sleep", "2000");
+    Future<WorkResponse> fast = submitAndAwaitAssignment("sleep", "0");
+    String fastProcess = fast.get().getOutput();
+    assertFalse(slow.isDone());
+    // Both requests were sent to the same process, which answered the second one first.
+    assertEquals(fastProcess, slow.get().getOutput());
+  }
+
+  @Test
+  public void spreadsRequestsOverAsFewProcessesAsPossible() throws Exception {
+    pool.setLimits(2, 2, 0, TimeUnit.SECONDS);
+    List<Future<WorkResponse>> slow = new ArrayList<>();
+    for (int i = 0; i < 4; i++) {
+      slow.add(submitAndAwaitAssignment("sleep", "1000"));
+    }
+    // All processes are full, so this one has to wait for a slow request to finish.
+    Future<WorkResponse> waiting = submit("sleep", "0");
+    Multiset<String> processes = HashMultiset.create();
+    processes.add(waiting.get().getOutput());
+    boolean anySlowDone = false;
+    for (Future<WorkResponse> response : slow) {
+      anySlowDone |= response.isDone();
+    }
+    assertTrue(anySlowDone);
+    for (Future<WorkResponse> response : slow) {
+      processes.add(response.get().getOutput());
+    }
+    assertEquals(2, processes.elementSet().size());
+  }
+
+  @Test
+  public void deadWorkerFailsItsPendingRequests() throws Exception {
+    pool.setLimits(1, 2, 0, TimeUnit.SECONDS);
+    Future<WorkResponse> pending = submitAndAwaitAssignment("hang");
+    Future<WorkResponse> crashing = submit("exit");
+    assertFailsWithIOException(pending);
+    assertFailsWithIOException(crashing);
+    // The dead process is replaced by a new one.
+    assertEquals(0, submit("sleep", "0").get().getExitCode());
+  }
+
+  @Test
+  public void requestTimesOut() throws Exception {
+    pool.setLimits(1, 1, 1, TimeUnit.SECONDS);
+    assertFailsWithIOException(submit("hang"));
+    // The process is still alive and takes the next request.
+    assertEquals(0, submit("sleep", "0").get().getExitCode());
+  }
+
+  @Test
+  public void changingTheLimitsReplacesTheProcesses() throws Exception {
+    pool.setLimits(1, 1, 0, TimeUnit.SECONDS);
+    String first = submit("sleep", "0").get().getOutput();
+    assertEquals(first, submit("sleep", "0").get().getOutput());
+    pool.setLimits(2, 1, 0, TimeUnit.SECONDS);
+    assertNotEquals(first, submit("sleep", "0").get().getOutput());
+  }
+
+  @Test
+  public void destroyAllFailsPendingRequests() throws Exception {
+    pool.setLimits(1, 1, 0, TimeUnit.SECONDS);
+    Future<WorkResponse> pending = submitAndAwaitAssignment("hang");
+    pool.destroyAll();
+    assertFailsWithIOException(pending);
+  }
+}
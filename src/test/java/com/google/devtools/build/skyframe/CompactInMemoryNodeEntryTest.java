@@ -0,0 +1,145 @@
+// Copyright 2015 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.skyframe;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.assertEquals;
+
+import com.google.common.collect.ImmutableList;
+import com.google.devtools.build.lib.collect.nestedset.NestedSetBuilder;
+import com.google.devtools.build.lib.collect.nestedset.Order;
+import com.google.devtools.build.lib.util.GroupedList;
+import com.google.devtools.build.lib.util.GroupedList.GroupedListHelper;
+import com.google.devtools.build.skyframe.CompactInMemoryNodeEntry.InternedSkyKeyList;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.List;
+
+/**
+ * Tests for the edge encodings of {@link CompactInMemoryNodeEntry}.
+ */
+@RunWith(JUnit4.class)
+public class CompactInMemoryNodeEntryTest {
+
+  private static final SkyFunctionName NODE_TYPE = SkyFunctionName.create("Type");
+
+  private final CompactInMemoryGraph graph = new CompactInMemoryGraph();
+
+  private static SkyKey key(String name) {
+    return new SkyKey(NODE_TYPE, name);
+  }
+
+  @Test
+  public void directDepsRoundTrip() {
+    // Intern in a different order than the deps appear, so deltas are negative as well.
+    for (int i = 300; i > 0; i--) {
+      graph.createIfAbsent(key("dep" + i));
+      graph.intern(key("dep" + i));
+    }
+    GroupedListHelper<SkyKey> helper = new GroupedListHelper<>();
+    helper.add(key("dep1"));
+    helper.startGroup();
+    helper.add(key("dep300"));
+    helper.add(key("dep2"));
+    helper.add(key("new"));
+    helper.endGroup();
+    helper.add(key("dep150"));
+    GroupedList<SkyKey> directDeps = new GroupedList<>();
+    directDeps.append(helper);
+
+    byte[] encoded = CompactInMemoryNodeEntry.encode(graph, directDeps);
+    GroupedList<SkyKey> decoded = CompactInMemoryNodeEntry.decode(graph, encoded);
+    assertEquals(directDeps, decoded);
+    assertThat(decoded.toSet()).containsExactly(key("dep1"), key("dep300"), key("dep2"),
+        key("new"), key("dep150")).inOrder();
+  }
+
+  @Test
+  public void emptyDirectDeps() {
+    GroupedList<SkyKey> empty = new GroupedList<>();
+    assertThat(CompactInMemoryNodeEntry.decode(graph,
+        CompactInMemoryNodeEntry.encode(graph, empty))).isEmpty();
+  }
+
+  @Test
+  public void internedListSupportsListOperations() {
+    List<SkyKey> list = new InternedSkyKeyList(graph, 0);
+    list.addAll(ImmutableList.of(key("a"), key("b"), key("c")));
+    list.add(key("d"));
+    list.add(0, key("z"));
+    assertThat(list).containsExactly(key("z"), key("a"), key("b"), key("c"), key("d")).inOrder();
+    list.remove(key("b"));
+    assertThat(list).containsExactly(key("z"), key("a"), key("c"), key("d")).inOrder();
+    assertEquals(ImmutableList.of(key("z"), key("a"), key("c"), key("d")), list);
+  }
+
+  private static NodeEntry newDoneNode(CompactInMemoryGraph graph, SkyKey key) {
+    NodeEntry entry = graph.createIfAbsent(key);
+    entry.addReverseDepAndCheckIfDone(null); // Start evaluation.
+    entry.setValue(ValueWithMetadata.normal(new SkyValue() {}, /*errorInfo=*/null,
+        NestedSetBuilder.<TaggedEvents>emptySet(Order.STABLE_ORDER)), new IntVersion(0L));
+    return entry;
+  }
+
+  @Test
+  public void eachGraphHasItsOwnInterner() {
+    CompactInMemoryGraph otherGraph = new CompactInMemoryGraph();
+    NodeEntry entry = newDoneNode(graph, key("node"));
+    graph.createIfAbsent(key("parent1"));
+    graph.createIfAbsent(key("parent2"));
+    // Reverse deps of a done node are stored as interned ids.
+    entry.addReverseDepAndCheckIfDone(key("parent1"));
+    entry.addReverseDepAndCheckIfDone(key("parent2"));
+    assertThat(entry.getReverseDeps()).containsExactly(key("parent1"), key("parent2"));
+    assertEquals(2, graph.interner.size());
+    assertEquals(0, otherGraph.interner.size());
+  }
+
+  @Test
+  public void idsAreStoredInNodes() {
+    CompactInMemoryNodeEntry parent =
+        (CompactInMemoryNodeEntry) graph.createIfAbsent(key("parent"));
+    graph.createIfAbsent(key("other"));
+    assertEquals(-1, parent.id);
+    // A single reverse dep is stored as a key, so give each node two.
+    for (String name : ImmutableList.of("first", "second")) {
+      NodeEntry entry = newDoneNode(graph, key(name));
+      entry.addReverseDepAndCheckIfDone(key("parent"));
+      entry.addReverseDepAndCheckIfDone(key("other"));
+    }
+    // All edges use the ids stored in the parents' nodes.
+    assertThat(parent.id).isAtLeast(0);
+    assertEquals(parent.id, graph.intern(key("parent")));
+    assertEquals(2, graph.interner.size());
+  }
+
+  @Test
+  public void cloneKeepsCompactForm() {
+    CompactInMemoryNodeEntry entry =
+        (CompactInMemoryNodeEntry) newDoneNode(graph, key("node"));
+    graph.createIfAbsent(key("parent"));
+    graph.createIfAbsent(key("other"));
+    entry.addReverseDepAndCheckIfDone(key("parent"));
+    entry.addReverseDepAndCheckIfDone(key("other"));
+    int id = graph.intern(key("node"));
+    InMemoryNodeEntry clone = entry.cloneNodeEntry();
+    assertThat(clone).isInstanceOf(CompactInMemoryNodeEntry.class);
+    assertEquals(id, ((CompactInMemoryNodeEntry) clone).id);
+    assertThat(clone.getReverseDeps()).containsExactly(key("parent"), key("other"));
+    assertEquals(3, graph.interner.size());
+  }
+}
@@ -146,6 +146,47 @@ public class ParallelEvaluatorTest {
     assertNoEvents(eventCollector);
   }
 
+  @Test
+  public void prioritizedEvaluationOrder() throws Exception {
+    graph = new InMemoryGraph();
+    final List<String> evaluated = new ArrayList<>();
+    SkyFunction function = new SkyFunction() {
+      @Override
+      public SkyValue compute(SkyKey key, Environment env) {
+        String name = (String) key.argument();
+        if (name.equals("top")) {
+          // All three dependencies are scheduled at once, while the only thread is busy.
+          env.getValues(Arrays.asList(GraphTester.toSkyKeys("low", "high", "middle")));
+          return env.valuesMissing() ? null : new StringValue(name);
+        }
+        evaluated.add(name);
+        return new StringValue(name);
+      }
+
+      @Nullable
+      @Override
+      public String extractTag(SkyKey skyKey) {
+        return null;
+      }
+    };
+    final ImmutableMap<String, Long> priorities =
+        ImmutableMap.of("top", 0L, "low", 1L, "middle", 2L, "high", 3L);
+    EvaluationPrioritizer prioritizer = new EvaluationPrioritizer() {
+      @Override
+      public long getPriority(SkyKey key) {
+        return priorities.get(key.argument());
+      }
+    };
+    ParallelEvaluator evaluator = new ParallelEvaluator(graph, graphVersion,
+        ImmutableMap.of(GraphTester.NODE_TYPE, function), reporter,
+        new MemoizingEvaluator.EmittedEventState(),
+        InMemoryMemoizingEvaluator.DEFAULT_STORED_EVENT_FILTER, /*keepGoing=*/false,
+        /*threadCount=*/1, /*useForkJoinPool=*/false, prioritizer, revalidationReceiver,
+        new DirtyKeyTrackerImpl());
+    evaluator.eval(ImmutableList.of(GraphTester.toSkyKey("top")));
+    assertEquals(ImmutableList.of("high", "middle", "low"), evaluated);
+  }
+
   /**
    * Test interruption handling when a long-running SkyFunction gets interrupted.
    */
@@ -0,0 +1,203 @@
+// Copyright 2015 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.skyframe;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ConcurrentHashMultiset;
+import com.google.common.collect.Multiset;
+import com.google.devtools.build.lib.events.NullEventHandler;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Tests for {@link PersistentInMemoryGraph}.
+ */
+@RunWith(JUnit4.class)
+public class PersistentInMemoryGraphTest {
+
+  private static final SkyFunctionName LEAF = SkyFunctionName.create("LEAF");
+  private static final SkyFunctionName CONCAT = SkyFunctionName.create("CONCAT");
+  private static final SkyFunctionName OPAQUE = SkyFunctionName.create("OPAQUE");
+
+  /** Leaf values are injected; concatenations join their dependencies' values. */
+  private final Map<SkyKey, List<SkyKey>> deps = new HashMap<>();
+  private final Multiset<SkyKey> computed = ConcurrentHashMultiset.create();
+  private PersistentInMemoryGraph graph;
+  private RecordingDifferencer differencer;
+  private InMemoryMemoizingEvaluator evaluator;
+  private int version;
+
+  private static final class Value implements SkyValue {
+    private final String string;
+
+    Value(String string) {
+      this.string = string;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      return obj instanceof Value && ((Value) obj).string.equals(string);
+    }
+
+    @Override
+    public int hashCode() {
+      return string.hashCode();
+    }
+  }
+
+  /** A value that cannot be persisted because one of its fields is not serializable. */
+  private static final class OpaqueValue implements SkyValue {
+    @SuppressWarnings("unused")
+    private final Object state = new Object();
+  }
+
+  private final SkyFunction concatFunction = new SkyFunction() {
+    @Override
+    public SkyValue compute(SkyKey skyKey, Environment env) {
+      computed.add(skyKey);
+      Map<SkyKey, SkyValue> values = env.getValues(deps.get(skyKey));
+      if (env.valuesMissing()) {
+        return null;
+      }
+      StringBuilder result = new StringBuilder();
+      for (SkyKey dep : deps.get(skyKey)) {
+        SkyValue value = values.get(dep);
+        result.append(value instanceof Value ? ((Value) value).string : "?");
+      }
+      return new Value(result.toString());
+    }
+
+    @Override
+    public String extractTag(SkyKey skyKey) {
+      return null;
+    }
+  };
+
+  private final SkyFunction opaqueFunction = new SkyFunction() {
+    @Override
+    public SkyValue compute(SkyKey skyKey, Environment env) {
+      computed.add(skyKey);
+      return new OpaqueValue();
+    }
+
+    @Override
+    public String extractTag(SkyKey skyKey) {
+      return null;
+    }
+  };
+
+  private static SkyKey leaf(String name) {
+    return new SkyKey(LEAF, name);
+  }
+
+  private SkyKey concat(String name, SkyKey... depKeys) {
+    SkyKey key = new SkyKey(CONCAT, name);
+    deps.put(key, ImmutableList.copyOf(depKeys));
+    return key;
+  }
+
+  private void startServer(PersistentInMemoryGraph graph) {
+    this.graph = graph;
+    differencer = new RecordingDifferencer();
+    evaluator = new InMemoryMemoizingEvaluator(
+        ImmutableMap.of(CONCAT, concatFunction, OPAQUE, opaqueFunction), differencer, null,
+        new MemoizingEvaluator.EmittedEventState(), graph);
+    version = 0;
+  }
+
+  private String eval(SkyKey key) throws InterruptedException {
+    EvaluationResult<Value> result = evaluator.evaluate(ImmutableList.of(key),
+        new IntVersion(version++), /*keepGoing=*/false, 2, NullEventHandler.INSTANCE);
+    assertFalse(result.hasError());
+    return result.get(key).string;
+  }
+
+  private PersistentInMemoryGraph restart() throws Exception {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    graph.save(out);
+    PersistentInMemoryGraph restored =
+        PersistentInMemoryGraph.load(new ByteArrayInputStream(out.toByteArray()));
+    startServer(restored);
+    computed.clear();
+    return restored;
+  }
+
+  @Before
+  public void setUp() {
+    startServer(new PersistentInMemoryGraph());
+  }
+
+  @Test
+  public void restoredGraphIsReusedWithoutReevaluation() throws Exception {
+    SkyKey a = leaf("a");
+    SkyKey b = leaf("b");
+    SkyKey top = concat("top", concat("left", a, b), concat("right", b));
+    differencer.inject(ImmutableMap.of(a, new Value("a"), b, new Value("b")));
+    assertEquals("abb", eval(top));
+
+    PersistentInMemoryGraph restored = restart();
+    assertEquals(6, restored.getPendingNodeCountForTesting());
+    differencer.inject(ImmutableMap.of(a, new Value("a"), b, new Value("b")));
+    assertEquals("abb", eval(top));
+    assertThat(computed).isEmpty();
+  }
+
+  @Test
+  public void changedLeafInvalidatesOnlyItsReverseDeps() throws Exception {
+    SkyKey a = leaf("a");
+    SkyKey b = leaf("b");
+    SkyKey left = concat("left", a);
+    SkyKey right = concat("right", b);
+    SkyKey top = concat("top", left, right);
+    differencer.inject(ImmutableMap.of(a, new Value("a"), b, new Value("b")));
+    assertEquals("ab", eval(top));
+
+    restart();
+    differencer.inject(ImmutableMap.of(a, new Value("x"), b, new Value("b")));
+    assertEquals("xb", eval(top));
+    assertThat(computed).containsExactly(left, top);
+  }
+
+  @Test
+  public void unserializableNodesAndTheirReverseDepsAreDropped() throws Exception {
+    SkyKey a = leaf("a");
+    SkyKey opaque = new SkyKey(OPAQUE, "opaque");
+    SkyKey withOpaque = concat("withOpaque", opaque);
+    SkyKey top = concat("top", a, withOpaque);
+    differencer.inject(ImmutableMap.of(a, new Value("a")));
+    assertEquals("a?", eval(top));
+
+    PersistentInMemoryGraph restored = restart();
+    assertEquals(2, restored.getPendingNodeCountForTesting());
+    assertNull(restored.get(top));
+    differencer.inject(ImmutableMap.of(a, new Value("a")));
+    assertEquals("a?", eval(top));
+    assertThat(computed.elementSet()).containsExactly(opaque, withOpaque, top);
+  }
+}
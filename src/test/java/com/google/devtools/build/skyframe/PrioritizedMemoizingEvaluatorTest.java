@@ -0,0 +1,45 @@
+// Copyright 2015 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.skyframe;
+
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.Map;
+
+/**
+ * Runs the {@link MemoizingEvaluatorTest} suite against an evaluator that starts scheduled
+ * evaluations in an order given by an {@link EvaluationPrioritizer} rather than in the order in
+ * which they were scheduled.
+ */
+@RunWith(JUnit4.class)
+public class PrioritizedMemoizingEvaluatorTest extends MemoizingEvaluatorTest {
+
+  @Override
+  protected MemoizingEvaluator getMemoizingEvaluator(
+      Map<? extends SkyFunctionName, ? extends SkyFunction> functions,
+      Differencer differencer,
+      EvaluationProgressReceiver invalidationReceiver) {
+    MemoizingEvaluator evaluator =
+        super.getMemoizingEvaluator(functions, differencer, invalidationReceiver);
+    evaluator.setEvaluationPrioritizer(new EvaluationPrioritizer() {
+      @Override
+      public long getPriority(SkyKey key) {
+        // An arbitrary order that is unrelated to the order of scheduling.
+        return key.hashCode();
+      }
+    });
+    return evaluator;
+  }
+}
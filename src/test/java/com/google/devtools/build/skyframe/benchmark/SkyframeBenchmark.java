@@ -0,0 +1,243 @@
+// Copyright 2015 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.skyframe.benchmark;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Supplier;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.devtools.build.lib.events.NullEventHandler;
+import com.google.devtools.build.skyframe.BuildDriver;
+import com.google.devtools.build.skyframe.CompactInMemoryGraph;
+import com.google.devtools.build.skyframe.EvaluationProgressReceiver;
+import com.google.devtools.build.skyframe.EvaluationResult;
+import com.google.devtools.build.skyframe.InMemoryGraph;
+import com.google.devtools.build.skyframe.InMemoryMemoizingEvaluator;
+import com.google.devtools.build.skyframe.MemoizingEvaluator;
+import com.google.devtools.build.skyframe.MemoizingEvaluator.EmittedEventState;
+import com.google.devtools.build.skyframe.RecordingDifferencer;
+import com.google.devtools.build.skyframe.SequentialBuildDriver;
+import com.google.devtools.build.skyframe.SkyKey;
+import com.google.devtools.build.skyframe.SkyValue;
+import com.google.devtools.build.skyframe.benchmark.SkyframeBenchmarkOptions.Scenario;
+import com.google.devtools.common.options.OptionsParser;
+
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Microbenchmark of Skyframe evaluation and invalidation on synthesized graphs.
+ *
+ * <p>Each scenario is run for a number of warmup iterations, whose results are discarded, and then
+ * for a number of measured iterations, whose times are summarized. Run it with a fixed heap size
+ * (e.g. {@code --jvm_flags="-Xms4g -Xmx4g"}) so that results are comparable between runs:
+ *
+ * <pre>
+ * bazel run //src/test/java:skyframe_benchmark -- --shape=wide --nodes=200000 \
+ *     --scenario=cold --scenario=incremental --dirty=100
+ * </pre>
+ *
+ * <p>To compare the memory use of the default and the compact graph, run the 'memory' and
+ * 'compact_memory' scenarios; to compare their speed, run the others with and without
+ * {@code --compact_graph}.
+ */
+public final class SkyframeBenchmark {
+
+  private final SkyframeBenchmarkOptions options;
+
+  private SkyframeBenchmark(SkyframeBenchmarkOptions options) {
+    this.options = options;
+  }
+
+  public static void main(String[] args) throws InterruptedException {
+    OptionsParser parser = OptionsParser.newOptionsParser(SkyframeBenchmarkOptions.class);
+    parser.parseAndExitUponError(args);
+    SkyframeBenchmarkOptions options = parser.getOptions(SkyframeBenchmarkOptions.class);
+    Set<Scenario> scenarios = options.scenarios.isEmpty()
+        ? EnumSet.allOf(Scenario.class)
+        : EnumSet.copyOf(options.scenarios);
+
+    SkyframeBenchmark benchmark = new SkyframeBenchmark(options);
+    SyntheticGraph graph = benchmark.newGraph();
+    System.out.printf("Graph: %s, %d nodes, %d leaves, %d threads, %s, %s%n",
+        options.shape.toString().toLowerCase(), graph.getNodeCount(), graph.getLeafCount(),
+        options.threads, options.forkJoinPool ? "fork/join pool" : "thread pool",
+        options.compactGraph ? "compact graph" : "default graph");
+    for (Scenario scenario : scenarios) {
+      switch (scenario) {
+        case COLD:
+          benchmark.runCold();
+          break;
+        case INCREMENTAL:
+          benchmark.runIncremental(/*changeLeaves=*/true);
+          break;
+        case PRUNING:
+          benchmark.runIncremental(/*changeLeaves=*/false);
+          break;
+        case MEMORY:
+          benchmark.runMemory(/*compact=*/false);
+          break;
+        case COMPACT_MEMORY:
+          benchmark.runMemory(/*compact=*/true);
+          break;
+        default:
+          throw new IllegalStateException(scenario.toString());
+      }
+    }
+  }
+
+  private SyntheticGraph newGraph() {
+    return new SyntheticGraph(options.shape, options.nodes, options.width);
+  }
+
+  /** An evaluator over a synthesized graph that counts the nodes it builds. */
+  private final class Evaluation {
+    final SyntheticGraph graph = newGraph();
+    final RecordingDifferencer differencer = new RecordingDifferencer();
+    final AtomicInteger built = new AtomicInteger();
+    final MemoizingEvaluator evaluator;
+    final BuildDriver driver;
+
+    Evaluation() {
+      this(options.compactGraph);
+    }
+
+    Evaluation(boolean compact) {
+      evaluator = new InMemoryMemoizingEvaluator(
+          ImmutableMap.of(SyntheticGraph.NODE, graph.getFunction()), differencer,
+          newProgressReceiver(), new EmittedEventState(),
+          compact ? new CompactInMemoryGraph() : new InMemoryGraph(/*keepEdges=*/true));
+      evaluator.setUseForkJoinPool(options.forkJoinPool);
+      driver = new SequentialBuildDriver(evaluator);
+    }
+
+    private EvaluationProgressReceiver newProgressReceiver() {
+      return new EvaluationProgressReceiver() {
+        @Override
+        public void invalidated(SkyKey skyKey, InvalidationState state) {}
+
+        @Override
+        public void enqueueing(SkyKey skyKey) {}
+
+        @Override
+        public void evaluated(SkyKey skyKey, Supplier<SkyValue> valueSupplier,
+            EvaluationState state) {
+          if (state == EvaluationState.BUILT) {
+            built.incrementAndGet();
+          }
+        }
+      };
+    }
+
+    /** Evaluates the root and returns the number of nodes built. */
+    int evaluate() throws InterruptedException {
+      built.set(0);
+      EvaluationResult<SkyValue> result = driver.evaluate(ImmutableList.of(graph.getRoot()),
+          /*keepGoing=*/false, options.threads, NullEventHandler.INSTANCE);
+      Preconditions.checkState(!result.hasError(), result);
+      return built.get();
+    }
+  }
+
+  private void runCold() throws InterruptedException {
+    Stats stats = new Stats("cold evaluation");
+    for (int i = 0; i < options.warmupIterations + options.iterations; i++) {
+      Evaluation evaluation = new Evaluation();
+      long start = System.nanoTime();
+      int built = evaluation.evaluate();
+      stats.add(i >= options.warmupIterations, System.nanoTime() - start, built);
+    }
+    stats.print();
+  }
+
+  /**
+   * Measures re-evaluation after dirtying leaves. If {@code changeLeaves} is false, the leaves
+   * re-evaluate to their old values, so all that is measured is invalidation and change pruning.
+   */
+  private void runIncremental(boolean changeLeaves) throws InterruptedException {
+    Stats stats = new Stats(changeLeaves
+        ? "incremental, " + options.dirty + " changed leaves"
+        : "change pruning, " + options.dirty + " dirtied leaves");
+    Evaluation evaluation = new Evaluation();
+    evaluation.evaluate();
+    ImmutableList<SkyKey> leaves = evaluation.graph.pickLeaves(options.dirty);
+    for (int i = 0; i < options.warmupIterations + options.iterations; i++) {
+      long start = System.nanoTime();
+      if (changeLeaves) {
+        evaluation.graph.change(leaves);
+      }
+      evaluation.differencer.invalidate(leaves);
+      int built = evaluation.evaluate();
+      stats.add(i >= options.warmupIterations, System.nanoTime() - start, built);
+    }
+    stats.print();
+  }
+
+  private void runMemory(boolean compact) throws InterruptedException {
+    long before = usedMemory();
+    Evaluation evaluation = new Evaluation(compact);
+    evaluation.evaluate();
+    long after = usedMemory();
+    int nodes = evaluation.evaluator.getValues().size();
+    System.out.printf("%-40s %d nodes, %.1f MB retained, %d bytes/node%n",
+        compact ? "memory, compact graph:" : "memory:", nodes, (after - before) / 1e6,
+        (after - before) / nodes);
+  }
+
+  private static long usedMemory() {
+    Runtime runtime = Runtime.getRuntime();
+    long used = Long.MAX_VALUE;
+    // A single collection is not guaranteed to free everything that is unreachable.
+    for (int i = 0; i < 5; i++) {
+      System.gc();
+      used = Math.min(used, runtime.totalMemory() - runtime.freeMemory());
+    }
+    return used;
+  }
+
+  /** Wall times of the measured iterations of a scenario. */
+  private final class Stats {
+    private final String name;
+    private final long[] nanos = new long[options.iterations];
+    private int count;
+    private int built;
+
+    Stats(String name) {
+      this.name = name;
+    }
+
+    void add(boolean measured, long elapsedNanos, int builtNodes) {
+      if (measured) {
+        nanos[count++] = elapsedNanos;
+        built = builtNodes;
+      }
+    }
+
+    void print() {
+      if (count == 0) {
+        return;
+      }
+      long[] sorted = Arrays.copyOf(nanos, count);
+      Arrays.sort(sorted);
+      long total = 0;
+      for (long n : sorted) {
+        total += n;
+      }
+      System.out.printf("%-40s min %8.2f ms, median %8.2f ms, mean %8.2f ms, %d nodes built%n",
+          name + ":", sorted[0] / 1e6, sorted[count / 2] / 1e6, total / 1e6 / count, built);
+    }
+  }
+}
@@ -0,0 +1,130 @@
+// Copyright 2015 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.skyframe.benchmark;
+
+import com.google.devtools.build.skyframe.benchmark.SyntheticGraph.Shape;
+import com.google.devtools.common.options.EnumConverter;
+import com.google.devtools.common.options.Option;
+import com.google.devtools.common.options.OptionsBase;
+
+import java.util.List;
+
+/**
+ * Command-line options for the Skyframe benchmark.
+ */
+public class SkyframeBenchmarkOptions extends OptionsBase {
+
+  /** Converter for {@link Shape}. */
+  public static class ShapeConverter extends EnumConverter<Shape> {
+    public ShapeConverter() {
+      super(Shape.class, "graph shape");
+    }
+  }
+
+  /** The measurements the benchmark can take. */
+  public enum Scenario {
+    COLD,
+    INCREMENTAL,
+    PRUNING,
+    MEMORY,
+    COMPACT_MEMORY,
+  }
+
+  /** Converter for {@link Scenario}. */
+  public static class ScenarioConverter extends EnumConverter<Scenario> {
+    public ScenarioConverter() {
+      super(Scenario.class, "benchmark scenario");
+    }
+  }
+
+  @Option(
+      name = "shape",
+      help = "Shape of the synthesized graph: 'wide' (one root over all leaves), 'deep' (a "
+          + "single chain) or 'diamond' (layers of --width nodes, each depending on all nodes of "
+          + "the layer below).",
+      converter = ShapeConverter.class,
+      defaultValue = "diamond"
+  )
+  public Shape shape;
+
+  @Option(
+      name = "nodes",
+      help = "Approximate number of nodes in the graph.",
+      defaultValue = "100000"
+  )
+  public int nodes;
+
+  @Option(
+      name = "width",
+      help = "Number of nodes per layer of the 'diamond' shape.",
+      defaultValue = "10"
+  )
+  public int width;
+
+  @Option(
+      name = "scenario",
+      help = "Scenarios to run: 'cold' evaluation of a new graph, 'incremental' re-evaluation "
+          + "after changing --dirty leaves, 'pruning' re-evaluation after dirtying --dirty leaves "
+          + "whose values do not change, 'memory' retained per node, and 'compact_memory' retained "
+          + "per node of a CompactInMemoryGraph.",
+      converter = ScenarioConverter.class,
+      allowMultiple = true,
+      defaultValue = ""
+  )
+  public List<Scenario> scenarios;
+
+  @Option(
+      name = "compact_graph",
+      help = "Whether the 'cold', 'incremental' and 'pruning' scenarios keep the graph in a "
+          + "CompactInMemoryGraph instead of the default InMemoryGraph.",
+      defaultValue = "false"
+  )
+  public boolean compactGraph;
+
+  @Option(
+      name = "dirty",
+      help = "Number of leaves to dirty per incremental iteration.",
+      defaultValue = "10"
+  )
+  public int dirty;
+
+  @Option(
+      name = "threads",
+      help = "Number of evaluation threads.",
+      defaultValue = "200"
+  )
+  public int threads;
+
+  @Option(
+      name = "fork_join_pool",
+      help = "Whether to evaluate on a work-stealing ForkJoinPool instead of a thread pool with a "
+          + "single queue.",
+      defaultValue = "false"
+  )
+  public boolean forkJoinPool;
+
+  @Option(
+      name = "warmup_iterations",
+      help = "Iterations to run before measuring, so that the JIT compiler settles.",
+      defaultValue = "5"
+  )
+  public int warmupIterations;
+
+  @Option(
+      name = "iterations",
+      help = "Measured iterations.",
+      defaultValue = "10"
+  )
+  public int iterations;
+}
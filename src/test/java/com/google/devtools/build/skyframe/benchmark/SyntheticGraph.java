@@ -0,0 +1,206 @@
+// Copyright 2015 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.skyframe.benchmark;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.devtools.build.skyframe.SkyFunction;
+import com.google.devtools.build.skyframe.SkyFunctionName;
+import com.google.devtools.build.skyframe.SkyKey;
+import com.google.devtools.build.skyframe.SkyValue;
+
+import java.util.Map;
+
+import javax.annotation.Nullable;
+
+/**
+ * A synthesized Skyframe graph of a given shape whose nodes are numbered from 0, the root.
+ *
+ * <p>The value of a leaf is derived from its number and a per-leaf version, which {@link #change}
+ * increments. The value of any other node is a hash of the values of its dependencies that does
+ * not depend on their order, so a change to a leaf changes all of its reverse transitive closure.
+ */
+final class SyntheticGraph {
+
+  static final SkyFunctionName NODE = SkyFunctionName.create("SYNTHETIC_NODE");
+
+  /** The shapes of graphs that can be synthesized. */
+  enum Shape {
+    /** The root depends directly on all other nodes, which are leaves. */
+    WIDE,
+    /** Each node depends on the next one; the last one is the only leaf. */
+    DEEP,
+    /**
+     * Below the root, layers of equal width where each node depends on all nodes of the next
+     * layer; the last layer consists of the leaves.
+     */
+    DIAMOND,
+  }
+
+  private final Shape shape;
+  private final int nodeCount;
+  private final int width;
+  private final int[] leafVersions;
+
+  SyntheticGraph(Shape shape, int nodeCount, int width) {
+    Preconditions.checkArgument(nodeCount >= 2, "graph needs at least 2 nodes");
+    Preconditions.checkArgument(width >= 1, "width must be positive");
+    this.shape = shape;
+    this.width = width;
+    // Round the diamond down to full layers.
+    this.nodeCount = shape == Shape.DIAMOND
+        ? 1 + Math.max(1, (nodeCount - 1) / width) * width
+        : nodeCount;
+    this.leafVersions = new int[this.nodeCount];
+  }
+
+  int getNodeCount() {
+    return nodeCount;
+  }
+
+  static SkyKey key(int node) {
+    return new SkyKey(NODE, node);
+  }
+
+  SkyKey getRoot() {
+    return key(0);
+  }
+
+  /** Returns the first leaf; leaves are numbered contiguously up to the last node. */
+  private int firstLeaf() {
+    switch (shape) {
+      case WIDE:
+        return 1;
+      case DEEP:
+        return nodeCount - 1;
+      case DIAMOND:
+        return nodeCount - width;
+      default:
+        throw new IllegalStateException(shape.toString());
+    }
+  }
+
+  int getLeafCount() {
+    return nodeCount - firstLeaf();
+  }
+
+  /**
+   * Returns {@code count} leaves spread evenly over all leaves, or all of them if there are fewer.
+   */
+  ImmutableList<SkyKey> pickLeaves(int count) {
+    int first = firstLeaf();
+    int leaves = getLeafCount();
+    count = Math.min(count, leaves);
+    ImmutableList.Builder<SkyKey> result = ImmutableList.builder();
+    for (int i = 0; i < count; i++) {
+      result.add(key(first + (int) ((long) i * leaves / count)));
+    }
+    return result.build();
+  }
+
+  /** Changes the value the given leaves evaluate to. Must not be called during evaluation. */
+  void change(Iterable<SkyKey> leaves) {
+    for (SkyKey leaf : leaves) {
+      leafVersions[(Integer) leaf.argument()]++;
+    }
+  }
+
+  private ImmutableList<SkyKey> getDeps(int node) {
+    if (node >= firstLeaf()) {
+      return ImmutableList.of();
+    }
+    switch (shape) {
+      case WIDE:
+        return range(1, nodeCount);
+      case DEEP:
+        return ImmutableList.of(key(node + 1));
+      case DIAMOND:
+        // The root is layer 0 and has a single node; layer l > 0 starts at 1 + (l - 1) * width.
+        int nextLayerStart = node == 0 ? 1 : 1 + ((node - 1) / width + 1) * width;
+        return range(nextLayerStart, nextLayerStart + width);
+      default:
+        throw new IllegalStateException(shape.toString());
+    }
+  }
+
+  private static ImmutableList<SkyKey> range(int start, int end) {
+    ImmutableList.Builder<SkyKey> keys = ImmutableList.builder();
+    for (int i = start; i < end; i++) {
+      keys.add(key(i));
+    }
+    return keys.build();
+  }
+
+  SkyFunction getFunction() {
+    return new SkyFunction() {
+      @Override
+      public SkyValue compute(SkyKey skyKey, Environment env) {
+        int node = (Integer) skyKey.argument();
+        ImmutableList<SkyKey> deps = getDeps(node);
+        if (deps.isEmpty()) {
+          return new NodeValue(((long) node << 32) + leafVersions[node]);
+        }
+        Map<SkyKey, SkyValue> values = env.getValues(deps);
+        if (env.valuesMissing()) {
+          return null;
+        }
+        long sum = 0;
+        for (SkyValue value : values.values()) {
+          sum += mix(((NodeValue) value).value);
+        }
+        return new NodeValue(sum);
+      }
+
+      @Nullable
+      @Override
+      public String extractTag(SkyKey skyKey) {
+        return null;
+      }
+    };
+  }
+
+  /**
+   * Scrambles the bits of {@code value}. Plain sums would overflow to the same value after a few
+   * dozen layers of a diamond, so that deep changes would look pruned.
+   */
+  private static long mix(long value) {
+    value = (value ^ (value >>> 33)) * 0xff51afd7ed558ccdL;
+    value = (value ^ (value >>> 33)) * 0xc4ceb9fe1a85ec53L;
+    return value ^ (value >>> 33);
+  }
+
+  /** The value of a synthesized node. */
+  static final class NodeValue implements SkyValue {
+    private final long value;
+
+    NodeValue(long value) {
+      this.value = value;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      return obj instanceof NodeValue && ((NodeValue) obj).value == value;
+    }
+
+    @Override
+    public int hashCode() {
+      return Long.valueOf(value).hashCode();
+    }
+
+    @Override
+    public String toString() {
+      return "NodeValue(" + value + ")";
+    }
+  }
+}
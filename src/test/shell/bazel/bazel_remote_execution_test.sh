@@ -0,0 +1,55 @@
+#!/bin/bash
+#
+# Copyright 2015 Google Inc. All rights reserved.
+#
+# Licensed under the Apache License, Version 2.0 (the "License");
+# you may not use this file except in compliance with the License.
+# You may obtain a copy of the License at
+#
+#    http://www.apache.org/licenses/LICENSE-2.0
+#
+# Unless required by applicable law or agreed to in writing, software
+# distributed under the License is distributed on an "AS IS" BASIS,
+# WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+# See the License for the specific language governing permissions and
+# limitations under the License.
+#
+# Tests the remote execution strategy against the in-process reference server.
+#
+
+# Load test environment
+source $(cd "$(dirname "${BASH_SOURCE[0]}")" && pwd)/test-setup.sh \
+  || { echo "test-setup.sh not found!" >&2; exit 1; }
+
+function write_genrule_files() {
+  mkdir -p remote
+  cat >remote/BUILD <<EOF
+genrule(name = 'upper',
+    srcs = ['input.txt'],
+    outs = ['upper.txt'],
+    cmd = 'tr a-z A-Z < \$< > \$@')
+EOF
+  echo "hello remote" >remote/input.txt
+}
+
+function test_genrule_runs_remotely() {
+  write_genrule_files
+  local server_dir="${TEST_TMPDIR}/remote_server"
+  bazel build --spawn_strategy=remote --genrule_strategy=remote \
+      --experimental_remote_local_server_dir="${server_dir}" \
+      --noremote_local_fallback //remote:upper || fail "build failed"
+  assert_equals "HELLO REMOTE" "$(cat bazel-genfiles/remote/upper.txt)"
+  [ -n "$(ls "${server_dir}/ac")" ] || fail "the server did not cache the result"
+}
+
+function test_falls_back_to_local_execution() {
+  write_genrule_files
+  # Nothing listens on port 1.
+  bazel build --spawn_strategy=remote --genrule_strategy=remote \
+      --remote_executor=localhost:1 //remote:upper >& $TEST_log \
+      || fail "build failed"
+  expect_log "Remote execution failed, running locally"
+  assert_equals "HELLO REMOTE" "$(cat bazel-genfiles/remote/upper.txt)"
+}
+
+run_suite "Remote execution integration tests"
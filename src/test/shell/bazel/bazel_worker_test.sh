@@ -76,4 +76,22 @@ function test_compiles_hello_library_using_persistent_javac() {
   fi
 }
 
+function test_compiles_hello_library_using_multiplexed_persistent_javac() {
+  write_hello_library_files
+  bazel --batch clean
+  bazel build --experimental_persistent_javac --experimental_worker_multiplex \
+    --worker_max_instances=1 --worker_max_multiplex_requests=4 \
+    //java/main:main || fail "build failed"
+  bazel-bin/java/main/main | grep -q "Hello, Library!;Hello, World!" \
+    || fail "comparison failed"
+  bazel_pid=$(bazel info | fgrep server_pid | cut -d' ' -f2)
+  bazel_children=$(ps ax -o ppid,pid | awk '{$1=$1};1' | egrep "^${bazel_pid} " | cut -d' ' -f2)
+  bazel shutdown || fail "shutdown failed"
+  sleep 10
+  unkilled_children=$(for pid in $bazel_children; do ps -p $pid | sed 1d; done)
+  if [ ! -z "$unkilled_children" ]; then
+    fail "Multiplexed worker processes were still running: ${unkilled_children}"
+  fi
+}
+
 run_suite "Worker integration tests"